@@ -0,0 +1,443 @@
+package cn.darkal.networkdiagnosis.Activity;
+
+import android.content.DialogInterface;
+import android.os.Bundle;
+import android.os.Handler;
+import android.support.design.widget.TabLayout;
+import android.support.v7.app.ActionBar;
+import android.support.v7.app.AlertDialog;
+import android.support.v7.app.AppCompatActivity;
+import android.support.v7.widget.LinearLayoutManager;
+import android.support.v7.widget.RecyclerView;
+import android.util.Log;
+import android.view.LayoutInflater;
+import android.view.Menu;
+import android.view.MenuItem;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.EditText;
+import android.widget.TextView;
+import android.widget.Toast;
+
+import net.lightbody.bmp.BrowserMobProxyServer;
+import net.lightbody.bmp.core.har.HarAnalytics;
+import net.lightbody.bmp.core.har.HarComparison;
+import net.lightbody.bmp.core.har.HarLog;
+import net.lightbody.bmp.core.har.HarPage;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+
+import butterknife.BindView;
+import butterknife.ButterKnife;
+import cn.darkal.networkdiagnosis.R;
+import cn.darkal.networkdiagnosis.SysApplication;
+import cn.darkal.networkdiagnosis.Utils.SharedPreferenceUtils;
+
+/**
+ * 流量统计：按域名、分页、类型汇总请求数、流量、错误率和各阶段耗时的分位数。
+ * <p/>
+ * 统计数据在抓包时增量更新（见 {@link HarAnalytics}），这里每秒读取一次，不遍历请求列表。
+ * <p/>
+ * 菜单中可以对比两个分页（见 {@link HarComparison}），并按配置的性能预算检查对比分页。
+ */
+public class AnalyticsActivity extends AppCompatActivity {
+    private static final long REFRESH_INTERVAL_MS = 1000;
+
+    private static final HarAnalytics.Dimension[] DIMENSIONS = {
+            HarAnalytics.Dimension.HOST, HarAnalytics.Dimension.PAGE, HarAnalytics.Dimension.MIME_TYPE};
+    private static final String[] DIMENSION_TITLES = {"域名", "分页", "类型"};
+
+    private static final String BUDGET_KEY = "compare_budget";
+    private static final String DEFAULT_BUDGET = "total_bytes=10%\nrequests=10%\np95_wait=20%";
+
+    /**
+     * 对比结果中每类请求最多显示的条数
+     */
+    private static final int MAX_REPORT_LINES = 20;
+
+    @BindView(R.id.tl_dimension)
+    TabLayout tabLayout;
+
+    @BindView(R.id.tv_total)
+    TextView totalView;
+
+    @BindView(R.id.rv_stats)
+    RecyclerView recyclerView;
+
+    private Handler mHandler = new Handler();
+    private StatsAdapter statsAdapter = new StatsAdapter();
+    private HarAnalytics.Dimension dimension = HarAnalytics.Dimension.HOST;
+
+    private final Runnable refreshRunnable = new Runnable() {
+        @Override
+        public void run() {
+            refresh();
+            mHandler.postDelayed(this, REFRESH_INTERVAL_MS);
+        }
+    };
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        setContentView(R.layout.activity_analytics);
+        ButterKnife.bind(this);
+
+        setupActionBar();
+
+        for (String title : DIMENSION_TITLES) {
+            tabLayout.addTab(tabLayout.newTab().setText(title));
+        }
+        tabLayout.addOnTabSelectedListener(new TabLayout.OnTabSelectedListener() {
+            @Override
+            public void onTabSelected(TabLayout.Tab tab) {
+                dimension = DIMENSIONS[tab.getPosition()];
+                refresh();
+            }
+
+            @Override
+            public void onTabUnselected(TabLayout.Tab tab) {
+            }
+
+            @Override
+            public void onTabReselected(TabLayout.Tab tab) {
+            }
+        });
+
+        recyclerView.setLayoutManager(new LinearLayoutManager(this));
+        recyclerView.setAdapter(statsAdapter);
+    }
+
+    private void setupActionBar() {
+        setTitle("流量统计");
+        ActionBar actionBar = getSupportActionBar();
+        if (actionBar != null) {
+            // Show the Up button in the action bar.
+            actionBar.setDisplayHomeAsUpEnabled(true);
+        }
+    }
+
+    @Override
+    public boolean onCreateOptionsMenu(Menu menu) {
+        getMenuInflater().inflate(R.menu.analytics_menu, menu);
+        return true;
+    }
+
+    @Override
+    public boolean onOptionsItemSelected(MenuItem item) {
+        if (item.getItemId() == android.R.id.home) {
+            finish();
+            return true;
+        }
+        if (item.getItemId() == R.id.compare) {
+            selectPages();
+            return true;
+        }
+        if (item.getItemId() == R.id.budget) {
+            showBudgetDialog();
+            return true;
+        }
+        return super.onOptionsItemSelected(item);
+    }
+
+    @Override
+    protected void onResume() {
+        super.onResume();
+        mHandler.post(refreshRunnable);
+    }
+
+    @Override
+    protected void onPause() {
+        super.onPause();
+        mHandler.removeCallbacks(refreshRunnable);
+    }
+
+    private void refresh() {
+        HarAnalytics analytics = getHarAnalytics();
+        HarAnalytics.Stats totals = analytics.getTotals();
+        totalView.setText("全部 " + formatSummary(totals) + "\n" + formatTimings(totals));
+
+        // 请求最多的排在前面
+        List<HarAnalytics.Stats> statsList = analytics.getAllStats(dimension);
+        final long[] requests = new long[statsList.size()];
+        List<Integer> order = new ArrayList<>(statsList.size());
+        for (int i = 0; i < statsList.size(); i++) {
+            requests[i] = statsList.get(i).getRequests();
+            order.add(i);
+        }
+        Collections.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return requests[a] == requests[b] ? 0 : (requests[a] > requests[b] ? -1 : 1);
+            }
+        });
+
+        List<HarAnalytics.Stats> sorted = new ArrayList<>(statsList.size());
+        for (Integer index : order) {
+            sorted.add(statsList.get(index));
+        }
+        statsAdapter.setStats(sorted);
+    }
+
+    /**
+     * 依次选择基准分页和对比分页
+     */
+    private void selectPages() {
+        final HarLog harLog = ((SysApplication) getApplication()).proxy.getHar().getLog();
+        List<HarPage> pages = harLog.getPages();
+        if (pages.size() < 2) {
+            Toast.makeText(this, "至少需要两个分页才能对比", Toast.LENGTH_LONG).show();
+            return;
+        }
+
+        final String[] pageIds = new String[pages.size()];
+        for (int i = 0; i < pageIds.length; i++) {
+            pageIds[i] = pages.get(i).getId();
+        }
+
+        new AlertDialog.Builder(this)
+                .setTitle("选择基准分页")
+                .setItems(pageIds, new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, final int baseline) {
+                        new AlertDialog.Builder(AnalyticsActivity.this)
+                                .setTitle("选择对比分页")
+                                .setItems(pageIds, new DialogInterface.OnClickListener() {
+                                    @Override
+                                    public void onClick(DialogInterface dialog, int current) {
+                                        comparePages(harLog, pageIds[baseline], pageIds[current]);
+                                    }
+                                })
+                                .show();
+                    }
+                })
+                .show();
+    }
+
+    private void comparePages(final HarLog harLog, final String baselinePage, final String currentPage) {
+        final HarComparison.Budget budget = parseBudget(SharedPreferenceUtils.getString(this, BUDGET_KEY, DEFAULT_BUDGET));
+
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                HarComparison comparison = new HarComparison();
+                comparison.addAll(HarComparison.Side.BASELINE, harLog, baselinePage);
+                comparison.addAll(HarComparison.Side.CURRENT, harLog, currentPage);
+                final String report = formatReport(comparison.getReport(budget));
+
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (isFinishing()) {
+                            return;
+                        }
+
+                        View textView = LayoutInflater.from(AnalyticsActivity.this).inflate(R.layout.alert_textview, null);
+                        ((TextView) textView.findViewById(R.id.tv_content)).setText(report);
+                        new AlertDialog.Builder(AnalyticsActivity.this)
+                                .setTitle(baselinePage + " → " + currentPage)
+                                .setView(textView)
+                                .setPositiveButton("确认", null)
+                                .show();
+                    }
+                });
+            }
+        }).start();
+    }
+
+    private void showBudgetDialog() {
+        View textEntryView = LayoutInflater.from(this).inflate(R.layout.alert_edittext, null);
+        final EditText editText = (EditText) textEntryView.findViewById(R.id.et_content);
+        editText.setHint("total_bytes=10%");
+        editText.setText(SharedPreferenceUtils.getString(this, BUDGET_KEY, DEFAULT_BUDGET));
+
+        new AlertDialog.Builder(this)
+                .setTitle("性能预算")
+                .setMessage("每行一项：total_bytes（字节）、requests（请求数）、p95_wait（ms）。数字为上限，百分比为相对基准分页的最大增幅")
+                .setView(textEntryView)
+                .setPositiveButton("确认", new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        SharedPreferenceUtils.putString(AnalyticsActivity.this, BUDGET_KEY, editText.getText() + "");
+                    }
+                })
+                .setNegativeButton("恢复默认", new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        SharedPreferenceUtils.remove(AnalyticsActivity.this, BUDGET_KEY);
+                    }
+                })
+                .show();
+    }
+
+    /**
+     * 解析预算配置，如 "total_bytes=10%"、"requests=200"，无法识别的行忽略
+     */
+    private static HarComparison.Budget parseBudget(String text) {
+        HarComparison.Budget budget = new HarComparison.Budget();
+        for (String line : text.split("\\n")) {
+            int equals = line.indexOf('=');
+            if (equals < 0) {
+                continue;
+            }
+
+            String name = line.substring(0, equals).trim().toUpperCase(Locale.US);
+            String value = line.substring(equals + 1).trim();
+            try {
+                HarComparison.Metric metric = HarComparison.Metric.valueOf(name);
+                if (value.endsWith("%")) {
+                    budget.setMaxIncrease(metric, Double.parseDouble(value.substring(0, value.length() - 1).replace("+", "")) / 100);
+                } else {
+                    budget.setMaxValue(metric, Long.parseLong(value));
+                }
+            } catch (IllegalArgumentException e) {
+                Log.e("~~~", "Invalid budget: " + line);
+            }
+        }
+        return budget;
+    }
+
+    private static String formatReport(HarComparison.Report report) {
+        StringBuilder builder = new StringBuilder();
+
+        HarComparison.Delta total = report.getTotal();
+        builder.append(report.isWithinBudget() ? "预算检查：通过\n" : "预算检查：超出预算\n");
+        for (HarComparison.Violation violation : report.getViolations()) {
+            builder.append("  ").append(violation.getMetric().name().toLowerCase(Locale.US))
+                    .append(' ').append(violation.getCurrentValue()).append(" > ").append(violation.getLimit())
+                    .append("（基准 ").append(violation.getBaselineValue()).append("）\n");
+        }
+
+        builder.append(String.format(Locale.US, "\n请求数 %d → %d，流量 %s → %s，p95 wait %dms → %dms\n",
+                total.getBaseline().getRequests(), total.getCurrent().getRequests(),
+                formatBytes(total.getBaseline().getBytes()), formatBytes(total.getCurrent().getBytes()),
+                total.getBaseline().getPercentile(HarAnalytics.Timing.WAIT, 0.95),
+                total.getCurrent().getPercentile(HarAnalytics.Timing.WAIT, 0.95)));
+
+        appendDeltas(builder, "新增的请求", "+ ", report.getAdded());
+        appendDeltas(builder, "减少的请求", "- ", report.getRemoved());
+        appendDeltas(builder, "变化的请求", "~ ", report.getChanged());
+
+        builder.append("\n各域名 p50/p95 wait 变化\n");
+        for (HarComparison.Delta host : report.getHosts()) {
+            builder.append(String.format(Locale.US, "  %s  %+dms / %+dms  流量%s\n",
+                    HarAnalytics.UNKNOWN.equals(host.getKey()) ? "(未知)" : host.getKey(),
+                    host.getPercentileDelta(HarAnalytics.Timing.WAIT, 0.5),
+                    host.getPercentileDelta(HarAnalytics.Timing.WAIT, 0.95),
+                    formatByteDelta(host.getByteDelta())));
+        }
+
+        return builder.toString();
+    }
+
+    private static void appendDeltas(StringBuilder builder, String title, String prefix, List<HarComparison.Delta> deltas) {
+        if (deltas.isEmpty()) {
+            return;
+        }
+
+        builder.append('\n').append(title).append("（").append(deltas.size()).append("）\n");
+        for (int i = 0; i < deltas.size() && i < MAX_REPORT_LINES; i++) {
+            HarComparison.Delta delta = deltas.get(i);
+            builder.append("  ").append(prefix).append(delta.getKey())
+                    .append(String.format(Locale.US, "  请求%+d  流量%s\n", delta.getRequestDelta(), formatByteDelta(delta.getByteDelta())));
+        }
+        if (deltas.size() > MAX_REPORT_LINES) {
+            builder.append("  …还有").append(deltas.size() - MAX_REPORT_LINES).append("项\n");
+        }
+    }
+
+    private static String formatByteDelta(long bytes) {
+        return (bytes >= 0 ? "+" : "-") + formatBytes(Math.abs(bytes));
+    }
+
+    private HarAnalytics getHarAnalytics() {
+        return ((BrowserMobProxyServer) ((SysApplication) getApplication()).proxy).getHarAnalytics();
+    }
+
+    private static String formatSummary(HarAnalytics.Stats stats) {
+        return String.format(Locale.US, "%d个请求  错误率%.1f%%  流量%s（解压后%s）",
+                stats.getRequests(), stats.getErrorRate() * 100,
+                formatBytes(stats.getCompressedBytes()), formatBytes(stats.getDecompressedBytes()));
+    }
+
+    /**
+     * 各阶段的p50/p95/p99，单位ms；没有发生的阶段不显示
+     */
+    private static String formatTimings(HarAnalytics.Stats stats) {
+        StringBuilder builder = new StringBuilder();
+        HarAnalytics.Timing[] timings = HarAnalytics.Timing.values();
+        for (int i = 0; i < timings.length; i++) {
+            if (stats.getTimingCount(timings[i]) == 0) {
+                continue;
+            }
+            if (builder.length() > 0) {
+                builder.append('\n');
+            }
+            builder.append(String.format(Locale.US, "%-8s %6d %6d %6d",
+                    timings[i].name().toLowerCase(Locale.US),
+                    stats.getPercentile(timings[i], 0.5),
+                    stats.getPercentile(timings[i], 0.95),
+                    stats.getPercentile(timings[i], 0.99)));
+        }
+        if (builder.length() > 0) {
+            builder.insert(0, String.format(Locale.US, "%-8s %6s %6s %6s\n", "ms", "p50", "p95", "p99"));
+        }
+        return builder.toString();
+    }
+
+    private static String formatBytes(long bytes) {
+        if (bytes < 1024) {
+            return bytes + "B";
+        } else if (bytes < 1024 * 1024) {
+            return String.format(Locale.US, "%.1fKB", bytes / 1024.0);
+        } else {
+            return String.format(Locale.US, "%.1fMB", bytes / (1024.0 * 1024));
+        }
+    }
+
+    private class StatsAdapter extends RecyclerView.Adapter<StatsViewHolder> {
+        private List<HarAnalytics.Stats> statsList = new ArrayList<>();
+
+        void setStats(List<HarAnalytics.Stats> statsList) {
+            this.statsList = statsList;
+            notifyDataSetChanged();
+        }
+
+        @Override
+        public StatsViewHolder onCreateViewHolder(ViewGroup parent, int viewType) {
+            return new StatsViewHolder(LayoutInflater.from(parent.getContext()).inflate(R.layout.item_analytics, parent, false));
+        }
+
+        @Override
+        public void onBindViewHolder(StatsViewHolder holder, int position) {
+            HarAnalytics.Stats stats = statsList.get(position);
+            holder.keyView.setText(HarAnalytics.UNKNOWN.equals(stats.getKey()) ? "(未知)" : stats.getKey());
+            holder.summaryView.setText(formatSummary(stats));
+
+            String timings = formatTimings(stats);
+            holder.timingsView.setText(timings);
+            holder.timingsView.setVisibility(timings.isEmpty() ? View.GONE : View.VISIBLE);
+        }
+
+        @Override
+        public int getItemCount() {
+            return statsList.size();
+        }
+    }
+
+    private static class StatsViewHolder extends RecyclerView.ViewHolder {
+        final TextView keyView;
+        final TextView summaryView;
+        final TextView timingsView;
+
+        StatsViewHolder(View itemView) {
+            super(itemView);
+            keyView = (TextView) itemView.findViewById(R.id.tv_key);
+            summaryView = (TextView) itemView.findViewById(R.id.tv_summary);
+            timingsView = (TextView) itemView.findViewById(R.id.tv_timings);
+        }
+    }
+}
@@ -6,29 +6,38 @@ import android.os.Handler;
 import android.support.v7.app.ActionBar;
 import android.support.v7.app.AlertDialog;
 import android.support.v7.app.AppCompatActivity;
-import android.support.v7.widget.Toolbar;
+import android.support.v7.widget.LinearLayoutManager;
+import android.support.v7.widget.RecyclerView;
+import android.view.LayoutInflater;
 import android.view.Menu;
 import android.view.MenuItem;
+import android.view.View;
+import android.view.ViewGroup;
 import android.widget.TextView;
-
-import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
-import com.google.gson.JsonElement;
-import com.google.gson.JsonParser;
+import android.widget.Toast;
 
 import net.lightbody.bmp.core.har.HarEntry;
 import net.lightbody.bmp.core.har.HarLog;
 
 import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import butterknife.BindView;
 import butterknife.ButterKnife;
 import cn.darkal.networkdiagnosis.R;
 import cn.darkal.networkdiagnosis.SysApplication;
+import cn.darkal.networkdiagnosis.Utils.JsonLineFormatter;
+import cn.darkal.networkdiagnosis.Utils.JsonTreeNode;
 
 /**
  * Created by Darkal on 2016/9/20.
  * 格式化Json
+ * <p/>
+ * 内容在后台线程流式格式化，边格式化边显示；列表只为屏幕上可见的行创建View，几MB的响应也不会卡住界面。
+ * 树形视图按需展开节点，展开时才从原文的偏移量处扫描子节点。
  */
 
 public class JsonPreviewActivity extends AppCompatActivity {
@@ -36,10 +45,22 @@ public class JsonPreviewActivity extends AppCompatActivity {
     @BindView(R.id.tv_detailLayout)
     TextView textView;
 
+    @BindView(R.id.rv_content)
+    RecyclerView recyclerView;
+
     private Handler mHandler = new Handler();
     private String content;
     private int selectedEncode = 0;
 
+    // 格式化和展开节点都在这个线程中执行，切换编码时之前的任务会被取消
+    private final ExecutorService formatExecutor = Executors.newSingleThreadExecutor();
+    private JsonLineFormatter formatter;
+    private String displayedContent;
+    private boolean treeMode = false;
+
+    private LineAdapter lineAdapter = new LineAdapter();
+    private TreeAdapter treeAdapter = new TreeAdapter();
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -51,6 +72,9 @@ public class JsonPreviewActivity extends AppCompatActivity {
 
         setupActionBar();
 
+        recyclerView.setLayoutManager(new LinearLayoutManager(this));
+        recyclerView.setAdapter(lineAdapter);
+
         try {
             int pos = getIntent().getIntExtra("pos",-1);
             if(pos > -1){
@@ -67,6 +91,15 @@ public class JsonPreviewActivity extends AppCompatActivity {
         }
     }
 
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        if (formatter != null) {
+            formatter.cancel();
+        }
+        formatExecutor.shutdownNow();
+    }
+
     /**
      * Set up the {@link android.app.ActionBar}, if the API is available.
      */
@@ -89,35 +122,148 @@ public class JsonPreviewActivity extends AppCompatActivity {
     }
 
     public void initViewDelay(final String content) {
-        getWindow().getDecorView().post(
-                new Runnable() {
+        displayedContent = content;
+        if (treeMode) {
+            showTree();
+        } else {
+            formatContent(content);
+        }
+    }
+
+    /**
+     * 在后台线程流式格式化内容，每生成一批行就追加到列表
+     */
+    public void formatContent(String content) {
+        if (formatter != null) {
+            formatter.cancel();
+        }
+
+        final JsonLineFormatter newFormatter = new JsonLineFormatter(content);
+        formatter = newFormatter;
+        lineAdapter.setFormatter(newFormatter);
+        recyclerView.setAdapter(lineAdapter);
+        textView.setText("加载中,请稍后。。。");
+        textView.setVisibility(View.VISIBLE);
+
+        formatExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                newFormatter.format(new JsonLineFormatter.Listener() {
                     @Override
-                    public void run() {
+                    public void onLines(final int count) {
                         mHandler.post(new Runnable() {
                             @Override
                             public void run() {
-                                formatContent(content);
+                                if (formatter == newFormatter && !treeMode) {
+                                    textView.setVisibility(View.GONE);
+                                    lineAdapter.publish(count);
+                                }
                             }
                         });
                     }
-                }
-        );
 
+                    @Override
+                    public void onReset(final JsonLineFormatter textFormatter) {
+                        mHandler.post(new Runnable() {
+                            @Override
+                            public void run() {
+                                // 之后的行都来自textFormatter，取消newFormatter时会一起取消
+                                if (formatter == newFormatter && !treeMode) {
+                                    lineAdapter.setFormatter(textFormatter);
+                                }
+                            }
+                        });
+                    }
+                });
+            }
+        });
     }
 
-    public void formatContent(String content) {
-        try {
-            textView.setText(jsonFormatter(content));
-        } catch (Exception e) {
-            textView.setText(content);
+    /**
+     * 切换到树形视图：在后台扫描出根节点后显示，子节点在点击时展开
+     */
+    private void showTree() {
+        if (formatter != null) {
+            formatter.cancel();
         }
+
+        final JsonLineFormatter treeFormatter = new JsonLineFormatter(displayedContent);
+        formatter = treeFormatter;
+        recyclerView.setAdapter(treeAdapter);
+        treeAdapter.clear();
+        textView.setText("加载中,请稍后。。。");
+        textView.setVisibility(View.VISIBLE);
+
+        formatExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                JsonTreeNode root = null;
+                if (treeFormatter.getScanner().looksLikeJson()) {
+                    try {
+                        root = JsonTreeNode.root(treeFormatter.getScanner());
+                    } catch (IllegalArgumentException e) {
+                        root = null;
+                    }
+                }
+
+                final JsonTreeNode result = root;
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (formatter != treeFormatter) {
+                            return;
+                        }
+                        if (result == null) {
+                            Toast.makeText(JsonPreviewActivity.this, "内容不是JSON，无法使用树形视图", Toast.LENGTH_SHORT).show();
+                            treeMode = false;
+                            supportInvalidateOptionsMenu();
+                            formatContent(displayedContent);
+                            return;
+                        }
+                        textView.setVisibility(View.GONE);
+                        treeAdapter.setRoot(result);
+                        toggleNode(result);
+                    }
+                });
+            }
+        });
     }
 
-    public String jsonFormatter(String uglyJSONString) throws Exception {
-        Gson gson = new GsonBuilder().setPrettyPrinting().create();
-        JsonParser jp = new JsonParser();
-        JsonElement je = jp.parse(uglyJSONString);
-        return gson.toJson(je);
+    /**
+     * 展开或折叠节点。展开时在后台扫描直接子节点，然后插入到节点之后
+     */
+    private void toggleNode(final JsonTreeNode node) {
+        if (!node.isContainer()) {
+            return;
+        }
+
+        if (node.isExpanded()) {
+            treeAdapter.collapse(node);
+            return;
+        }
+
+        final JsonLineFormatter treeFormatter = formatter;
+        formatExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                List<JsonTreeNode> children;
+                try {
+                    children = node.scanChildren();
+                } catch (IllegalArgumentException e) {
+                    children = new ArrayList<>();
+                }
+
+                final List<JsonTreeNode> result = children;
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (formatter == treeFormatter && !node.isExpanded()) {
+                            treeAdapter.expand(node, result);
+                        }
+                    }
+                });
+            }
+        });
     }
 
     private String[] encodeItem = new String[]{"UTF-8", "ISO-8859-1", "GBK"};
@@ -139,6 +285,17 @@ public class JsonPreviewActivity extends AppCompatActivity {
             }
         });
 
+        MenuItem treeButton = menu.findItem(R.id.tree);
+        treeButton.setTitle(treeMode ? "文本视图" : "树形视图");
+        treeButton.setOnMenuItemClickListener(new MenuItem.OnMenuItemClickListener() {
+            @Override
+            public boolean onMenuItemClick(MenuItem item) {
+                treeMode = !treeMode;
+                supportInvalidateOptionsMenu();
+                initViewDelay(displayedContent);
+                return true;
+            }
+        });
 
         return super.onCreateOptionsMenu(menu);
     }
@@ -178,4 +335,142 @@ public class JsonPreviewActivity extends AppCompatActivity {
         }
 
     }
+
+    private static class LineViewHolder extends RecyclerView.ViewHolder {
+        TextView lineView;
+
+        LineViewHolder(View view) {
+            super(view);
+            lineView = (TextView) view.findViewById(R.id.tv_line);
+        }
+    }
+
+    /**
+     * 文本视图：只显示已经格式化完成的行，每行的文本在显示时才生成
+     */
+    private class LineAdapter extends RecyclerView.Adapter<LineViewHolder> {
+        private JsonLineFormatter lineFormatter;
+        private int lineCount;
+
+        void setFormatter(JsonLineFormatter lineFormatter) {
+            this.lineFormatter = lineFormatter;
+            this.lineCount = 0;
+            notifyDataSetChanged();
+        }
+
+        void publish(int count) {
+            if (count < lineCount) {
+                lineCount = count;
+                notifyDataSetChanged();
+            } else if (count > lineCount) {
+                int start = lineCount;
+                lineCount = count;
+                notifyItemRangeInserted(start, count - start);
+            }
+        }
+
+        @Override
+        public LineViewHolder onCreateViewHolder(ViewGroup parent, int viewType) {
+            return new LineViewHolder(LayoutInflater.from(parent.getContext()).inflate(R.layout.item_json_line, parent, false));
+        }
+
+        @Override
+        public void onBindViewHolder(LineViewHolder holder, int position) {
+            holder.lineView.setText(lineFormatter.getLine(position));
+        }
+
+        @Override
+        public int getItemCount() {
+            return lineCount;
+        }
+    }
+
+    /**
+     * 树形视图：列表中是当前展开的节点，展开时插入子节点，折叠时移除所有后代节点
+     */
+    private class TreeAdapter extends RecyclerView.Adapter<LineViewHolder> {
+        private static final String INDENT = "    ";
+
+        private final List<JsonTreeNode> nodes = new ArrayList<>();
+
+        void clear() {
+            nodes.clear();
+            notifyDataSetChanged();
+        }
+
+        void setRoot(JsonTreeNode root) {
+            nodes.clear();
+            nodes.add(root);
+            notifyDataSetChanged();
+        }
+
+        void expand(JsonTreeNode node, List<JsonTreeNode> children) {
+            int position = nodes.indexOf(node);
+            if (position < 0) {
+                return;
+            }
+
+            node.setExpanded(true, children.size());
+            nodes.addAll(position + 1, children);
+            notifyItemChanged(position);
+            notifyItemRangeInserted(position + 1, children.size());
+        }
+
+        void collapse(JsonTreeNode node) {
+            int position = nodes.indexOf(node);
+            if (position < 0) {
+                return;
+            }
+
+            int end = position + 1;
+            while (end < nodes.size() && nodes.get(end).getDepth() > node.getDepth()) {
+                nodes.get(end).setExpanded(false, -1);
+                end++;
+            }
+
+            node.setExpanded(false, -1);
+            nodes.subList(position + 1, end).clear();
+            notifyItemChanged(position);
+            notifyItemRangeRemoved(position + 1, end - position - 1);
+        }
+
+        @Override
+        public LineViewHolder onCreateViewHolder(ViewGroup parent, int viewType) {
+            final LineViewHolder holder = new LineViewHolder(
+                    LayoutInflater.from(parent.getContext()).inflate(R.layout.item_json_line, parent, false));
+            holder.itemView.setOnClickListener(new View.OnClickListener() {
+                @Override
+                public void onClick(View v) {
+                    int position = holder.getAdapterPosition();
+                    if (position != RecyclerView.NO_POSITION) {
+                        toggleNode(nodes.get(position));
+                    }
+                }
+            });
+            return holder;
+        }
+
+        @Override
+        public void onBindViewHolder(LineViewHolder holder, int position) {
+            JsonTreeNode node = nodes.get(position);
+
+            StringBuilder text = new StringBuilder();
+            for (int i = 0; i < node.getDepth(); i++) {
+                text.append(INDENT);
+            }
+            if (node.isContainer()) {
+                text.append(node.isExpanded() ? "▼ " : "▶ ");
+            } else {
+                text.append("  ");
+            }
+            text.append(node.getText());
+
+            holder.lineView.setText(text);
+        }
+
+        @Override
+        public int getItemCount() {
+            return nodes.size();
+        }
+    }
 }
@@ -6,11 +6,9 @@ import android.animation.AnimatorSet;
 import android.animation.ObjectAnimator;
 import android.app.Activity;
 import android.app.SearchManager;
-import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.DialogInterface;
 import android.content.Intent;
-import android.content.IntentFilter;
 import android.content.SharedPreferences;
 import android.net.Uri;
 import android.os.Build;
@@ -51,9 +49,6 @@ import com.github.clans.fab.FloatingActionMenu;
 import com.google.zxing.QrCodeScanActivity;
 import com.tencent.bugly.crashreport.CrashReport;
 
-import net.gotev.uploadservice.ServerResponse;
-import net.gotev.uploadservice.UploadInfo;
-import net.gotev.uploadservice.UploadStatusDelegate;
 import net.lightbody.bmp.BrowserMobProxy;
 import net.lightbody.bmp.core.har.Har;
 import net.lightbody.bmp.core.har.HarPage;
@@ -63,6 +58,7 @@ import org.json.JSONObject;
 
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.IOException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
@@ -74,6 +70,11 @@ import java.util.Set;
 import butterknife.BindView;
 import butterknife.ButterKnife;
 import cn.darkal.networkdiagnosis.Adapter.PageFilterAdapter;
+import cn.darkal.networkdiagnosis.Export.ChunkedUploader;
+import cn.darkal.networkdiagnosis.Export.ExportSink;
+import cn.darkal.networkdiagnosis.Export.FileExportSink;
+import cn.darkal.networkdiagnosis.Export.HarExportPipeline;
+import cn.darkal.networkdiagnosis.Export.UploadState;
 import cn.darkal.networkdiagnosis.bean.PageBean;
 import cn.darkal.networkdiagnosis.Fragment.BaseFragment;
 import cn.darkal.networkdiagnosis.Fragment.BackHandledInterface;
@@ -85,7 +86,7 @@ import cn.darkal.networkdiagnosis.SysApplication;
 import cn.darkal.networkdiagnosis.Utils.DeviceUtils;
 import cn.darkal.networkdiagnosis.Utils.FileUtil;
 import cn.darkal.networkdiagnosis.Utils.SharedPreferenceUtils;
-import cn.darkal.networkdiagnosis.Utils.ZipUtils;
+import cn.darkal.networkdiagnosis.Utils.StartupPipeline;
 import cn.darkal.networkdiagnosis.View.LoadingDialog;
 
 /**
@@ -101,6 +102,7 @@ public class MainActivity extends AppCompatActivity implements BackHandledInterf
     public final static int TYPE_NONE = 0;
     public final static int TYPE_SHARE = 1;
     public final static int TYPE_UPLOAD = 2;
+    public final static int TYPE_SHARE_DELTA = 3;
 
     private int mLastHeightOfContainer; // 记录容器上一次的高度,用于检测高度变化
     private int mHeightOfVisibility;
@@ -110,7 +112,6 @@ public class MainActivity extends AppCompatActivity implements BackHandledInterf
     private BaseFragment mBackHandedFragment;
     private long exitTime = 0;
 
-    private Receiver receiver;
 
     @BindView(R.id.fl_contain)
     public View rootView;
@@ -124,6 +125,9 @@ public class MainActivity extends AppCompatActivity implements BackHandledInterf
     @BindView(R.id.fab_share)
     public FloatingActionButton shareFab;
 
+    @BindView(R.id.fab_share_delta)
+    public FloatingActionButton shareDeltaFab;
+
     @BindView(R.id.fab_upload)
     public FloatingActionButton uploadFab;
 
@@ -166,6 +170,37 @@ public class MainActivity extends AppCompatActivity implements BackHandledInterf
 
         getSupportFragmentManager().popBackStack(null, FragmentManager.POP_BACK_STACK_INCLUSIVE);
 
+        final StartupPipeline startupPipeline = ((SysApplication) getApplication()).getStartupPipeline();
+
+        // 代理启动失败时提示原因，不再一直等待初始化
+        startupPipeline.runWhenReady(null, new Runnable() {
+            @Override
+            public void run() {
+                if (!isFinishing()) {
+                    Snackbar.make(rootView, startupPipeline.getReadyFailure(), Snackbar.LENGTH_INDEFINITE).show();
+                }
+            }
+        });
+
+        // 证书就绪后才能安装
+        startupPipeline.runWhenMitmReady(new Runnable() {
+            @Override
+            public void run() {
+                if (!isFinishing()) {
+                    installCert();
+                    Log.i("~~~~", "installCert");
+                }
+            }
+        }, new Runnable() {
+            @Override
+            public void run() {
+                // 代理启动失败时已经提示过
+                if (!isFinishing() && startupPipeline.getReadyFailure() == null) {
+                    Toast.makeText(MainActivity.this, startupPipeline.getMitmFailure() + "，无法解密HTTPS", Toast.LENGTH_LONG).show();
+                }
+            }
+        });
+
         if (getIntent().getStringExtra("url") != null && getIntent().getStringExtra("url").length() > 0) {
             WebViewFragment webViewFragment = WebViewFragment.getInstance();
             webViewFragment.loadUrl(getIntent().getStringExtra("url"));
@@ -372,7 +407,8 @@ public class MainActivity extends AppCompatActivity implements BackHandledInterf
             int id = item.getItemId();
 
             if (!SysApplication.isInitProxy) {
-                Toast.makeText(MainActivity.this, "请等待程序初始化完成", Toast.LENGTH_LONG).show();
+                String failure = ((SysApplication) getApplication()).getStartupPipeline().getReadyFailure();
+                Toast.makeText(MainActivity.this, failure != null ? failure : "请等待程序初始化完成", Toast.LENGTH_LONG).show();
                 return true;
             }
 
@@ -410,6 +446,11 @@ public class MainActivity extends AppCompatActivity implements BackHandledInterf
                 case R.id.nav_cosole:
                     showLogDialog();
                     break;
+                case R.id.nav_analytics: {
+                    Intent intent = new Intent(MainActivity.this, AnalyticsActivity.class);
+                    startActivity(intent);
+                    break;
+                }
                 case R.id.nav_host:
                     showHostDialog();
                     break;
@@ -601,25 +642,9 @@ public class MainActivity extends AppCompatActivity implements BackHandledInterf
     @Override
     protected void onStart() {
         super.onStart();
-        receiver = new Receiver();
-        registerReceiver(receiver, new IntentFilter("proxyfinished"));
         handleUriStartupParams();
     }
 
-    @Override
-    protected void onStop() {
-        unregisterReceiver(receiver);
-        super.onStop();
-    }
-
-    public class Receiver extends BroadcastReceiver {
-        @Override
-        public void onReceive(Context context, Intent intent) {
-            installCert();
-            Log.i("~~~~", "Receiver installCert");
-        }
-    }
-
     /**
      * 启动的时候根据bundle参数决定切换到哪个tab
      */
@@ -658,47 +683,83 @@ public class MainActivity extends AppCompatActivity implements BackHandledInterf
     }
 
 
-    public void createZip(final Runnable callback) {
-        Runnable runnable = new Runnable() {
+    /**
+     * 导出结果，在主线程回调
+     */
+    private interface ExportCallback {
+        void onExported(int entries, String result);
+
+        void onExportFailed(Exception e);
+    }
+
+    /**
+     * 导出选中的分页：HAR边序列化边压缩，直接写入文件或上传，不再生成临时的har文件。
+     * 每次导出成功后记录检查点，增量导出时只导出检查点之后新增或变化的请求
+     */
+    private void exportHar(ExportSink sink, boolean incremental, final String loadingText, final ExportCallback callback) {
+        showLoading(loadingText);
+
+        SysApplication application = (SysApplication) getApplication();
+        new HarExportPipeline(application.proxy.getHar().getLog(), getPageSet(), sink, new HarExportPipeline.Listener() {
             @Override
-            public void run() {
-                new Thread(new Runnable() {
+            public void onProgress(final int entries, final int totalEntries, long bytes) {
+                rootView.post(new Runnable() {
                     @Override
                     public void run() {
-                        try {
-                            showLoading("打包中");
-
-                            final Har har = getFiltedHar();
-                            final File saveHarFile = new File(Environment.getExternalStorageDirectory() + "/har/test.har");
-                            har.writeTo(saveHarFile);
-
-                            ZipUtils.zip(Environment.getExternalStorageDirectory() + "/har",
-                                    Environment.getExternalStorageDirectory() + "/test.zip");
-
-                            rootView.post(new Runnable() {
-                                @Override
-                                public void run() {
-                                    Snackbar.make(rootView, "HAR文件已保存至" + saveHarFile.getPath() + " 共计："
-                                            + har.getLog().getEntries().size() + "个请求", Snackbar.LENGTH_LONG)
-                                            .setAction("Action", null).show();
-                                }
-                            });
-
-                            MainActivity.this.runOnUiThread(callback);
-                        } catch (Exception e) {
-                            rootView.post(new Runnable() {
-                                @Override
-                                public void run() {
-                                    Snackbar.make(rootView, "HAR文件保存失败", Snackbar.LENGTH_LONG).setAction("Action", null).show();
-                                }
-                            });
-                            CrashReport.postCatchedException(e);
-                            e.printStackTrace();
-                        } finally {
-                            dismissLoading();
+                        if (loadingDialog != null) {
+                            loadingDialog.setText(loadingText + " " + entries + "/" + totalEntries);
                         }
                     }
-                }).start();
+                });
+            }
+
+            @Override
+            public void onCompleted(final int entries, long bytes, final String result) {
+                rootView.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        dismissLoading();
+                        callback.onExported(entries, result);
+                    }
+                });
+            }
+
+            @Override
+            public void onFailed(final Exception e) {
+                CrashReport.postCatchedException(e);
+                e.printStackTrace();
+                rootView.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        dismissLoading();
+                        callback.onExportFailed(e);
+                    }
+                });
+            }
+        }).setCheckpoint(application.getExportCheckpoint(), incremental).start();
+    }
+
+    /**
+     * @param incremental 是否只打包上次导出之后新增或变化的请求
+     */
+    public void createZip(final File zipFile, final boolean incremental, final Runnable callback) {
+        Runnable runnable = new Runnable() {
+            @Override
+            public void run() {
+                exportHar(new FileExportSink(zipFile), incremental, "打包中", new ExportCallback() {
+                    @Override
+                    public void onExported(int entries, String result) {
+                        Snackbar.make(rootView, "HAR文件已保存至" + result + " 共计："
+                                + entries + (incremental ? "个新增请求" : "个请求"), Snackbar.LENGTH_LONG)
+                                .setAction("Action", null).show();
+                        callback.run();
+                    }
+
+                    @Override
+                    public void onExportFailed(Exception e) {
+                        Snackbar.make(rootView, "HAR文件保存失败", Snackbar.LENGTH_LONG).setAction("Action", null).show();
+                    }
+                });
             }
         };
 
@@ -706,6 +767,17 @@ public class MainActivity extends AppCompatActivity implements BackHandledInterf
     }
 
     public void shareZip() {
+        shareZip(new File(Environment.getExternalStorageDirectory() + "/test.zip"), false);
+    }
+
+    /**
+     * 只分享上次分享或上传之后新增、变化的请求，第一次分享时仍然包含全部请求
+     */
+    public void shareDeltaZip() {
+        shareZip(new File(Environment.getExternalStorageDirectory() + "/test_delta.zip"), true);
+    }
+
+    private void shareZip(final File zipFile, boolean incremental) {
         Runnable runnable = new Runnable() {
             @Override
             public void run() {
@@ -713,54 +785,125 @@ public class MainActivity extends AppCompatActivity implements BackHandledInterf
                 intent.setType("application/octet-stream");
                 intent.putExtra(Intent.EXTRA_SUBJECT, "分享HAR文件");
                 intent.setFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
-                intent.putExtra(Intent.EXTRA_STREAM, Uri.fromFile(new File(Environment.getExternalStorageDirectory() + "/test.zip")));
+                intent.putExtra(Intent.EXTRA_STREAM, Uri.fromFile(zipFile));
                 startActivity(Intent.createChooser(intent, "share"));
             }
         };
 
-        createZip(runnable);
+        createZip(zipFile, incremental, runnable);
     }
 
     public void uploadZip() {
         showUploadDialog(this);
     }
 
-    public class MyUploadDelegate implements UploadStatusDelegate {
-        @Override
-        public void onProgress(Context context, UploadInfo uploadInfo) {
-            Log.e("~~~~", uploadInfo.getProgressPercent() + "");
+    /**
+     * 处理上传接口的返回结果
+     */
+    private void handleUploadResponse(String response) {
+        try {
+            JSONObject jsonObject = new JSONObject(response);
+            if (jsonObject.getInt("errId") == 0) {
+                Snackbar.make(rootView, "上传成功！", Snackbar.LENGTH_LONG).setAction("Action", null).show();
+            } else if (jsonObject.getInt("errId") == 2 || jsonObject.getInt("errId") == 11004) {
+                Snackbar.make(rootView, "验证码错误！", Snackbar.LENGTH_LONG).setAction("Action", null).show();
+                showUploadDialog(MainActivity.this);
+            } else {
+                Snackbar.make(rootView, "上传失败！", Snackbar.LENGTH_LONG).setAction("Action", null).show();
+            }
+        } catch (Exception e) {
+            Snackbar.make(rootView, "上传失败！", Snackbar.LENGTH_LONG).setAction("Action", null).show();
         }
+    }
 
-        @Override
-        public void onError(Context context, UploadInfo uploadInfo, ServerResponse serverResponse, Exception exception) {
-            dismissLoading();
-            Snackbar.make(rootView, "上传失败！", Snackbar.LENGTH_LONG).setAction("Action", null).show();
-            exception.printStackTrace();
-            CrashReport.postCatchedException(exception);
+    /**
+     * 先把HAR打包到缓存目录再分块上传，网络中断后可以继续上次的上传；服务器不支持分块上传时整个文件以multipart方式上传
+     */
+    private void startUpload(final String serverUrl) {
+        final File uploadFile = new File(getCacheDir(), "upload.zip");
+        final UploadState pendingState = UploadState.load(uploadFile);
+        if (pendingState == null) {
+            exportAndUpload(uploadFile, serverUrl);
+            return;
         }
 
-        @Override
-        public void onCompleted(Context context, UploadInfo uploadInfo, ServerResponse serverResponse) {
-            try {
-                JSONObject jsonObject = new JSONObject(serverResponse.getBodyAsString());
-                if (jsonObject.getInt("errId") == 0) {
-                    Snackbar.make(rootView, "上传成功！", Snackbar.LENGTH_LONG).setAction("Action", null).show();
-                } else if (jsonObject.getInt("errId") == 2 || jsonObject.getInt("errId") == 11004) {
-                    Snackbar.make(rootView, "验证码错误！", Snackbar.LENGTH_LONG).setAction("Action", null).show();
-                    showUploadDialog(MainActivity.this);
-                } else {
+        new AlertDialog.Builder(this)
+                .setTitle("上次的上传未完成")
+                .setMessage("已上传" + (pendingState.getUploadedBytes() * 100 / Math.max(1, pendingState.getFileLength()))
+                        + "%，是否继续上传？")
+                .setPositiveButton("继续上传", new DialogInterface.OnClickListener() {
+                    public void onClick(DialogInterface dialog, int whichButton) {
+                        uploadFile(pendingState, serverUrl);
+                    }
+                })
+                .setNegativeButton("重新上传", new DialogInterface.OnClickListener() {
+                    public void onClick(DialogInterface dialog, int whichButton) {
+                        pendingState.delete();
+                        exportAndUpload(uploadFile, serverUrl);
+                    }
+                })
+                .show();
+    }
+
+    private void exportAndUpload(final File uploadFile, final String serverUrl) {
+        exportHar(new FileExportSink(uploadFile), false, "打包中", new ExportCallback() {
+            @Override
+            public void onExported(int entries, String result) {
+                try {
+                    uploadFile(UploadState.create(uploadFile, ChunkedUploader.DEFAULT_CHUNK_SIZE), serverUrl);
+                } catch (IOException e) {
                     Snackbar.make(rootView, "上传失败！", Snackbar.LENGTH_LONG).setAction("Action", null).show();
                 }
-            } catch (Exception e) {
+            }
+
+            @Override
+            public void onExportFailed(Exception e) {
                 Snackbar.make(rootView, "上传失败！", Snackbar.LENGTH_LONG).setAction("Action", null).show();
             }
-            dismissLoading();
-        }
+        });
+    }
 
-        @Override
-        public void onCancelled(Context context, UploadInfo uploadInfo) {
-            dismissLoading();
-        }
+    private void uploadFile(UploadState state, String serverUrl) {
+        final String loadingText = "上传中";
+        showLoading(loadingText);
+
+        new ChunkedUploader(state, serverUrl, "test.zip", new ChunkedUploader.Listener() {
+            @Override
+            public void onProgress(final long uploadedBytes, final long totalBytes) {
+                rootView.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (loadingDialog != null) {
+                            loadingDialog.setText(loadingText + " " + (uploadedBytes * 100 / Math.max(1, totalBytes)) + "%");
+                        }
+                    }
+                });
+            }
+
+            @Override
+            public void onCompleted(final String result) {
+                rootView.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        dismissLoading();
+                        handleUploadResponse(result);
+                    }
+                });
+            }
+
+            @Override
+            public void onFailed(Exception e) {
+                CrashReport.postCatchedException(e);
+                e.printStackTrace();
+                rootView.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        dismissLoading();
+                        Snackbar.make(rootView, "上传失败，再次上传时可以继续", Snackbar.LENGTH_LONG).setAction("Action", null).show();
+                    }
+                });
+            }
+        }).start();
     }
 
     private LoadingDialog loadingDialog;
@@ -811,15 +954,8 @@ public class MainActivity extends AppCompatActivity implements BackHandledInterf
             public void onClick(DialogInterface dialog, int whichButton) {
                 InputMethodManager imm = (InputMethodManager) getSystemService(Context.INPUT_METHOD_SERVICE);
                 imm.hideSoftInputFromWindow(edtInput.getWindowToken(), 0);
-                Runnable runnable = new Runnable() {
-                    @Override
-                    public void run() {
-                        String serverUrl = UPLOAD_URL + "?code=" + edtInput.getText() + "&os=Android&module=" + Build.MODEL.replace(" ", "") + "&key=" + key;
-                        showLoading("上传中");
-                        FileUtil.uploadFiles(MainActivity.this, new MyUploadDelegate(), serverUrl, "upload", Environment.getExternalStorageDirectory() + "/test.zip");
-                    }
-                };
-                createZip(runnable);
+                String serverUrl = UPLOAD_URL + "?code=" + edtInput.getText() + "&os=Android&module=" + Build.MODEL.replace(" ", "") + "&key=" + key;
+                startUpload(serverUrl);
             }
         });
 
@@ -889,6 +1025,9 @@ public class MainActivity extends AppCompatActivity implements BackHandledInterf
                     if (type == TYPE_SHARE) {
                         shareZip();
                     }
+                    if (type == TYPE_SHARE_DELTA) {
+                        shareDeltaZip();
+                    }
                     if (type == TYPE_UPLOAD) {
                         if (selectedCount > 1 && entryCount > 1000) {
                             Toast.makeText(context, "选择的请求总数过多,建议使用分享功能或减少选择",
@@ -993,6 +1132,14 @@ public class MainActivity extends AppCompatActivity implements BackHandledInterf
             }
         });
 
+        shareDeltaFab.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                showFilter(MainActivity.this,TYPE_SHARE_DELTA);
+                fam.close(true);
+            }
+        });
+
         uploadFab.setOnClickListener(new View.OnClickListener() {
             @Override
             public void onClick(View v) {
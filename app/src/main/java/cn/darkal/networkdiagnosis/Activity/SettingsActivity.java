@@ -106,6 +106,10 @@ public class SettingsActivity extends AppCompatPreferenceActivity implements Pre
 
         hostPreference = findPreference("app_host");
         hostPreference.setSummary(getHost());
+
+        // 各启动步骤的开始时间、耗时和线程
+        findPreference("startup_trace").setSummary(
+                ((SysApplication) getApplication()).getStartupPipeline().formatTrace());
     }
 
     /**
@@ -0,0 +1,461 @@
+package cn.darkal.networkdiagnosis.Export;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.hash.Hashing;
+import com.google.common.io.BaseEncoding;
+
+import org.apache.commons.io.IOUtils;
+
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 分块上传导出的文件，网络中断后从服务器已收到的位置继续，不需要从头上传。
+ * <p/>
+ * 和服务器的约定（参数附加在上传地址后面）：
+ * <ul>
+ * <li>{@code POST action=status&upload_id=&size=&chunk_size=&file_name=}：开始或继续上传，
+ * 服务器返回 {@code {"offset": n}}，表示从文件开头起连续收到的字节数；拒绝上传（如验证码错误）时同时返回和原来的上传接口相同的非0 errId，
+ * 直接作为结果回调</li>
+ * <li>{@code POST action=chunk&upload_id=&index=}：上传一个分块，请求头 {@code Content-Range} 给出分块的位置，
+ * {@code Content-MD5} 为分块的MD5，服务器校验失败时返回4xx，客户端重传。同一分块可能重复上传，服务器应覆盖</li>
+ * <li>{@code POST action=complete&upload_id=&size=}：所有分块上传完成，服务器合并文件，返回结果和原来的上传接口相同</li>
+ * </ul>
+ * 分块在线程池中并行上传，同时上传的分块数不超过 {@link #setWindow(int)}；每个分块失败后按指数退避重试。
+ * 已上传的分块记录在 {@link UploadState} 中，应用重启后用同一个上传id继续。
+ * <p/>
+ * 服务器不支持分块上传时（status请求返回404/405/501，或返回结果中没有offset），改用原来的multipart方式整个上传文件，
+ * 见 {@link HttpUploadSink}。
+ * <p/>
+ * 所有回调都在后台线程执行，且 {@link Listener#onCompleted}、{@link Listener#onFailed} 只会回调其中一个。
+ */
+public class ChunkedUploader {
+    public static final int DEFAULT_CHUNK_SIZE = 1024 * 1024;
+    public static final int DEFAULT_WINDOW = 3;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final int MAX_ATTEMPTS = 5;
+    private static final long DEFAULT_RETRY_DELAY_MS = 1000;
+    private static final int CONNECT_TIMEOUT_MS = 15000;
+    private static final int READ_TIMEOUT_MS = 60000;
+
+    /**
+     * multipart上传时文件对应的表单字段名，和原来的上传接口相同
+     */
+    private static final String MULTIPART_PARAM_NAME = "upload";
+    private static final int MULTIPART_BUFFER_SIZE = 64 * 1024;
+
+    private static final ExecutorService EXECUTOR = Executors.newCachedThreadPool(new ThreadFactory() {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "chunk-upload-" + count.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    public interface Listener {
+        /**
+         * @param uploadedBytes 服务器已确认的字节数
+         */
+        void onProgress(long uploadedBytes, long totalBytes);
+
+        /**
+         * @param result 服务器合并文件后的返回结果，上传被拒绝时为status请求的返回结果
+         */
+        void onCompleted(String result);
+
+        /**
+         * 上传进度已保存，之后可以用同一个 {@link UploadState} 继续上传
+         */
+        void onFailed(Exception e);
+    }
+
+    /**
+     * 服务器返回的错误状态码
+     */
+    public static class HttpStatusException extends IOException {
+        private final int statusCode;
+
+        public HttpStatusException(int statusCode, String message) {
+            super("HTTP " + statusCode + ": " + message);
+            this.statusCode = statusCode;
+        }
+
+        public int getStatusCode() {
+            return statusCode;
+        }
+
+        /**
+         * 超时、限流、校验失败和服务器错误可以重试，其他4xx（如验证码错误、上传id无效）重试也不会成功
+         */
+        public boolean isRetryable() {
+            return statusCode >= 500 || statusCode == 408 || statusCode == 422 || statusCode == 429;
+        }
+    }
+
+    private final UploadState state;
+    private final String serverUrl;
+    private final String fileName;
+    private final Listener listener;
+    private int window = DEFAULT_WINDOW;
+    private long retryDelayMs = DEFAULT_RETRY_DELAY_MS;
+
+    private volatile boolean cancelled;
+
+    /**
+     * @param state     要上传的文件和进度，由 {@link UploadState#create} 新建或 {@link UploadState#load} 读取
+     * @param serverUrl 上传地址
+     * @param fileName  服务器看到的文件名
+     */
+    public ChunkedUploader(UploadState state, String serverUrl, String fileName, Listener listener) {
+        this.state = state;
+        this.serverUrl = serverUrl;
+        this.fileName = fileName;
+        this.listener = listener;
+    }
+
+    /**
+     * @param window 同时上传的分块数
+     */
+    public ChunkedUploader setWindow(int window) {
+        this.window = Math.max(1, window);
+        return this;
+    }
+
+    /**
+     * @param retryDelayMs 第一次重试前的等待时间，之后每次加倍
+     */
+    public ChunkedUploader setRetryDelay(long retryDelayMs) {
+        this.retryDelayMs = retryDelayMs;
+        return this;
+    }
+
+    public void start() {
+        EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                upload();
+            }
+        });
+    }
+
+    /**
+     * 取消上传，已上传的进度保留，取消后不再有回调
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    private void upload() {
+        try {
+            String status = negotiate();
+            JsonNode statusNode = parseStatus(status);
+            if (statusNode == null) {
+                // 服务器不支持分块上传
+                String result = uploadMultipart();
+                state.delete();
+                if (!cancelled) {
+                    listener.onCompleted(result);
+                }
+                return;
+            }
+
+            if (statusNode.path("errId").asInt(0) != 0) {
+                // 服务器拒绝上传，进度保留，换新的验证码后可以继续
+                if (!cancelled) {
+                    listener.onCompleted(status);
+                }
+                return;
+            }
+
+            long offset = Math.max(0, Math.min(statusNode.path("offset").asLong(0), state.getFileLength()));
+            state.resetTo(offset);
+            listener.onProgress(state.getUploadedBytes(), state.getFileLength());
+
+            uploadChunks();
+
+            String result = withRetry(new Callable<String>() {
+                @Override
+                public String call() throws Exception {
+                    return post(buildUrl("complete", "size", String.valueOf(state.getFileLength())), null, null, null, 0);
+                }
+            });
+            state.delete();
+            if (!cancelled) {
+                listener.onCompleted(result);
+            }
+        } catch (Exception e) {
+            if (!cancelled) {
+                listener.onFailed(e);
+            }
+        }
+    }
+
+    /**
+     * @return 服务器返回的上传状态，服务器不认识status请求时为null
+     */
+    private String negotiate() throws Exception {
+        try {
+            return withRetry(new Callable<String>() {
+                @Override
+                public String call() throws Exception {
+                    return post(buildUrl("status",
+                            "size", String.valueOf(state.getFileLength()),
+                            "chunk_size", String.valueOf(state.getChunkSize()),
+                            "file_name", fileName), null, null, null, 0);
+                }
+            });
+        } catch (HttpStatusException e) {
+            int code = e.getStatusCode();
+            if (code == HttpURLConnection.HTTP_NOT_FOUND || code == HttpURLConnection.HTTP_BAD_METHOD
+                    || code == HttpURLConnection.HTTP_NOT_IMPLEMENTED) {
+                return null;
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * @return status请求的返回结果，不是分块上传协议的返回结果时为null
+     */
+    private static JsonNode parseStatus(String status) {
+        if (status == null) {
+            return null;
+        }
+
+        try {
+            JsonNode statusNode = new ObjectMapper().readTree(status);
+            // 原来的上传接口会忽略action参数，按没有收到文件处理，返回结果中没有offset
+            return statusNode != null && statusNode.has("offset") ? statusNode : null;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * 以multipart方式上传整个文件，不能断点续传
+     */
+    private String uploadMultipart() throws IOException {
+        HttpUploadSink sink = new HttpUploadSink(serverUrl, MULTIPART_PARAM_NAME, fileName);
+        InputStream inputStream = new FileInputStream(state.getFile());
+        try {
+            OutputStream outputStream = sink.open();
+            byte[] buffer = new byte[MULTIPART_BUFFER_SIZE];
+            long written = 0;
+            int read;
+            while ((read = inputStream.read(buffer)) != -1) {
+                checkCancelled();
+                outputStream.write(buffer, 0, read);
+                written += read;
+                listener.onProgress(written, state.getFileLength());
+            }
+            outputStream.close();
+
+            return sink.finish();
+        } catch (IOException e) {
+            sink.abort();
+            throw e;
+        } finally {
+            IOUtils.closeQuietly(inputStream);
+        }
+    }
+
+    private void uploadChunks() throws Exception {
+        final FileChannel channel = new RandomAccessFile(state.getFile(), "r").getChannel();
+        CompletionService<Integer> completionService = new ExecutorCompletionService<>(EXECUTOR);
+        List<Future<Integer>> futures = new ArrayList<>();
+        try {
+            int inFlight = 0;
+            for (int i = 0; i < state.getChunkCount(); i++) {
+                if (state.isUploaded(i)) {
+                    continue;
+                }
+
+                // 窗口已满时等待任意一个分块完成
+                if (inFlight == window) {
+                    awaitChunk(completionService);
+                    inFlight--;
+                }
+                checkCancelled();
+
+                final int index = i;
+                futures.add(completionService.submit(new Callable<Integer>() {
+                    @Override
+                    public Integer call() throws Exception {
+                        final byte[] data = readChunk(channel, index);
+                        withRetry(new Callable<String>() {
+                            @Override
+                            public String call() throws Exception {
+                                return uploadChunk(index, data);
+                            }
+                        });
+                        state.markUploaded(index);
+                        return index;
+                    }
+                }));
+                inFlight++;
+            }
+
+            while (inFlight > 0) {
+                awaitChunk(completionService);
+                inFlight--;
+            }
+        } finally {
+            // 出错或取消时停止其他分块，已完成的分块已记录在进度中
+            for (Future<Integer> future : futures) {
+                future.cancel(true);
+            }
+            channel.close();
+        }
+    }
+
+    private void awaitChunk(CompletionService<Integer> completionService) throws Exception {
+        try {
+            completionService.take().get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while uploading");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw cause instanceof Exception ? (Exception) cause : new IOException(cause);
+        }
+        checkCancelled();
+        listener.onProgress(state.getUploadedBytes(), state.getFileLength());
+    }
+
+    private byte[] readChunk(FileChannel channel, int index) throws IOException {
+        long offset = state.getChunkOffset(index);
+        ByteBuffer buffer = ByteBuffer.allocate(state.getChunkLength(index));
+        while (buffer.hasRemaining()) {
+            // 按位置读取，多个分块可以同时读同一个FileChannel
+            if (channel.read(buffer, offset + buffer.position()) < 0) {
+                throw new EOFException("Upload file truncated: " + state.getFile());
+            }
+        }
+        return buffer.array();
+    }
+
+    private String uploadChunk(int index, byte[] data) throws IOException {
+        long offset = state.getChunkOffset(index);
+        String contentRange = "bytes " + offset + "-" + (offset + data.length - 1) + "/" + state.getFileLength();
+        String contentMd5 = BaseEncoding.base64().encode(Hashing.md5().hashBytes(data).asBytes());
+        return post(buildUrl("chunk", "index", String.valueOf(index)), contentRange, contentMd5, data, data.length);
+    }
+
+    /**
+     * 可重试的错误按指数退避重试，最多 {@link #MAX_ATTEMPTS} 次
+     */
+    private <T> T withRetry(Callable<T> request) throws Exception {
+        for (int attempt = 1; ; attempt++) {
+            checkCancelled();
+            try {
+                return request.call();
+            } catch (HttpStatusException e) {
+                if (!e.isRetryable() || attempt >= MAX_ATTEMPTS) {
+                    throw e;
+                }
+            } catch (InterruptedIOException e) {
+                throw e;
+            } catch (IOException e) {
+                if (attempt >= MAX_ATTEMPTS) {
+                    throw e;
+                }
+            }
+
+            try {
+                Thread.sleep(retryDelayMs << (attempt - 1));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting to retry");
+            }
+        }
+    }
+
+    private void checkCancelled() throws IOException {
+        if (cancelled) {
+            throw new InterruptedIOException("Upload cancelled");
+        }
+    }
+
+    private String buildUrl(String action, String... params) throws IOException {
+        StringBuilder builder = new StringBuilder(serverUrl);
+        builder.append(serverUrl.indexOf('?') < 0 ? '?' : '&');
+        builder.append("action=").append(action);
+        builder.append("&upload_id=").append(URLEncoder.encode(state.getUploadId(), "UTF-8"));
+        for (int i = 0; i + 1 < params.length; i += 2) {
+            builder.append('&').append(params[i]).append('=').append(URLEncoder.encode(params[i + 1], "UTF-8"));
+        }
+        return builder.toString();
+    }
+
+    private String post(String url, String contentRange, String contentMd5, byte[] body, int length) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        try {
+            connection.setConnectTimeout(CONNECT_TIMEOUT_MS);
+            connection.setReadTimeout(READ_TIMEOUT_MS);
+            connection.setRequestMethod("POST");
+            connection.setDoOutput(true);
+            connection.setUseCaches(false);
+            connection.setFixedLengthStreamingMode(length);
+            connection.setRequestProperty("Content-Type", "application/octet-stream");
+            if (contentRange != null) {
+                connection.setRequestProperty("Content-Range", contentRange);
+            }
+            if (contentMd5 != null) {
+                connection.setRequestProperty("Content-MD5", contentMd5);
+            }
+
+            OutputStream outputStream = connection.getOutputStream();
+            try {
+                if (body != null) {
+                    outputStream.write(body, 0, length);
+                }
+            } finally {
+                outputStream.close();
+            }
+
+            int code = connection.getResponseCode();
+            if (code < 200 || code >= 300) {
+                InputStream errorStream = connection.getErrorStream();
+                String error = errorStream == null ? "" : IOUtils.toString(errorStream, UTF_8);
+                throw new HttpStatusException(code, error);
+            }
+
+            InputStream inputStream = connection.getInputStream();
+            try {
+                return IOUtils.toString(inputStream, UTF_8);
+            } finally {
+                IOUtils.closeQuietly(inputStream);
+            }
+        } finally {
+            connection.disconnect();
+        }
+    }
+}
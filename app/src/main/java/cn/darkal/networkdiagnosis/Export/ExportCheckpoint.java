@@ -0,0 +1,275 @@
+package cn.darkal.networkdiagnosis.Export;
+
+import net.lightbody.bmp.core.har.HarEntry;
+import net.lightbody.bmp.core.har.HarLog;
+import net.lightbody.bmp.core.har.HarPage;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * 记录上一次导出的位置，用于增量导出：只导出上次导出之后新增或发生变化的请求。
+ * <p/>
+ * 检查点包括导出时请求列表的长度（之后新增的请求都在它后面）和已导出的分页。
+ * 导出时还没收到响应的请求在完成后会再次导出，所以同时监听请求完成事件，记录检查点之后完成的请求。
+ * 这样增量导出只需要处理新请求，耗时和新增的请求数成正比，而不是和全部请求数成正比。
+ * <p/>
+ * 通过 {@link net.lightbody.bmp.BrowserMobProxyServer#addHarCaptureListener} 注册，导出成功后由导出流程调用 {@link #commit(Delta)}。
+ */
+public class ExportCheckpoint implements HarLog.CaptureListener {
+
+    /**
+     * 一次导出要包含的分页和请求，导出成功后作为新的检查点
+     */
+    public static class Delta {
+        private final HarLog harLog;
+        private final Set<String> pageRefs;
+        private final int entryCount;
+        private final long sequence;
+        private final boolean full;
+        private final List<HarPage> pages;
+        private final List<HarEntry> entries;
+
+        private Delta(HarLog harLog, Set<String> pageRefs, int entryCount, long sequence, boolean full, List<HarPage> pages, List<HarEntry> entries) {
+            this.harLog = harLog;
+            this.pageRefs = pageRefs;
+            this.entryCount = entryCount;
+            this.sequence = sequence;
+            this.full = full;
+            this.pages = pages;
+            this.entries = entries;
+        }
+
+        public HarLog getHarLog() {
+            return harLog;
+        }
+
+        /**
+         * @return 是否为全量导出：没有可用的检查点，或者调用方要求全量导出
+         */
+        public boolean isFull() {
+            return full;
+        }
+
+        public List<HarPage> getPages() {
+            return pages;
+        }
+
+        public List<HarEntry> getEntries() {
+            return entries;
+        }
+    }
+
+    private static final Comparator<HarEntry> CAPTURE_ORDER = new Comparator<HarEntry>() {
+        @Override
+        public int compare(HarEntry o1, HarEntry o2) {
+            if (o1.getStartedDateTime() == null || o2.getStartedDateTime() == null) {
+                return 0;
+            }
+            return o1.getStartedDateTime().compareTo(o2.getStartedDateTime());
+        }
+    };
+
+    // 上一次成功导出的检查点，harLog为null表示还没有导出过
+    private HarLog harLog;
+    private int entryCount;
+    private Set<String> pageRefs;
+
+    /**
+     * 检查点之后完成的请求，值为完成的顺序号，用来在提交检查点时只清除已经导出过的记录
+     */
+    private final Map<HarEntry, Long> completedEntries = new IdentityHashMap<>();
+    private long sequence;
+
+    /**
+     * 选出要导出的请求，不修改检查点
+     *
+     * @param pageRefs 要导出的分页，null表示全部分页
+     * @param full     是否忽略检查点，导出全部请求
+     */
+    public Delta select(HarLog log, Set<String> pageRefs, boolean full) {
+        HarLog lastLog;
+        int lastEntryCount;
+        Set<String> lastPageRefs;
+        long selectedSequence;
+        List<HarEntry> completed;
+        synchronized (this) {
+            lastLog = harLog;
+            lastEntryCount = entryCount;
+            lastPageRefs = this.pageRefs;
+            selectedSequence = sequence;
+            completed = new ArrayList<>(completedEntries.keySet());
+        }
+
+        // 请求列表只会追加或清空，复制一份快照，导出过程中新增的请求留给下一次导出
+        Object[] snapshot = log.getEntries().toArray();
+        Set<String> selectedPageRefs = pageRefs == null ? null : new HashSet<>(pageRefs);
+
+        List<HarEntry> entries = new ArrayList<>();
+        boolean fullExport = full || lastLog != log || lastEntryCount > snapshot.length;
+        if (fullExport) {
+            for (Object item : snapshot) {
+                HarEntry entry = (HarEntry) item;
+                if (isSelected(entry, selectedPageRefs)) {
+                    entries.add(entry);
+                }
+            }
+        } else {
+            Set<HarEntry> newEntries = Collections.newSetFromMap(new IdentityHashMap<HarEntry, Boolean>());
+            for (int i = lastEntryCount; i < snapshot.length; i++) {
+                newEntries.add((HarEntry) snapshot[i]);
+            }
+
+            Set<String> newPageRefs = getNewPageRefs(log, selectedPageRefs, lastPageRefs);
+            if (newPageRefs.isEmpty()) {
+                // 检查点之前的请求只需要导出之后完成的，不需要遍历
+                List<HarEntry> changed = new ArrayList<>();
+                for (HarEntry entry : completed) {
+                    if (!newEntries.contains(entry) && isSelected(entry, selectedPageRefs)) {
+                        changed.add(entry);
+                    }
+                }
+                Collections.sort(changed, CAPTURE_ORDER);
+                entries.addAll(changed);
+            } else {
+                // 新选择了之前没有导出过的分页，它们在检查点之前的请求也要导出
+                Set<HarEntry> completedSet = Collections.newSetFromMap(new IdentityHashMap<HarEntry, Boolean>());
+                completedSet.addAll(completed);
+                for (int i = 0; i < lastEntryCount; i++) {
+                    HarEntry entry = (HarEntry) snapshot[i];
+                    if (newPageRefs.contains(entry.getPageref())
+                            || (completedSet.contains(entry) && isSelected(entry, selectedPageRefs))) {
+                        entries.add(entry);
+                    }
+                }
+            }
+
+            for (int i = lastEntryCount; i < snapshot.length; i++) {
+                HarEntry entry = (HarEntry) snapshot[i];
+                if (isSelected(entry, selectedPageRefs)) {
+                    entries.add(entry);
+                }
+            }
+        }
+
+        List<HarPage> pages = new ArrayList<>();
+        for (HarPage page : log.getPages()) {
+            if (selectedPageRefs == null || selectedPageRefs.contains(page.getId())) {
+                pages.add(page);
+            }
+        }
+
+        // 已导出的分页累加，之后取消再重新选择某个分页时不会重复导出它的旧请求
+        Set<String> exportedPageRefs;
+        if (selectedPageRefs == null || (!fullExport && lastPageRefs == null)) {
+            exportedPageRefs = null;
+        } else {
+            exportedPageRefs = new HashSet<>(selectedPageRefs);
+            if (!fullExport) {
+                exportedPageRefs.addAll(lastPageRefs);
+            }
+        }
+
+        return new Delta(log, exportedPageRefs, snapshot.length, selectedSequence, fullExport, pages, entries);
+    }
+
+    /**
+     * 导出成功后更新检查点
+     */
+    public void commit(Delta delta) {
+        Set<HarEntry> exportedEntries = newIdentitySet(delta.entries);
+
+        // newHar 换了新的请求列表时旧列表不会发出 entriesCleared，旧列表中请求的完成记录要在这里清除
+        HarLog lastLog;
+        synchronized (this) {
+            lastLog = harLog;
+        }
+        Set<HarEntry> logEntries = lastLog != delta.harLog ? newIdentitySet(delta.harLog.getEntries()) : null;
+
+        synchronized (this) {
+            harLog = delta.harLog;
+            entryCount = delta.entryCount;
+            pageRefs = delta.pageRefs;
+
+            // 只清除这次导出了的请求；选择之后才完成的请求可能在导出时还没有响应，保留它们，下次再导出
+            for (Iterator<Map.Entry<HarEntry, Long>> iterator = completedEntries.entrySet().iterator(); iterator.hasNext(); ) {
+                Map.Entry<HarEntry, Long> completed = iterator.next();
+                if ((completed.getValue() <= delta.sequence && exportedEntries.contains(completed.getKey()))
+                        || (logEntries != null && !logEntries.contains(completed.getKey()))) {
+                    iterator.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * 清除检查点，下一次导出为全量导出
+     */
+    public synchronized void reset() {
+        harLog = null;
+        entryCount = 0;
+        pageRefs = null;
+        completedEntries.clear();
+    }
+
+    /**
+     * @return 是否有可用于增量导出的检查点
+     */
+    public synchronized boolean hasCheckpoint(HarLog log) {
+        return harLog != null && harLog == log;
+    }
+
+    @Override
+    public void entryAdded(HarEntry entry) {
+        // 新增的请求在检查点之后，按位置导出，不需要记录
+    }
+
+    @Override
+    public synchronized void entryCompleted(HarEntry entry) {
+        // 第一次导出时也要记录：导出过程中才完成的请求，下次增量导出时需要再导出一次
+        completedEntries.put(entry, ++sequence);
+    }
+
+    @Override
+    public void entriesCleared() {
+        reset();
+    }
+
+    private static Set<HarEntry> newIdentitySet(List<HarEntry> entries) {
+        Set<HarEntry> set = Collections.newSetFromMap(new IdentityHashMap<HarEntry, Boolean>());
+        set.addAll(entries);
+        return set;
+    }
+
+    private static boolean isSelected(HarEntry entry, Set<String> pageRefs) {
+        return pageRefs == null || pageRefs.contains(entry.getPageref());
+    }
+
+    /**
+     * @return 本次选择了、但上次没有导出过的分页
+     */
+    private static Set<String> getNewPageRefs(HarLog log, Set<String> selectedPageRefs, Set<String> lastPageRefs) {
+        Set<String> newPageRefs = new HashSet<>();
+        if (lastPageRefs == null) {
+            // 上次导出了全部分页
+            return newPageRefs;
+        }
+
+        if (selectedPageRefs == null) {
+            for (HarPage page : log.getPages()) {
+                newPageRefs.add(page.getId());
+            }
+        } else {
+            newPageRefs.addAll(selectedPageRefs);
+        }
+        newPageRefs.removeAll(lastPageRefs);
+        return newPageRefs;
+    }
+}
@@ -0,0 +1,26 @@
+package cn.darkal.networkdiagnosis.Export;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * 导出数据的去向：本地文件或上传到服务器。
+ * <p/>
+ * 调用顺序为 {@link #open()}、向返回的流写入全部数据、{@link #finish()}；中途失败或取消时调用 {@link #abort()}。
+ * 返回的流由导出流程在后台线程写入，不需要自己缓冲。
+ */
+public interface ExportSink {
+    OutputStream open() throws IOException;
+
+    /**
+     * 数据已全部写入
+     *
+     * @return 导出结果：文件路径或服务器的响应内容
+     */
+    String finish() throws IOException;
+
+    /**
+     * 放弃导出，释放资源并清理写了一半的数据
+     */
+    void abort();
+}
@@ -0,0 +1,58 @@
+package cn.darkal.networkdiagnosis.Export;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * 导出到本地文件。先写入同目录下的临时文件，完成后再重命名，分享时不会拿到写了一半的文件。
+ */
+public class FileExportSink implements ExportSink {
+    private final File target;
+    private final File partFile;
+    private OutputStream outputStream;
+
+    public FileExportSink(File target) {
+        this.target = target;
+        this.partFile = new File(target.getPath() + ".part");
+    }
+
+    public File getTarget() {
+        return target;
+    }
+
+    @Override
+    public OutputStream open() throws IOException {
+        File parent = target.getAbsoluteFile().getParentFile();
+        if (parent != null && !parent.exists() && !parent.mkdirs()) {
+            throw new IOException("Unable to create directory " + parent);
+        }
+        outputStream = new FileOutputStream(partFile);
+        return outputStream;
+    }
+
+    @Override
+    public String finish() throws IOException {
+        outputStream.close();
+        if (target.exists() && !target.delete()) {
+            throw new IOException("Unable to replace " + target);
+        }
+        if (!partFile.renameTo(target)) {
+            throw new IOException("Unable to rename " + partFile + " to " + target);
+        }
+        return target.getPath();
+    }
+
+    @Override
+    public void abort() {
+        if (outputStream != null) {
+            try {
+                outputStream.close();
+            } catch (IOException e) {
+                // 已经在放弃导出，忽略关闭时的错误
+            }
+        }
+        partFile.delete();
+    }
+}
@@ -0,0 +1,338 @@
+package cn.darkal.networkdiagnosis.Export;
+
+import net.lightbody.bmp.core.har.HarEntry;
+import net.lightbody.bmp.core.har.HarLog;
+import net.lightbody.bmp.core.har.HarPage;
+import net.lightbody.bmp.core.har.HarStreamWriter;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Deflater;
+
+import cn.darkal.networkdiagnosis.Utils.ParallelDeflaterOutputStream;
+import cn.darkal.networkdiagnosis.Utils.ParallelGzipOutputStream;
+import cn.darkal.networkdiagnosis.Utils.ParallelZipOutputStream;
+
+/**
+ * 流式导出HAR：序列化、压缩和写出（保存文件或上传）同时进行，中间不生成临时文件。
+ * <p/>
+ * 一个后台线程把选中分页的请求逐条序列化，交给压缩线程池分块并行压缩（见 {@link Format}、{@link ParallelDeflaterOutputStream}），
+ * 压缩后的数据按块放入一个有界队列；
+ * 另一个后台线程从队列取出数据块写入 {@link ExportSink}。写出较慢（如网络上传）时队列被填满，
+ * 压缩线程随之阻塞，内存中最多只缓冲 {@link #MAX_PENDING_CHUNKS} 个数据块。
+ * <p/>
+ * 设置 {@link ExportCheckpoint} 后可以只导出上次导出之后新增或变化的请求，导出成功后更新检查点。
+ * <p/>
+ * 所有回调都在后台线程执行，且 {@link Listener#onCompleted}、{@link Listener#onFailed} 只会回调其中一个。
+ */
+public class HarExportPipeline {
+    /**
+     * zip中HAR文件的名称
+     */
+    public static final String HAR_ENTRY_NAME = "test.har";
+
+    public enum Format {
+        /**
+         * zip中的一个完整HAR文件，名称为 {@link #HAR_ENTRY_NAME}
+         */
+        HAR_ZIP,
+
+        /**
+         * gzip压缩的NDJSON，每行一个请求。gzip数据可以直接拼接，适合把多次增量导出的结果追加到同一个文件
+         */
+        NDJSON_GZIP
+    }
+
+    private static final int CHUNK_SIZE = 64 * 1024;
+    private static final int MAX_PENDING_CHUNKS = 8;
+    private static final long POLL_INTERVAL_MS = 100;
+
+    /**
+     * 压缩完成的标记
+     */
+    private static final byte[] END_OF_STREAM = new byte[0];
+
+    private static final ExecutorService EXECUTOR = Executors.newCachedThreadPool(new ThreadFactory() {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "har-export-" + count.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    public interface Listener {
+        /**
+         * @param entries      已序列化的请求数
+         * @param totalEntries 要导出的请求总数
+         * @param bytes        已写出的压缩后字节数
+         */
+        void onProgress(int entries, int totalEntries, long bytes);
+
+        /**
+         * @param result {@link ExportSink#finish()} 的返回值
+         */
+        void onCompleted(int entries, long bytes, String result);
+
+        void onFailed(Exception e);
+    }
+
+    private final HarLog harLog;
+    private final Set<String> pageRefs;
+    private final ExportSink sink;
+    private final Listener listener;
+    private int compressionLevel = Deflater.DEFAULT_COMPRESSION;
+    private int compressionThreads = Runtime.getRuntime().availableProcessors();
+    private Format format = Format.HAR_ZIP;
+    private ExportCheckpoint checkpoint;
+    private boolean incremental;
+
+    /**
+     * 本次导出的内容，导出成功后提交为新的检查点
+     */
+    private volatile ExportCheckpoint.Delta delta;
+
+    private final BlockingQueue<byte[]> chunks = new ArrayBlockingQueue<>(MAX_PENDING_CHUNKS);
+    private volatile boolean cancelled;
+    private volatile Exception failure;
+    private volatile int entriesWritten;
+    private volatile int totalEntries;
+
+    /**
+     * @param pageRefs 要导出的分页，null表示全部导出
+     */
+    public HarExportPipeline(HarLog harLog, Set<String> pageRefs, ExportSink sink, Listener listener) {
+        this.harLog = harLog;
+        this.pageRefs = pageRefs;
+        this.sink = sink;
+        this.listener = listener;
+    }
+
+    /**
+     * @param compressionLevel {@link Deflater} 的压缩级别，0-9
+     */
+    public HarExportPipeline setCompressionLevel(int compressionLevel) {
+        this.compressionLevel = compressionLevel;
+        return this;
+    }
+
+    /**
+     * @param compressionThreads 并行压缩的块数，1表示单线程压缩，默认为CPU核数
+     */
+    public HarExportPipeline setCompressionThreads(int compressionThreads) {
+        this.compressionThreads = compressionThreads;
+        return this;
+    }
+
+    public HarExportPipeline setFormat(Format format) {
+        this.format = format;
+        return this;
+    }
+
+    /**
+     * @param checkpoint  导出成功后更新的检查点
+     * @param incremental 是否只导出检查点之后新增或变化的请求，没有可用的检查点时仍然全量导出
+     */
+    public HarExportPipeline setCheckpoint(ExportCheckpoint checkpoint, boolean incremental) {
+        this.checkpoint = checkpoint;
+        this.incremental = incremental;
+        return this;
+    }
+
+    public void start() {
+        EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                compress();
+            }
+        });
+        EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                drain();
+            }
+        });
+    }
+
+    /**
+     * 取消导出，写了一半的数据由 {@link ExportSink#abort()} 清理，取消后不再有回调
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    private void compress() {
+        try {
+            HarStreamWriter harWriter = new HarStreamWriter(harLog, pageRefs);
+            List<HarPage> pages;
+            List<HarEntry> entries;
+            if (checkpoint != null) {
+                delta = checkpoint.select(harLog, pageRefs, !incremental);
+                pages = delta.getPages();
+                entries = delta.getEntries();
+            } else {
+                pages = harWriter.selectPages();
+                entries = harWriter.selectEntries();
+            }
+            totalEntries = entries.size();
+
+            HarStreamWriter.ProgressListener progressListener = new HarStreamWriter.ProgressListener() {
+                @Override
+                public void onEntryWritten(int written, int total) {
+                    entriesWritten = written;
+                }
+            };
+
+            ExecutorService compressExecutor = ParallelDeflaterOutputStream.getDefaultExecutor();
+            if (format == Format.NDJSON_GZIP) {
+                ParallelGzipOutputStream gzipOutputStream = new ParallelGzipOutputStream(new ChunkOutputStream(),
+                        compressionLevel, compressExecutor, compressionThreads);
+                HarStreamWriter.writeNdjson(gzipOutputStream, entries, progressListener);
+                gzipOutputStream.close();
+            } else {
+                ParallelZipOutputStream zipOutputStream = new ParallelZipOutputStream(new ChunkOutputStream(),
+                        compressionLevel, compressExecutor, compressionThreads);
+                zipOutputStream.putNextEntry(HAR_ENTRY_NAME);
+                harWriter.writeTo(zipOutputStream, pages, entries, progressListener);
+                zipOutputStream.closeEntry();
+                zipOutputStream.close();
+            }
+        } catch (Exception e) {
+            fail(e);
+        }
+    }
+
+    private void drain() {
+        long bytes = 0;
+        try {
+            OutputStream outputStream = sink.open();
+            while (true) {
+                byte[] chunk = takeChunk();
+                if (chunk == END_OF_STREAM) {
+                    break;
+                }
+
+                outputStream.write(chunk);
+                bytes += chunk.length;
+                listener.onProgress(entriesWritten, totalEntries, bytes);
+            }
+            outputStream.close();
+
+            String result = sink.finish();
+            if (checkpoint != null) {
+                checkpoint.commit(delta);
+            }
+            if (!cancelled) {
+                listener.onCompleted(entriesWritten, bytes, result);
+            }
+        } catch (Exception e) {
+            fail(e);
+            sink.abort();
+            if (!cancelled) {
+                listener.onFailed(failure);
+            }
+        }
+    }
+
+    private void fail(Exception e) {
+        if (failure == null) {
+            failure = e;
+        }
+    }
+
+    /**
+     * 压缩线程出错或导出被取消时抛出异常，让等待中的一方退出
+     */
+    private void checkState() throws IOException {
+        if (cancelled) {
+            throw new InterruptedIOException("Export cancelled");
+        }
+        if (failure != null) {
+            throw new IOException("Export failed", failure);
+        }
+    }
+
+    private byte[] takeChunk() throws IOException {
+        try {
+            while (true) {
+                byte[] chunk = chunks.poll(POLL_INTERVAL_MS, TimeUnit.MILLISECONDS);
+                if (chunk != null) {
+                    return chunk;
+                }
+                checkState();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for compressed data");
+        }
+    }
+
+    private void putChunk(byte[] chunk) throws IOException {
+        try {
+            while (!chunks.offer(chunk, POLL_INTERVAL_MS, TimeUnit.MILLISECONDS)) {
+                checkState();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the sink");
+        }
+    }
+
+    /**
+     * 把压缩后的数据切成固定大小的块放入队列，队列满时阻塞
+     */
+    private class ChunkOutputStream extends OutputStream {
+        private byte[] buffer = new byte[CHUNK_SIZE];
+        private int count;
+
+        @Override
+        public void write(int b) throws IOException {
+            // zip、gzip的头和结尾按字节写入
+            buffer[count++] = (byte) b;
+            if (count == buffer.length) {
+                putChunk(buffer);
+                buffer = new byte[CHUNK_SIZE];
+                count = 0;
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                int n = Math.min(len, buffer.length - count);
+                System.arraycopy(b, off, buffer, count, n);
+                count += n;
+                off += n;
+                len -= n;
+
+                if (count == buffer.length) {
+                    putChunk(buffer);
+                    buffer = new byte[CHUNK_SIZE];
+                    count = 0;
+                }
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (count > 0) {
+                putChunk(Arrays.copyOf(buffer, count));
+                count = 0;
+            }
+            putChunk(END_OF_STREAM);
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package cn.darkal.networkdiagnosis.Export;
+
+import org.apache.commons.io.IOUtils;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.Charset;
+
+/**
+ * 以multipart/form-data的方式上传导出的数据，请求体使用分块传输编码边生成边发送，不需要先写到本地文件，
+ * 服务器收到的请求和上传文件时相同。
+ */
+public class HttpUploadSink implements ExportSink {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final int CHUNK_SIZE = 64 * 1024;
+    private static final int CONNECT_TIMEOUT_MS = 15000;
+    private static final int READ_TIMEOUT_MS = 60000;
+
+    private final String serverUrl;
+    private final String paramName;
+    private final String fileName;
+    private final String boundary = "----AndroidHttpCapture" + Long.toHexString(System.nanoTime());
+
+    private HttpURLConnection connection;
+    private OutputStream outputStream;
+
+    /**
+     * @param serverUrl 上传地址
+     * @param paramName 文件对应的表单字段名
+     * @param fileName  服务器看到的文件名
+     */
+    public HttpUploadSink(String serverUrl, String paramName, String fileName) {
+        this.serverUrl = serverUrl;
+        this.paramName = paramName;
+        this.fileName = fileName;
+    }
+
+    @Override
+    public OutputStream open() throws IOException {
+        connection = (HttpURLConnection) new URL(serverUrl).openConnection();
+        connection.setConnectTimeout(CONNECT_TIMEOUT_MS);
+        connection.setReadTimeout(READ_TIMEOUT_MS);
+        connection.setRequestMethod("POST");
+        connection.setDoOutput(true);
+        connection.setUseCaches(false);
+        connection.setChunkedStreamingMode(CHUNK_SIZE);
+        connection.setRequestProperty("Content-Type", "multipart/form-data; boundary=" + boundary);
+
+        outputStream = connection.getOutputStream();
+        outputStream.write(("--" + boundary + "\r\n"
+                + "Content-Disposition: form-data; name=\"" + paramName + "\"; filename=\"" + fileName + "\"\r\n"
+                + "Content-Type: application/octet-stream\r\n\r\n").getBytes(UTF_8));
+
+        // 文件内容写完后由finish()写入结尾的boundary，这里不让调用方关闭连接的输出流
+        return new FilterOutputStream(outputStream) {
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                out.write(b, off, len);
+            }
+
+            @Override
+            public void close() throws IOException {
+                flush();
+            }
+        };
+    }
+
+    @Override
+    public String finish() throws IOException {
+        outputStream.write(("\r\n--" + boundary + "--\r\n").getBytes(UTF_8));
+        outputStream.close();
+
+        try {
+            int code = connection.getResponseCode();
+            if (code < 200 || code >= 300) {
+                InputStream errorStream = connection.getErrorStream();
+                String error = errorStream == null ? "" : IOUtils.toString(errorStream, UTF_8);
+                throw new IOException("Upload failed with HTTP " + code + ": " + error);
+            }
+
+            InputStream inputStream = connection.getInputStream();
+            try {
+                return IOUtils.toString(inputStream, UTF_8);
+            } finally {
+                IOUtils.closeQuietly(inputStream);
+            }
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    @Override
+    public void abort() {
+        if (connection != null) {
+            connection.disconnect();
+        }
+    }
+}
@@ -0,0 +1,214 @@
+package cn.darkal.networkdiagnosis.Export;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.BitSet;
+import java.util.Properties;
+import java.util.UUID;
+
+/**
+ * 分块上传的进度，保存在待上传文件旁边的 .upload 文件中，应用重启后可以继续上传。
+ * <p/>
+ * 记录上传id、分块大小、已确认的分块，以及文件的大小和修改时间：文件被重新导出后进度作废，需要重新上传。
+ */
+public class UploadState {
+    private static final String KEY_UPLOAD_ID = "uploadId";
+    private static final String KEY_FILE_LENGTH = "fileLength";
+    private static final String KEY_FILE_MODIFIED = "fileModified";
+    private static final String KEY_CHUNK_SIZE = "chunkSize";
+    private static final String KEY_UPLOADED = "uploaded";
+
+    private final File file;
+    private final File stateFile;
+    private final String uploadId;
+    private final long fileLength;
+    private final long fileModified;
+    private final int chunkSize;
+    private final BitSet uploaded;
+
+    private UploadState(File file, String uploadId, long fileLength, long fileModified, int chunkSize, BitSet uploaded) {
+        this.file = file;
+        this.stateFile = getStateFile(file);
+        this.uploadId = uploadId;
+        this.fileLength = fileLength;
+        this.fileModified = fileModified;
+        this.chunkSize = chunkSize;
+        this.uploaded = uploaded;
+    }
+
+    /**
+     * 为文件创建新的上传进度，覆盖之前的进度
+     */
+    public static UploadState create(File file, int chunkSize) throws IOException {
+        UploadState state = new UploadState(file, UUID.randomUUID().toString(), file.length(), file.lastModified(), chunkSize, new BitSet());
+        state.save();
+        return state;
+    }
+
+    /**
+     * @return 文件未完成的上传进度，没有进度或文件已变化时返回null
+     */
+    public static UploadState load(File file) {
+        File stateFile = getStateFile(file);
+        if (!stateFile.exists() || !file.exists()) {
+            return null;
+        }
+
+        Properties properties = new Properties();
+        InputStream inputStream = null;
+        try {
+            inputStream = new FileInputStream(stateFile);
+            properties.load(inputStream);
+
+            long fileLength = Long.parseLong(properties.getProperty(KEY_FILE_LENGTH));
+            long fileModified = Long.parseLong(properties.getProperty(KEY_FILE_MODIFIED));
+            if (fileLength != file.length() || fileModified != file.lastModified()) {
+                return null;
+            }
+
+            return new UploadState(file, properties.getProperty(KEY_UPLOAD_ID), fileLength, fileModified,
+                    Integer.parseInt(properties.getProperty(KEY_CHUNK_SIZE)), decodeChunks(properties.getProperty(KEY_UPLOADED, "")));
+        } catch (IOException | RuntimeException e) {
+            // 进度文件损坏时重新上传
+            return null;
+        } finally {
+            if (inputStream != null) {
+                try {
+                    inputStream.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public String getUploadId() {
+        return uploadId;
+    }
+
+    public long getFileLength() {
+        return fileLength;
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    public int getChunkCount() {
+        return (int) ((fileLength + chunkSize - 1) / chunkSize);
+    }
+
+    public long getChunkOffset(int index) {
+        return (long) index * chunkSize;
+    }
+
+    public int getChunkLength(int index) {
+        return (int) Math.min(chunkSize, fileLength - getChunkOffset(index));
+    }
+
+    public synchronized boolean isUploaded(int index) {
+        return uploaded.get(index);
+    }
+
+    public synchronized long getUploadedBytes() {
+        long bytes = 0;
+        for (int i = uploaded.nextSetBit(0); i >= 0; i = uploaded.nextSetBit(i + 1)) {
+            bytes += getChunkLength(i);
+        }
+        return bytes;
+    }
+
+    /**
+     * 以服务器确认的偏移量为准：之前的分块都已上传，之后的分块需要重新上传
+     */
+    public synchronized void resetTo(long offset) throws IOException {
+        int confirmedChunks = (int) Math.min(getChunkCount(), offset / chunkSize);
+        uploaded.clear();
+        uploaded.set(0, confirmedChunks);
+        save();
+    }
+
+    public synchronized void markUploaded(int index) throws IOException {
+        uploaded.set(index);
+        save();
+    }
+
+    /**
+     * 上传完成或放弃时删除进度
+     */
+    public void delete() {
+        stateFile.delete();
+    }
+
+    private synchronized void save() throws IOException {
+        Properties properties = new Properties();
+        properties.setProperty(KEY_UPLOAD_ID, uploadId);
+        properties.setProperty(KEY_FILE_LENGTH, String.valueOf(fileLength));
+        properties.setProperty(KEY_FILE_MODIFIED, String.valueOf(fileModified));
+        properties.setProperty(KEY_CHUNK_SIZE, String.valueOf(chunkSize));
+        properties.setProperty(KEY_UPLOADED, encodeChunks(uploaded));
+
+        // 先写临时文件再重命名，写到一半时被杀掉也不会损坏已有的进度
+        File tempFile = new File(stateFile.getPath() + ".tmp");
+        OutputStream outputStream = new FileOutputStream(tempFile);
+        try {
+            properties.store(outputStream, null);
+        } finally {
+            outputStream.close();
+        }
+        if (!tempFile.renameTo(stateFile)) {
+            stateFile.delete();
+            if (!tempFile.renameTo(stateFile)) {
+                throw new IOException("Unable to save upload state to " + stateFile);
+            }
+        }
+    }
+
+    private static File getStateFile(File file) {
+        return new File(file.getPath() + ".upload");
+    }
+
+    /**
+     * 已上传的分块按区间保存，例如 "0-15,18"
+     */
+    private static String encodeChunks(BitSet chunks) {
+        StringBuilder builder = new StringBuilder();
+        int start = chunks.nextSetBit(0);
+        while (start >= 0) {
+            int end = chunks.nextClearBit(start) - 1;
+            if (builder.length() > 0) {
+                builder.append(',');
+            }
+            builder.append(start);
+            if (end > start) {
+                builder.append('-').append(end);
+            }
+            start = chunks.nextSetBit(end + 1);
+        }
+        return builder.toString();
+    }
+
+    private static BitSet decodeChunks(String value) {
+        BitSet chunks = new BitSet();
+        for (String range : value.split(",")) {
+            if (range.isEmpty()) {
+                continue;
+            }
+            int dash = range.indexOf('-');
+            if (dash < 0) {
+                chunks.set(Integer.parseInt(range));
+            } else {
+                chunks.set(Integer.parseInt(range.substring(0, dash)), Integer.parseInt(range.substring(dash + 1)) + 1);
+            }
+        }
+        return chunks;
+    }
+}
@@ -1,9 +1,14 @@
 package cn.darkal.networkdiagnosis.Fragment;
 
+import android.annotation.TargetApi;
 import android.content.Intent;
+import android.os.Build;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
 import android.support.v7.widget.LinearLayoutManager;
 import android.support.v7.widget.RecyclerView;
+import android.view.Choreographer;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
@@ -12,11 +17,20 @@ import android.widget.Filterable;
 import android.widget.ImageView;
 import android.widget.TextView;
 
+import net.lightbody.bmp.BrowserMobProxyServer;
 import net.lightbody.bmp.core.har.HarEntry;
+import net.lightbody.bmp.core.har.HarEntryIndex;
+import net.lightbody.bmp.core.har.HarEntrySummary;
 import net.lightbody.bmp.core.har.HarLog;
+import net.lightbody.bmp.core.har.HarQuery;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import butterknife.BindView;
 import butterknife.ButterKnife;
@@ -38,6 +52,47 @@ public class PreviewFragment extends BaseFragment {
 
     Boolean isHiddenHID = false;
 
+    // 列表中每个请求的位置，用于请求完成时定位需要刷新的条目
+    Map<HarEntry, Integer> entryPositions = new IdentityHashMap<>();
+
+    // 抓包线程产生的事件先放入队列，每帧在主线程批量应用一次
+    private static final long FRAME_INTERVAL_MS = 16;
+    private final Object pendingLock = new Object();
+    private List<HarEntry> pendingAdded = new ArrayList<>();
+    private List<HarEntry> pendingCompleted = new ArrayList<>();
+    private boolean pendingCleared = false;
+    private boolean flushScheduled = false;
+    private Handler mainHandler = new Handler(Looper.getMainLooper());
+    private Choreographer.FrameCallback frameCallback;
+
+    private final HarLog.CaptureListener captureListener = new HarLog.CaptureListener() {
+        @Override
+        public void entryAdded(HarEntry entry) {
+            synchronized (pendingLock) {
+                pendingAdded.add(entry);
+                scheduleFlush();
+            }
+        }
+
+        @Override
+        public void entryCompleted(HarEntry entry) {
+            synchronized (pendingLock) {
+                pendingCompleted.add(entry);
+                scheduleFlush();
+            }
+        }
+
+        @Override
+        public void entriesCleared() {
+            synchronized (pendingLock) {
+                pendingCleared = true;
+                pendingAdded.clear();
+                pendingCompleted.clear();
+                scheduleFlush();
+            }
+        }
+    };
+
     static PreviewFragment previewFragment;
 
     public static PreviewFragment getInstance() {
@@ -61,12 +116,26 @@ public class PreviewFragment extends BaseFragment {
 
         if(SysApplication.isInitProxy) {
             harLog = ((SysApplication) getActivity().getApplication()).proxy.getHar().getLog();
+            harEntryList.clear();
             harEntryList.addAll(harLog.getEntries());
         }
+        updateEntryPositions();
         recyclerView.addItemDecoration(new RecycleViewDivider(getActivity(), RecycleViewDivider.VERTICAL_LIST));
         recyclerView.setLayoutManager(new LinearLayoutManager(getContext()));
         recyclerView.setAdapter(previewAdapter = new PreviewAdapter());
 
+        // 代理启动后订阅抓包事件，新请求增量插入列表，不再整表刷新
+        ((SysApplication) getActivity().getApplication()).getStartupPipeline().runWhenReady(new Runnable() {
+            @Override
+            public void run() {
+                if (getView() != null) {
+                    ((BrowserMobProxyServer) ((SysApplication) getActivity().getApplication()).proxy)
+                            .addHarCaptureListener(captureListener);
+                    notifyHarChange();
+                }
+            }
+        });
+
         if(((MainActivity) getActivity()).searchView!=null){
             ((MainActivity) getActivity()).searchView.setVisibility(View.VISIBLE);
         }
@@ -128,39 +197,26 @@ public class PreviewFragment extends BaseFragment {
             return new Filter() {
                 @Override
                 protected FilterResults performFiltering(CharSequence constraint) {
-                    harLog = ((MainActivity) getActivity()).getFiltedHar().getLog();
                     //初始化过滤结果对象
                     FilterResults results = new FilterResults();
-                    //假如搜索为空的时候，将复制的数据添加到原始数据，用于继续过滤操作
-                    if (results.values == null) {
-                        harEntryList.clear();
-                        harEntryList.addAll(harLog.getEntries());
+                    MainActivity activity = (MainActivity) getActivity();
+                    if (activity == null || !SysApplication.isInitProxy) {
+                        return results;
                     }
-                    //关键字为空的时候，搜索结果为复制的结果
+                    //关键字为空的时候，搜索结果为当前选择页面的全部请求
                     if (constraint == null || constraint.length() == 0) {
+                        harLog = activity.getFiltedHar().getLog();
                         results.values = harLog.getEntries();
                         results.count = harLog.getEntries().size();
                     } else {
-                        String prefixString = constraint.toString();
-                        final int count = harEntryList.size();
-                        //用于存放暂时的过滤结果
-                        final ArrayList<HarEntry> newValues = new ArrayList<>();
-                        for (int i = 0; i < count; i++) {
-                            final HarEntry value = harEntryList.get(i);
-                            String url = value.getRequest().getUrl();
-                            // 假如含有关键字的时候，添加
-                            if (url.contains(prefixString)) {
+                        // 在过滤线程中查询倒排索引和列式摘要，不再逐条遍历全部请求
+                        List<HarEntry> matches = search(constraint.toString());
+                        //用于存放暂时的过滤结果，去掉未选择页面的请求
+                        final ArrayList<HarEntry> newValues = new ArrayList<>(matches.size());
+                        Set<String> disablePages = new HashSet<>(activity.disablePages);
+                        for (HarEntry value : matches) {
+                            if (!disablePages.contains(value.getPageref())) {
                                 newValues.add(value);
-                            } else {
-                                //过来空字符开头
-                                String[] words = prefixString.split(" ");
-
-                                for (String word : words) {
-                                    if (url.contains(word)) {
-                                        newValues.add(value);
-                                        break;
-                                    }
-                                }
                             }
                         }
                         results.values = newValues;
@@ -171,20 +227,26 @@ public class PreviewFragment extends BaseFragment {
 
                 @Override
                 protected void publishResults(CharSequence constraint, FilterResults results) {
+                    if (previewAdapter == null || results.values == null) {
+                        return;
+                    }
                     harEntryList.clear();//清除原始数据
                     if(results.values instanceof List){
                         harEntryList.addAll((List<HarEntry>) results.values);//将过滤结果添加到这个对象
                     }
                     if (results.count > 0) {
+                        updateEntryPositions();
                         previewAdapter.notifyDataSetChanged();//有关键字的时候刷新数据
                     } else {
                         //关键字不为零但是过滤结果为空刷新数据
-                        if (constraint.length() != 0) {
+                        if (constraint != null && constraint.length() != 0) {
+                            updateEntryPositions();
                             previewAdapter.notifyDataSetChanged();
                             return;
                         }
                         //加载复制的数据，即为最初的数据
                         harEntryList.addAll(harLog.getEntries());
+                        updateEntryPositions();
                         previewAdapter.notifyDataSetChanged();
                     }
                 }
@@ -206,8 +268,194 @@ public class PreviewFragment extends BaseFragment {
             harLog = ((MainActivity) getActivity()).getFiltedHar().getLog();
             harEntryList.clear();
             harEntryList.addAll(harLog.getEntries());
+            updateEntryPositions();
+            previewAdapter.notifyDataSetChanged();
+        }
+    }
+
+    private HarEntryIndex getHarEntryIndex() {
+        return ((BrowserMobProxyServer) ((SysApplication) getActivity().getApplication()).proxy).getHarEntryIndex();
+    }
+
+    private HarEntrySummary getHarEntrySummary() {
+        return ((BrowserMobProxyServer) ((SysApplication) getActivity().getApplication()).proxy).getHarEntrySummary();
+    }
+
+    /**
+     * 解析搜索框中的查询，例如 status>=400 host:api.* mime:json time>800ms size>1MB page:'Page 3'
+     *
+     * @return 解析后的查询；正在输入的条件不完整时返回null，按普通文本搜索
+     */
+    private static HarQuery parseQuery(String queryText) {
+        try {
+            return HarQuery.parse(queryText);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    private List<HarEntry> search(String queryText) {
+        HarQuery query = parseQuery(queryText);
+        if (query != null && query.hasConditions()) {
+            return getHarEntrySummary().select(query, getHarEntryIndex());
+        }
+        return getHarEntryIndex().search(queryText);
+    }
+
+    private void appendIfMatches(HarEntry entry, MainActivity activity, String queryText, HarQuery query) {
+        if (activity.disablePages.contains(entry.getPageref()) || entryPositions.containsKey(entry)) {
+            return;
+        }
+
+        boolean matches;
+        if (query != null && query.hasConditions()) {
+            matches = getHarEntrySummary().matches(entry, query, getHarEntryIndex());
+        } else {
+            matches = getHarEntryIndex().matches(entry, queryText);
+        }
+
+        if (matches) {
+            entryPositions.put(entry, harEntryList.size());
+            harEntryList.add(entry);
+        }
+    }
+
+    private void updateEntryPositions() {
+        entryPositions.clear();
+        for (int i = 0; i < harEntryList.size(); i++) {
+            entryPositions.put(harEntryList.get(i), i);
+        }
+    }
+
+    /**
+     * 在持有pendingLock时调用，保证每帧最多安排一次刷新
+     */
+    private void scheduleFlush() {
+        if (flushScheduled) {
+            return;
+        }
+        flushScheduled = true;
+
+        // Choreographer只能在主线程获取，抓包事件来自代理线程，所以先切换到主线程
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+                    postFrameCallback();
+                } else {
+                    mainHandler.postDelayed(new Runnable() {
+                        @Override
+                        public void run() {
+                            flushPendingEvents();
+                        }
+                    }, FRAME_INTERVAL_MS);
+                }
+            }
+        });
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    private void postFrameCallback() {
+        if (frameCallback == null) {
+            frameCallback = new Choreographer.FrameCallback() {
+                @Override
+                public void doFrame(long frameTimeNanos) {
+                    flushPendingEvents();
+                }
+            };
+        }
+        Choreographer.getInstance().postFrameCallback(frameCallback);
+    }
+
+    /**
+     * 在主线程把一帧内积累的抓包事件批量应用到列表：新请求按区间插入，完成的请求按连续区间刷新
+     */
+    private void flushPendingEvents() {
+        List<HarEntry> added;
+        List<HarEntry> completed;
+        boolean cleared;
+        synchronized (pendingLock) {
+            added = pendingAdded;
+            completed = pendingCompleted;
+            cleared = pendingCleared;
+            pendingAdded = new ArrayList<>();
+            pendingCompleted = new ArrayList<>();
+            pendingCleared = false;
+            flushScheduled = false;
+        }
+
+        if (previewAdapter == null || getActivity() == null) {
+            // 列表不可见，下次显示时会整表加载
+            return;
+        }
+
+        if (cleared) {
+            harEntryList.clear();
+            entryPositions.clear();
             previewAdapter.notifyDataSetChanged();
         }
+
+        MainActivity activity = (MainActivity) getActivity();
+        String queryText = activity.searchView != null ? activity.searchView.getQuery().toString() : null;
+        HarQuery query = parseQuery(queryText);
+
+        int insertStart = harEntryList.size();
+        if (query != null && query.hasConditions()) {
+            // 状态码、耗时等条件在请求完成后才能判断，所以结构化查询在请求完成时再决定是否插入
+            for (HarEntry entry : completed) {
+                appendIfMatches(entry, activity, queryText, query);
+            }
+        } else {
+            for (HarEntry entry : added) {
+                appendIfMatches(entry, activity, queryText, query);
+            }
+            // 请求头和Content-Type在请求完成后才建立索引，新增时没有匹配的请求完成后再判断一次
+            for (HarEntry entry : completed) {
+                appendIfMatches(entry, activity, queryText, query);
+            }
+        }
+        if (harEntryList.size() > insertStart) {
+            previewAdapter.notifyItemRangeInserted(insertStart, harEntryList.size() - insertStart);
+        }
+
+        // 本帧新插入的条目已经是最新状态，只刷新之前已显示的条目
+        int[] positions = new int[completed.size()];
+        int count = 0;
+        for (HarEntry entry : completed) {
+            Integer position = entryPositions.get(entry);
+            if (position != null && position < insertStart) {
+                positions[count++] = position;
+            }
+        }
+        Arrays.sort(positions, 0, count);
+
+        int rangeStart = -1;
+        int rangeEnd = -1;
+        for (int i = 0; i < count; i++) {
+            if (positions[i] <= rangeEnd + 1 && rangeStart >= 0) {
+                rangeEnd = Math.max(rangeEnd, positions[i]);
+            } else {
+                if (rangeStart >= 0) {
+                    previewAdapter.notifyItemRangeChanged(rangeStart, rangeEnd - rangeStart + 1);
+                }
+                rangeStart = positions[i];
+                rangeEnd = positions[i];
+            }
+        }
+        if (rangeStart >= 0) {
+            previewAdapter.notifyItemRangeChanged(rangeStart, rangeEnd - rangeStart + 1);
+        }
+    }
+
+    @Override
+    public void onDestroyView() {
+        super.onDestroyView();
+
+        if (SysApplication.isInitProxy) {
+            ((BrowserMobProxyServer) ((SysApplication) getActivity().getApplication()).proxy)
+                    .removeHarCaptureListener(captureListener);
+        }
+        previewAdapter = null;
     }
 
     public class ClickListner implements View.OnClickListener {
@@ -219,11 +467,13 @@ public class PreviewFragment extends BaseFragment {
 
         @Override
         public void onClick(View view) {
-            if(harLog.getEntries().indexOf(harEntry)>=0) {
+            // 列表会增量更新，所以在完整的HarLog中查找位置
+            int pos = ((SysApplication) getActivity().getApplication()).proxy.
+                    getHar().getLog().getEntries().indexOf(harEntry);
+            if(pos>=0) {
                 isHiddenHID = true;
                 Intent intent = new Intent(getContext(), HarDetailActivity.class);
-                intent.putExtra("pos", ((SysApplication) getActivity().getApplication()).proxy.
-                        getHar().getLog().getEntries().indexOf(harEntry));
+                intent.putExtra("pos", pos);
                 getActivity().startActivity(intent);
             }
         }
@@ -1,10 +1,8 @@
 package cn.darkal.networkdiagnosis.Fragment;
 
 import android.annotation.TargetApi;
-import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
-import android.content.IntentFilter;
 import android.content.SharedPreferences;
 import android.graphics.Bitmap;
 import android.net.Uri;
@@ -59,7 +57,6 @@ public class WebViewFragment extends BaseFragment {
     @BindView(R.id.swipe_container)
     SwipeRefreshLayout swipeRefreshLayout;
 
-    Receiver receiver;
 
     public Boolean isSetProxy = false;
 
@@ -236,14 +233,15 @@ public class WebViewFragment extends BaseFragment {
     @Override
     public void onActivityCreated(@Nullable Bundle savedInstanceState) {
         super.onActivityCreated(savedInstanceState);
-        receiver = new Receiver();
-        getActivity().registerReceiver(receiver, new IntentFilter("proxyfinished"));
-    }
-
-    @Override
-    public void onDestroyView() {
-        super.onDestroyView();
-        getActivity().unregisterReceiver(receiver);
+        ((SysApplication) getActivity().getApplication()).getStartupPipeline().runWhenReady(new Runnable() {
+            @Override
+            public void run() {
+                if (getView() != null) {
+                    initProxyWebView();
+                    Log.i("~~~~", "ready initProxyWebView");
+                }
+            }
+        });
     }
 
     public void initProxyWebView() {
@@ -263,14 +261,6 @@ public class WebViewFragment extends BaseFragment {
         }
     }
 
-    public class Receiver extends BroadcastReceiver {
-        @Override
-        public void onReceive(Context context, Intent intent) {
-            initProxyWebView();
-            Log.i("~~~~", "Receiver initProxyWebView");
-        }
-    }
-
     public void loadUrl(String url) {
         if (webView != null) {
             if (!isSetProxy) {
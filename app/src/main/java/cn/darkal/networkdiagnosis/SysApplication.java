@@ -1,8 +1,8 @@
 package cn.darkal.networkdiagnosis;
 
-import android.content.Intent;
 import android.content.SharedPreferences;
 import android.os.Environment;
+import android.os.SystemClock;
 import android.preference.PreferenceManager;
 import android.support.multidex.MultiDexApplication;
 import android.util.Log;
@@ -14,19 +14,26 @@ import net.lightbody.bmp.proxy.CaptureType;
 import net.lightbody.bmp.proxy.dns.AdvancedHostResolver;
 
 import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
 
 import java.io.File;
 import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
 import java.util.Locale;
 import java.util.Random;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
+import cn.darkal.networkdiagnosis.Export.ExportCheckpoint;
 import cn.darkal.networkdiagnosis.bean.ResponseFilterRule;
 import cn.darkal.networkdiagnosis.Utils.DeviceUtils;
 import cn.darkal.networkdiagnosis.Utils.SharedPreferenceUtils;
+import cn.darkal.networkdiagnosis.Utils.StartupPipeline;
 
 /**
  * Created by xuzhou on 2016/8/10.
@@ -34,9 +41,16 @@ import cn.darkal.networkdiagnosis.Utils.SharedPreferenceUtils;
 public class SysApplication extends MultiDexApplication {
     public static Boolean isInitProxy = false;
     public static int proxyPort = 8888;
-    public BrowserMobProxy proxy;
+    private static final int DEFAULT_PROXY_PORT = 8888;
+    private static final int MAX_PORT_ATTEMPTS = 10;
+    private static final long MITM_READY_TIMEOUT_SECONDS = 120;
+    public volatile BrowserMobProxy proxy;
     public List<ResponseFilterRule> ruleList = new ArrayList<>();
 
+    private final StartupPipeline startupPipeline = new StartupPipeline();
+
+    private final ExportCheckpoint exportCheckpoint = new ExportCheckpoint();
+
     @Override
     public void onCreate() {
         super.onCreate();
@@ -44,28 +58,122 @@ public class SysApplication extends MultiDexApplication {
         // Gradle automatically generates proper variable as below.
         UploadService.NAMESPACE = BuildConfig.APPLICATION_ID;
 
-        Bugly.init(getApplicationContext(), "db9f598223", false);
+        startupPipeline.run("bugly", new Runnable() {
+            @Override
+            public void run() {
+                Bugly.init(getApplicationContext(), "db9f598223", false);
+            }
+        });
     }
 
+    /**
+     * 启动流程：启动代理、读取注入规则、读取hosts互不依赖，并行执行；全部完成后配置代理，代理可用。
+     */
     public void initProxy() {
-        try {
-            FileUtils.forceMkdir(new File(Environment.getExternalStorageDirectory() + "/har"));
-//            FileUtils.cleanDirectory(new File(Environment.getExternalStorageDirectory() + "/har"));
-//            FileUtils.forceDelete(new File(Environment.getExternalStorageDirectory() + "/test.har"));
-        } catch (IOException e) {
-            // test.har文件不存在
-        }
+        final Future<?> harDirectory = startupPipeline.run("har directory", new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    FileUtils.forceMkdir(new File(Environment.getExternalStorageDirectory() + "/har"));
+                } catch (IOException e) {
+                    // test.har文件不存在
+                }
+            }
+        });
 
-        new Thread(new Runnable() {
+        // 证书保存在har目录下，目录创建后再启动代理
+        final Future<?> proxyStarted = startupPipeline.run("start proxy", new Runnable() {
             @Override
             public void run() {
                 startProxy();
+            }
+        }, harDirectory);
+
+        final Future<?> rulesLoaded = startupPipeline.run("load response rules", new Runnable() {
+            @Override
+            public void run() {
+                Object object = SharedPreferenceUtils.get(getApplicationContext(), "response_filter");
+                if (object != null && object instanceof List) {
+                    ruleList = (List<ResponseFilterRule>) object;
+                }
+            }
+        });
 
-                Intent intent = new Intent();
-                intent.setAction("proxyfinished");
-                sendBroadcast(intent);
+        final List<String[]> hosts = new ArrayList<>();
+        final Future<?> hostsLoaded = startupPipeline.run("load hosts", new Runnable() {
+            @Override
+            public void run() {
+                SharedPreferences shp = PreferenceManager.getDefaultSharedPreferences(getApplicationContext());
+                for (String temp : shp.getString("system_host", "").split("\\n")) {
+                    if (temp.split(" ").length == 2) {
+                        hosts.add(temp.split(" "));
+                    }
+                }
             }
-        }).start();
+        });
+
+        startupPipeline.run("configure proxy", new Runnable() {
+            @Override
+            public void run() {
+                if (proxy == null) {
+                    startupPipeline.markReadyFailed("代理启动失败：没有可用的端口");
+                    return;
+                }
+
+                try {
+                    configureProxy(hosts);
+                } catch (RuntimeException e) {
+                    startupPipeline.markReadyFailed("代理配置失败：" + e.getMessage());
+                    throw e;
+                }
+
+                isInitProxy = true;
+                startupPipeline.markReady();
+
+                // 证书在后台加载或生成，完成后才能安装证书和解密HTTPS
+                awaitMitmReady();
+            }
+        }, proxyStarted, rulesLoaded, hostsLoaded);
+    }
+
+    /**
+     * 启动流程，用于等待代理可用、证书就绪，以及查看各步骤耗时
+     */
+    public StartupPipeline getStartupPipeline() {
+        return startupPipeline;
+    }
+
+    /**
+     * 上一次导出的检查点，用于增量导出
+     */
+    public ExportCheckpoint getExportCheckpoint() {
+        return exportCheckpoint;
+    }
+
+    private void awaitMitmReady() {
+        if (!(proxy instanceof BrowserMobProxyServer)) {
+            return;
+        }
+
+        BrowserMobProxyServer server = (BrowserMobProxyServer) proxy;
+        try {
+            if (server.awaitMitmReady(MITM_READY_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                long mitmReadyAt = SystemClock.elapsedRealtime();
+                startupPipeline.record("load certificate (background)",
+                        mitmReadyAt - server.getMitmInitializationTimeMs(), mitmReadyAt, null);
+                startupPipeline.markMitmReady();
+            } else if (server.getMitmFailure() != null) {
+                Log.e("~~~", "load certificate failed", server.getMitmFailure());
+                startupPipeline.markMitmFailed("证书加载失败：" + server.getMitmFailure().getMessage());
+            } else {
+                // 证书仍在后台加载，加载完成后新的连接照常解密，但界面不再等待
+                Log.e("~~~", "certificate not ready after " + MITM_READY_TIMEOUT_SECONDS + "s");
+                startupPipeline.markMitmFailed("证书加载超时（" + MITM_READY_TIMEOUT_SECONDS + "秒）");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            startupPipeline.markMitmFailed("证书加载被中断");
+        }
     }
 
     @Override
@@ -82,28 +190,53 @@ public class SysApplication extends MultiDexApplication {
     }
 
     public void startProxy(){
-        try {
-            proxy = new BrowserMobProxyServer();
-            proxy.setTrustAllServers(true);
-            proxy.start(8888);
-        } catch (Exception e) {
-            // 防止8888已被占用
-            Random rand = new Random();
-            int randNum = rand.nextInt(1000) + 8000;
-            proxyPort = randNum;
-
-            proxy = new BrowserMobProxyServer();
-            proxy.setTrustAllServers(true);
-            proxy.start(randNum);
+        // 先探测可用端口再启动，避免启动失败后整个代理重新创建
+        int port = DEFAULT_PROXY_PORT;
+        Random rand = new Random();
+        for (int attempt = 0; attempt < MAX_PORT_ATTEMPTS; attempt++) {
+            if (attempt > 0) {
+                // 防止8888已被占用
+                port = rand.nextInt(1000) + 8000;
+            }
+
+            if (!isPortAvailable(port)) {
+                continue;
+            }
+
+            BrowserMobProxyServer server = new BrowserMobProxyServer();
+            server.setTrustAllServers(true);
+            try {
+                server.start(port);
+            } catch (Exception e) {
+                // 探测后端口被其他程序占用
+                Log.e("~~~", "start proxy on " + port + " failed", e);
+                continue;
+            }
+
+            proxyPort = port;
+            proxy = server;
+            Log.e("~~~", proxy.getPort() + "");
+            return;
         }
-        Log.e("~~~", proxy.getPort() + "");
 
+        Log.e("~~~", "no available port for proxy");
+    }
 
-        Object object = SharedPreferenceUtils.get(this.getApplicationContext(), "response_filter");
-        if (object != null && object instanceof List) {
-            ruleList = (List<ResponseFilterRule>) object;
+    private static boolean isPortAvailable(int port) {
+        ServerSocket socket = null;
+        try {
+            socket = new ServerSocket();
+            socket.setReuseAddress(true);
+            socket.bind(new InetSocketAddress(port));
+            return true;
+        } catch (IOException e) {
+            return false;
+        } finally {
+            IOUtils.closeQuietly(socket);
         }
+    }
 
+    private void configureProxy(List<String[]> hosts) {
         SharedPreferences shp = PreferenceManager.getDefaultSharedPreferences(getApplicationContext());
 
         if(shp.getBoolean("enable_filter", false)) {
@@ -112,13 +245,11 @@ public class SysApplication extends MultiDexApplication {
         }
 
         // 设置hosts
-        if(shp.getString("system_host", "").length()>0){
+        if (!hosts.isEmpty()) {
             AdvancedHostResolver advancedHostResolver = proxy.getHostNameResolver();
-            for (String temp : shp.getString("system_host", "").split("\\n")){
-                if(temp.split(" ").length==2) {
-                    advancedHostResolver.remapHost(temp.split(" ")[1],temp.split(" ")[0]);
-                    Log.e("~~~~remapHost ",temp.split(" ")[1] +" " + temp.split(" ")[0]);
-                }
+            for (String[] host : hosts) {
+                advancedHostResolver.remapHost(host[1], host[0]);
+                Log.e("~~~~remapHost ", host[1] + " " + host[0]);
             }
             proxy.setHostNameResolver(advancedHostResolver);
         }
@@ -127,12 +258,13 @@ public class SysApplication extends MultiDexApplication {
                 CaptureType.REQUEST_CONTENT, CaptureType.RESPONSE_HEADERS, CaptureType.REQUEST_COOKIES,
                 CaptureType.RESPONSE_CONTENT);
 
+        if (proxy instanceof BrowserMobProxyServer) {
+            ((BrowserMobProxyServer) proxy).addHarCaptureListener(exportCheckpoint);
+        }
+
         String time = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss", Locale.CHINA)
                 .format(new Date(System.currentTimeMillis()));
         proxy.newHar(time);
-
-
-        isInitProxy = true;
     }
 
     public void stopProxy(){
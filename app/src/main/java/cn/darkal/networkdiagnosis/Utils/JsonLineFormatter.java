@@ -0,0 +1,264 @@
+package cn.darkal.networkdiagnosis.Utils;
+
+import java.util.Arrays;
+
+/**
+ * 流式格式化JSON：按词法单元逐个读取，边读边生成缩进后的行，不构建对象树，也不生成完整的格式化字符串。
+ * <p/>
+ * 每一行只记录缩进层级和键、值在原文中的偏移量，显示时再由 {@link #getLine(int)} 拼出文本，
+ * 所以几MB的响应也只占用原文加上每行几个int的内存。
+ * <p/>
+ * {@link #format(Listener)} 在后台线程执行，每生成一批行回调一次 {@link Listener#onLines(int)}；
+ * 回调后已发布的行不会再改变，界面线程可以读取。内容不是JSON时按原文逐行显示；
+ * 解析到一半才发现不是JSON时，原文的行由 {@link Listener#onReset(JsonLineFormatter)} 给出的新格式化器生成，已发布的行保持不变。
+ */
+public class JsonLineFormatter {
+    /**
+     * 每行最多显示的字符数，超长的字符串值（如base64）截断显示，避免单个TextView卡顿
+     */
+    public static final int MAX_LINE_LENGTH = 4000;
+
+    private static final int FIRST_BATCH_LINES = 200;
+    private static final int BATCH_LINES = 2000;
+    private static final String INDENT = "  ";
+
+    public interface Listener {
+        /**
+         * 前count行已生成，可以显示
+         */
+        void onLines(int count);
+
+        /**
+         * 内容不是合法的JSON，之前发布的行作废。之后按原文逐行发布，{@link #onLines(int)} 的行数和行内容都来自textFormatter
+         */
+        void onReset(JsonLineFormatter textFormatter);
+    }
+
+    private final JsonScanner scanner;
+    private volatile boolean cancelled;
+    // 解析失败后按原文显示的格式化器，取消时一起取消
+    private volatile JsonLineFormatter textFormatter;
+
+    // 每行的信息，-1表示没有键或值。数组扩容时整体替换，volatile保证界面线程拿到的新数组包含已复制的内容
+    private volatile int[] depths = new int[1024];
+    private volatile int[] keyStarts = new int[1024];
+    private volatile int[] keyEnds = new int[1024];
+    private volatile int[] valueStarts = new int[1024];
+    private volatile int[] valueEnds = new int[1024];
+    private volatile boolean[] commas = new boolean[1024];
+    private int lineCount;
+    private boolean json;
+
+    public JsonLineFormatter(String content) {
+        this(new JsonScanner(content == null ? "" : content));
+    }
+
+    private JsonLineFormatter(JsonScanner scanner) {
+        this.scanner = scanner;
+    }
+
+    public void cancel() {
+        cancelled = true;
+        JsonLineFormatter fallback = textFormatter;
+        if (fallback != null) {
+            fallback.cancel();
+        }
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * @return 内容是否按JSON格式化
+     */
+    public boolean isJson() {
+        return json;
+    }
+
+    public JsonScanner getScanner() {
+        return scanner;
+    }
+
+    /**
+     * 在当前线程执行格式化，直到完成或被取消
+     */
+    public void format(Listener listener) {
+        if (scanner.looksLikeJson()) {
+            json = true;
+            try {
+                formatJson(listener);
+                return;
+            } catch (IllegalArgumentException e) {
+                // 不是合法的JSON，按原文显示。界面线程可能还在读取已发布的行，不能覆盖，由新的格式化器生成
+                json = false;
+                JsonLineFormatter fallback = new JsonLineFormatter(scanner);
+                textFormatter = fallback;
+                if (cancelled) {
+                    return;
+                }
+                listener.onReset(fallback);
+                fallback.formatText(listener);
+                return;
+            }
+        }
+
+        formatText(listener);
+    }
+
+    /**
+     * 生成第index行的显示文本，只能读取已发布的行
+     */
+    public String getLine(int index) {
+        String content = scanner.getContent();
+        StringBuilder line = new StringBuilder();
+
+        int depth = depths[index];
+        for (int i = 0; i < depth && line.length() < MAX_LINE_LENGTH; i++) {
+            line.append(INDENT);
+        }
+
+        if (keyStarts[index] >= 0) {
+            appendCapped(line, content, keyStarts[index], keyEnds[index]);
+            line.append(": ");
+        }
+        if (valueStarts[index] >= 0) {
+            appendCapped(line, content, valueStarts[index], valueEnds[index]);
+        }
+        if (commas[index]) {
+            line.append(',');
+        }
+
+        return line.toString();
+    }
+
+    private static void appendCapped(StringBuilder line, String content, int start, int end) {
+        int available = MAX_LINE_LENGTH - line.length();
+        if (end - start <= available) {
+            line.append(content, start, end);
+        } else {
+            line.append(content, start, start + Math.max(0, available));
+            line.append("…(").append(end - start).append("字符)");
+        }
+    }
+
+    private void formatJson(Listener listener) {
+        int depth = 0;
+        int keyStart = -1;
+        int keyEnd = -1;
+        int published = 0;
+        int nextBatch = FIRST_BATCH_LINES;
+
+        int offset = scanner.skipWhitespace(0);
+        while (offset < scanner.length() && !cancelled) {
+            char c = scanner.charAt(offset);
+
+            if ((c == '{' || c == '[') && offset + 1 < scanner.length() && scanner.charAt(offset + 1) == (c == '{' ? '}' : ']')) {
+                // 空对象、空数组显示在一行
+                addLine(depth, keyStart, keyEnd, offset, offset + 2);
+                keyStart = -1;
+                offset = afterValue(offset + 2);
+            } else if (c == '{' || c == '[') {
+                addLine(depth, keyStart, keyEnd, offset, offset + 1);
+                keyStart = -1;
+                depth++;
+                offset = scanner.skipWhitespace(offset + 1);
+            } else if (c == '}' || c == ']') {
+                depth--;
+                if (depth < 0 || keyStart >= 0) {
+                    throw new IllegalArgumentException("Unexpected '" + c + "' at " + offset);
+                }
+                addLine(depth, -1, -1, offset, offset + 1);
+                offset = afterValue(offset + 1);
+            } else {
+                int end = scanner.primitiveEnd(offset);
+                int next = scanner.skipWhitespace(end);
+                if (next < scanner.length() && scanner.charAt(next) == ':') {
+                    if (keyStart >= 0) {
+                        throw new IllegalArgumentException("Unexpected key at " + offset);
+                    }
+                    keyStart = offset;
+                    keyEnd = end;
+                    offset = scanner.skipWhitespace(next + 1);
+                } else {
+                    addLine(depth, keyStart, keyEnd, offset, end);
+                    keyStart = -1;
+                    offset = afterValue(end);
+                }
+            }
+
+            if (lineCount - published >= nextBatch) {
+                published = lineCount;
+                nextBatch = BATCH_LINES;
+                listener.onLines(published);
+            }
+        }
+
+        if (!cancelled) {
+            if (depth != 0 || keyStart >= 0) {
+                throw new IllegalArgumentException("Unexpected end of JSON");
+            }
+            listener.onLines(lineCount);
+        }
+    }
+
+    /**
+     * 处理值后面的逗号：有逗号时标记在上一行，返回下一个词法单元的位置
+     */
+    private int afterValue(int offset) {
+        int next = scanner.skipWhitespace(offset);
+        if (next < scanner.length() && scanner.charAt(next) == ',') {
+            commas[lineCount - 1] = true;
+            return scanner.skipWhitespace(next + 1);
+        }
+        return next;
+    }
+
+    private void formatText(Listener listener) {
+        String content = scanner.getContent();
+        int published = 0;
+        int nextBatch = FIRST_BATCH_LINES;
+
+        int start = 0;
+        while (start <= content.length() && !cancelled) {
+            int end = content.indexOf('\n', start);
+            if (end < 0) {
+                end = content.length();
+            }
+
+            int lineEnd = end > start && content.charAt(end - 1) == '\r' ? end - 1 : end;
+            addLine(0, -1, -1, start, lineEnd);
+            start = end + 1;
+
+            if (lineCount - published >= nextBatch) {
+                published = lineCount;
+                nextBatch = BATCH_LINES;
+                listener.onLines(published);
+            }
+        }
+
+        if (!cancelled) {
+            listener.onLines(lineCount);
+        }
+    }
+
+    private void addLine(int depth, int keyStart, int keyEnd, int valueStart, int valueEnd) {
+        if (lineCount == depths.length) {
+            int capacity = depths.length * 2;
+            depths = Arrays.copyOf(depths, capacity);
+            keyStarts = Arrays.copyOf(keyStarts, capacity);
+            keyEnds = Arrays.copyOf(keyEnds, capacity);
+            valueStarts = Arrays.copyOf(valueStarts, capacity);
+            valueEnds = Arrays.copyOf(valueEnds, capacity);
+            commas = Arrays.copyOf(commas, capacity);
+        }
+
+        depths[lineCount] = depth;
+        keyStarts[lineCount] = keyStart;
+        keyEnds[lineCount] = keyEnd;
+        valueStarts[lineCount] = valueStart;
+        valueEnds[lineCount] = valueEnd;
+        commas[lineCount] = false;
+        lineCount++;
+    }
+}
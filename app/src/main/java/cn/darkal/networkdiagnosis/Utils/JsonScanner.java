@@ -0,0 +1,119 @@
+package cn.darkal.networkdiagnosis.Utils;
+
+/**
+ * 基于字符偏移量的JSON词法扫描，不创建对象树：
+ * 只返回每个词法单元（字符串、数字、字面量、括号）在原文中的起止位置，
+ * 供逐行格式化和树形视图按需展开使用。
+ * <p/>
+ * 遇到不合法的JSON时抛出 {@link IllegalArgumentException}。
+ */
+public class JsonScanner {
+    private final String content;
+
+    public JsonScanner(String content) {
+        this.content = content;
+    }
+
+    public String getContent() {
+        return content;
+    }
+
+    public int length() {
+        return content.length();
+    }
+
+    public char charAt(int offset) {
+        return content.charAt(offset);
+    }
+
+    /**
+     * @return 从offset开始第一个非空白字符的位置，到结尾时返回length()
+     */
+    public int skipWhitespace(int offset) {
+        while (offset < content.length()) {
+            char c = content.charAt(offset);
+            if (c != ' ' && c != '\n' && c != '\r' && c != '\t') {
+                break;
+            }
+            offset++;
+        }
+        return offset;
+    }
+
+    /**
+     * 判断内容是否像JSON：第一个非空白字符是 { 或 [
+     */
+    public boolean looksLikeJson() {
+        int offset = skipWhitespace(0);
+        return offset < content.length() && (content.charAt(offset) == '{' || content.charAt(offset) == '[');
+    }
+
+    /**
+     * @return offset处的字符串、数字或字面量的结束位置（不包含）
+     */
+    public int primitiveEnd(int offset) {
+        if (offset >= content.length()) {
+            throw new IllegalArgumentException("Unexpected end of JSON at " + offset);
+        }
+
+        char c = content.charAt(offset);
+        if (c == '"') {
+            int i = offset + 1;
+            while (i < content.length()) {
+                char ch = content.charAt(i);
+                if (ch == '\\') {
+                    i += 2;
+                } else if (ch == '"') {
+                    return i + 1;
+                } else {
+                    i++;
+                }
+            }
+            throw new IllegalArgumentException("Unterminated string at " + offset);
+        }
+
+        if (c == '{' || c == '}' || c == '[' || c == ']' || c == ':' || c == ',') {
+            throw new IllegalArgumentException("Unexpected '" + c + "' at " + offset);
+        }
+
+        int i = offset;
+        while (i < content.length()) {
+            char ch = content.charAt(i);
+            if (ch == ',' || ch == ':' || ch == '}' || ch == ']' || ch == ' ' || ch == '\n' || ch == '\r' || ch == '\t') {
+                break;
+            }
+            i++;
+        }
+        return i;
+    }
+
+    /**
+     * @return offset处的值（对象、数组或基本类型）的结束位置（不包含）。对象和数组只扫描括号和字符串，不解析内容。
+     */
+    public int valueEnd(int offset) {
+        char c = offset < content.length() ? content.charAt(offset) : 0;
+        if (c != '{' && c != '[') {
+            return primitiveEnd(offset);
+        }
+
+        int depth = 0;
+        int i = offset;
+        while (i < content.length()) {
+            char ch = content.charAt(i);
+            if (ch == '"') {
+                i = primitiveEnd(i);
+                continue;
+            }
+            if (ch == '{' || ch == '[') {
+                depth++;
+            } else if (ch == '}' || ch == ']') {
+                depth--;
+                if (depth == 0) {
+                    return i + 1;
+                }
+            }
+            i++;
+        }
+        throw new IllegalArgumentException("Unterminated " + (c == '{' ? "object" : "array") + " at " + offset);
+    }
+}
@@ -0,0 +1,138 @@
+package cn.darkal.networkdiagnosis.Utils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * 树形视图中的一个JSON节点，只记录键和值在原文中的偏移量。
+ * 对象和数组的子节点在展开时才从偏移量处扫描生成，扫描时跳过嵌套的对象和数组，不解析它们的内容。
+ */
+public class JsonTreeNode {
+    private final JsonScanner scanner;
+    private final int depth;
+    private final int keyStart;
+    private final int keyEnd;
+    private final int valueStart;
+    private final int valueEnd;
+
+    private boolean expanded;
+    private int childCount = -1;
+
+    private JsonTreeNode(JsonScanner scanner, int depth, int keyStart, int keyEnd, int valueStart, int valueEnd) {
+        this.scanner = scanner;
+        this.depth = depth;
+        this.keyStart = keyStart;
+        this.keyEnd = keyEnd;
+        this.valueStart = valueStart;
+        this.valueEnd = valueEnd;
+    }
+
+    /**
+     * 创建根节点，需要扫描整个文档以确定根节点的结束位置，应在后台线程调用
+     *
+     * @throws IllegalArgumentException 内容不是合法的JSON
+     */
+    public static JsonTreeNode root(JsonScanner scanner) {
+        int start = scanner.skipWhitespace(0);
+        return new JsonTreeNode(scanner, 0, -1, -1, start, scanner.valueEnd(start));
+    }
+
+    /**
+     * 扫描对象或数组的直接子节点，应在后台线程调用
+     *
+     * @throws IllegalArgumentException 内容不是合法的JSON
+     */
+    public List<JsonTreeNode> scanChildren() {
+        List<JsonTreeNode> children = new ArrayList<>();
+        if (!isContainer()) {
+            return children;
+        }
+
+        boolean object = scanner.charAt(valueStart) == '{';
+        int offset = scanner.skipWhitespace(valueStart + 1);
+        while (offset < valueEnd - 1) {
+            int childKeyStart = -1;
+            int childKeyEnd = -1;
+            if (object) {
+                childKeyStart = offset;
+                childKeyEnd = scanner.primitiveEnd(offset);
+                offset = scanner.skipWhitespace(childKeyEnd);
+                if (scanner.charAt(offset) != ':') {
+                    throw new IllegalArgumentException("Expected ':' at " + offset);
+                }
+                offset = scanner.skipWhitespace(offset + 1);
+            }
+
+            int childValueEnd = scanner.valueEnd(offset);
+            children.add(new JsonTreeNode(scanner, depth + 1, childKeyStart, childKeyEnd, offset, childValueEnd));
+
+            offset = scanner.skipWhitespace(childValueEnd);
+            if (offset < valueEnd - 1 && scanner.charAt(offset) == ',') {
+                offset = scanner.skipWhitespace(offset + 1);
+            }
+        }
+
+        return children;
+    }
+
+    public boolean isContainer() {
+        char c = scanner.charAt(valueStart);
+        return c == '{' || c == '[';
+    }
+
+    public int getDepth() {
+        return depth;
+    }
+
+    public boolean isExpanded() {
+        return expanded;
+    }
+
+    public void setExpanded(boolean expanded, int childCount) {
+        this.expanded = expanded;
+        this.childCount = childCount;
+    }
+
+    /**
+     * 节点显示的文本：键、值或折叠后的摘要，例如 "items": [ 20 ]
+     */
+    public String getText() {
+        String content = scanner.getContent();
+        StringBuilder text = new StringBuilder();
+
+        if (keyStart >= 0) {
+            text.append(content, keyStart, keyEnd).append(": ");
+        }
+
+        if (!isContainer()) {
+            int end = Math.min(valueEnd, valueStart + JsonLineFormatter.MAX_LINE_LENGTH);
+            text.append(content, valueStart, end);
+            if (end < valueEnd) {
+                text.append("…(").append(valueEnd - valueStart).append("字符)");
+            }
+        } else {
+            boolean object = scanner.charAt(valueStart) == '{';
+            text.append(object ? '{' : '[');
+            if (childCount >= 0) {
+                text.append(' ').append(childCount).append(' ');
+            } else {
+                text.append('…');
+            }
+            text.append(object ? '}' : ']');
+            text.append("  ").append(formatSize(valueEnd - valueStart));
+        }
+
+        return text.toString();
+    }
+
+    private static String formatSize(int chars) {
+        if (chars < 1024) {
+            return chars + "B";
+        } else if (chars < 1024 * 1024) {
+            return (chars / 1024) + "KB";
+        } else {
+            return String.format(Locale.US, "%.1fMB", chars / 1024.0 / 1024.0);
+        }
+    }
+}
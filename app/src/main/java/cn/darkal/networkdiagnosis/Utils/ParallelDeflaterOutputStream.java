@@ -0,0 +1,316 @@
+package cn.darkal.networkdiagnosis.Utils;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * 多线程压缩，输出原始的deflate数据（不带zlib/gzip头），由 {@link ParallelGzipOutputStream}、{@link ParallelZipOutputStream} 封装成gzip或zip。
+ * <p/>
+ * 和pigz的做法相同：输入按固定大小分块，各块在线程池中独立压缩，每块以上一块的最后32KB作为字典，压缩率和单线程接近；
+ * 除最后一块外都以SYNC_FLUSH结束，输出按字节对齐，按顺序拼接后就是一个合法的deflate流。
+ * 同时在压缩中的块数有上限，写入快于压缩时写入线程会等待，内存占用固定。
+ * <p/>
+ * 系统不支持 {@link Deflater#SYNC_FLUSH}（Android 4.4以下）或只用一个线程时，退化为普通的单线程流式压缩。
+ * <p/>
+ * 不会关闭底层的输出流，{@link #finish()} 后可以继续向底层流写入其他数据。
+ */
+public class ParallelDeflaterOutputStream extends OutputStream {
+    public static final int DEFAULT_BLOCK_SIZE = 128 * 1024;
+
+    private static final int DICTIONARY_SIZE = 32 * 1024;
+
+    private static final boolean SYNC_FLUSH_SUPPORTED = isSyncFlushSupported();
+
+    private static volatile ExecutorService defaultExecutor;
+
+    private final OutputStream out;
+    private final int level;
+    private final ExecutorService executor;
+    private final int maxPendingBlocks;
+    private final int blockSize;
+
+    private final CRC32 crc = new CRC32();
+    private long bytesRead;
+    private long bytesWritten;
+
+    private byte[] block;
+    private int blockLength;
+
+    // 多线程模式：上一块用作下一块的字典，压缩中的块按提交顺序写出
+    private byte[] previousBlock;
+    private int previousBlockLength;
+    private final ArrayDeque<Future<byte[]>> pendingBlocks = new ArrayDeque<>();
+
+    // 单线程模式
+    private Deflater deflater;
+    private byte[] deflateBuffer;
+
+    private boolean finished;
+
+    /**
+     * 使用默认线程池，线程数为CPU核数
+     *
+     * @param level {@link Deflater} 的压缩级别
+     */
+    public ParallelDeflaterOutputStream(OutputStream out, int level) {
+        this(out, level, getDefaultExecutor(), Runtime.getRuntime().availableProcessors(), DEFAULT_BLOCK_SIZE);
+    }
+
+    /**
+     * @param threads   同时压缩的块数，通常等于线程池的线程数；为1时单线程压缩
+     * @param blockSize 每块的大小，不能小于32KB
+     */
+    public ParallelDeflaterOutputStream(OutputStream out, int level, ExecutorService executor, int threads, int blockSize) {
+        if (blockSize < DICTIONARY_SIZE) {
+            throw new IllegalArgumentException("Block size must be at least " + DICTIONARY_SIZE + " bytes");
+        }
+
+        this.out = out;
+        this.level = level;
+        this.executor = executor;
+        // 每个线程多排一块，线程压完一块后马上有下一块可做
+        this.maxPendingBlocks = threads * 2;
+        this.blockSize = blockSize;
+        this.block = new byte[blockSize];
+
+        if (threads <= 1 || !SYNC_FLUSH_SUPPORTED) {
+            deflater = new Deflater(level, true);
+            deflateBuffer = new byte[blockSize];
+        }
+    }
+
+    /**
+     * 共享的压缩线程池，线程数为CPU核数
+     */
+    public static ExecutorService getDefaultExecutor() {
+        if (defaultExecutor == null) {
+            synchronized (ParallelDeflaterOutputStream.class) {
+                if (defaultExecutor == null) {
+                    defaultExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+                        private final AtomicInteger count = new AtomicInteger();
+
+                        @Override
+                        public Thread newThread(Runnable r) {
+                            Thread thread = new Thread(r, "deflate-" + count.getAndIncrement());
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+                }
+            }
+        }
+        return defaultExecutor;
+    }
+
+    /**
+     * @return 是否可以多线程压缩
+     */
+    public static boolean isParallelSupported() {
+        return SYNC_FLUSH_SUPPORTED;
+    }
+
+    private static boolean isSyncFlushSupported() {
+        try {
+            Deflater.class.getMethod("deflate", byte[].class, int.class, int.class, int.class);
+            return true;
+        } catch (NoSuchMethodException e) {
+            return false;
+        }
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (finished) {
+            throw new IOException("Stream already finished");
+        }
+
+        crc.update(b, off, len);
+        bytesRead += len;
+
+        while (len > 0) {
+            int n = Math.min(len, blockSize - blockLength);
+            System.arraycopy(b, off, block, blockLength, n);
+            blockLength += n;
+            off += n;
+            len -= n;
+
+            if (blockLength == blockSize) {
+                flushBlock(false);
+            }
+        }
+    }
+
+    /**
+     * 写完剩余的数据并结束deflate流，不关闭底层的输出流
+     */
+    public void finish() throws IOException {
+        if (finished) {
+            return;
+        }
+        finished = true;
+
+        flushBlock(true);
+        while (!pendingBlocks.isEmpty()) {
+            writeBlock(pendingBlocks.poll());
+        }
+        if (deflater != null) {
+            deflater.end();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            finish();
+        } finally {
+            // 出错时放弃还在压缩的块
+            for (Future<byte[]> pending : pendingBlocks) {
+                pending.cancel(true);
+            }
+            pendingBlocks.clear();
+            if (deflater != null) {
+                deflater.end();
+            }
+        }
+    }
+
+    /**
+     * @return 未压缩数据的CRC32，用于gzip和zip的校验
+     */
+    public long getCrc() {
+        return crc.getValue();
+    }
+
+    public long getBytesRead() {
+        return bytesRead;
+    }
+
+    /**
+     * @return 已写入底层流的压缩后字节数
+     */
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    private void flushBlock(boolean last) throws IOException {
+        if (deflater != null) {
+            deflateSequential(last);
+            return;
+        }
+
+        final byte[] data = block;
+        final int length = blockLength;
+        final byte[] dictionary = previousBlock;
+        final int dictionaryLength = previousBlockLength;
+        final boolean finish = last;
+
+        pendingBlocks.add(executor.submit(new Callable<byte[]>() {
+            @Override
+            public byte[] call() throws Exception {
+                return deflateBlock(level, data, length, dictionary, dictionaryLength, finish);
+            }
+        }));
+
+        // 提交后的块不再修改，下一块使用新的缓冲区
+        previousBlock = data;
+        previousBlockLength = length;
+        block = new byte[blockSize];
+        blockLength = 0;
+
+        while (pendingBlocks.size() >= maxPendingBlocks) {
+            writeBlock(pendingBlocks.poll());
+        }
+    }
+
+    private void writeBlock(Future<byte[]> pending) throws IOException {
+        byte[] compressed;
+        try {
+            compressed = pending.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while compressing");
+        } catch (ExecutionException e) {
+            throw new IOException("Compression failed", e.getCause());
+        }
+
+        out.write(compressed);
+        bytesWritten += compressed.length;
+    }
+
+    private static byte[] deflateBlock(int level, byte[] data, int length, byte[] dictionary, int dictionaryLength, boolean last) {
+        Deflater deflater = new Deflater(level, true);
+        try {
+            if (dictionary != null) {
+                int dictionaryStart = Math.max(0, dictionaryLength - DICTIONARY_SIZE);
+                deflater.setDictionary(dictionary, dictionaryStart, dictionaryLength - dictionaryStart);
+            }
+            deflater.setInput(data, 0, length);
+
+            byte[] output = new byte[length / 2 + 64];
+            int outputLength = 0;
+            if (last) {
+                deflater.finish();
+                while (!deflater.finished()) {
+                    if (outputLength == output.length) {
+                        output = Arrays.copyOf(output, output.length * 2);
+                    }
+                    outputLength += deflater.deflate(output, outputLength, output.length - outputLength);
+                }
+            } else {
+                // SYNC_FLUSH填满缓冲区时说明还有输出，扩容后继续，直到输出没有填满缓冲区
+                while (true) {
+                    int n = deflater.deflate(output, outputLength, output.length - outputLength, Deflater.SYNC_FLUSH);
+                    outputLength += n;
+                    if (outputLength < output.length) {
+                        break;
+                    }
+                    output = Arrays.copyOf(output, output.length * 2);
+                }
+            }
+
+            return Arrays.copyOf(output, outputLength);
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private void deflateSequential(boolean last) throws IOException {
+        deflater.setInput(block, 0, blockLength);
+        while (!deflater.needsInput()) {
+            writeDeflated();
+        }
+        blockLength = 0;
+
+        if (last) {
+            deflater.finish();
+            while (!deflater.finished()) {
+                writeDeflated();
+            }
+        }
+    }
+
+    private void writeDeflated() throws IOException {
+        int n = deflater.deflate(deflateBuffer, 0, deflateBuffer.length);
+        if (n > 0) {
+            out.write(deflateBuffer, 0, n);
+            bytesWritten += n;
+        }
+    }
+}
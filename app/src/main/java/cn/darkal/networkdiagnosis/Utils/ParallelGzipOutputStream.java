@@ -0,0 +1,78 @@
+package cn.darkal.networkdiagnosis.Utils;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * 多线程压缩的gzip输出流，输出和 {@link java.util.zip.GZIPOutputStream} 兼容，压缩见 {@link ParallelDeflaterOutputStream}。
+ */
+public class ParallelGzipOutputStream extends OutputStream {
+    private static final byte[] HEADER = new byte[]{
+            0x1f, (byte) 0x8b, // 魔数
+            8,                 // deflate
+            0,                 // 无文件名等附加字段
+            0, 0, 0, 0,        // 修改时间
+            0,                 // 额外标志
+            (byte) 0xff        // 未知操作系统
+    };
+
+    private final OutputStream out;
+    private final ParallelDeflaterOutputStream deflaterOutputStream;
+    private boolean closed;
+
+    public ParallelGzipOutputStream(OutputStream out, int level) throws IOException {
+        this(out, new ParallelDeflaterOutputStream(out, level));
+    }
+
+    public ParallelGzipOutputStream(OutputStream out, int level, ExecutorService executor, int threads) throws IOException {
+        this(out, new ParallelDeflaterOutputStream(out, level, executor, threads, ParallelDeflaterOutputStream.DEFAULT_BLOCK_SIZE));
+    }
+
+    private ParallelGzipOutputStream(OutputStream out, ParallelDeflaterOutputStream deflaterOutputStream) throws IOException {
+        this.out = out;
+        this.deflaterOutputStream = deflaterOutputStream;
+        out.write(HEADER);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        deflaterOutputStream.write(b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        deflaterOutputStream.write(b, off, len);
+    }
+
+    /**
+     * 写完压缩数据和gzip结尾，不关闭底层的输出流
+     */
+    public void finish() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+
+        deflaterOutputStream.finish();
+        writeIntLE(out, deflaterOutputStream.getCrc());
+        writeIntLE(out, deflaterOutputStream.getBytesRead());
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            finish();
+        } finally {
+            deflaterOutputStream.close();
+            out.close();
+        }
+    }
+
+    private static void writeIntLE(OutputStream out, long value) throws IOException {
+        out.write((int) (value & 0xff));
+        out.write((int) ((value >> 8) & 0xff));
+        out.write((int) ((value >> 16) & 0xff));
+        out.write((int) ((value >> 24) & 0xff));
+    }
+}
@@ -0,0 +1,237 @@
+package cn.darkal.networkdiagnosis.Utils;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * 多线程压缩的zip输出流，压缩见 {@link ParallelDeflaterOutputStream}。
+ * <p/>
+ * 用法和 {@link java.util.zip.ZipOutputStream} 相同：{@link #putNextEntry(String)}、写入内容、{@link #closeEntry()}，最后 {@link #close()}。
+ * 压缩后的大小和CRC在写完后才知道，所以和ZipOutputStream一样写在每个文件数据后面的data descriptor中，不需要回写，输出可以是网络流。
+ * 不支持ZIP64，单个文件和整个压缩包都不能超过4GB。
+ */
+public class ParallelZipOutputStream extends OutputStream {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+    private static final int DATA_DESCRIPTOR_SIGNATURE = 0x08074b50;
+    private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+    private static final int END_SIGNATURE = 0x06054b50;
+
+    private static final int VERSION = 20;
+    // bit 3：大小和CRC在data descriptor中；bit 11：文件名为UTF-8
+    private static final int FLAGS = 0x0808;
+    private static final int METHOD_DEFLATED = 8;
+    private static final long MAX_SIZE = 0xffffffffL;
+
+    private static class Entry {
+        byte[] name;
+        int dosTime;
+        long offset;
+        long crc;
+        long compressedSize;
+        long size;
+    }
+
+    private final CountingOutputStream out;
+    private final int level;
+    private final ExecutorService executor;
+    private final int threads;
+
+    private final List<Entry> entries = new ArrayList<>();
+    private Entry currentEntry;
+    private ParallelDeflaterOutputStream currentStream;
+    private boolean closed;
+
+    /**
+     * 使用默认线程池，线程数为CPU核数
+     *
+     * @param level {@link java.util.zip.Deflater} 的压缩级别
+     */
+    public ParallelZipOutputStream(OutputStream out, int level) {
+        this(out, level, ParallelDeflaterOutputStream.getDefaultExecutor(), Runtime.getRuntime().availableProcessors());
+    }
+
+    public ParallelZipOutputStream(OutputStream out, int level, ExecutorService executor, int threads) {
+        this.out = new CountingOutputStream(out);
+        this.level = level;
+        this.executor = executor;
+        this.threads = threads;
+    }
+
+    public void putNextEntry(String name) throws IOException {
+        closeEntry();
+
+        Entry entry = new Entry();
+        entry.name = name.getBytes(UTF_8);
+        entry.dosTime = toDosTime(System.currentTimeMillis());
+        entry.offset = out.count;
+
+        writeInt(LOCAL_HEADER_SIGNATURE);
+        writeShort(VERSION);
+        writeShort(FLAGS);
+        writeShort(METHOD_DEFLATED);
+        writeInt(entry.dosTime);
+        writeInt(0); // CRC，在data descriptor中
+        writeInt(0); // 压缩后大小
+        writeInt(0); // 原始大小
+        writeShort(entry.name.length);
+        writeShort(0); // extra field
+        out.write(entry.name);
+
+        currentEntry = entry;
+        currentStream = new ParallelDeflaterOutputStream(out, level, executor, threads, ParallelDeflaterOutputStream.DEFAULT_BLOCK_SIZE);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (currentStream == null) {
+            throw new IOException("No current zip entry");
+        }
+        currentStream.write(b, off, len);
+    }
+
+    public void closeEntry() throws IOException {
+        if (currentStream == null) {
+            return;
+        }
+
+        currentStream.finish();
+
+        Entry entry = currentEntry;
+        entry.crc = currentStream.getCrc();
+        entry.compressedSize = currentStream.getBytesWritten();
+        entry.size = currentStream.getBytesRead();
+        if (entry.size > MAX_SIZE || entry.compressedSize > MAX_SIZE || out.count > MAX_SIZE) {
+            throw new IOException("Zip entry too large, ZIP64 is not supported");
+        }
+
+        writeInt(DATA_DESCRIPTOR_SIGNATURE);
+        writeInt(entry.crc);
+        writeInt(entry.compressedSize);
+        writeInt(entry.size);
+
+        entries.add(entry);
+        currentEntry = null;
+        currentStream = null;
+    }
+
+    /**
+     * 写完所有文件和目录，不关闭底层的输出流
+     */
+    public void finish() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+
+        closeEntry();
+
+        long centralDirectoryOffset = out.count;
+        for (Entry entry : entries) {
+            writeInt(CENTRAL_HEADER_SIGNATURE);
+            writeShort(VERSION); // version made by
+            writeShort(VERSION); // version needed
+            writeShort(FLAGS);
+            writeShort(METHOD_DEFLATED);
+            writeInt(entry.dosTime);
+            writeInt(entry.crc);
+            writeInt(entry.compressedSize);
+            writeInt(entry.size);
+            writeShort(entry.name.length);
+            writeShort(0); // extra field
+            writeShort(0); // comment
+            writeShort(0); // disk number
+            writeShort(0); // internal attributes
+            writeInt(0);   // external attributes
+            writeInt(entry.offset);
+            out.write(entry.name);
+        }
+        long centralDirectorySize = out.count - centralDirectoryOffset;
+        if (out.count > MAX_SIZE || entries.size() > 0xffff) {
+            throw new IOException("Zip file too large, ZIP64 is not supported");
+        }
+
+        writeInt(END_SIGNATURE);
+        writeShort(0); // disk number
+        writeShort(0); // disk with central directory
+        writeShort(entries.size());
+        writeShort(entries.size());
+        writeInt(centralDirectorySize);
+        writeInt(centralDirectoryOffset);
+        writeShort(0); // comment
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            finish();
+        } finally {
+            if (currentStream != null) {
+                currentStream.close();
+            }
+            out.close();
+        }
+    }
+
+    private void writeShort(int value) throws IOException {
+        out.write(value & 0xff);
+        out.write((value >> 8) & 0xff);
+    }
+
+    private void writeInt(long value) throws IOException {
+        out.write((int) (value & 0xff));
+        out.write((int) ((value >> 8) & 0xff));
+        out.write((int) ((value >> 16) & 0xff));
+        out.write((int) ((value >> 24) & 0xff));
+    }
+
+    private static int toDosTime(long time) {
+        Calendar calendar = Calendar.getInstance();
+        calendar.setTimeInMillis(time);
+        int year = calendar.get(Calendar.YEAR);
+        if (year < 1980) {
+            return (1 << 21) | (1 << 16);
+        }
+        return (year - 1980) << 25
+                | (calendar.get(Calendar.MONTH) + 1) << 21
+                | calendar.get(Calendar.DAY_OF_MONTH) << 16
+                | calendar.get(Calendar.HOUR_OF_DAY) << 11
+                | calendar.get(Calendar.MINUTE) << 5
+                | calendar.get(Calendar.SECOND) >> 1;
+    }
+
+    /**
+     * 记录已写出的字节数，用于计算各文件和目录区的偏移量
+     */
+    private static class CountingOutputStream extends FilterOutputStream {
+        long count;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+}
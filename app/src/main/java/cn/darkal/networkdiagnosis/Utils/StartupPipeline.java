@@ -0,0 +1,321 @@
+package cn.darkal.networkdiagnosis.Utils;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 应用启动流程：各步骤在后台线程池中执行，互不依赖的步骤并行执行，
+ * 并记录每一步的耗时，可在设置页查看。
+ * <p/>
+ * 启动完成（代理可用）和证书就绪分别用一个 {@link CountDownLatch} 表示，
+ * 界面通过 {@link #runWhenReady(Runnable)}、{@link #runWhenMitmReady(Runnable)} 在主线程收到通知，不再依赖广播。
+ * <p/>
+ * 启动失败（例如没有可用端口）或证书加载失败时同样结束等待，但只通知失败回调，界面据此提示用户，而不是一直等待。
+ */
+public class StartupPipeline {
+    private static final String TAG = "StartupPipeline";
+
+    private static final int THREADS = 3;
+
+    private final long startedAt = SystemClock.elapsedRealtime();
+
+    private final ExecutorService executor = Executors.newFixedThreadPool(THREADS, new ThreadFactory() {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "startup-" + count.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    private final CountDownLatch ready = new CountDownLatch(1);
+    private final CountDownLatch mitmReady = new CountDownLatch(1);
+
+    /**
+     * 启动、证书加载失败的原因，成功或还未结束时为null
+     */
+    private volatile String readyFailure;
+    private volatile String mitmFailure;
+
+    /**
+     * 等待启动完成、证书就绪后在主线程执行的任务
+     */
+    private final List<Callback> pendingReady = new ArrayList<>();
+    private final List<Callback> pendingMitmReady = new ArrayList<>();
+
+    private final List<Step> trace = new ArrayList<>();
+
+    /**
+     * 在后台执行一个启动步骤，并记录耗时。
+     *
+     * @param name  步骤名称，显示在耗时记录中
+     * @param after 需要先完成的步骤
+     */
+    public Future<?> run(final String name, final Runnable runnable, final Future<?>... after) {
+        return executor.submit(new Runnable() {
+            @Override
+            public void run() {
+                for (Future<?> dependency : after) {
+                    try {
+                        dependency.get();
+                    } catch (Exception e) {
+                        // 依赖的步骤失败时仍然继续，由本步骤自己处理缺失的结果
+                        Log.e(TAG, name + ": dependency failed", e);
+                    }
+                }
+
+                runStep(name, runnable);
+            }
+        });
+    }
+
+    /**
+     * 在当前线程执行一个启动步骤，并记录耗时。
+     */
+    public void runHere(String name, Runnable runnable) {
+        runStep(name, runnable);
+    }
+
+    private void runStep(String name, Runnable runnable) {
+        long start = SystemClock.elapsedRealtime();
+        Throwable error = null;
+        try {
+            runnable.run();
+        } catch (RuntimeException e) {
+            error = e;
+            Log.e(TAG, name + " failed", e);
+        }
+        record(name, start, SystemClock.elapsedRealtime(), error);
+    }
+
+    /**
+     * 记录一个在流程外完成的步骤，例如在后台完成的证书加载。
+     */
+    public void record(String name, long startElapsedRealtime, long endElapsedRealtime, Throwable error) {
+        Step step = new Step(name, Thread.currentThread().getName(), startElapsedRealtime - startedAt,
+                endElapsedRealtime - startElapsedRealtime, error);
+        synchronized (trace) {
+            trace.add(step);
+        }
+        Log.i(TAG, step.toString());
+    }
+
+    /**
+     * 代理已启动并完成配置。
+     */
+    public void markReady() {
+        record("ready", SystemClock.elapsedRealtime(), SystemClock.elapsedRealtime(), null);
+        countDown(ready);
+    }
+
+    /**
+     * 代理启动失败，代理不可用，证书也不会就绪。
+     *
+     * @param reason 失败原因，显示给用户
+     */
+    public void markReadyFailed(String reason) {
+        readyFailure = reason;
+        record("ready", SystemClock.elapsedRealtime(), SystemClock.elapsedRealtime(), new IllegalStateException(reason));
+        countDown(ready);
+
+        markMitmFailed(reason);
+    }
+
+    /**
+     * 证书已就绪，HTTPS可以解密。
+     */
+    public void markMitmReady() {
+        record("mitm ready", SystemClock.elapsedRealtime(), SystemClock.elapsedRealtime(), null);
+        countDown(mitmReady);
+    }
+
+    /**
+     * 证书加载失败或超时，HTTPS不会被解密。
+     *
+     * @param reason 失败原因，显示给用户
+     */
+    public void markMitmFailed(String reason) {
+        if (mitmReady.getCount() == 0) {
+            return;
+        }
+
+        mitmFailure = reason;
+        record("mitm ready", SystemClock.elapsedRealtime(), SystemClock.elapsedRealtime(), new IllegalStateException(reason));
+        countDown(mitmReady);
+    }
+
+    public boolean isReady() {
+        return ready.getCount() == 0 && readyFailure == null;
+    }
+
+    public boolean isMitmReady() {
+        return mitmReady.getCount() == 0 && mitmFailure == null;
+    }
+
+    /**
+     * @return 代理启动失败的原因，启动成功或还未结束时返回null
+     */
+    public String getReadyFailure() {
+        return readyFailure;
+    }
+
+    /**
+     * @return 证书加载失败的原因，证书已就绪或还在加载时返回null
+     */
+    public String getMitmFailure() {
+        return mitmFailure;
+    }
+
+    /**
+     * 等待代理启动完成，不能在主线程调用。
+     *
+     * @return 代理是否可用，启动失败或超时返回false
+     */
+    public boolean awaitReady(long timeout, TimeUnit unit) throws InterruptedException {
+        return ready.await(timeout, unit) && readyFailure == null;
+    }
+
+    /**
+     * 代理启动完成后在主线程执行，已完成则立即在主线程执行。启动失败时不执行。
+     */
+    public void runWhenReady(Runnable runnable) {
+        runWhenReady(runnable, null);
+    }
+
+    /**
+     * 代理启动完成后在主线程执行 onReady，启动失败时在主线程执行 onFailed。
+     *
+     * @param onFailed 启动失败时执行，可以通过 {@link #getReadyFailure()} 获取原因；可以为null
+     */
+    public void runWhenReady(Runnable onReady, Runnable onFailed) {
+        runWhen(ready, new Callback(onReady, onFailed));
+    }
+
+    /**
+     * 证书就绪后在主线程执行，已就绪则立即在主线程执行。证书加载失败时不执行。
+     */
+    public void runWhenMitmReady(Runnable runnable) {
+        runWhenMitmReady(runnable, null);
+    }
+
+    /**
+     * 证书就绪后在主线程执行 onReady，加载失败或超时时在主线程执行 onFailed。
+     *
+     * @param onFailed 证书加载失败时执行，可以通过 {@link #getMitmFailure()} 获取原因；可以为null
+     */
+    public void runWhenMitmReady(Runnable onReady, Runnable onFailed) {
+        runWhen(mitmReady, new Callback(onReady, onFailed));
+    }
+
+    private void runWhen(CountDownLatch latch, Callback callback) {
+        List<Callback> pending = latch == ready ? pendingReady : pendingMitmReady;
+        synchronized (pending) {
+            if (latch.getCount() > 0) {
+                pending.add(callback);
+                return;
+            }
+        }
+        post(latch, callback);
+    }
+
+    private void countDown(CountDownLatch latch) {
+        List<Callback> pending = latch == ready ? pendingReady : pendingMitmReady;
+        List<Callback> callbacks;
+        synchronized (pending) {
+            latch.countDown();
+            callbacks = new ArrayList<>(pending);
+            pending.clear();
+        }
+        for (Callback callback : callbacks) {
+            post(latch, callback);
+        }
+    }
+
+    private void post(CountDownLatch latch, Callback callback) {
+        String failure = latch == ready ? readyFailure : mitmFailure;
+        Runnable runnable = failure == null ? callback.onReady : callback.onFailed;
+        if (runnable != null) {
+            mainHandler.post(runnable);
+        }
+    }
+
+    /**
+     * 启动耗时记录，每行一个步骤：开始时间、耗时、线程。
+     */
+    public String formatTrace() {
+        List<Step> steps;
+        synchronized (trace) {
+            steps = new ArrayList<>(trace);
+        }
+
+        Collections.sort(steps, new Comparator<Step>() {
+            @Override
+            public int compare(Step a, Step b) {
+                return a.startMs < b.startMs ? -1 : (a.startMs == b.startMs ? 0 : 1);
+            }
+        });
+
+        StringBuilder builder = new StringBuilder();
+        for (Step step : steps) {
+            if (builder.length() > 0) {
+                builder.append('\n');
+            }
+            builder.append(step);
+        }
+        return builder.toString();
+    }
+
+    private static class Callback {
+        private final Runnable onReady;
+        private final Runnable onFailed;
+
+        private Callback(Runnable onReady, Runnable onFailed) {
+            this.onReady = onReady;
+            this.onFailed = onFailed;
+        }
+    }
+
+    private static class Step {
+        private final String name;
+        private final String thread;
+        private final long startMs;
+        private final long durationMs;
+        private final Throwable error;
+
+        private Step(String name, String thread, long startMs, long durationMs, Throwable error) {
+            this.name = name;
+            this.thread = thread;
+            this.startMs = startMs;
+            this.durationMs = durationMs;
+            this.error = error;
+        }
+
+        @Override
+        public String toString() {
+            String line = String.format(Locale.US, "+%dms %s %dms [%s]", startMs, name, durationMs, thread);
+            if (error != null) {
+                line += " 失败: " + error;
+            }
+            return line;
+        }
+    }
+}
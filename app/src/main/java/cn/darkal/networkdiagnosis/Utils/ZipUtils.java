@@ -1,5 +1,6 @@
 package cn.darkal.networkdiagnosis.Utils;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
@@ -7,18 +8,29 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.util.Enumeration;
 import java.util.zip.ZipEntry;
+import java.util.zip.Deflater;
 import java.util.zip.ZipFile;
-import java.util.zip.ZipOutputStream;
 
 public class ZipUtils {
+    private static final int BUFFER_SIZE = 64 * 1024;
+
     public static void zip(String src, String dest) throws IOException {
+        zip(src, dest, Deflater.DEFAULT_COMPRESSION);
+    }
+
+    /**
+     * 压缩文件或目录，大文件分块后多线程压缩
+     *
+     * @param level {@link Deflater} 的压缩级别
+     */
+    public static void zip(String src, String dest, int level) throws IOException {
         //提供了一个数据项压缩成一个ZIP归档输出流
-        ZipOutputStream out = null;
+        ParallelZipOutputStream out = null;
         try {
 
             File outFile = new File(dest);//源文件或者目录
             File fileOrDirectory = new File(src);//压缩文件路径
-            out = new ZipOutputStream(new FileOutputStream(outFile));
+            out = new ParallelZipOutputStream(new BufferedOutputStream(new FileOutputStream(outFile), BUFFER_SIZE), level);
             //如果此文件是一个文件，否则为false。
             if (fileOrDirectory.isFile()) {
                 zipFileOrDirectory(out, fileOrDirectory, "");
@@ -44,7 +56,7 @@ public class ZipUtils {
         }
     }
 
-    private static void zipFileOrDirectory(ZipOutputStream out,
+    private static void zipFileOrDirectory(ParallelZipOutputStream out,
                                            File fileOrDirectory, String curPath) throws IOException {
         //从文件中读取字节的输入流
         FileInputStream in = null;
@@ -52,14 +64,11 @@ public class ZipUtils {
             //如果此文件是一个目录，否则返回false。
             if (!fileOrDirectory.isDirectory()) {
                 // 压缩文件
-                byte[] buffer = new byte[4096];
+                byte[] buffer = new byte[BUFFER_SIZE];
                 int bytes_read;
                 in = new FileInputStream(fileOrDirectory);
-                //实例代表一个条目内的ZIP归档
-                ZipEntry entry = new ZipEntry(curPath
-                        + fileOrDirectory.getName());
                 //条目的信息写入底层流
-                out.putNextEntry(entry);
+                out.putNextEntry(curPath + fileOrDirectory.getName());
                 while ((bytes_read = in.read(buffer)) != -1) {
                     out.write(buffer, 0, bytes_read);
                 }
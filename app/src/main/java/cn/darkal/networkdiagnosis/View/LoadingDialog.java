@@ -77,6 +77,18 @@ public class LoadingDialog extends ProgressDialog {
         super.setOnDismissListener(listener);
     }
 
+    /**
+     * 更新提示文字，例如显示导出进度，需要在主线程调用
+     */
+    public void setText(String text) {
+        mText = text;
+        TextView mMessage = (TextView) findViewById(R.id.loading_dialog_message);
+        if (mMessage != null) {
+            mMessage.setVisibility(View.VISIBLE);
+            mMessage.setText(text);
+        }
+    }
+
     /*
      * 设置单行显示
      */
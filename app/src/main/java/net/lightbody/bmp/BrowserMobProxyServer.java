@@ -9,6 +9,9 @@ import io.netty.handler.codec.http.HttpObject;
 import io.netty.handler.codec.http.HttpRequest;
 import net.lightbody.bmp.client.ClientUtil;
 import net.lightbody.bmp.core.har.Har;
+import net.lightbody.bmp.core.har.HarAnalytics;
+import net.lightbody.bmp.core.har.HarEntryIndex;
+import net.lightbody.bmp.core.har.HarEntrySummary;
 import net.lightbody.bmp.core.har.HarLog;
 import net.lightbody.bmp.core.har.HarNameVersion;
 import net.lightbody.bmp.core.har.HarPage;
@@ -19,31 +22,54 @@ import net.lightbody.bmp.filters.BlacklistFilter;
 import net.lightbody.bmp.filters.BrowserMobHttpFilterChain;
 import net.lightbody.bmp.filters.HarCaptureFilter;
 import net.lightbody.bmp.filters.HttpConnectHarCaptureFilter;
+import net.lightbody.bmp.filters.HarReplayFilter;
+import net.lightbody.bmp.filters.HttpCacheFilter;
 import net.lightbody.bmp.filters.HttpsHostCaptureFilter;
 import net.lightbody.bmp.filters.HttpsOriginalHostCaptureFilter;
 import net.lightbody.bmp.filters.LatencyFilter;
+import net.lightbody.bmp.filters.MapLocalFilter;
+import net.lightbody.bmp.filters.MitmBypassFilter;
 import net.lightbody.bmp.filters.RegisterRequestFilter;
 import net.lightbody.bmp.filters.RequestFilter;
+import net.lightbody.bmp.filters.RequestCoalescingFilter;
 import net.lightbody.bmp.filters.RequestFilterAdapter;
 import net.lightbody.bmp.filters.ResolvedHostnameCacheFilter;
 import net.lightbody.bmp.filters.ResponseFilter;
 import net.lightbody.bmp.filters.ResponseFilterAdapter;
 import net.lightbody.bmp.filters.RewriteUrlFilter;
+import net.lightbody.bmp.filters.SslSessionStatisticsFilter;
+import net.lightbody.bmp.filters.TrafficShapingFilter;
 import net.lightbody.bmp.filters.UnregisterRequestFilter;
 import net.lightbody.bmp.filters.WhitelistFilter;
-import net.lightbody.bmp.mitm.KeyStoreFileCertificateSource;
+import net.lightbody.bmp.mitm.CertificateForgingExecutor;
+import net.lightbody.bmp.mitm.DiskCertificateCache;
 import net.lightbody.bmp.mitm.TrustSource;
 import net.lightbody.bmp.mitm.keys.ECKeyGenerator;
+import net.lightbody.bmp.mitm.keys.KeyGenerator;
+import net.lightbody.bmp.mitm.keys.PooledKeyPairProvider;
 import net.lightbody.bmp.mitm.keys.RSAKeyGenerator;
 import net.lightbody.bmp.mitm.manager.ImpersonatingMitmManager;
+import net.lightbody.bmp.mitm.manager.MitmEngine;
+import net.lightbody.bmp.mitm.manager.SwitchableMitmManager;
+import net.lightbody.bmp.mitm.stats.CertificateGenerationStatistics;
+import net.lightbody.bmp.mitm.stats.SslSessionStatistics;
+import net.lightbody.bmp.mitm.trustmanager.CertificateChainCache;
 import net.lightbody.bmp.proxy.ActivityMonitor;
 import net.lightbody.bmp.proxy.BlacklistEntry;
 import net.lightbody.bmp.proxy.CaptureType;
+import net.lightbody.bmp.proxy.MapLocalRule;
 import net.lightbody.bmp.proxy.RewriteRule;
 import net.lightbody.bmp.proxy.Whitelist;
 import net.lightbody.bmp.proxy.auth.AuthType;
+import net.lightbody.bmp.proxy.cache.HttpResponseCache;
+import net.lightbody.bmp.proxy.coalesce.RequestCoalescer;
 import net.lightbody.bmp.proxy.dns.AdvancedHostResolver;
 import net.lightbody.bmp.proxy.dns.DelegatingHostResolver;
+import net.lightbody.bmp.proxy.replay.HarReplayIndex;
+import net.lightbody.bmp.proxy.replay.UnmatchedRequestPolicy;
+import net.lightbody.bmp.proxy.throttle.NetworkProfile;
+import net.lightbody.bmp.proxy.throttle.TrafficShaper;
+import net.lightbody.bmp.proxy.tunnel.MitmBypassList;
 import net.lightbody.bmp.util.BrowserMobHttpUtil;
 import net.lightbody.bmp.util.BrowserMobProxyUtil;
 import org.littleshoot.proxy.ChainedProxy;
@@ -59,10 +85,14 @@ import org.littleshoot.proxy.impl.DefaultHttpProxyServer;
 import org.littleshoot.proxy.impl.ProxyUtils;
 import org.littleshoot.proxy.impl.ThreadPoolConfiguration;
 import org.littleshoot.proxy.mitm.Authority;
+import org.littleshoot.proxy.mitm.AuthorityCertificateSource;
 import org.littleshoot.proxy.mitm.CertificateSniffingMitmManager;
+import org.littleshoot.proxy.mitm.RootCertificateException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.File;
+import java.io.IOException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.util.ArrayList;
@@ -80,6 +110,7 @@ import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.regex.Pattern;
 
@@ -91,13 +122,6 @@ public class BrowserMobProxyServer implements BrowserMobProxy {
 
     private static final HarNameVersion HAR_CREATOR_VERSION = new HarNameVersion("BrowserMob Proxy", BrowserMobProxyUtil.getVersionString());
 
-    /* Default MITM resources */
-    private static final String RSA_KEYSTORE_RESOURCE = "/sslSupport/ca-keystore-rsa.p12";
-    private static final String EC_KEYSTORE_RESOURCE = "/sslSupport/ca-keystore-ec.p12";
-    private static final String KEYSTORE_TYPE = "PKCS12";
-    private static final String KEYSTORE_PRIVATE_KEY_ALIAS = "key";
-    private static final String KEYSTORE_PASSWORD = "password";
-
     /**
      * The default pseudonym to use when adding the Via header to proxied requests.
      */
@@ -128,6 +152,53 @@ public class BrowserMobProxyServer implements BrowserMobProxy {
      */
     private volatile MitmManager mitmManager;
 
+    /**
+     * The MITM implementation used when no MitmManager has been set with {@link #setMitmManager(MitmManager)}.
+     */
+    private volatile MitmEngine mitmEngine = MitmEngine.CERTIFICATE_SNIFFING;
+
+    /**
+     * The MitmManager LittleProxy was bootstrapped with. Delegates to the current MITM engine, so the engine can be changed after the
+     * proxy has been started. Null if the proxy has not been started, or was started with MITM disabled.
+     */
+    private volatile SwitchableMitmManager switchableMitmManager;
+
+    /**
+     * Serializes creation of MitmManagers, so a manager created when settings change cannot be replaced by the manager created at startup.
+     */
+    private final Object mitmManagerLock = new Object();
+
+    /**
+     * The installed MitmManager, if it was created by the proxy rather than set with {@link #setMitmManager(MitmManager)}. Closed when it
+     * is replaced. Guarded by {@link #mitmManagerLock}.
+     */
+    private MitmManager createdMitmManager;
+
+    /**
+     * Time the proxy was started, as returned by {@link System#nanoTime()}.
+     */
+    private volatile long startedNanos;
+
+    /**
+     * Time from starting the proxy to receiving the first request, or -1 if no request has been received.
+     */
+    private final AtomicLong timeToFirstConnectionNanos = new AtomicLong(-1);
+
+    /**
+     * Time from starting the proxy to the MITM manager being ready, or -1 if it is not ready.
+     */
+    private volatile long mitmInitializationNanos = -1;
+
+    /**
+     * Per-host TLS session resumption statistics for client-facing and upstream handshakes.
+     */
+    private final SslSessionStatistics sslSessionStatistics = new SslSessionStatistics();
+
+    /**
+     * Hosts whose HTTPS connections are tunneled without being decrypted, including hosts learned from rejected certificates.
+     */
+    private final MitmBypassList mitmBypassList = new MitmBypassList();
+
     /**
      * The list of filterFactories that will generate the filters that implement browsermob-proxy behavior.
      */
@@ -143,6 +214,11 @@ public class BrowserMobProxyServer implements BrowserMobProxy {
      */
     private volatile CopyOnWriteArrayList<RewriteRule> rewriteRules = new CopyOnWriteArrayList<>();
 
+    /**
+     * List of URLs to answer with local files
+     */
+    private volatile CopyOnWriteArrayList<MapLocalRule> mapLocalRules = new CopyOnWriteArrayList<>();
+
     /**
      * The LittleProxy instance that performs all proxy operations.
      */
@@ -162,13 +238,46 @@ public class BrowserMobProxyServer implements BrowserMobProxy {
      */
     private volatile HarPage currentHarPage;
     /**
-     * Maximum bandwidth to consume when reading responses from servers.
+     * Capture listeners registered with the proxy, which are carried over to the log of every new HAR.
+     */
+    private final CopyOnWriteArrayList<HarLog.CaptureListener> harCaptureListeners = new CopyOnWriteArrayList<>();
+    /**
+     * Search index over the entries of the current HAR, updated by capture events and reset when a new HAR is created.
+     */
+    private final HarEntryIndex harEntryIndex = new HarEntryIndex();
+    /**
+     * Columnar summary of the entries of the current HAR, for structured queries; updated and reset like the search index.
+     */
+    private final HarEntrySummary harEntrySummary = new HarEntrySummary();
+    /**
+     * Per-host, per-page and per-MIME type statistics of the entries of the current HAR; updated and reset like the search index.
+     */
+    private final HarAnalytics harAnalytics = new HarAnalytics();
+    /**
+     * Shapes traffic to and from upstream servers. Holds the global and per-host bandwidth limits and the emulated latency, all of
+     * which can be changed while the proxy is running.
+     */
+    private final TrafficShaper trafficShaper = new TrafficShaper();
+    /**
+     * Recorded responses to serve instead of contacting servers, or null when replay is disabled.
+     */
+    private volatile HarReplayIndex replayIndex;
+    /**
+     * When true, replayed responses are delayed by the time the server originally took to respond.
+     */
+    private volatile boolean replayTimingsPreserved = false;
+    /**
+     * Determines how requests that were not recorded are handled while replaying.
+     */
+    private volatile UnmatchedRequestPolicy unmatchedReplayPolicy = UnmatchedRequestPolicy.PASS_THROUGH;
+    /**
+     * Shared cache of server responses, or null when response caching is disabled.
      */
-    private volatile long readBandwidthLimitBps;
+    private volatile HttpResponseCache responseCache;
     /**
-     * Maximum bandwidth to consume when writing requests to servers.
+     * Collapses concurrent identical GETs into a single upstream request, or null when request coalescing is disabled.
      */
-    private volatile long writeBandwidthLimitBps;
+    private volatile RequestCoalescer requestCoalescer;
     /**
      * List of accepted URL patterns. Unlisted URL patterns will be rejected with the response code contained in the Whitelist.
      */
@@ -232,6 +341,11 @@ public class BrowserMobProxyServer implements BrowserMobProxy {
      */
     private volatile boolean useEcc = false;
 
+    /**
+     * When true, impersonate upstream servers with wildcard certificates shared by all hosts under the same registrable domain.
+     */
+    private volatile boolean wildcardCertificatesEnabled = false;
+
     /**
      * Resolver to use when resolving hostnames to IP addresses. This is a bridge between {@link org.littleshoot.proxy.HostResolver} and
      * {@link net.lightbody.bmp.proxy.dns.AdvancedHostResolver}. It allows the resolvers to be changed on-the-fly without re-bootstrapping the
@@ -263,6 +377,9 @@ public class BrowserMobProxyServer implements BrowserMobProxy {
     private volatile String chainedProxyCredentials;
 
     public BrowserMobProxyServer() {
+        harCaptureListeners.add(harEntryIndex);
+        harCaptureListeners.add(harEntrySummary);
+        harCaptureListeners.add(harAnalytics);
     }
 
     @Override
@@ -282,6 +399,8 @@ public class BrowserMobProxyServer implements BrowserMobProxy {
 
         this.serverBindAddress = serverBindAddress;
 
+        startedNanos = System.nanoTime();
+
         // initialize all the default BrowserMob filter factories that provide core BMP functionality
         addBrowserMobFilters();
 
@@ -289,6 +408,11 @@ public class BrowserMobProxyServer implements BrowserMobProxy {
                 .withFiltersSource(new HttpFiltersSource() {
                     @Override
                     public HttpFilters filterRequest(HttpRequest originalRequest, ChannelHandlerContext channelHandlerContext) {
+                        if (timeToFirstConnectionNanos.get() < 0
+                                && timeToFirstConnectionNanos.compareAndSet(-1, System.nanoTime() - startedNanos)) {
+                            log.info("First request received {}ms after starting the proxy", getTimeToFirstConnectionMs());
+                        }
+
                         return new BrowserMobHttpFilterChain(BrowserMobProxyServer.this, originalRequest, channelHandlerContext);
                     }
 
@@ -314,30 +438,10 @@ public class BrowserMobProxyServer implements BrowserMobProxy {
 
 
         if (!mitmDisabled) {
-//            if (mitmManager == null) {
-//                mitmManager = ImpersonatingMitmManager.builder()
-//                        .rootCertificateSource(new KeyStoreFileCertificateSource(
-//                                KEYSTORE_TYPE,
-//                                useEcc ? EC_KEYSTORE_RESOURCE : RSA_KEYSTORE_RESOURCE,
-//                                KEYSTORE_PRIVATE_KEY_ALIAS,
-//                                KEYSTORE_PASSWORD))
-//                        .serverKeyGenerator(useEcc ? new ECKeyGenerator() : new RSAKeyGenerator())
-//                        .trustSource(trustSource)
-//                        .build();
-//            }
-//
-//            bootstrap.withManInTheMiddle(mitmManager);
-
-            try {
-                bootstrap.withManInTheMiddle(new CertificateSniffingMitmManager(
-                        new Authority()));
-            }catch (Exception e){
-                e.printStackTrace();
-            }
-        }
-
-        if (readBandwidthLimitBps > 0 || writeBandwidthLimitBps > 0) {
-            bootstrap.withThrottling(readBandwidthLimitBps, writeBandwidthLimitBps);
+            // loading or generating the root certificate can take seconds, so the manager's delegate is created once the proxy is
+            // listening. until then, CONNECTs are tunneled without being decrypted.
+            switchableMitmManager = new SwitchableMitmManager();
+            bootstrap.withManInTheMiddle(switchableMitmManager);
         }
 
         if (chainedProxyManager != null) {
@@ -378,6 +482,40 @@ public class BrowserMobProxyServer implements BrowserMobProxy {
         }
 
         proxyServer = bootstrap.start();
+
+        if (!mitmDisabled) {
+            initializeMitmManager();
+        }
+    }
+
+    /**
+     * Creates the MitmManager on a background thread, and switches MITM on for new connections once it is ready.
+     */
+    private void initializeMitmManager() {
+        final SwitchableMitmManager switchable = switchableMitmManager;
+
+        Thread initializer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    synchronized (mitmManagerLock) {
+                        // settings may have changed the manager since the proxy was started
+                        if (!switchable.isReady()) {
+                            installMitmManager(switchable);
+                        }
+                    }
+
+                    mitmInitializationNanos = System.nanoTime() - startedNanos;
+                    log.info("MITM ready {}ms after starting the proxy", getMitmInitializationTimeMs());
+                } catch (RootCertificateException | RuntimeException e) {
+                    log.error("Unable to initialize MITM; HTTPS connections will not be decrypted", e);
+
+                    switchable.setFailed(e);
+                }
+            }
+        }, "mitm-initializer");
+        initializer.setDaemon(true);
+        initializer.start();
     }
 
     @Override
@@ -487,7 +625,20 @@ public class BrowserMobProxyServer implements BrowserMobProxy {
 
         harPageCount.set(0);
 
-        this.har = new Har(new HarLog(HAR_CREATOR_VERSION,this));
+        harEntryIndex.clear();
+        harEntrySummary.clear();
+        harAnalytics.clear();
+
+        HarLog harLog = new HarLog(HAR_CREATOR_VERSION,this);
+        for (HarLog.CaptureListener listener : harCaptureListeners) {
+            // requests still in flight in the old HAR complete into it, and must not be reported as part of the new one
+            if (oldHar != null) {
+                oldHar.getLog().removeCaptureListener(listener);
+            }
+            harLog.addCaptureListener(listener);
+        }
+
+        this.har = new Har(harLog);
 
         newPage(initialPageRef, initialPageTitle);
 
@@ -602,32 +753,154 @@ public class BrowserMobProxyServer implements BrowserMobProxy {
         return oldHar;
     }
 
+    /**
+     * Sets the global read limit. Takes effect immediately, including on connections that are already open.
+     */
     @Override
     public void setReadBandwidthLimit(long bytesPerSecond) {
-        this.readBandwidthLimitBps = bytesPerSecond;
-
-        if (isStarted()) {
-            proxyServer.setThrottle(this.readBandwidthLimitBps, this.writeBandwidthLimitBps);
-        }
+        trafficShaper.setGlobalReadLimit(bytesPerSecond);
     }
 
     @Override
     public long getReadBandwidthLimit() {
-        return readBandwidthLimitBps;
+        return trafficShaper.getGlobalReadLimit();
     }
 
+    /**
+     * Sets the global write limit. Takes effect immediately, including on connections that are already open.
+     */
     @Override
     public void setWriteBandwidthLimit(long bytesPerSecond) {
-        this.writeBandwidthLimitBps = bytesPerSecond;
-
-        if (isStarted()) {
-            proxyServer.setThrottle(this.readBandwidthLimitBps, this.writeBandwidthLimitBps);
-        }
+        trafficShaper.setGlobalWriteLimit(bytesPerSecond);
     }
 
     @Override
     public long getWriteBandwidthLimit() {
-        return writeBandwidthLimitBps;
+        return trafficShaper.getGlobalWriteLimit();
+    }
+
+    /**
+     * Emulates the bandwidth and latency of a built-in network profile. Replaces the global bandwidth limits; per-host limits
+     * configured on the {@link #getTrafficShaper()} remain in effect.
+     *
+     * @param networkProfile profile to emulate, or {@link NetworkProfile#UNLIMITED} to stop emulating a network
+     */
+    public void setNetworkProfile(NetworkProfile networkProfile) {
+        trafficShaper.applyProfile(networkProfile);
+    }
+
+    public NetworkProfile getNetworkProfile() {
+        return trafficShaper.getNetworkProfile();
+    }
+
+    /**
+     * Returns the traffic shaper that controls global and per-host bandwidth and latency for upstream connections. The shaper can be
+     * reconfigured at any time.
+     */
+    public TrafficShaper getTrafficShaper() {
+        return trafficShaper;
+    }
+
+    /**
+     * Starts serving the responses recorded in the specified HAR instead of contacting servers. Replayed responses are captured in the
+     * current HAR like any other response.
+     *
+     * @param har previously captured HAR to replay
+     */
+    public void startReplay(Har har) {
+        setReplayIndex(HarReplayIndex.fromHar(har));
+    }
+
+    /**
+     * Starts serving the responses recorded in the specified HAR file instead of contacting servers. The file is indexed before this
+     * method returns; response bodies are kept in memory.
+     *
+     * @param harFile previously saved HAR file to replay
+     * @throws IOException if the HAR file cannot be read
+     */
+    public void startReplay(File harFile) throws IOException {
+        setReplayIndex(HarReplayIndex.fromFile(harFile));
+    }
+
+    /**
+     * Starts serving the responses in the specified index instead of contacting servers. Replacing the index while the proxy is running
+     * affects new requests only.
+     *
+     * @param replayIndex recorded responses to serve, or null to stop replaying
+     */
+    public void setReplayIndex(HarReplayIndex replayIndex) {
+        this.replayIndex = replayIndex;
+    }
+
+    public HarReplayIndex getReplayIndex() {
+        return replayIndex;
+    }
+
+    /**
+     * Stops replaying recorded responses. Subsequent requests are sent to servers.
+     */
+    public void stopReplay() {
+        this.replayIndex = null;
+    }
+
+    public boolean isReplaying() {
+        return replayIndex != null;
+    }
+
+    /**
+     * When true, each replayed response is held back for the time the server originally took to respond (the HAR wait and receive
+     * timings), without blocking the proxy's threads. Defaults to false, which serves replayed responses immediately.
+     */
+    public void setReplayTimingsPreserved(boolean replayTimingsPreserved) {
+        this.replayTimingsPreserved = replayTimingsPreserved;
+    }
+
+    public boolean isReplayTimingsPreserved() {
+        return replayTimingsPreserved;
+    }
+
+    /**
+     * Sets how requests that were not recorded are handled while replaying. Defaults to {@link UnmatchedRequestPolicy#PASS_THROUGH}.
+     */
+    public void setUnmatchedReplayPolicy(UnmatchedRequestPolicy unmatchedReplayPolicy) {
+        if (unmatchedReplayPolicy == null) {
+            unmatchedReplayPolicy = UnmatchedRequestPolicy.PASS_THROUGH;
+        }
+
+        this.unmatchedReplayPolicy = unmatchedReplayPolicy;
+    }
+
+    public UnmatchedRequestPolicy getUnmatchedReplayPolicy() {
+        return unmatchedReplayPolicy;
+    }
+
+    /**
+     * Enables or disables the shared response cache. While a cache is set, fresh cached responses are served without contacting the
+     * server, stale responses are revalidated, and the outcome is recorded in each HAR entry's cache field.
+     *
+     * @param responseCache cache to use, or null to disable response caching
+     */
+    public void setResponseCache(HttpResponseCache responseCache) {
+        this.responseCache = responseCache;
+    }
+
+    public HttpResponseCache getResponseCache() {
+        return responseCache;
+    }
+
+    /**
+     * Enables or disables request coalescing. While a coalescer is set, a cacheable GET that is identical to a request already waiting
+     * for a response from the server is not sent to the server; instead, it receives a copy of the in-flight response. Each coalesced
+     * request still has its own HAR entry, with the comment {@link HarCaptureFilter#COALESCED_ENTRY_COMMENT}.
+     *
+     * @param requestCoalescer coalescer to use, or null to disable request coalescing
+     */
+    public void setRequestCoalescer(RequestCoalescer requestCoalescer) {
+        this.requestCoalescer = requestCoalescer;
+    }
+
+    public RequestCoalescer getRequestCoalescer() {
+        return requestCoalescer;
     }
 
     public void endPage() {
@@ -988,6 +1261,39 @@ public class BrowserMobProxyServer implements BrowserMobProxy {
         }
     }
 
+    /**
+     * Answers GET and HEAD requests for URLs matching the pattern with a local file, instead of sending them to the server. If the
+     * target is a directory, the file is resolved relative to it; see {@link MapLocalRule} for details. Rules are evaluated in the
+     * order they were added.
+     *
+     * @param urlPattern URL pattern to map
+     * @param target local file or directory to answer matching requests with
+     */
+    public void mapLocal(String urlPattern, File target) {
+        mapLocalRules.add(new MapLocalRule(urlPattern, target));
+    }
+
+    public void setMapLocalRules(Collection<MapLocalRule> mapLocalRules) {
+        this.mapLocalRules = new CopyOnWriteArrayList<>(mapLocalRules);
+    }
+
+    public Collection<MapLocalRule> getMapLocalRules() {
+        return Collections.unmodifiableCollection(mapLocalRules);
+    }
+
+    public void removeMapLocalRule(String urlPattern) {
+        // the CopyOnWriteArrayList iterator is a snapshot, so removing rules while iterating is safe
+        for (MapLocalRule mapLocalRule : mapLocalRules) {
+            if (mapLocalRule.getUrlPattern().pattern().equals(urlPattern)) {
+                mapLocalRules.remove(mapLocalRule);
+            }
+        }
+    }
+
+    public void clearMapLocalRules() {
+        mapLocalRules.clear();
+    }
+
     public boolean isStopped() {
         return stopped.get();
     }
@@ -1016,6 +1322,273 @@ public class BrowserMobProxyServer implements BrowserMobProxy {
     @Override
     public void setMitmManager(MitmManager mitmManager) {
         this.mitmManager = mitmManager;
+
+        switchMitmManager();
+    }
+
+    /**
+     * Selects the MITM implementation used to impersonate upstream servers, unless a MitmManager has been set with
+     * {@link #setMitmManager(MitmManager)}. Both engines sign impersonated certificates with the same root CA, so clients that trust
+     * it do not need to be reconfigured. May be called after the proxy has been started; the new engine is used for new connections.
+     */
+    public void setMitmEngine(MitmEngine mitmEngine) {
+        if (mitmEngine == null) {
+            throw new IllegalArgumentException("MITM engine cannot be null");
+        }
+
+        this.mitmEngine = mitmEngine;
+
+        switchMitmManager();
+    }
+
+    public MitmEngine getMitmEngine() {
+        return mitmEngine;
+    }
+
+    /**
+     * Returns statistics of the certificates generated by the current MITM engine, or null if MITM is disabled, the proxy has not been
+     * started, or a custom MitmManager is in use.
+     */
+    public CertificateGenerationStatistics getMitmStatistics() {
+        SwitchableMitmManager switchable = switchableMitmManager;
+        if (switchable == null) {
+            return null;
+        }
+
+        MitmManager delegate = switchable.getDelegate();
+        if (delegate instanceof CertificateSniffingMitmManager) {
+            return ((CertificateSniffingMitmManager) delegate).getStatistics();
+        } else if (delegate instanceof ImpersonatingMitmManager) {
+            return ((ImpersonatingMitmManager) delegate).getStatistics();
+        } else {
+            return null;
+        }
+    }
+
+    /**
+     * Adds a listener that is notified as entries are added to and completed in the current HAR, and in every HAR created by
+     * {@link #newHar()} afterwards.
+     */
+    public void addHarCaptureListener(HarLog.CaptureListener listener) {
+        harCaptureListeners.addIfAbsent(listener);
+
+        Har currentHar = har;
+        if (currentHar != null) {
+            currentHar.getLog().addCaptureListener(listener);
+        }
+    }
+
+    public void removeHarCaptureListener(HarLog.CaptureListener listener) {
+        harCaptureListeners.remove(listener);
+
+        Har currentHar = har;
+        if (currentHar != null) {
+            currentHar.getLog().removeCaptureListener(listener);
+        }
+    }
+
+    /**
+     * Returns the search index over the entries of the current HAR.
+     */
+    public HarEntryIndex getHarEntryIndex() {
+        return harEntryIndex;
+    }
+
+    /**
+     * Returns the columnar summary of the entries of the current HAR, which answers {@link net.lightbody.bmp.core.har.HarQuery}s.
+     */
+    public HarEntrySummary getHarEntrySummary() {
+        return harEntrySummary;
+    }
+
+    /**
+     * Returns the per-host, per-page and per-MIME type statistics of the entries of the current HAR.
+     */
+    public HarAnalytics getHarAnalytics() {
+        return harAnalytics;
+    }
+
+    /**
+     * Returns the executor that forges certificates for the current MITM engine, whose statistics show how often connections waited for
+     * a certificate and for how long; or null if MITM is disabled, the proxy has not been started, or a custom MitmManager is in use.
+     */
+    public CertificateForgingExecutor getCertificateForgingExecutor() {
+        SwitchableMitmManager switchable = switchableMitmManager;
+        if (switchable == null) {
+            return null;
+        }
+
+        MitmManager delegate = switchable.getDelegate();
+        if (delegate instanceof CertificateSniffingMitmManager) {
+            return ((CertificateSniffingMitmManager) delegate).getForgingExecutor();
+        } else if (delegate instanceof ImpersonatingMitmManager) {
+            return ((ImpersonatingMitmManager) delegate).getForgingExecutor();
+        } else {
+            return null;
+        }
+    }
+
+    /**
+     * Returns true once the proxy's root certificate has been loaded or generated and HTTPS connections are decrypted. Until then,
+     * HTTPS connections are tunneled to the server without being decrypted, or rejected if an upstream proxy is in use. Always false if
+     * MITM is disabled.
+     */
+    public boolean isMitmReady() {
+        SwitchableMitmManager switchable = switchableMitmManager;
+        return switchable != null && switchable.isReady();
+    }
+
+    /**
+     * Waits until HTTPS connections are decrypted, as described in {@link #isMitmReady()}.
+     *
+     * @return true if MITM is ready, false if the timeout elapsed first, initializing MITM failed (see {@link #getMitmFailure()}), or
+     * MITM is disabled or the proxy has not been started
+     */
+    public boolean awaitMitmReady(long timeout, TimeUnit timeUnit) throws InterruptedException {
+        SwitchableMitmManager switchable = switchableMitmManager;
+        return switchable != null && switchable.awaitReady(timeout, timeUnit);
+    }
+
+    /**
+     * Returns the reason the root certificate could not be loaded or generated, or null if MITM is ready, still initializing, or
+     * disabled. HTTPS connections are not decrypted after a failure.
+     */
+    public Throwable getMitmFailure() {
+        SwitchableMitmManager switchable = switchableMitmManager;
+        return switchable == null ? null : switchable.getFailure();
+    }
+
+    /**
+     * Returns the time from starting the proxy to receiving the first request, in milliseconds, or -1 if no request has been received.
+     */
+    public long getTimeToFirstConnectionMs() {
+        long nanos = timeToFirstConnectionNanos.get();
+        return nanos < 0 ? -1 : TimeUnit.NANOSECONDS.toMillis(nanos);
+    }
+
+    /**
+     * Returns the time from starting the proxy to HTTPS connections being decrypted, in milliseconds, or -1 if MITM is not ready.
+     */
+    public long getMitmInitializationTimeMs() {
+        long nanos = mitmInitializationNanos;
+        return nanos < 0 ? -1 : TimeUnit.NANOSECONDS.toMillis(nanos);
+    }
+
+    /**
+     * Returns the cache of upstream certificate chains used by the current MITM engine, whose hit rates show how often chain validation
+     * and certificate name parsing were skipped; or null if MITM is disabled, the proxy has not been started, or the current engine does
+     * not cache chains.
+     */
+    public CertificateChainCache getCertificateChainCache() {
+        SwitchableMitmManager switchable = switchableMitmManager;
+        if (switchable == null) {
+            return null;
+        }
+
+        MitmManager delegate = switchable.getDelegate();
+        if (delegate instanceof CertificateSniffingMitmManager) {
+            return ((CertificateSniffingMitmManager) delegate).getCertificateChainCache();
+        } else {
+            return null;
+        }
+    }
+
+    /**
+     * Returns, per host, how many client-facing and upstream TLS handshakes resumed an existing session.
+     */
+    public SslSessionStatistics getSslSessionStatistics() {
+        return sslSessionStatistics;
+    }
+
+    /**
+     * Returns the list of hosts whose HTTPS connections are tunneled to the server without being decrypted. Hosts can be added to the
+     * list at any time; hosts are also added automatically once clients have repeatedly rejected their impersonated certificates, as
+     * apps that pin certificates do. Tunneled connections are recorded in the HAR as a single CONNECT entry with the number of bytes
+     * relayed in each direction. Bypassing is not available when an upstream proxy is in use.
+     */
+    public MitmBypassList getMitmBypassList() {
+        return mitmBypassList;
+    }
+
+    /**
+     * Installs the MitmManager for the current settings: the MitmManager set with {@link #setMitmManager(MitmManager)}, if any, otherwise
+     * a new instance of the selected {@link MitmEngine}. Must be called while holding {@link #mitmManagerLock}.
+     *
+     * @return the replaced MitmManager, if it was created by the proxy and should be closed; otherwise null
+     */
+    private MitmManager installMitmManager(SwitchableMitmManager switchable) throws RootCertificateException {
+        MitmManager customMitmManager = this.mitmManager;
+        MitmManager newMitmManager = customMitmManager != null ? customMitmManager : createMitmManager();
+
+        switchable.setDelegate(newMitmManager);
+
+        MitmManager replacedMitmManager = createdMitmManager;
+        createdMitmManager = customMitmManager != null ? null : newMitmManager;
+
+        return replacedMitmManager;
+    }
+
+    /**
+     * Creates a new instance of the selected {@link MitmEngine}.
+     */
+    private MitmManager createMitmManager() throws RootCertificateException {
+        Authority authority = new Authority();
+
+        switch (mitmEngine) {
+            case IMPERSONATING:
+                KeyGenerator serverKeyGenerator = useEcc ? new ECKeyGenerator() : new RSAKeyGenerator();
+
+                return ImpersonatingMitmManager.builder()
+                        .rootCertificateSource(new AuthorityCertificateSource(authority))
+                        .serverKeyGenerator(serverKeyGenerator)
+                        .serverKeyPairProvider(new PooledKeyPairProvider(serverKeyGenerator))
+                        .trustSource(trustSource)
+                        .wildcardCertificates(wildcardCertificatesEnabled)
+                        .diskCertificateCache(new DiskCertificateCache(authority.aliasFile("-certs"), authority.password()))
+                        .build();
+
+            case CERTIFICATE_SNIFFING:
+            default:
+                CertificateSniffingMitmManager sniffingMitmManager = new CertificateSniffingMitmManager(authority, trustSource);
+                sniffingMitmManager.setWildcardCertificates(wildcardCertificatesEnabled);
+                if (useEcc) {
+                    sniffingMitmManager.setServerKeyPairProvider(new PooledKeyPairProvider(new ECKeyGenerator()));
+                }
+
+                return sniffingMitmManager;
+        }
+    }
+
+    /**
+     * If the proxy is running, replaces the MitmManager used for new connections with one for the current settings.
+     */
+    private void switchMitmManager() {
+        SwitchableMitmManager switchable = switchableMitmManager;
+        if (switchable == null) {
+            return;
+        }
+
+        try {
+            MitmManager replacedMitmManager;
+            synchronized (mitmManagerLock) {
+                replacedMitmManager = installMitmManager(switchable);
+            }
+
+            closeMitmManager(replacedMitmManager);
+        } catch (RootCertificateException e) {
+            log.warn("Unable to switch MITM engine; continuing to use the current engine", e);
+        }
+    }
+
+    /**
+     * Releases the background threads of a MitmManager created by {@link #createMitmManager()} once it has been replaced.
+     */
+    private static void closeMitmManager(MitmManager replacedMitmManager) {
+        if (replacedMitmManager instanceof CertificateSniffingMitmManager) {
+            ((CertificateSniffingMitmManager) replacedMitmManager).close();
+        } else if (replacedMitmManager instanceof ImpersonatingMitmManager) {
+            ((ImpersonatingMitmManager) replacedMitmManager).close();
+        }
     }
 
     @Override
@@ -1046,8 +1619,29 @@ public class BrowserMobProxyServer implements BrowserMobProxy {
         return this.mitmDisabled;
     }
 
+    /**
+     * When true, impersonated certificates use ECDSA P-256 keys rather than RSA keys. The certificates are still signed by the root CA.
+     * May be called after the proxy has been started; the new key type is used for new connections.
+     */
     public void setUseEcc(boolean useEcc) {
         this.useEcc = useEcc;
+
+        switchMitmManager();
+    }
+
+    /**
+     * Enables or disables wildcard certificates for MITM. When enabled, hosts under the same registrable domain (for example,
+     * cdn1.example.com and img.example.com) share one impersonated {@code *.example.com} certificate, so the certificate is only
+     * generated once per domain. May be called after the proxy has been started; the new setting is used for new connections.
+     */
+    public void setWildcardCertificatesEnabled(boolean wildcardCertificatesEnabled) {
+        this.wildcardCertificatesEnabled = wildcardCertificatesEnabled;
+
+        switchMitmManager();
+    }
+
+    public boolean isWildcardCertificatesEnabled() {
+        return wildcardCertificatesEnabled;
     }
 
     /**
@@ -1111,6 +1705,86 @@ public class BrowserMobProxyServer implements BrowserMobProxy {
             }
         });
 
+        addHttpFilterFactory(new HttpFiltersSourceAdapter() {
+            @Override
+            public HttpFilters filterRequest(HttpRequest originalRequest, ChannelHandlerContext ctx) {
+                return new SslSessionStatisticsFilter(originalRequest, ctx, sslSessionStatistics);
+            }
+        });
+
+        addHttpFilterFactory(new HttpFiltersSourceAdapter() {
+            @Override
+            public HttpFilters filterRequest(HttpRequest originalRequest, ChannelHandlerContext ctx) {
+                SwitchableMitmManager switchable = switchableMitmManager;
+                if (switchable == null) {
+                    return null;
+                }
+
+                // tunnels connect to servers directly, so they cannot be used when connections go through an upstream proxy
+                boolean tunnelingAvailable = chainedProxyManager == null && upstreamProxyAddress == null;
+
+                return new MitmBypassFilter(originalRequest, ctx, mitmBypassList, switchable, delegatingResolver, connectTimeoutMs,
+                        tunnelingAvailable);
+            }
+        });
+
+        addHttpFilterFactory(new HttpFiltersSourceAdapter() {
+            @Override
+            public HttpFilters filterRequest(HttpRequest originalRequest, ChannelHandlerContext ctx) {
+                if (!mapLocalRules.isEmpty() && !ProxyUtils.isCONNECT(originalRequest)) {
+                    return new MapLocalFilter(originalRequest, ctx, mapLocalRules);
+                } else {
+                    return null;
+                }
+            }
+        });
+
+        addHttpFilterFactory(new HttpFiltersSourceAdapter() {
+            @Override
+            public HttpFilters filterRequest(HttpRequest originalRequest, ChannelHandlerContext ctx) {
+                HarReplayIndex currentReplayIndex = replayIndex;
+                if (currentReplayIndex != null) {
+                    return new HarReplayFilter(originalRequest, ctx, currentReplayIndex, replayTimingsPreserved, unmatchedReplayPolicy);
+                } else {
+                    return null;
+                }
+            }
+
+            @Override
+            public int getMaximumRequestBufferSizeInBytes() {
+                // request bodies are needed to match POSTs, so aggregate requests while replaying
+                if (replayIndex != null) {
+                    return HarReplayFilter.MAXIMUM_REQUEST_BUFFER_SIZE;
+                } else {
+                    return 0;
+                }
+            }
+        });
+
+        addHttpFilterFactory(new HttpFiltersSourceAdapter() {
+            @Override
+            public HttpFilters filterRequest(HttpRequest originalRequest, ChannelHandlerContext ctx) {
+                HttpResponseCache currentResponseCache = responseCache;
+                if (currentResponseCache != null && !ProxyUtils.isCONNECT(originalRequest)) {
+                    return new HttpCacheFilter(originalRequest, ctx, currentResponseCache);
+                } else {
+                    return null;
+                }
+            }
+        });
+
+        addHttpFilterFactory(new HttpFiltersSourceAdapter() {
+            @Override
+            public HttpFilters filterRequest(HttpRequest originalRequest, ChannelHandlerContext ctx) {
+                RequestCoalescer currentRequestCoalescer = requestCoalescer;
+                if (currentRequestCoalescer != null && !ProxyUtils.isCONNECT(originalRequest)) {
+                    return new RequestCoalescingFilter(originalRequest, ctx, currentRequestCoalescer);
+                } else {
+                    return null;
+                }
+            }
+        });
+
         addHttpFilterFactory(new HttpFiltersSourceAdapter() {
             @Override
             public HttpFilters filterRequest(HttpRequest originalRequest) {
@@ -1125,6 +1799,13 @@ public class BrowserMobProxyServer implements BrowserMobProxy {
             }
         });
 
+        addHttpFilterFactory(new HttpFiltersSourceAdapter() {
+            @Override
+            public HttpFilters filterRequest(HttpRequest originalRequest, ChannelHandlerContext ctx) {
+                return new TrafficShapingFilter(originalRequest, ctx, trafficShaper);
+            }
+        });
+
         addHttpFilterFactory(new HttpFiltersSourceAdapter() {
             @Override
             public HttpFilters filterRequest(HttpRequest originalRequest, ChannelHandlerContext ctx) {
@@ -0,0 +1,305 @@
+package net.lightbody.bmp.core.har;
+
+import net.lightbody.bmp.util.QuantileSketch;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Aggregate statistics of the entries of a HAR, grouped by host, page and MIME type, kept up to date by listening to the
+ * {@link HarLog}'s capture events. Each group counts its requests, errors and bytes, and keeps a {@link QuantileSketch} of every
+ * {@link HarTimings} phase; an entry is added to its groups once, when it completes.
+ * <p/>
+ * Reading the statistics of a group, including its percentiles, never reads the {@link HarEntry} objects, so the cost does not depend
+ * on the number of entries captured.
+ * <p/>
+ * Entries are recorded on the threads that capture them and the statistics may be read from any thread; each group is guarded by its
+ * own lock.
+ */
+public class HarAnalytics implements HarLog.CaptureListener {
+    /**
+     * The key of the group of entries whose host, page or MIME type is not known.
+     */
+    public static final String UNKNOWN = "";
+
+    public enum Dimension {
+        HOST,
+        PAGE,
+        MIME_TYPE
+    }
+
+    /**
+     * The phases of {@link HarTimings}.
+     */
+    public enum Timing {
+        BLOCKED,
+        DNS,
+        CONNECT,
+        SSL,
+        SEND,
+        WAIT,
+        RECEIVE;
+
+        /**
+         * @return the time spent in this phase in milliseconds, or -1 if it does not apply
+         */
+        public long get(HarTimings timings) {
+            switch (this) {
+                case BLOCKED:
+                    return timings.getBlocked(TimeUnit.MILLISECONDS);
+                case DNS:
+                    return timings.getDns(TimeUnit.MILLISECONDS);
+                case CONNECT:
+                    return timings.getConnect(TimeUnit.MILLISECONDS);
+                case SSL:
+                    return timings.getSsl(TimeUnit.MILLISECONDS);
+                case SEND:
+                    return timings.getSend(TimeUnit.MILLISECONDS);
+                case WAIT:
+                    return timings.getWait(TimeUnit.MILLISECONDS);
+                case RECEIVE:
+                    return timings.getReceive(TimeUnit.MILLISECONDS);
+                default:
+                    throw new IllegalStateException("Unknown timing: " + this);
+            }
+        }
+    }
+
+    private static final Timing[] TIMINGS = Timing.values();
+
+    private final Map<Dimension, ConcurrentMap<String, Stats>> groups = new EnumMap<>(Dimension.class);
+    private volatile Stats totals = new Stats(UNKNOWN);
+
+    public HarAnalytics() {
+        for (Dimension dimension : Dimension.values()) {
+            groups.put(dimension, new ConcurrentHashMap<String, Stats>());
+        }
+    }
+
+    @Override
+    public void entryAdded(HarEntry entry) {
+        // entries are counted when they complete, once their response, sizes and timings are known
+    }
+
+    @Override
+    public void entryCompleted(HarEntry entry) {
+        HarRequest request = entry.getRequest();
+        HarResponse response = entry.getResponse();
+        HarTimings harTimings = entry.getTimings();
+
+        boolean error = isError(response);
+        long compressedBytes = response == null ? -1L : response.getBodySize();
+        long decompressedBytes = response == null || response.getContent() == null ? -1L : response.getContent().getSize();
+        if (decompressedBytes <= 0) {
+            // the content size is only known when the content was captured; otherwise the body was not decoded
+            decompressedBytes = compressedBytes;
+        }
+
+        long[] timings = new long[TIMINGS.length];
+        for (int i = 0; i < TIMINGS.length; i++) {
+            timings[i] = harTimings == null ? -1L : TIMINGS[i].get(harTimings);
+        }
+
+        String host = request == null ? null : getHost(request.getUrl());
+        String mimeType = response == null || response.getContent() == null ? null : getMimeType(response.getContent().getMimeType());
+
+        totals.record(error, compressedBytes, decompressedBytes, timings);
+        getOrCreate(Dimension.HOST, host).record(error, compressedBytes, decompressedBytes, timings);
+        getOrCreate(Dimension.PAGE, entry.getPageref()).record(error, compressedBytes, decompressedBytes, timings);
+        getOrCreate(Dimension.MIME_TYPE, mimeType).record(error, compressedBytes, decompressedBytes, timings);
+    }
+
+    @Override
+    public void entriesCleared() {
+        clear();
+    }
+
+    public void clear() {
+        for (ConcurrentMap<String, Stats> group : groups.values()) {
+            group.clear();
+        }
+        totals = new Stats(UNKNOWN);
+    }
+
+    /**
+     * @return the statistics of every completed entry
+     */
+    public Stats getTotals() {
+        return totals;
+    }
+
+    /**
+     * @param key the host, page id or MIME type, or {@link #UNKNOWN}
+     * @return the statistics of the group, or null if no entry of the group has completed
+     */
+    public Stats getStats(Dimension dimension, String key) {
+        return groups.get(dimension).get(key == null ? UNKNOWN : key);
+    }
+
+    /**
+     * @return the statistics of every group of the dimension, in no particular order
+     */
+    public List<Stats> getAllStats(Dimension dimension) {
+        return new ArrayList<>(groups.get(dimension).values());
+    }
+
+    private Stats getOrCreate(Dimension dimension, String key) {
+        if (key == null) {
+            key = UNKNOWN;
+        }
+
+        ConcurrentMap<String, Stats> group = groups.get(dimension);
+        Stats stats = group.get(key);
+        if (stats == null) {
+            Stats newStats = new Stats(key);
+            stats = group.putIfAbsent(key, newStats);
+            if (stats == null) {
+                stats = newStats;
+            }
+        }
+
+        return stats;
+    }
+
+    /**
+     * An entry is an error if the server responded with a 4xx or 5xx status, or if no response was received at all.
+     */
+    private static boolean isError(HarResponse response) {
+        return response == null || response.getError() != null || response.getStatus() <= 0 || response.getStatus() >= 400;
+    }
+
+    private static String getHost(String url) {
+        if (url == null) {
+            return null;
+        }
+
+        try {
+            String host = new URI(url).getHost();
+            return host == null ? null : host.toLowerCase(Locale.US);
+        } catch (URISyntaxException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return the MIME type without its parameters, so that "text/html; charset=utf-8" and "text/html" are in the same group
+     */
+    private static String getMimeType(String contentType) {
+        if (contentType == null) {
+            return null;
+        }
+
+        int semicolon = contentType.indexOf(';');
+        String mimeType = (semicolon < 0 ? contentType : contentType.substring(0, semicolon)).trim().toLowerCase(Locale.US);
+        return mimeType.isEmpty() ? null : mimeType;
+    }
+
+    /**
+     * Statistics of a group of completed entries.
+     */
+    public static class Stats {
+        private final String key;
+
+        private long requests;
+        private long errors;
+        private long compressedBytes;
+        private long decompressedBytes;
+        private final QuantileSketch[] timings = new QuantileSketch[TIMINGS.length];
+
+        private Stats(String key) {
+            this.key = key;
+        }
+
+        private synchronized void record(boolean error, long entryCompressedBytes, long entryDecompressedBytes, long[] entryTimings) {
+            requests++;
+            if (error) {
+                errors++;
+            }
+            if (entryCompressedBytes > 0) {
+                compressedBytes += entryCompressedBytes;
+            }
+            if (entryDecompressedBytes > 0) {
+                decompressedBytes += entryDecompressedBytes;
+            }
+
+            for (int i = 0; i < entryTimings.length; i++) {
+                if (entryTimings[i] < 0) {
+                    continue;
+                }
+                if (timings[i] == null) {
+                    timings[i] = new QuantileSketch();
+                }
+                timings[i].add(entryTimings[i]);
+            }
+        }
+
+        /**
+         * @return the host, page id or MIME type of the group, or {@link #UNKNOWN}
+         */
+        public String getKey() {
+            return key;
+        }
+
+        public synchronized long getRequests() {
+            return requests;
+        }
+
+        public synchronized long getErrors() {
+            return errors;
+        }
+
+        /**
+         * @return the fraction of the requests that failed, between 0 and 1
+         */
+        public synchronized double getErrorRate() {
+            return requests == 0 ? 0 : (double) errors / requests;
+        }
+
+        /**
+         * @return the response body bytes as transferred, before the content encoding was decoded
+         */
+        public synchronized long getCompressedBytes() {
+            return compressedBytes;
+        }
+
+        /**
+         * @return the response body bytes after the content encoding was decoded, or as transferred if the content was not captured
+         */
+        public synchronized long getDecompressedBytes() {
+            return decompressedBytes;
+        }
+
+        /**
+         * @param quantile the quantile, between 0 and 1; for example 0.95 for the p95
+         * @return the approximate time spent in the phase at the quantile in milliseconds, or -1 if the phase never applied
+         */
+        public synchronized long getPercentile(Timing timing, double quantile) {
+            QuantileSketch sketch = timings[timing.ordinal()];
+            return sketch == null ? -1 : sketch.getQuantile(quantile);
+        }
+
+        /**
+         * @return the number of requests the phase applied to
+         */
+        public synchronized long getTimingCount(Timing timing) {
+            QuantileSketch sketch = timings[timing.ordinal()];
+            return sketch == null ? 0 : sketch.getCount();
+        }
+
+        /**
+         * @return the mean time spent in the phase in milliseconds, or -1 if the phase never applied
+         */
+        public synchronized double getMean(Timing timing) {
+            QuantileSketch sketch = timings[timing.ordinal()];
+            return sketch == null ? -1 : sketch.getMean();
+        }
+    }
+}
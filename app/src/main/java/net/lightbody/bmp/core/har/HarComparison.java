@@ -0,0 +1,648 @@
+package net.lightbody.bmp.core.har;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import net.lightbody.bmp.util.QuantileSketch;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.regex.Pattern;
+
+/**
+ * Compares the requests of two captures, for example a baseline HAR and the HAR of a new run, or two pages of the same HAR, and checks
+ * the new run against a {@link Budget}.
+ * <p/>
+ * Entries are joined on their URL template: the method, the normalized host and path with ids, UUIDs, hashes and tokens replaced by
+ * placeholders, and the sorted names of the query parameters. Entries of each side are aggregated into a hash table keyed by template
+ * as they are added, and the two tables are joined when the {@link Report} is created, so a template present only in the new run is an
+ * added request and a template present only in the baseline is a removed one. Timing percentiles are compared per host, using
+ * {@link QuantileSketch}es.
+ * <p/>
+ * HAR files are read one entry at a time and entries are not kept once they have been aggregated, so memory use depends on the number
+ * of distinct templates and hosts, not on the number of entries; captures larger than the heap can be compared.
+ * <p/>
+ * This class is not thread-safe.
+ */
+public class HarComparison {
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+    private static final HarAnalytics.Timing[] TIMINGS = HarAnalytics.Timing.values();
+
+    private static final Pattern NUMBER = Pattern.compile("\\d+");
+    private static final Pattern UUID = Pattern.compile("[0-9a-fA-F]{8}-[0-9a-fA-F]{4}-[0-9a-fA-F]{4}-[0-9a-fA-F]{4}-[0-9a-fA-F]{12}");
+    private static final Pattern HASH = Pattern.compile("(?=[a-fA-F]*\\d)[0-9a-fA-F]{8,}");
+    private static final Pattern TOKEN = Pattern.compile("(?=.*\\d)(?=.*[a-zA-Z])[0-9a-zA-Z_\\-=%]{20,}");
+
+    public enum Side {
+        BASELINE,
+        CURRENT
+    }
+
+    public enum Metric {
+        /**
+         * The response body bytes of all requests, as transferred.
+         */
+        TOTAL_BYTES,
+
+        /**
+         * The number of requests.
+         */
+        REQUESTS,
+
+        /**
+         * The 95th percentile of the time waiting for the server to respond, in milliseconds.
+         */
+        P95_WAIT
+    }
+
+    private final Map<String, Stats[]> templates = new HashMap<>();
+    private final Map<String, Stats[]> hosts = new HashMap<>();
+    private final Stats[] totals = {new Stats(true), new Stats(true)};
+
+    /**
+     * Adds an entry to one side of the comparison.
+     */
+    public void add(Side side, HarEntry entry) {
+        HarRequest request = entry.getRequest();
+        HarResponse response = entry.getResponse();
+        if (request == null) {
+            return;
+        }
+
+        long[] timings = new long[TIMINGS.length];
+        for (int i = 0; i < TIMINGS.length; i++) {
+            timings[i] = entry.getTimings() == null ? -1L : TIMINGS[i].get(entry.getTimings());
+        }
+
+        add(side, request.getMethod(), request.getUrl(),
+                response == null ? 0 : response.getStatus(),
+                response == null || response.getError() != null,
+                response == null ? -1L : response.getBodySize(),
+                timings);
+    }
+
+    /**
+     * Adds the entries of a HAR log to one side of the comparison.
+     *
+     * @param pageRef the page whose entries to add, or null to add every entry
+     */
+    public void addAll(Side side, HarLog harLog, String pageRef) {
+        for (HarEntry entry : harLog.getEntries()) {
+            if (pageRef == null || pageRef.equals(entry.getPageref())) {
+                add(side, entry);
+            }
+        }
+    }
+
+    /**
+     * Adds the entries of a HAR file to one side of the comparison. The HAR is parsed one entry at a time, so it is never held in
+     * memory. The stream is not closed.
+     *
+     * @param pageRef the page whose entries to add, or null to add every entry
+     * @throws IOException if the HAR cannot be read or is not valid JSON
+     */
+    public void addAll(Side side, InputStream harStream, String pageRef) throws IOException {
+        JsonParser parser = OBJECT_MAPPER.getFactory().createParser(harStream);
+        parser.disable(JsonParser.Feature.AUTO_CLOSE_SOURCE);
+        try {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new IOException("HAR does not contain a JSON object");
+            }
+
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.getCurrentName();
+                JsonToken value = parser.nextToken();
+                if ("log".equals(field) && value == JsonToken.START_OBJECT) {
+                    readLog(side, parser, pageRef);
+                } else {
+                    parser.skipChildren();
+                }
+            }
+        } finally {
+            parser.close();
+        }
+    }
+
+    private void readLog(Side side, JsonParser parser, String pageRef) throws IOException {
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.getCurrentName();
+            JsonToken value = parser.nextToken();
+            if ("entries".equals(field) && value == JsonToken.START_ARRAY) {
+                while (parser.nextToken() == JsonToken.START_OBJECT) {
+                    JsonNode entry = parser.readValueAsTree();
+                    if (pageRef == null || pageRef.equals(entry.path("pageref").asText(null))) {
+                        readEntry(side, entry);
+                    }
+                }
+            } else {
+                parser.skipChildren();
+            }
+        }
+    }
+
+    private void readEntry(Side side, JsonNode entry) {
+        JsonNode request = entry.path("request");
+        JsonNode response = entry.path("response");
+        if (!request.isObject()) {
+            return;
+        }
+
+        JsonNode timingsNode = entry.path("timings");
+        long[] timings = new long[TIMINGS.length];
+        for (int i = 0; i < TIMINGS.length; i++) {
+            timings[i] = timingsNode.path(TIMINGS[i].name().toLowerCase(Locale.US)).asLong(-1L);
+        }
+
+        add(side, request.path("method").asText(), request.path("url").asText(),
+                response.path("status").asInt(0),
+                !response.isObject() || response.hasNonNull("_error"),
+                response.path("bodySize").asLong(-1L),
+                timings);
+    }
+
+    private void add(Side side, String method, String url, int status, boolean failed, long bytes, long[] timings) {
+        boolean error = failed || status <= 0 || status >= 400;
+        int index = side.ordinal();
+
+        totals[index].record(error, bytes, timings);
+        getOrCreate(templates, templateOf(method, url), false)[index].record(error, bytes, timings);
+        getOrCreate(hosts, hostOf(url), true)[index].record(error, bytes, timings);
+    }
+
+    private static Stats[] getOrCreate(Map<String, Stats[]> groups, String key, boolean withTimings) {
+        Stats[] stats = groups.get(key);
+        if (stats == null) {
+            stats = new Stats[]{new Stats(withTimings), new Stats(withTimings)};
+            groups.put(key, stats);
+        }
+        return stats;
+    }
+
+    /**
+     * Joins the two sides and checks the current side against the budget.
+     *
+     * @param budget the budget to check, or null to skip the check
+     */
+    public Report getReport(Budget budget) {
+        List<Delta> added = new ArrayList<>();
+        List<Delta> removed = new ArrayList<>();
+        List<Delta> changed = new ArrayList<>();
+        for (Map.Entry<String, Stats[]> template : templates.entrySet()) {
+            Delta delta = new Delta(template.getKey(), template.getValue());
+            if (delta.isAdded()) {
+                added.add(delta);
+            } else if (delta.isRemoved()) {
+                removed.add(delta);
+            } else if (delta.getRequestDelta() != 0 || delta.getByteDelta() != 0) {
+                changed.add(delta);
+            }
+        }
+
+        List<Delta> hostDeltas = new ArrayList<>(hosts.size());
+        for (Map.Entry<String, Stats[]> host : hosts.entrySet()) {
+            hostDeltas.add(new Delta(host.getKey(), host.getValue()));
+        }
+
+        Comparator<Delta> byByteDelta = new Comparator<Delta>() {
+            @Override
+            public int compare(Delta a, Delta b) {
+                long difference = Math.abs(b.getByteDelta()) - Math.abs(a.getByteDelta());
+                return difference == 0 ? a.getKey().compareTo(b.getKey()) : (difference > 0 ? 1 : -1);
+            }
+        };
+        Collections.sort(added, byByteDelta);
+        Collections.sort(removed, byByteDelta);
+        Collections.sort(changed, byByteDelta);
+        Collections.sort(hostDeltas, byByteDelta);
+
+        Delta total = new Delta("", totals);
+        List<Violation> violations = budget == null ? Collections.<Violation>emptyList() : budget.check(total);
+
+        return new Report(total, added, removed, changed, hostDeltas, violations);
+    }
+
+    /**
+     * Returns the template of a request, which is the same for requests to the same endpoint that differ only in ids, hashes, tokens or
+     * query parameter values: for example, "GET https://api.example.com/users/{n}/avatar?size" for
+     * "https://api.example.com/users/42/avatar?size=64".
+     */
+    public static String templateOf(String method, String url) {
+        StringBuilder template = new StringBuilder(method == null ? "" : method.toUpperCase(Locale.US)).append(' ');
+        if (url == null) {
+            return template.toString();
+        }
+
+        URI uri;
+        try {
+            uri = new URI(url);
+        } catch (URISyntaxException e) {
+            return template.append(url).toString();
+        }
+
+        if (uri.getScheme() != null && uri.getHost() != null) {
+            String scheme = uri.getScheme().toLowerCase(Locale.US);
+            int port = uri.getPort();
+            if (("http".equals(scheme) && port == 80) || ("https".equals(scheme) && port == 443)) {
+                port = -1;
+            }
+
+            template.append(scheme).append("://").append(uri.getHost().toLowerCase(Locale.US));
+            if (port != -1) {
+                template.append(':').append(port);
+            }
+        }
+
+        String path = uri.getRawPath();
+        if (path == null || path.isEmpty()) {
+            template.append('/');
+        } else {
+            String[] segments = path.split("/", -1);
+            for (int i = 0; i < segments.length; i++) {
+                if (i > 0) {
+                    template.append('/');
+                }
+                template.append(templateOfSegment(segments[i]));
+            }
+        }
+
+        // only the names of the query parameters are kept, sorted and without duplicates
+        String query = uri.getRawQuery();
+        if (query != null && !query.isEmpty()) {
+            TreeSet<String> names = new TreeSet<>();
+            for (String param : query.split("&")) {
+                int equals = param.indexOf('=');
+                String name = equals < 0 ? param : param.substring(0, equals);
+                if (!name.isEmpty()) {
+                    names.add(name);
+                }
+            }
+
+            String separator = "?";
+            for (String name : names) {
+                template.append(separator).append(name);
+                separator = "&";
+            }
+        }
+
+        return template.toString();
+    }
+
+    private static String templateOfSegment(String segment) {
+        if (segment.isEmpty()) {
+            return segment;
+        }
+        if (NUMBER.matcher(segment).matches()) {
+            return "{n}";
+        }
+        if (UUID.matcher(segment).matches()) {
+            return "{uuid}";
+        }
+        if (HASH.matcher(segment).matches()) {
+            return "{hash}";
+        }
+        if (TOKEN.matcher(segment).matches()) {
+            return "{token}";
+        }
+
+        // content hashes in file names, such as app.3f2a9c1b.js
+        if (segment.indexOf('.') > 0) {
+            String[] parts = segment.split("\\.", -1);
+            StringBuilder builder = new StringBuilder(segment.length());
+            for (int i = 0; i < parts.length; i++) {
+                if (i > 0) {
+                    builder.append('.');
+                }
+                builder.append(i > 0 && HASH.matcher(parts[i]).matches() ? "{hash}" : parts[i]);
+            }
+            return builder.toString();
+        }
+
+        return segment;
+    }
+
+    private static String hostOf(String url) {
+        if (url == null) {
+            return HarAnalytics.UNKNOWN;
+        }
+
+        try {
+            String host = new URI(url).getHost();
+            return host == null ? HarAnalytics.UNKNOWN : host.toLowerCase(Locale.US);
+        } catch (URISyntaxException e) {
+            return HarAnalytics.UNKNOWN;
+        }
+    }
+
+    /**
+     * The requests of one side of the comparison that share a template or a host, or all of them.
+     */
+    public static class Stats {
+        private long requests;
+        private long errors;
+        private long bytes;
+        private long totalTime;
+        private final QuantileSketch[] timings;
+
+        private Stats(boolean withTimings) {
+            this.timings = withTimings ? new QuantileSketch[TIMINGS.length] : null;
+        }
+
+        private void record(boolean error, long entryBytes, long[] entryTimings) {
+            requests++;
+            if (error) {
+                errors++;
+            }
+            if (entryBytes > 0) {
+                bytes += entryBytes;
+            }
+
+            for (int i = 0; i < entryTimings.length; i++) {
+                if (entryTimings[i] < 0) {
+                    continue;
+                }
+                // as in HarEntry.getTime(), the SSL time is already part of the connect time
+                if (TIMINGS[i] != HarAnalytics.Timing.SSL) {
+                    totalTime += entryTimings[i];
+                }
+                if (timings != null) {
+                    if (timings[i] == null) {
+                        timings[i] = new QuantileSketch();
+                    }
+                    timings[i].add(entryTimings[i]);
+                }
+            }
+        }
+
+        public long getRequests() {
+            return requests;
+        }
+
+        public long getErrors() {
+            return errors;
+        }
+
+        /**
+         * @return the response body bytes, as transferred
+         */
+        public long getBytes() {
+            return bytes;
+        }
+
+        /**
+         * @return the mean total time of the requests in milliseconds, or -1 if there are none
+         */
+        public double getMeanTime() {
+            return requests == 0 ? -1 : (double) totalTime / requests;
+        }
+
+        /**
+         * Percentiles are kept for hosts and totals only, not for templates.
+         *
+         * @return the approximate time spent in the phase at the quantile in milliseconds, or -1 if it is not known
+         */
+        public long getPercentile(HarAnalytics.Timing timing, double quantile) {
+            if (timings == null || timings[timing.ordinal()] == null) {
+                return -1;
+            }
+            return timings[timing.ordinal()].getQuantile(quantile);
+        }
+    }
+
+    /**
+     * The baseline and current statistics of a template, a host, or of all requests.
+     */
+    public static class Delta {
+        private final String key;
+        private final Stats baseline;
+        private final Stats current;
+
+        private Delta(String key, Stats[] stats) {
+            this.key = key;
+            this.baseline = stats[Side.BASELINE.ordinal()];
+            this.current = stats[Side.CURRENT.ordinal()];
+        }
+
+        /**
+         * @return the template or host, or an empty string for the totals
+         */
+        public String getKey() {
+            return key;
+        }
+
+        public Stats getBaseline() {
+            return baseline;
+        }
+
+        public Stats getCurrent() {
+            return current;
+        }
+
+        /**
+         * @return true if there are requests only in the current capture
+         */
+        public boolean isAdded() {
+            return baseline.getRequests() == 0 && current.getRequests() > 0;
+        }
+
+        /**
+         * @return true if there are requests only in the baseline
+         */
+        public boolean isRemoved() {
+            return baseline.getRequests() > 0 && current.getRequests() == 0;
+        }
+
+        public long getRequestDelta() {
+            return current.getRequests() - baseline.getRequests();
+        }
+
+        public long getByteDelta() {
+            return current.getBytes() - baseline.getBytes();
+        }
+
+        /**
+         * @return the change of the percentile in milliseconds, or 0 if it is not known on both sides
+         */
+        public long getPercentileDelta(HarAnalytics.Timing timing, double quantile) {
+            long baselineValue = baseline.getPercentile(timing, quantile);
+            long currentValue = current.getPercentile(timing, quantile);
+            return baselineValue < 0 || currentValue < 0 ? 0 : currentValue - baselineValue;
+        }
+    }
+
+    /**
+     * Limits on the current capture. Each metric can be limited to an absolute value, to a maximum increase over the baseline, or both;
+     * metrics that are not set are not checked.
+     */
+    public static class Budget {
+        private final Map<Metric, Long> maxValues = new HashMap<>();
+        private final Map<Metric, Double> maxIncreases = new HashMap<>();
+
+        /**
+         * @param maxValue the largest allowed value: bytes, a number of requests, or milliseconds
+         */
+        public Budget setMaxValue(Metric metric, long maxValue) {
+            maxValues.put(metric, maxValue);
+            return this;
+        }
+
+        /**
+         * @param maxIncrease the largest allowed increase over the baseline, as a fraction of the baseline; for example 0.1 for 10%
+         */
+        public Budget setMaxIncrease(Metric metric, double maxIncrease) {
+            maxIncreases.put(metric, maxIncrease);
+            return this;
+        }
+
+        private List<Violation> check(Delta total) {
+            List<Violation> violations = new ArrayList<>();
+            for (Metric metric : Metric.values()) {
+                long baselineValue = valueOf(metric, total.getBaseline());
+                long currentValue = valueOf(metric, total.getCurrent());
+
+                Long maxValue = maxValues.get(metric);
+                if (maxValue != null && currentValue > maxValue) {
+                    violations.add(new Violation(metric, baselineValue, currentValue, maxValue));
+                    continue;
+                }
+
+                Double maxIncrease = maxIncreases.get(metric);
+                if (maxIncrease != null && baselineValue >= 0) {
+                    long limit = (long) Math.floor(baselineValue * (1 + maxIncrease));
+                    if (currentValue > limit) {
+                        violations.add(new Violation(metric, baselineValue, currentValue, limit));
+                    }
+                }
+            }
+            return violations;
+        }
+
+        private static long valueOf(Metric metric, Stats stats) {
+            switch (metric) {
+                case TOTAL_BYTES:
+                    return stats.getBytes();
+                case REQUESTS:
+                    return stats.getRequests();
+                case P95_WAIT:
+                    return stats.getPercentile(HarAnalytics.Timing.WAIT, 0.95);
+                default:
+                    throw new IllegalArgumentException("Unknown metric: " + metric);
+            }
+        }
+    }
+
+    /**
+     * A metric of the current capture that exceeds its budget.
+     */
+    public static class Violation {
+        private final Metric metric;
+        private final long baselineValue;
+        private final long currentValue;
+        private final long limit;
+
+        private Violation(Metric metric, long baselineValue, long currentValue, long limit) {
+            this.metric = metric;
+            this.baselineValue = baselineValue;
+            this.currentValue = currentValue;
+            this.limit = limit;
+        }
+
+        public Metric getMetric() {
+            return metric;
+        }
+
+        public long getBaselineValue() {
+            return baselineValue;
+        }
+
+        public long getCurrentValue() {
+            return currentValue;
+        }
+
+        /**
+         * @return the largest value the budget allowed
+         */
+        public long getLimit() {
+            return limit;
+        }
+
+        @Override
+        public String toString() {
+            return metric + " is " + currentValue + ", over the budget of " + limit + " (baseline " + baselineValue + ")";
+        }
+    }
+
+    /**
+     * The result of a comparison. Added, removed and changed templates, and hosts, are sorted by the size of their byte delta.
+     */
+    public static class Report {
+        private final Delta total;
+        private final List<Delta> added;
+        private final List<Delta> removed;
+        private final List<Delta> changed;
+        private final List<Delta> hosts;
+        private final List<Violation> violations;
+
+        private Report(Delta total, List<Delta> added, List<Delta> removed, List<Delta> changed, List<Delta> hosts,
+                       List<Violation> violations) {
+            this.total = total;
+            this.added = Collections.unmodifiableList(added);
+            this.removed = Collections.unmodifiableList(removed);
+            this.changed = Collections.unmodifiableList(changed);
+            this.hosts = Collections.unmodifiableList(hosts);
+            this.violations = Collections.unmodifiableList(violations);
+        }
+
+        /**
+         * @return the statistics of all requests of both sides
+         */
+        public Delta getTotal() {
+            return total;
+        }
+
+        /**
+         * @return templates requested only in the current capture
+         */
+        public List<Delta> getAdded() {
+            return added;
+        }
+
+        /**
+         * @return templates requested only in the baseline
+         */
+        public List<Delta> getRemoved() {
+            return removed;
+        }
+
+        /**
+         * @return templates requested in both captures, but a different number of times or with a different number of bytes
+         */
+        public List<Delta> getChanged() {
+            return changed;
+        }
+
+        public List<Delta> getHosts() {
+            return hosts;
+        }
+
+        public List<Violation> getViolations() {
+            return violations;
+        }
+
+        public boolean isWithinBudget() {
+            return violations.isEmpty();
+        }
+    }
+}
@@ -0,0 +1,530 @@
+package net.lightbody.bmp.core.har;
+
+import com.google.common.collect.ImmutableSet;
+import io.netty.handler.codec.http.QueryStringDecoder;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Search index over the entries of a HAR, kept up to date by listening to the {@link HarLog}'s capture events. Each entry is indexed
+ * by the URL and the query parameter names when it is added, and by a selected set of request and response header values when it
+ * completes.
+ * <p/>
+ * Queries are case-insensitive. Terms separated by whitespace must all match (AND); groups of terms separated by <code>|</code> or
+ * <code>OR</code> are alternatives (OR). A term matches an entry when the entry's URL or indexed header values contain it. A term can be
+ * limited to one field by prefixing it with <code>host:</code>, <code>path:</code>, <code>query:</code> (query parameter names) or
+ * <code>header:</code>. For example: <code>api host:example.com | header:image/webp</code>.
+ * <p/>
+ * Terms of three or more characters are answered by intersecting trigram postings and then checking only the candidates. Shorter terms
+ * cannot be answered by trigrams, so they match whole tokens (runs of letters and digits) instead, which is also what a search for
+ * "js" or "v2" usually means.
+ * <p/>
+ * Indexing happens on the thread that captured the entry and searching may happen on any thread; both are guarded by a read-write lock.
+ */
+public class HarEntryIndex implements HarLog.CaptureListener {
+    /**
+     * Headers whose values are indexed by default. The user agent is not indexed: it is long and the same on almost every entry, so it
+     * would add its trigrams to nearly every entry's postings without helping to tell entries apart.
+     */
+    public static final Set<String> DEFAULT_INDEXED_HEADERS = ImmutableSet.of("content-type", "referer", "origin");
+
+    private static final int GRAM_LENGTH = 3;
+
+    private static final int FIELD_URL = 0;
+    private static final int FIELD_HOST = 1;
+    private static final int FIELD_PATH = 2;
+    private static final int FIELD_QUERY = 3;
+    private static final int FIELD_HEADER = 4;
+    private static final int FIELD_COUNT = 5;
+
+    private static final String[] FIELD_PREFIXES = {null, "host:", "path:", "query:", "header:"};
+
+    private final Set<String> indexedHeaders;
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    /**
+     * Indexed entries, in the order they were added. An entry's position in this list is its id in the postings.
+     */
+    private final List<HarEntry> entries = new ArrayList<>();
+    private final List<String[]> entryFields = new ArrayList<>();
+    private final Map<HarEntry, Integer> entryIds = new IdentityHashMap<>();
+
+    /**
+     * Postings for every trigram of the URL and header fields. Trigrams are packed into a long, so looking one up does not allocate a
+     * String.
+     */
+    private final Map<Long, Postings> grams = new HashMap<>();
+
+    /**
+     * Postings for every token of the URL and header fields.
+     */
+    private final Map<String, Postings> tokens = new HashMap<>();
+
+    public HarEntryIndex() {
+        this(DEFAULT_INDEXED_HEADERS);
+    }
+
+    /**
+     * @param indexedHeaders names of the request and response headers whose values are indexed, in lower case
+     */
+    public HarEntryIndex(Set<String> indexedHeaders) {
+        this.indexedHeaders = ImmutableSet.copyOf(indexedHeaders);
+    }
+
+    @Override
+    public void entryAdded(HarEntry entry) {
+        HarRequest request = entry.getRequest();
+        if (request == null || request.getUrl() == null) {
+            return;
+        }
+
+        String url = request.getUrl().toLowerCase(Locale.US);
+
+        String[] fields = new String[FIELD_COUNT];
+        fields[FIELD_URL] = url;
+        fields[FIELD_HOST] = "";
+        fields[FIELD_PATH] = "";
+        fields[FIELD_QUERY] = "";
+        fields[FIELD_HEADER] = "";
+
+        try {
+            URI uri = new URI(url);
+            if (uri.getHost() != null) {
+                fields[FIELD_HOST] = uri.getHost();
+            }
+            if (uri.getRawPath() != null) {
+                fields[FIELD_PATH] = uri.getRawPath();
+            }
+        } catch (URISyntaxException e) {
+            // the URL is still indexed as a whole, it just cannot be searched by host or path
+        }
+
+        // query parameters are captured after the entry is added, so take their names from the URL
+        StringBuilder queryNames = new StringBuilder();
+        try {
+            for (String name : new QueryStringDecoder(url).parameters().keySet()) {
+                queryNames.append(name).append('\n');
+            }
+        } catch (IllegalArgumentException e) {
+            // malformed escapes in the query string; the names can still be found by searching the whole URL
+        }
+        fields[FIELD_QUERY] = queryNames.toString();
+
+        lock.writeLock().lock();
+        try {
+            if (entryIds.containsKey(entry)) {
+                return;
+            }
+
+            int id = entries.size();
+            entries.add(entry);
+            entryFields.add(fields);
+            entryIds.put(entry, id);
+
+            addText(id, url);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void entryCompleted(HarEntry entry) {
+        StringBuilder headerValues = new StringBuilder();
+
+        // request headers are only present if header capture is enabled; the response's content type is always known
+        HarRequest request = entry.getRequest();
+        if (request != null) {
+            appendHeaderValues(headerValues, request.getHeaders());
+        }
+
+        HarResponse response = entry.getResponse();
+        if (response != null) {
+            appendHeaderValues(headerValues, response.getHeaders());
+
+            if (response.getContent() != null && response.getContent().getMimeType() != null) {
+                headerValues.append(response.getContent().getMimeType().toLowerCase(Locale.US)).append('\n');
+            }
+        }
+
+        if (headerValues.length() == 0) {
+            return;
+        }
+
+        String text = headerValues.toString();
+
+        lock.writeLock().lock();
+        try {
+            Integer id = entryIds.get(entry);
+            if (id == null) {
+                return;
+            }
+
+            String[] fields = entryFields.get(id);
+            fields[FIELD_HEADER] = fields[FIELD_HEADER] + text;
+
+            addText(id, text);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void entriesCleared() {
+        clear();
+    }
+
+    public void clear() {
+        lock.writeLock().lock();
+        try {
+            entries.clear();
+            entryFields.clear();
+            entryIds.clear();
+            grams.clear();
+            tokens.clear();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @return the number of indexed entries
+     */
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return entries.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Finds the entries that match the query.
+     *
+     * @param query the query; see the class documentation for the syntax
+     * @return matching entries in the order they were captured, or every indexed entry if the query is empty
+     */
+    public List<HarEntry> search(String query) {
+        List<List<Term>> groups = parse(query);
+
+        lock.readLock().lock();
+        try {
+            if (groups.isEmpty()) {
+                return new ArrayList<>(entries);
+            }
+
+            BitSet matches = new BitSet(entries.size());
+            for (List<Term> group : groups) {
+                for (int id : searchGroup(group)) {
+                    matches.set(id);
+                }
+            }
+
+            List<HarEntry> results = new ArrayList<>(matches.cardinality());
+            for (int id = matches.nextSetBit(0); id >= 0; id = matches.nextSetBit(id + 1)) {
+                results.add(entries.get(id));
+            }
+
+            return results;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Checks a single entry against the query, without using the postings. Useful for deciding whether a newly captured entry belongs in
+     * the results of a query that has already been answered.
+     *
+     * @return true if the entry has been indexed and matches the query, or if the query is empty
+     */
+    public boolean matches(HarEntry entry, String query) {
+        List<List<Term>> groups = parse(query);
+        if (groups.isEmpty()) {
+            return true;
+        }
+
+        lock.readLock().lock();
+        try {
+            Integer id = entryIds.get(entry);
+            if (id == null) {
+                return false;
+            }
+
+            String[] fields = entryFields.get(id);
+            for (List<Term> group : groups) {
+                boolean groupMatches = true;
+                for (Term term : group) {
+                    if (!term.matches(fields)) {
+                        groupMatches = false;
+                        break;
+                    }
+                }
+
+                if (groupMatches) {
+                    return true;
+                }
+            }
+
+            return false;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Parses a query into OR-ed groups of AND-ed terms.
+     */
+    private static List<List<Term>> parse(String query) {
+        if (query == null) {
+            return Collections.emptyList();
+        }
+
+        List<List<Term>> groups = new ArrayList<>();
+        List<Term> group = new ArrayList<>();
+        for (String word : query.trim().split("\\s+")) {
+            if (word.isEmpty()) {
+                continue;
+            }
+
+            if (word.equals("|") || word.equals("OR")) {
+                if (!group.isEmpty()) {
+                    groups.add(group);
+                    group = new ArrayList<>();
+                }
+                continue;
+            }
+
+            String lowerCaseWord = word.toLowerCase(Locale.US);
+            int field = FIELD_URL;
+            for (int i = 1; i < FIELD_COUNT; i++) {
+                if (lowerCaseWord.startsWith(FIELD_PREFIXES[i]) && lowerCaseWord.length() > FIELD_PREFIXES[i].length()) {
+                    field = i;
+                    lowerCaseWord = lowerCaseWord.substring(FIELD_PREFIXES[i].length());
+                    break;
+                }
+            }
+
+            group.add(new Term(field, lowerCaseWord));
+        }
+
+        if (!group.isEmpty()) {
+            groups.add(group);
+        }
+
+        return groups;
+    }
+
+    /**
+     * Answers one group of AND-ed terms. Must be called with the read lock held.
+     */
+    private int[] searchGroup(List<Term> group) {
+        // gather the postings that bound the candidates, then check only the candidates against every term
+        List<Postings> bounds = new ArrayList<>();
+        for (Term term : group) {
+            if (term.text.length() >= GRAM_LENGTH) {
+                for (int i = 0; i + GRAM_LENGTH <= term.text.length(); i++) {
+                    Postings postings = grams.get(packGram(term.text, i));
+                    if (postings == null) {
+                        return new int[0];
+                    }
+                    bounds.add(postings);
+                }
+            } else {
+                Postings postings = tokens.get(term.text);
+                if (postings == null) {
+                    return new int[0];
+                }
+                bounds.add(postings);
+            }
+        }
+
+        Collections.sort(bounds);
+
+        int[] candidates = Arrays.copyOf(bounds.get(0).ids, bounds.get(0).size);
+        int candidateCount = candidates.length;
+        for (int i = 1; i < bounds.size() && candidateCount > 0; i++) {
+            candidateCount = bounds.get(i).retainAll(candidates, candidateCount);
+        }
+
+        int matchCount = 0;
+        for (int i = 0; i < candidateCount; i++) {
+            String[] fields = entryFields.get(candidates[i]);
+
+            boolean allMatch = true;
+            for (Term term : group) {
+                if (!term.matches(fields)) {
+                    allMatch = false;
+                    break;
+                }
+            }
+
+            if (allMatch) {
+                candidates[matchCount++] = candidates[i];
+            }
+        }
+
+        return Arrays.copyOf(candidates, matchCount);
+    }
+
+    /**
+     * Adds the trigrams and tokens of the text to the postings. Must be called with the write lock held.
+     */
+    private void addText(int id, String text) {
+        for (int i = 0; i + GRAM_LENGTH <= text.length(); i++) {
+            Long gram = packGram(text, i);
+            Postings postings = grams.get(gram);
+            if (postings == null) {
+                postings = new Postings();
+                grams.put(gram, postings);
+            }
+            postings.add(id);
+        }
+
+        int tokenStart = -1;
+        for (int i = 0; i <= text.length(); i++) {
+            boolean tokenChar = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+            if (tokenChar && tokenStart < 0) {
+                tokenStart = i;
+            } else if (!tokenChar && tokenStart >= 0) {
+                // longer tokens are found through their trigrams, so only short tokens need their own postings
+                if (i - tokenStart < GRAM_LENGTH) {
+                    String token = text.substring(tokenStart, i);
+                    Postings postings = tokens.get(token);
+                    if (postings == null) {
+                        postings = new Postings();
+                        tokens.put(token, postings);
+                    }
+                    postings.add(id);
+                }
+                tokenStart = -1;
+            }
+        }
+    }
+
+    private void appendHeaderValues(StringBuilder headerValues, List<HarNameValuePair> headers) {
+        for (HarNameValuePair header : headers) {
+            if (header.getName() != null && header.getValue() != null
+                    && indexedHeaders.contains(header.getName().toLowerCase(Locale.US))) {
+                headerValues.append(header.getValue().toLowerCase(Locale.US)).append('\n');
+            }
+        }
+    }
+
+    private static long packGram(String text, int offset) {
+        return ((long) text.charAt(offset) << 32) | ((long) text.charAt(offset + 1) << 16) | text.charAt(offset + 2);
+    }
+
+    /**
+     * A single search term, optionally limited to one field.
+     */
+    private static class Term {
+        private final int field;
+        private final String text;
+
+        private Term(int field, String text) {
+            this.field = field;
+            this.text = text;
+        }
+
+        private boolean matches(String[] fields) {
+            if (text.length() < GRAM_LENGTH) {
+                return containsToken(field == FIELD_URL ? fields[FIELD_URL] : fields[field], text)
+                        || (field == FIELD_URL && containsToken(fields[FIELD_HEADER], text));
+            }
+
+            if (field == FIELD_URL) {
+                return fields[FIELD_URL].contains(text) || fields[FIELD_HEADER].contains(text);
+            } else {
+                return fields[field].contains(text);
+            }
+        }
+
+        private static boolean containsToken(String fieldText, String token) {
+            int index = fieldText.indexOf(token);
+            while (index >= 0) {
+                int end = index + token.length();
+                if ((index == 0 || !Character.isLetterOrDigit(fieldText.charAt(index - 1)))
+                        && (end == fieldText.length() || !Character.isLetterOrDigit(fieldText.charAt(end)))) {
+                    return true;
+                }
+                index = fieldText.indexOf(token, index + 1);
+            }
+
+            return false;
+        }
+    }
+
+    /**
+     * Ascending ids of the entries that contain a trigram or token. Ids are assigned in capture order, so ids added when entries are
+     * added arrive in order; ids added when entries complete may arrive slightly out of order and are inserted in place.
+     */
+    private static class Postings implements Comparable<Postings> {
+        private int[] ids = new int[4];
+        private int size;
+
+        private void add(int id) {
+            if (size > 0 && ids[size - 1] >= id) {
+                int index = Arrays.binarySearch(ids, 0, size, id);
+                if (index >= 0) {
+                    return;
+                }
+
+                ensureCapacity();
+                int insertionPoint = -index - 1;
+                System.arraycopy(ids, insertionPoint, ids, insertionPoint + 1, size - insertionPoint);
+                ids[insertionPoint] = id;
+                size++;
+                return;
+            }
+
+            ensureCapacity();
+            ids[size++] = id;
+        }
+
+        /**
+         * Removes the candidates that are not in these postings.
+         *
+         * @return the number of remaining candidates, which are moved to the start of the array
+         */
+        private int retainAll(int[] candidates, int candidateCount) {
+            int retained = 0;
+            int from = 0;
+            for (int i = 0; i < candidateCount && from < size; i++) {
+                int index = Arrays.binarySearch(ids, from, size, candidates[i]);
+                if (index >= 0) {
+                    candidates[retained++] = candidates[i];
+                    from = index + 1;
+                } else {
+                    from = -index - 1;
+                }
+            }
+
+            return retained;
+        }
+
+        private void ensureCapacity() {
+            if (size == ids.length) {
+                ids = Arrays.copyOf(ids, ids.length * 2);
+            }
+        }
+
+        @Override
+        public int compareTo(Postings other) {
+            return size < other.size ? -1 : (size == other.size ? 0 : 1);
+        }
+    }
+}
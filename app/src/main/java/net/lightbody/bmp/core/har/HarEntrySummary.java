@@ -0,0 +1,491 @@
+package net.lightbody.bmp.core.har;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Columnar summary of the entries of a HAR, kept up to date by listening to the {@link HarLog}'s capture events. Each entry is a row:
+ * the numeric values (status, sizes, total time and timings) are held in primitive arrays, and the host, MIME type, page and method are
+ * interned into dictionaries and held as ids. A row is created when an entry is added and filled in when it completes; until then its
+ * status is 0 and its sizes and times are -1. Conditions on the columns that are only known once the entry completes (the numeric
+ * columns and the MIME type) never match a row that has not completed, so an in-flight entry does not match {@code size<1KB} or
+ * {@code status!=200}.
+ * <p/>
+ * {@link HarQuery} conditions are evaluated against the columns alone, and text conditions are evaluated once per distinct dictionary
+ * value rather than once per row, so queries never read the {@link HarEntry} objects.
+ * <p/>
+ * Rows are added and completed on the threads that capture the entries and may be queried from any thread; both are guarded by a
+ * read-write lock.
+ */
+public class HarEntrySummary implements HarLog.CaptureListener {
+    private static final int INITIAL_CAPACITY = 256;
+
+    /**
+     * The timings held in the summary, in the order of the timing columns.
+     */
+    private static final HarQuery.Field[] TIMING_FIELDS = {
+            HarQuery.Field.BLOCKED, HarQuery.Field.DNS, HarQuery.Field.CONNECT, HarQuery.Field.SSL,
+            HarQuery.Field.SEND, HarQuery.Field.WAIT, HarQuery.Field.RECEIVE};
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    private final Map<HarEntry, Integer> rows = new IdentityHashMap<>();
+    private HarEntry[] entries = new HarEntry[INITIAL_CAPACITY];
+    private int rowCount;
+
+    /**
+     * Rows whose entries have completed.
+     */
+    private final BitSet completed = new BitSet(INITIAL_CAPACITY);
+
+    private int[] status = new int[INITIAL_CAPACITY];
+    private long[] responseSize = new long[INITIAL_CAPACITY];
+    private long[] requestSize = new long[INITIAL_CAPACITY];
+    private long[] time = new long[INITIAL_CAPACITY];
+
+    /**
+     * Timings in milliseconds, one column per timing, indexed by {@link #TIMING_FIELDS}.
+     */
+    private final long[][] timings = new long[TIMING_FIELDS.length][INITIAL_CAPACITY];
+
+    private int[] hostIds = new int[INITIAL_CAPACITY];
+    private int[] mimeIds = new int[INITIAL_CAPACITY];
+    private int[] pageIds = new int[INITIAL_CAPACITY];
+    private int[] methodIds = new int[INITIAL_CAPACITY];
+
+    private final Dictionary hosts = new Dictionary();
+    private final Dictionary mimeTypes = new Dictionary();
+    private final Dictionary pages = new Dictionary();
+    private final Dictionary methods = new Dictionary();
+
+    @Override
+    public void entryAdded(HarEntry entry) {
+        HarRequest request = entry.getRequest();
+        String host = request == null ? null : getHost(request.getUrl());
+        String method = request == null ? null : request.getMethod();
+
+        lock.writeLock().lock();
+        try {
+            if (rows.containsKey(entry)) {
+                return;
+            }
+
+            ensureCapacity();
+
+            int row = rowCount++;
+            rows.put(entry, row);
+            entries[row] = entry;
+
+            completed.clear(row);
+            status[row] = 0;
+            responseSize[row] = -1L;
+            requestSize[row] = -1L;
+            time[row] = -1L;
+            for (long[] timing : timings) {
+                timing[row] = -1L;
+            }
+
+            hostIds[row] = hosts.intern(host);
+            mimeIds[row] = mimeTypes.intern(null);
+            pageIds[row] = pages.intern(entry.getPageref());
+            methodIds[row] = methods.intern(method);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void entryCompleted(HarEntry entry) {
+        HarResponse response = entry.getResponse();
+        HarRequest request = entry.getRequest();
+        HarTimings harTimings = entry.getTimings();
+
+        int entryStatus = response == null ? 0 : response.getStatus();
+        long entryResponseSize = response == null ? -1L : response.getBodySize();
+        long entryRequestSize = request == null ? -1L : request.getBodySize();
+        long entryTime = entry.getTime(TimeUnit.MILLISECONDS);
+        String mimeType = response == null || response.getContent() == null ? null : response.getContent().getMimeType();
+
+        long[] entryTimings = new long[TIMING_FIELDS.length];
+        if (harTimings != null) {
+            entryTimings[0] = harTimings.getBlocked(TimeUnit.MILLISECONDS);
+            entryTimings[1] = harTimings.getDns(TimeUnit.MILLISECONDS);
+            entryTimings[2] = harTimings.getConnect(TimeUnit.MILLISECONDS);
+            entryTimings[3] = harTimings.getSsl(TimeUnit.MILLISECONDS);
+            entryTimings[4] = harTimings.getSend(TimeUnit.MILLISECONDS);
+            entryTimings[5] = harTimings.getWait(TimeUnit.MILLISECONDS);
+            entryTimings[6] = harTimings.getReceive(TimeUnit.MILLISECONDS);
+        } else {
+            Arrays.fill(entryTimings, -1L);
+        }
+
+        lock.writeLock().lock();
+        try {
+            Integer row = rows.get(entry);
+            if (row == null) {
+                return;
+            }
+
+            status[row] = entryStatus;
+            responseSize[row] = entryResponseSize;
+            requestSize[row] = entryRequestSize;
+            time[row] = entryTime;
+            for (int i = 0; i < timings.length; i++) {
+                timings[i][row] = entryTimings[i];
+            }
+
+            mimeIds[row] = mimeTypes.intern(mimeType);
+            completed.set(row);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void entriesCleared() {
+        clear();
+    }
+
+    public void clear() {
+        lock.writeLock().lock();
+        try {
+            rows.clear();
+            Arrays.fill(entries, 0, rowCount, null);
+            rowCount = 0;
+            completed.clear();
+
+            hosts.clear();
+            mimeTypes.clear();
+            pages.clear();
+            methods.clear();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @return the number of rows in the summary
+     */
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return rowCount;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Finds the entries that match a query. The conditions of each clause are evaluated against the columns; the clause's free text, if
+     * any, is searched for in the index.
+     *
+     * @param query the parsed query
+     * @param index index for the free text of the query, or null to ignore free text
+     * @return matching entries in the order they were captured, or every entry if the query is empty
+     */
+    public List<HarEntry> select(HarQuery query, HarEntryIndex index) {
+        // search the index before taking the lock, so the two locks are never held together
+        List<BitSet> textMatches = new ArrayList<>(query.getClauses().size());
+        for (HarQuery.Clause clause : query.getClauses()) {
+            if (index == null || clause.getText().isEmpty()) {
+                textMatches.add(null);
+                continue;
+            }
+
+            List<HarEntry> textResults = index.search(clause.getText());
+
+            lock.readLock().lock();
+            try {
+                BitSet rowsWithText = new BitSet(rowCount);
+                for (HarEntry entry : textResults) {
+                    Integer row = rows.get(entry);
+                    if (row != null) {
+                        rowsWithText.set(row);
+                    }
+                }
+                textMatches.add(rowsWithText);
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+
+        lock.readLock().lock();
+        try {
+            BitSet matches = new BitSet(rowCount);
+            if (query.isEmpty()) {
+                matches.set(0, rowCount);
+            }
+
+            for (int i = 0; i < query.getClauses().size(); i++) {
+                HarQuery.Clause clause = query.getClauses().get(i);
+
+                BitSet clauseMatches = textMatches.get(i);
+                if (clauseMatches == null) {
+                    clauseMatches = new BitSet(rowCount);
+                    clauseMatches.set(0, rowCount);
+                }
+
+                for (HarQuery.Condition condition : clause.getConditions()) {
+                    applyCondition(condition, clauseMatches);
+                }
+
+                matches.or(clauseMatches);
+            }
+
+            List<HarEntry> results = new ArrayList<>(matches.cardinality());
+            for (int row = matches.nextSetBit(0); row >= 0 && row < rowCount; row = matches.nextSetBit(row + 1)) {
+                results.add(entries[row]);
+            }
+
+            return results;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Checks a single entry against a query, for example to decide whether a newly captured or completed entry belongs in the results
+     * of a query that has already been answered.
+     *
+     * @return true if the entry is in the summary and matches the query, or if the query is empty
+     */
+    public boolean matches(HarEntry entry, HarQuery query, HarEntryIndex index) {
+        if (query.isEmpty()) {
+            return true;
+        }
+
+        for (HarQuery.Clause clause : query.getClauses()) {
+            if (index != null && !clause.getText().isEmpty() && !index.matches(entry, clause.getText())) {
+                continue;
+            }
+
+            lock.readLock().lock();
+            try {
+                Integer row = rows.get(entry);
+                if (row == null) {
+                    return false;
+                }
+
+                boolean allMatch = true;
+                for (HarQuery.Condition condition : clause.getConditions()) {
+                    if (!rowMatches(condition, row)) {
+                        allMatch = false;
+                        break;
+                    }
+                }
+
+                if (allMatch) {
+                    return true;
+                }
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Clears the rows that do not satisfy the condition. Must be called with the read lock held.
+     */
+    private void applyCondition(HarQuery.Condition condition, BitSet candidates) {
+        HarQuery.Field field = condition.getField();
+
+        if (isKnownWhenCompleted(field)) {
+            candidates.and(completed);
+        }
+
+        if (!field.isNumeric()) {
+            int[] ids = getIdColumn(field);
+            boolean[] matchingIds = getDictionary(field).match(condition);
+            for (int row = candidates.nextSetBit(0); row >= 0 && row < rowCount; row = candidates.nextSetBit(row + 1)) {
+                if (!matchingIds[ids[row]]) {
+                    candidates.clear(row);
+                }
+            }
+        } else if (field == HarQuery.Field.STATUS) {
+            for (int row = candidates.nextSetBit(0); row >= 0 && row < rowCount; row = candidates.nextSetBit(row + 1)) {
+                if (!condition.matches(status[row])) {
+                    candidates.clear(row);
+                }
+            }
+        } else {
+            long[] column = getNumericColumn(field);
+            for (int row = candidates.nextSetBit(0); row >= 0 && row < rowCount; row = candidates.nextSetBit(row + 1)) {
+                if (!condition.matches(column[row])) {
+                    candidates.clear(row);
+                }
+            }
+        }
+    }
+
+    /**
+     * Must be called with the read lock held.
+     */
+    private boolean rowMatches(HarQuery.Condition condition, int row) {
+        HarQuery.Field field = condition.getField();
+
+        if (isKnownWhenCompleted(field) && !completed.get(row)) {
+            return false;
+        }
+
+        if (!field.isNumeric()) {
+            return condition.matches(getDictionary(field).get(getIdColumn(field)[row]));
+        } else if (field == HarQuery.Field.STATUS) {
+            return condition.matches(status[row]);
+        } else {
+            return condition.matches(getNumericColumn(field)[row]);
+        }
+    }
+
+    /**
+     * @return true if the field's column is only filled in when the entry completes
+     */
+    private static boolean isKnownWhenCompleted(HarQuery.Field field) {
+        return field.isNumeric() || field == HarQuery.Field.MIME;
+    }
+
+    private long[] getNumericColumn(HarQuery.Field field) {
+        switch (field) {
+            case SIZE:
+                return responseSize;
+            case REQUEST_SIZE:
+                return requestSize;
+            case TIME:
+                return time;
+            default:
+                for (int i = 0; i < TIMING_FIELDS.length; i++) {
+                    if (TIMING_FIELDS[i] == field) {
+                        return timings[i];
+                    }
+                }
+                throw new IllegalArgumentException("Not a numeric column: " + field);
+        }
+    }
+
+    private int[] getIdColumn(HarQuery.Field field) {
+        switch (field) {
+            case HOST:
+                return hostIds;
+            case MIME:
+                return mimeIds;
+            case PAGE:
+                return pageIds;
+            case METHOD:
+                return methodIds;
+            default:
+                throw new IllegalArgumentException("Not a dictionary column: " + field);
+        }
+    }
+
+    private Dictionary getDictionary(HarQuery.Field field) {
+        switch (field) {
+            case HOST:
+                return hosts;
+            case MIME:
+                return mimeTypes;
+            case PAGE:
+                return pages;
+            case METHOD:
+                return methods;
+            default:
+                throw new IllegalArgumentException("Not a dictionary column: " + field);
+        }
+    }
+
+    /**
+     * Must be called with the write lock held.
+     */
+    private void ensureCapacity() {
+        if (rowCount < entries.length) {
+            return;
+        }
+
+        int capacity = entries.length * 2;
+        entries = Arrays.copyOf(entries, capacity);
+        status = Arrays.copyOf(status, capacity);
+        responseSize = Arrays.copyOf(responseSize, capacity);
+        requestSize = Arrays.copyOf(requestSize, capacity);
+        time = Arrays.copyOf(time, capacity);
+        for (int i = 0; i < timings.length; i++) {
+            timings[i] = Arrays.copyOf(timings[i], capacity);
+        }
+        hostIds = Arrays.copyOf(hostIds, capacity);
+        mimeIds = Arrays.copyOf(mimeIds, capacity);
+        pageIds = Arrays.copyOf(pageIds, capacity);
+        methodIds = Arrays.copyOf(methodIds, capacity);
+    }
+
+    private static String getHost(String url) {
+        if (url == null) {
+            return null;
+        }
+
+        try {
+            String host = new URI(url).getHost();
+            return host == null ? null : host.toLowerCase(Locale.US);
+        } catch (URISyntaxException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Interns the distinct values of a text column. Id 0 is the missing value.
+     */
+    private static class Dictionary {
+        private final Map<String, Integer> ids = new HashMap<>();
+        private final List<String> values = new ArrayList<>();
+
+        private Dictionary() {
+            clear();
+        }
+
+        private int intern(String value) {
+            if (value == null) {
+                return 0;
+            }
+
+            Integer id = ids.get(value);
+            if (id == null) {
+                id = values.size();
+                values.add(value);
+                ids.put(value, id);
+            }
+
+            return id;
+        }
+
+        private String get(int id) {
+            return values.get(id);
+        }
+
+        /**
+         * @return whether each value in the dictionary, by id, satisfies the condition
+         */
+        private boolean[] match(HarQuery.Condition condition) {
+            boolean[] matches = new boolean[values.size()];
+            for (int id = 0; id < matches.length; id++) {
+                matches[id] = condition.matches(values.get(id));
+            }
+
+            return matches;
+        }
+
+        private void clear() {
+            ids.clear();
+            values.clear();
+            values.add(null);
+        }
+    }
+}
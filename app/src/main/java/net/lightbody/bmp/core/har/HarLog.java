@@ -4,6 +4,8 @@ import com.fasterxml.jackson.annotation.JsonInclude;
 
 import net.lightbody.bmp.BrowserMobProxyServer;
 import net.lightbody.bmp.util.BrowserMobProxyUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.text.SimpleDateFormat;
 import java.util.Date;
@@ -13,6 +15,30 @@ import java.util.concurrent.CopyOnWriteArrayList;
 
 @JsonInclude(JsonInclude.Include.NON_NULL)
 public class HarLog {
+    private static final Logger log = LoggerFactory.getLogger(HarLog.class);
+
+    /**
+     * Notified as entries are captured. Listeners are called on the thread that captured the entry, which is usually a proxy event
+     * loop, so they must return quickly and must not block; listeners that update a UI should queue the entries and apply them on
+     * the UI thread.
+     */
+    public interface CaptureListener {
+        /**
+         * A new entry was added to the log. The request has been captured, but the response has not been received yet.
+         */
+        void entryAdded(HarEntry entry);
+
+        /**
+         * The response (or the failure) of an entry that was previously added has been captured.
+         */
+        void entryCompleted(HarEntry entry);
+
+        /**
+         * All entries were removed from the log.
+         */
+        void entriesCleared();
+    }
+
     private final String version = "1.2";
     private volatile HarNameVersion creator  = new HarNameVersion("BrowserMob Proxy", BrowserMobProxyUtil.getVersionString());
     private volatile HarNameVersion browser;
@@ -20,6 +46,7 @@ public class HarLog {
     private List<HarEntry> entries = new CopyOnWriteArrayList<HarEntry>();
     private volatile String comment = "";
     private BrowserMobProxyServer server;
+    private final CopyOnWriteArrayList<CaptureListener> captureListeners = new CopyOnWriteArrayList<CaptureListener>();
 
     public HarLog() {
     }
@@ -37,7 +64,35 @@ public class HarLog {
         return pages.remove(page);
     }
 
-    public synchronized void addEntry(HarEntry entry) {
+    public void addEntry(HarEntry entry) {
+        synchronized (this) {
+            addEntryToPage(entry);
+        }
+
+        for (CaptureListener listener : captureListeners) {
+            try {
+                listener.entryAdded(entry);
+            } catch (RuntimeException e) {
+                log.warn("Error notifying capture listener of added entry", e);
+            }
+        }
+    }
+
+    /**
+     * Notifies capture listeners that the response of an entry has been captured. Called by the capture filters; the entry must
+     * already have been {@link #addEntry(HarEntry) added}.
+     */
+    public void completeEntry(HarEntry entry) {
+        for (CaptureListener listener : captureListeners) {
+            try {
+                listener.entryCompleted(entry);
+            } catch (RuntimeException e) {
+                log.warn("Error notifying capture listener of completed entry", e);
+            }
+        }
+    }
+
+    private void addEntryToPage(HarEntry entry) {
         int count = 0;
         for (HarEntry har:entries) {
             if (entry.getPageref().equals(har.getPageref())) {
@@ -66,6 +121,22 @@ public class HarLog {
 
     public void clearAllEntries(){
         entries.clear();
+
+        for (CaptureListener listener : captureListeners) {
+            try {
+                listener.entriesCleared();
+            } catch (RuntimeException e) {
+                log.warn("Error notifying capture listener of cleared entries", e);
+            }
+        }
+    }
+
+    public void addCaptureListener(CaptureListener listener) {
+        captureListeners.addIfAbsent(listener);
+    }
+
+    public void removeCaptureListener(CaptureListener listener) {
+        captureListeners.remove(listener);
     }
 
     public String getVersion() {
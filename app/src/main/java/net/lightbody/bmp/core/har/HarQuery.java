@@ -0,0 +1,449 @@
+package net.lightbody.bmp.core.har;
+
+import com.google.common.collect.ImmutableList;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * A parsed traffic query, evaluated by {@link HarEntrySummary#select(HarQuery, HarEntryIndex)}. A query is a list of terms separated by
+ * whitespace, all of which must match (AND); groups of terms separated by <code>|</code> or <code>OR</code> are alternatives (OR).
+ * <p/>
+ * A term of the form <code>field operator value</code>, where field is one of the {@link Field}s, is a condition on the entry summary.
+ * The operators are <code>:</code>, <code>=</code>, <code>!=</code>, <code>&gt;</code>, <code>&gt;=</code>, <code>&lt;</code> and
+ * <code>&lt;=</code>.
+ * <ul>
+ *     <li>Numeric fields accept time units (<code>ms</code>, <code>s</code>) or size units (<code>B</code>, <code>KB</code>,
+ *     <code>MB</code>, <code>GB</code>), and <code>:</code> is the same as <code>=</code>. A status can also be a class, such as
+ *     <code>status:4xx</code>.</li>
+ *     <li>Text fields compare case-insensitively. <code>:</code> matches a value containing the text, or the whole value if the text
+ *     contains <code>*</code> wildcards; <code>=</code> and <code>!=</code> compare the whole value.</li>
+ * </ul>
+ * Values containing spaces can be quoted: <code>page:'Page 3'</code>. Any other term is free text, which is searched for with the
+ * {@link HarEntryIndex}. For example: <code>status&gt;=400 host:api.* mime:json time&gt;800ms size&gt;1MB</code>.
+ */
+public class HarQuery {
+    public enum Field {
+        STATUS("status", Unit.NONE),
+        SIZE("size", Unit.BYTES),
+        REQUEST_SIZE("reqsize", Unit.BYTES),
+        TIME("time", Unit.MILLISECONDS),
+        BLOCKED("blocked", Unit.MILLISECONDS),
+        DNS("dns", Unit.MILLISECONDS),
+        CONNECT("connect", Unit.MILLISECONDS),
+        SSL("ssl", Unit.MILLISECONDS),
+        SEND("send", Unit.MILLISECONDS),
+        WAIT("wait", Unit.MILLISECONDS),
+        RECEIVE("receive", Unit.MILLISECONDS),
+        HOST("host", null),
+        MIME("mime", null),
+        PAGE("page", null),
+        METHOD("method", null);
+
+        private final String keyword;
+        private final Unit unit;
+
+        Field(String keyword, Unit unit) {
+            this.keyword = keyword;
+            this.unit = unit;
+        }
+
+        /**
+         * @return the name of the field in a query
+         */
+        public String getKeyword() {
+            return keyword;
+        }
+
+        /**
+         * @return true if the field is numeric, false if it is text
+         */
+        public boolean isNumeric() {
+            return unit != null;
+        }
+
+        private static Field forKeyword(String keyword) {
+            for (Field field : values()) {
+                if (field.keyword.equals(keyword)) {
+                    return field;
+                }
+            }
+
+            return null;
+        }
+    }
+
+    private enum Unit {
+        NONE, BYTES, MILLISECONDS
+    }
+
+    /**
+     * Operators, longest first, so that <code>&gt;=</code> is not read as <code>&gt;</code>.
+     */
+    private static final String[] OPERATORS = {">=", "<=", "!=", ">", "<", "=", ":"};
+
+    /**
+     * A condition on one field of the entry summary. Numeric conditions are normalized to an inclusive range; text conditions keep the
+     * operator and the lower-case text.
+     */
+    public static class Condition {
+        private final Field field;
+        private final String operator;
+        private final long min;
+        private final long max;
+        private final boolean negated;
+        private final String text;
+
+        private Condition(Field field, String operator, long min, long max, boolean negated, String text) {
+            this.field = field;
+            this.operator = operator;
+            this.min = min;
+            this.max = max;
+            this.negated = negated;
+            this.text = text;
+        }
+
+        public Field getField() {
+            return field;
+        }
+
+        /**
+         * @return true if a numeric value satisfies this condition
+         */
+        public boolean matches(long value) {
+            return (value >= min && value <= max) != negated;
+        }
+
+        /**
+         * @return true if a text value satisfies this condition
+         */
+        public boolean matches(String value) {
+            String lowerCaseValue = value == null ? "" : value.toLowerCase(Locale.US);
+
+            boolean matches;
+            if (operator.equals(":")) {
+                matches = text.indexOf('*') >= 0 ? globMatches(text, lowerCaseValue) : lowerCaseValue.contains(text);
+            } else {
+                matches = lowerCaseValue.equals(text);
+            }
+
+            return matches != negated;
+        }
+
+        @Override
+        public String toString() {
+            if (field.isNumeric()) {
+                return field.keyword + (negated ? " not in [" : " in [") + min + ", " + max + "]";
+            } else {
+                return field.keyword + (negated ? "!" : "") + operator + text;
+            }
+        }
+    }
+
+    /**
+     * One group of AND-ed terms: the conditions, and the free text that is left over.
+     */
+    public static class Clause {
+        private final List<Condition> conditions;
+        private final String text;
+
+        private Clause(List<Condition> conditions, String text) {
+            this.conditions = ImmutableList.copyOf(conditions);
+            this.text = text;
+        }
+
+        public List<Condition> getConditions() {
+            return conditions;
+        }
+
+        /**
+         * @return the free text terms of the clause, separated by spaces, or an empty string if there are none
+         */
+        public String getText() {
+            return text;
+        }
+    }
+
+    private final List<Clause> clauses;
+
+    private HarQuery(List<Clause> clauses) {
+        this.clauses = ImmutableList.copyOf(clauses);
+    }
+
+    /**
+     * Parses a query. Terms that look like conditions but name an unknown field (such as <code>http://...</code>) are free text.
+     *
+     * @param query the query text; null or blank is the empty query, which matches everything
+     * @return the parsed query
+     * @throws IllegalArgumentException if a condition on a known field has a value that cannot be parsed
+     */
+    public static HarQuery parse(String query) {
+        if (query == null) {
+            return new HarQuery(Collections.<Clause>emptyList());
+        }
+
+        List<Clause> clauses = new ArrayList<>();
+        List<Condition> conditions = new ArrayList<>();
+        StringBuilder text = new StringBuilder();
+
+        for (String term : tokenize(query)) {
+            if (term.equals("|") || term.equals("OR")) {
+                if (!conditions.isEmpty() || text.length() > 0) {
+                    clauses.add(new Clause(conditions, text.toString()));
+                    conditions = new ArrayList<>();
+                    text = new StringBuilder();
+                }
+                continue;
+            }
+
+            Condition condition = parseCondition(term);
+            if (condition != null) {
+                conditions.add(condition);
+            } else {
+                if (text.length() > 0) {
+                    text.append(' ');
+                }
+                text.append(term);
+            }
+        }
+
+        if (!conditions.isEmpty() || text.length() > 0) {
+            clauses.add(new Clause(conditions, text.toString()));
+        }
+
+        return new HarQuery(clauses);
+    }
+
+    /**
+     * @return the OR-ed clauses of the query, or an empty list if the query matches everything
+     */
+    public List<Clause> getClauses() {
+        return clauses;
+    }
+
+    public boolean isEmpty() {
+        return clauses.isEmpty();
+    }
+
+    /**
+     * @return true if any clause has a condition, so the query cannot be answered by text search alone
+     */
+    public boolean hasConditions() {
+        for (Clause clause : clauses) {
+            if (!clause.conditions.isEmpty()) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Splits the query on whitespace, keeping quoted values together and removing the quotes.
+     */
+    private static List<String> tokenize(String query) {
+        List<String> terms = new ArrayList<>();
+        StringBuilder term = new StringBuilder();
+        char quote = 0;
+
+        for (int i = 0; i < query.length(); i++) {
+            char c = query.charAt(i);
+            if (quote != 0) {
+                if (c == quote) {
+                    quote = 0;
+                } else {
+                    term.append(c);
+                }
+            } else if (c == '\'' || c == '"') {
+                quote = c;
+            } else if (Character.isWhitespace(c)) {
+                if (term.length() > 0) {
+                    terms.add(term.toString());
+                    term.setLength(0);
+                }
+            } else {
+                term.append(c);
+            }
+        }
+
+        if (term.length() > 0) {
+            terms.add(term.toString());
+        }
+
+        return terms;
+    }
+
+    private static Condition parseCondition(String term) {
+        int fieldEnd = 0;
+        while (fieldEnd < term.length() && Character.isLetter(term.charAt(fieldEnd))) {
+            fieldEnd++;
+        }
+
+        Field field = Field.forKeyword(term.substring(0, fieldEnd).toLowerCase(Locale.US));
+        if (field == null) {
+            return null;
+        }
+
+        String operator = null;
+        for (String candidate : OPERATORS) {
+            if (term.startsWith(candidate, fieldEnd)) {
+                operator = candidate;
+                break;
+            }
+        }
+
+        if (operator == null) {
+            return null;
+        }
+
+        String value = term.substring(fieldEnd + operator.length());
+        if (value.isEmpty()) {
+            throw new IllegalArgumentException("Missing value for " + field.keyword);
+        }
+
+        if (!field.isNumeric()) {
+            if (operator.equals(":") || operator.equals("=") || operator.equals("!=")) {
+                boolean negated = operator.equals("!=");
+                return new Condition(field, negated ? "=" : operator, 0L, 0L, negated, value.toLowerCase(Locale.US));
+            }
+
+            throw new IllegalArgumentException("Operator " + operator + " cannot be used with " + field.keyword);
+        }
+
+        String lowerCaseValue = value.toLowerCase(Locale.US);
+        if (field == Field.STATUS && lowerCaseValue.length() == 3 && lowerCaseValue.endsWith("xx")
+                && Character.isDigit(lowerCaseValue.charAt(0))) {
+            long statusClass = (lowerCaseValue.charAt(0) - '0') * 100L;
+            return numericCondition(field, operator, statusClass, statusClass + 99L);
+        }
+
+        long number = parseNumber(field, lowerCaseValue);
+
+        return numericCondition(field, operator, number, number);
+    }
+
+    private static Condition numericCondition(Field field, String operator, long low, long high) {
+        switch (operator) {
+            case ":":
+            case "=":
+                return new Condition(field, operator, low, high, false, null);
+            case "!=":
+                return new Condition(field, operator, low, high, true, null);
+            case ">":
+                return new Condition(field, operator, high + 1, Long.MAX_VALUE, false, null);
+            case ">=":
+                return new Condition(field, operator, low, Long.MAX_VALUE, false, null);
+            case "<":
+                return new Condition(field, operator, Long.MIN_VALUE, low - 1, false, null);
+            default:
+                return new Condition(field, operator, Long.MIN_VALUE, high, false, null);
+        }
+    }
+
+    /**
+     * Parses a number with an optional unit, converting it to bytes or milliseconds.
+     */
+    private static long parseNumber(Field field, String value) {
+        int numberEnd = 0;
+        while (numberEnd < value.length() && (Character.isDigit(value.charAt(numberEnd)) || value.charAt(numberEnd) == '.')) {
+            numberEnd++;
+        }
+
+        if (numberEnd == 0) {
+            throw new IllegalArgumentException("Invalid value for " + field.keyword + ": " + value);
+        }
+
+        double number;
+        try {
+            number = Double.parseDouble(value.substring(0, numberEnd));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid value for " + field.keyword + ": " + value, e);
+        }
+
+        String unit = value.substring(numberEnd);
+        double multiplier;
+        switch (field.unit) {
+            case BYTES:
+                multiplier = bytesMultiplier(unit);
+                break;
+            case MILLISECONDS:
+                multiplier = millisecondsMultiplier(unit);
+                break;
+            default:
+                multiplier = unit.isEmpty() ? 1 : -1;
+        }
+
+        if (multiplier < 0) {
+            throw new IllegalArgumentException("Invalid unit for " + field.keyword + ": " + unit);
+        }
+
+        return Math.round(number * multiplier);
+    }
+
+    private static double bytesMultiplier(String unit) {
+        switch (unit) {
+            case "":
+            case "b":
+                return 1;
+            case "k":
+            case "kb":
+                return 1024;
+            case "m":
+            case "mb":
+                return 1024 * 1024;
+            case "g":
+            case "gb":
+                return 1024 * 1024 * 1024;
+            default:
+                return -1;
+        }
+    }
+
+    private static double millisecondsMultiplier(String unit) {
+        switch (unit) {
+            case "":
+            case "ms":
+                return 1;
+            case "s":
+                return 1000;
+            case "m":
+            case "min":
+                return 60 * 1000;
+            default:
+                return -1;
+        }
+    }
+
+    /**
+     * Matches a lower-case value against a lower-case pattern in which <code>*</code> matches any run of characters.
+     */
+    private static boolean globMatches(String pattern, String value) {
+        int p = 0;
+        int v = 0;
+        int starPattern = -1;
+        int starValue = 0;
+
+        while (v < value.length()) {
+            if (p < pattern.length() && pattern.charAt(p) == value.charAt(v)) {
+                p++;
+                v++;
+            } else if (p < pattern.length() && pattern.charAt(p) == '*') {
+                starPattern = p++;
+                starValue = v;
+            } else if (starPattern >= 0) {
+                p = starPattern + 1;
+                v = ++starValue;
+            } else {
+                return false;
+            }
+        }
+
+        while (p < pattern.length() && pattern.charAt(p) == '*') {
+            p++;
+        }
+
+        return p == pattern.length();
+    }
+}
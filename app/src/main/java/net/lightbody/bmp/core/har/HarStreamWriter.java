@@ -0,0 +1,169 @@
+package net.lightbody.bmp.core.har;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Serializes a {@link HarLog} to a stream one entry at a time, producing the same document as {@link Har#writeTo(OutputStream)}.
+ * Unlike {@link PageRefFilteredHar}, pages are filtered while writing, so exporting a subset of the pages does not copy the entry
+ * list, and callers can observe progress as each entry is written.
+ * <p/>
+ * The writer never closes or flushes the target stream, so it can feed a compressor or a network stream that is finished by the caller.
+ */
+public class HarStreamWriter {
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+    /**
+     * Entries are written into a generator that is shared by the whole document, so flushing after each value would only produce
+     * small writes to the underlying stream.
+     */
+    private static final ObjectWriter VALUE_WRITER = OBJECT_MAPPER.writer().without(SerializationFeature.FLUSH_AFTER_WRITE_VALUE);
+
+    /**
+     * Notified on the writing thread after each entry has been written.
+     */
+    public interface ProgressListener {
+        void onEntryWritten(int written, int total);
+    }
+
+    private final HarLog harLog;
+    private final Set<String> pageRefs;
+
+    /**
+     * @param harLog   the log to write
+     * @param pageRefs ids of the pages to include, or null to include every page
+     */
+    public HarStreamWriter(HarLog harLog, Set<String> pageRefs) {
+        this.harLog = harLog;
+        this.pageRefs = pageRefs;
+    }
+
+    /**
+     * @return the entries that will be written, in capture order
+     */
+    public List<HarEntry> selectEntries() {
+        List<HarEntry> selected = new ArrayList<HarEntry>();
+        for (HarEntry entry : harLog.getEntries()) {
+            if (pageRefs == null || pageRefs.contains(entry.getPageref())) {
+                selected.add(entry);
+            }
+        }
+        return selected;
+    }
+
+    /**
+     * @return the pages that will be written
+     */
+    public List<HarPage> selectPages() {
+        List<HarPage> selected = new ArrayList<HarPage>();
+        for (HarPage page : harLog.getPages()) {
+            if (pageRefs == null || pageRefs.contains(page.getId())) {
+                selected.add(page);
+            }
+        }
+        return selected;
+    }
+
+    /**
+     * Writes the HAR document containing the selected pages and entries.
+     *
+     * @return the number of entries written
+     */
+    public int writeTo(OutputStream os, ProgressListener listener) throws IOException {
+        return writeTo(os, selectPages(), selectEntries(), listener);
+    }
+
+    /**
+     * Writes a HAR document containing the given pages and entries, which are usually a subset of this writer's log.
+     *
+     * @return the number of entries written
+     */
+    public int writeTo(OutputStream os, List<HarPage> pages, List<HarEntry> entries, ProgressListener listener) throws IOException {
+        JsonGenerator generator = OBJECT_MAPPER.getFactory().createGenerator(os, JsonEncoding.UTF8);
+        generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+        generator.disable(JsonGenerator.Feature.FLUSH_PASSED_TO_STREAM);
+
+        generator.writeStartObject();
+        generator.writeFieldName("log");
+        generator.writeStartObject();
+
+        generator.writeStringField("version", harLog.getVersion());
+        writeField(generator, "creator", harLog.getCreator());
+        writeField(generator, "browser", harLog.getBrowser());
+
+        generator.writeFieldName("pages");
+        generator.writeStartArray();
+        for (HarPage page : pages) {
+            VALUE_WRITER.writeValue(generator, page);
+        }
+        generator.writeEndArray();
+
+        int written = 0;
+        generator.writeFieldName("entries");
+        generator.writeStartArray();
+        for (HarEntry entry : entries) {
+            VALUE_WRITER.writeValue(generator, entry);
+            written++;
+            if (listener != null) {
+                listener.onEntryWritten(written, entries.size());
+            }
+        }
+        generator.writeEndArray();
+
+        if (harLog.getComment() != null) {
+            generator.writeStringField("comment", harLog.getComment());
+        }
+
+        generator.writeEndObject();
+        generator.writeEndObject();
+
+        // pushes the generator's buffer into the stream; FLUSH_PASSED_TO_STREAM keeps the stream itself from being flushed
+        generator.close();
+
+        return written;
+    }
+
+    /**
+     * Writes the given entries as newline-delimited JSON, one entry per line. Unlike a HAR document, segments written this way
+     * can be appended to each other, which suits exports that only contain the entries captured since a previous export.
+     *
+     * @return the number of entries written
+     */
+    public static int writeNdjson(OutputStream os, List<HarEntry> entries, ProgressListener listener) throws IOException {
+        JsonGenerator generator = OBJECT_MAPPER.getFactory().createGenerator(os, JsonEncoding.UTF8);
+        generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+        generator.disable(JsonGenerator.Feature.FLUSH_PASSED_TO_STREAM);
+        // lines are terminated explicitly below, so no separator is needed between root values
+        generator.setRootValueSeparator(null);
+
+        int written = 0;
+        for (HarEntry entry : entries) {
+            VALUE_WRITER.writeValue(generator, entry);
+            generator.writeRaw('\n');
+            written++;
+            if (listener != null) {
+                listener.onEntryWritten(written, entries.size());
+            }
+        }
+
+        generator.close();
+
+        return written;
+    }
+
+    private static void writeField(JsonGenerator generator, String name, Object value) throws IOException {
+        if (value != null) {
+            generator.writeFieldName(name);
+            VALUE_WRITER.writeValue(generator, value);
+        }
+    }
+}
@@ -4,6 +4,7 @@ import com.google.common.collect.ImmutableList;
 import com.google.common.io.BaseEncoding;
 import io.netty.buffer.ByteBuf;
 import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.http.FullHttpResponse;
 import io.netty.handler.codec.http.HttpContent;
 import io.netty.handler.codec.http.HttpHeaders;
 import io.netty.handler.codec.http.HttpObject;
@@ -14,7 +15,9 @@ import io.netty.handler.codec.http.QueryStringDecoder;
 import io.netty.handler.codec.http.cookie.ClientCookieDecoder;
 import io.netty.handler.codec.http.cookie.Cookie;
 import io.netty.handler.codec.http.cookie.ServerCookieDecoder;
+import io.netty.util.AttributeKey;
 import net.lightbody.bmp.core.har.Har;
+import net.lightbody.bmp.core.har.HarCache;
 import net.lightbody.bmp.core.har.HarCookie;
 import net.lightbody.bmp.core.har.HarEntry;
 import net.lightbody.bmp.core.har.HarNameValuePair;
@@ -26,6 +29,7 @@ import net.lightbody.bmp.exception.UnsupportedCharsetException;
 import net.lightbody.bmp.filters.support.HttpConnectTiming;
 import net.lightbody.bmp.filters.util.HarCaptureUtil;
 import net.lightbody.bmp.proxy.CaptureType;
+import net.lightbody.bmp.proxy.coalesce.CoalescedHttpResponse;
 import net.lightbody.bmp.util.BrowserMobHttpUtil;
 import org.littleshoot.proxy.impl.ProxyUtils;
 import org.slf4j.Logger;
@@ -47,6 +51,17 @@ import java.util.concurrent.atomic.AtomicInteger;
 public class HarCaptureFilter extends HttpsAwareFiltersAdapter {
     private static final Logger log = LoggerFactory.getLogger(HarCaptureFilter.class);
 
+    /**
+     * Comment recorded on entries whose response was copied from an identical concurrent request, rather than fetched from the server.
+     */
+    public static final String COALESCED_ENTRY_COMMENT = "coalesced";
+
+    /**
+     * Comment on the timings of HAR entries whose connection to the server resumed an earlier SSL session, so the ssl time is the
+     * time of an abbreviated handshake.
+     */
+    public static final String SSL_SESSION_RESUMED_COMMENT = "ssl session resumed";
+
     /**
      * The currently active HAR at the time the current request is received.
      */
@@ -117,6 +132,11 @@ public class HarCaptureFilter extends HttpsAwareFiltersAdapter {
      */
     private volatile boolean addressResolved = false;
 
+    /**
+     * True once the HarLog's capture listeners have been notified that this entry is complete.
+     */
+    private volatile boolean entryCompleted = false;
+
     /**
      * Create a new instance of the HarCaptureFilter that will capture request and response information. If no har is specified in the
      * constructor, this filter will do nothing.
@@ -185,7 +205,6 @@ public class HarCaptureFilter extends HttpsAwareFiltersAdapter {
             // link the object up now, before we make the request, so that if we get cut off (ie: favicon.ico request and browser shuts down)
             // we still have the attempt associated, even if we never got a response
             harEntry.setStartedDateTime(new Date());
-            har.getLog().addEntry(harEntry);
 
             HttpRequest httpRequest = (HttpRequest) httpObject;
             this.capturedOriginalRequest = httpRequest;
@@ -200,6 +219,15 @@ public class HarCaptureFilter extends HttpsAwareFiltersAdapter {
             defaultHarResponse.setError(HarCaptureUtil.getNoResponseReceivedErrorMessage());
             harEntry.setResponse(defaultHarResponse);
 
+            // capture listeners are notified as soon as the entry is added, so the request and the default response must be set first
+            har.getLog().addEntry(harEntry);
+
+            // if the response cache handled this request, record how it was handled
+            HarCache harCache = ctx.attr(AttributeKey.<HarCache>valueOf(HAR_CACHE_ATTRIBUTE_NAME)).getAndRemove();
+            if (harCache != null) {
+                harEntry.setCache(harCache);
+            }
+
             captureQueryParameters(httpRequest);
             // not capturing user agent: in many cases, it doesn't make sense to capture at the HarLog level, since the proxy could be
             // serving requests from many different clients with various user agents. clients can turn on the REQUEST_HEADERS capture type
@@ -273,6 +301,27 @@ public class HarCaptureFilter extends HttpsAwareFiltersAdapter {
         return super.serverToProxyResponse(httpObject);
     }
 
+    @Override
+    public HttpObject proxyToClientResponse(HttpObject httpObject) {
+        // if an earlier filter short-circuited the request (blacklist, whitelist, replay, etc.), this filter never saw the request
+        // and will never see a server response, so the short-circuit response is the only chance to record the entry
+        if (capturedOriginalRequest == null && httpObject instanceof HttpResponse) {
+            if (httpObject instanceof CoalescedHttpResponse) {
+                captureCoalescedResponse((CoalescedHttpResponse) httpObject);
+            } else {
+                captureShortCircuitResponse((HttpResponse) httpObject);
+            }
+        }
+
+        // every response the client receives passes through here, including the proxy's own Bad Gateway and Gateway Timeout
+        // responses, except coalesced responses, which complete their entries when the in-flight response has been copied
+        if (httpObject instanceof LastHttpContent && capturedOriginalRequest != null) {
+            completeEntry();
+        }
+
+        return super.proxyToClientResponse(httpObject);
+    }
+
     @Override
     public void serverToProxyResponseTimedOut() {
         // replace any existing HarResponse that was created if the server sent a partial response
@@ -299,6 +348,76 @@ public class HarCaptureFilter extends HttpsAwareFiltersAdapter {
         }
     }
 
+    /**
+     * Records a HAR entry for a response that was generated by the proxy without contacting the server. The entry is based on the
+     * original request, since the filters that short-circuited the request may not have passed a modified request along. Timings
+     * other than the default send/wait/receive values do not apply to a response that was never sent over the network.
+     *
+     * @param httpResponse the short-circuit response
+     */
+    protected void captureShortCircuitResponse(HttpResponse httpResponse) {
+        clientToProxyRequest(originalRequest);
+
+        if (!(originalRequest instanceof LastHttpContent)) {
+            // the request was short-circuited before its body was read, so the request body size is unknown
+            harEntry.getRequest().setBodySize(-1);
+        }
+
+        serverToProxyResponse(httpResponse);
+
+        if (!(httpResponse instanceof FullHttpResponse)) {
+            // the body of a header-only response is streamed to the client directly, so only its declared length is known
+            harEntry.getResponse().setBodySize(HttpHeaders.getContentLength(httpResponse, -1L));
+        }
+    }
+
+    /**
+     * Records a HAR entry for a request that was coalesced with an identical in-flight request. The placeholder is not a real response,
+     * so the response is captured when the in-flight response has been copied to the client. The time spent waiting for the in-flight
+     * response is recorded as the wait time.
+     *
+     * @param coalescedResponse the placeholder for the coalesced response
+     */
+    protected void captureCoalescedResponse(final CoalescedHttpResponse coalescedResponse) {
+        clientToProxyRequest(originalRequest);
+
+        harEntry.setComment(COALESCED_ENTRY_COMMENT);
+
+        final long waitStartedNanos = System.nanoTime();
+
+        coalescedResponse.addListener(new CoalescedHttpResponse.Listener() {
+            @Override
+            public void responseReceived(FullHttpResponse response) {
+                harEntry.getTimings().setWait(System.nanoTime() - waitStartedNanos, TimeUnit.NANOSECONDS);
+
+                serverToProxyResponse(response);
+
+                // the content is empty if the response was too large to buffer, but the actual size is always known
+                harEntry.getResponse().setBodySize(coalescedResponse.getBodySize());
+
+                completeEntry();
+            }
+
+            @Override
+            public void responseFailed() {
+                harEntry.getTimings().setWait(System.nanoTime() - waitStartedNanos, TimeUnit.NANOSECONDS);
+
+                completeEntry();
+            }
+        });
+    }
+
+    /**
+     * Notifies the HarLog's capture listeners that the entry is complete, unless they have already been notified.
+     */
+    private void completeEntry() {
+        if (!entryCompleted) {
+            entryCompleted = true;
+
+            har.getLog().completeEntry(harEntry);
+        }
+    }
+
     /**
      * Creates a HarRequest object using the method, url, and HTTP version of the specified request.
      *
@@ -607,6 +726,10 @@ public class HarCaptureFilter extends HttpsAwareFiltersAdapter {
             harEntry.getTimings().setConnect(httpConnectTiming.getConnectTimeNanos(), TimeUnit.NANOSECONDS);
             harEntry.getTimings().setBlocked(httpConnectTiming.getBlockedTimeNanos(), TimeUnit.NANOSECONDS);
             harEntry.getTimings().setDns(httpConnectTiming.getDnsTimeNanos(), TimeUnit.NANOSECONDS);
+
+            if (httpConnectTiming.isSslSessionResumed()) {
+                harEntry.getTimings().setComment(SSL_SESSION_RESUMED_COMMENT);
+            }
         }
     }
 
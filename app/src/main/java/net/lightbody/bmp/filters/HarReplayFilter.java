@@ -0,0 +1,83 @@
+package net.lightbody.bmp.filters;
+
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpObject;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import net.lightbody.bmp.proxy.replay.HarReplayIndex;
+import net.lightbody.bmp.proxy.replay.RecordedResponse;
+import net.lightbody.bmp.proxy.replay.ReplayDelayHandler;
+import net.lightbody.bmp.proxy.replay.UnmatchedRequestPolicy;
+import org.littleshoot.proxy.impl.ProxyUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Serves responses recorded in a {@link HarReplayIndex} instead of contacting the server. Replayed responses are short-circuited, so
+ * they are still captured in the current HAR and still pass through the response filters.
+ * <p/>
+ * CONNECTs are never replayed: when MITM is enabled, LittleProxy connects to the server when the CONNECT is received, so replaying
+ * HTTPS traffic still requires the server to accept a connection (but no HTTP requests are sent to it once the tunnel is established).
+ */
+public class HarReplayFilter extends HttpsAwareFiltersAdapter {
+    private static final Logger log = LoggerFactory.getLogger(HarReplayFilter.class);
+
+    /**
+     * Maximum size of a request body that can be used to match a recorded request. Requests are aggregated up to this size while
+     * replaying, so that POST bodies can be hashed.
+     */
+    public static final int MAXIMUM_REQUEST_BUFFER_SIZE = 2 * 1024 * 1024;
+
+    private final HarReplayIndex replayIndex;
+    private final boolean preserveTimings;
+    private final UnmatchedRequestPolicy unmatchedRequestPolicy;
+
+    public HarReplayFilter(HttpRequest originalRequest, ChannelHandlerContext ctx, HarReplayIndex replayIndex, boolean preserveTimings,
+                           UnmatchedRequestPolicy unmatchedRequestPolicy) {
+        super(originalRequest, ctx);
+
+        this.replayIndex = replayIndex;
+        this.preserveTimings = preserveTimings;
+        this.unmatchedRequestPolicy = unmatchedRequestPolicy;
+    }
+
+    @Override
+    public HttpResponse clientToProxyRequest(HttpObject httpObject) {
+        if (!(httpObject instanceof HttpRequest) || ProxyUtils.isCONNECT(httpObject)) {
+            return null;
+        }
+
+        HttpRequest httpRequest = (HttpRequest) httpObject;
+        String url = getFullUrl(httpRequest);
+
+        RecordedResponse recordedResponse = replayIndex.match(httpRequest, url);
+        if (recordedResponse == null) {
+            if (unmatchedRequestPolicy == UnmatchedRequestPolicy.FAIL_FAST) {
+                log.debug("No recorded response for {} {}; failing request", httpRequest.getMethod(), url);
+
+                HttpResponse response = new DefaultFullHttpResponse(httpRequest.getProtocolVersion(), HttpResponseStatus.NOT_FOUND);
+                HttpHeaders.setContentLength(response, 0L);
+
+                return response;
+            }
+
+            log.debug("No recorded response for {} {}; sending request to server", httpRequest.getMethod(), url);
+
+            return null;
+        }
+
+        log.debug("Replaying recorded response to {} {}", httpRequest.getMethod(), url);
+
+        if (preserveTimings && recordedResponse.getRecordedTimeMs() > 0) {
+            ctx.pipeline().addAfter(ReplayDelayHandler.ENCODER_HANDLER_NAME, null,
+                    new ReplayDelayHandler(recordedResponse.getRecordedTimeMs(), TimeUnit.MILLISECONDS));
+        }
+
+        return recordedResponse.toHttpResponse(httpRequest.getProtocolVersion());
+    }
+}
@@ -0,0 +1,247 @@
+package net.lightbody.bmp.filters;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.DefaultLastHttpContent;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpContent;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpObject;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.LastHttpContent;
+import io.netty.util.AttributeKey;
+import net.lightbody.bmp.core.har.HarCache;
+import net.lightbody.bmp.core.har.HarCacheStatus;
+import net.lightbody.bmp.proxy.cache.CacheControl;
+import net.lightbody.bmp.proxy.cache.CacheResult;
+import net.lightbody.bmp.proxy.cache.CachedResponse;
+import net.lightbody.bmp.proxy.cache.HttpCachePolicy;
+import net.lightbody.bmp.proxy.cache.HttpResponseCache;
+import org.littleshoot.proxy.impl.ProxyUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+/**
+ * Serves fresh responses from an {@link HttpResponseCache}, revalidates stale responses using the server's validators, and stores
+ * cacheable responses as they are received. How the request was handled is recorded in a {@link HarCache}, which is passed to the
+ * {@link HarCaptureFilter} using the {@link HttpsAwareFiltersAdapter#HAR_CACHE_ATTRIBUTE_NAME} channel attribute.
+ * <p/>
+ * When a stale response is revalidated and the server responds 304 Not Modified, the client receives the complete cached response,
+ * not the 304.
+ */
+public class HttpCacheFilter extends HttpsAwareFiltersAdapter {
+    private static final Logger log = LoggerFactory.getLogger(HttpCacheFilter.class);
+
+    private final HttpResponseCache cache;
+
+    private final HarCache harCache = new HarCache();
+
+    private volatile String cacheKey;
+    private volatile HttpRequest cacheableRequest;
+    private volatile long requestTimeMillis;
+
+    /**
+     * The stale response being revalidated by this request, if any.
+     */
+    private volatile CachedResponse staleResponse;
+
+    /**
+     * The cached response being sent to the client in place of the server's 304 Not Modified.
+     */
+    private volatile CachedResponse revalidatedResponse;
+
+    /**
+     * The storable response currently being received from the server, and its body.
+     */
+    private volatile HttpResponse storableResponse;
+    private volatile long responseTimeMillis;
+    private ByteArrayOutputStream storableResponseBody;
+
+    public HttpCacheFilter(HttpRequest originalRequest, ChannelHandlerContext ctx, HttpResponseCache cache) {
+        super(originalRequest, ctx);
+
+        this.cache = cache;
+    }
+
+    @Override
+    public HttpResponse clientToProxyRequest(HttpObject httpObject) {
+        if (!(httpObject instanceof HttpRequest) || ProxyUtils.isCONNECT(httpObject)) {
+            return null;
+        }
+
+        HttpRequest httpRequest = (HttpRequest) httpObject;
+        String url = getFullUrl(httpRequest);
+
+        ctx.attr(AttributeKey.<HarCache>valueOf(HAR_CACHE_ATTRIBUTE_NAME)).set(harCache);
+
+        this.cacheKey = url;
+        this.requestTimeMillis = System.currentTimeMillis();
+
+        if (!HttpCachePolicy.isCacheableRequest(httpRequest)) {
+            harCache.setAfterRequest(createStatus(CacheResult.BYPASS));
+            return null;
+        }
+
+        this.cacheableRequest = httpRequest;
+
+        CacheControl requestCacheControl = CacheControl.parse(httpRequest);
+
+        // only the memory tier is checked on the event loop; a response on disk is loaded in the background for later requests
+        CachedResponse cachedResponse = cache.get(url);
+        if (cachedResponse != null && cachedResponse.matchesVary(httpRequest)) {
+            if (cachedResponse.isFresh(requestCacheControl, requestTimeMillis)) {
+                log.trace("Serving fresh cached response for {}", url);
+
+                harCache.setBeforeRequest(cachedResponse.toHarCacheStatus("fresh"));
+                cachedResponse.recordHit(requestTimeMillis);
+                harCache.setAfterRequest(cachedResponse.toHarCacheStatus(CacheResult.HIT.getHarComment()));
+                cache.recordResult(CacheResult.HIT, cachedResponse.getBody().length);
+
+                // the response will not be received from a server, so there is nothing else to do for this request
+                this.cacheableRequest = null;
+
+                return cachedResponse.toHttpResponse(httpRequest.getProtocolVersion(), requestTimeMillis);
+            }
+
+            harCache.setBeforeRequest(cachedResponse.toHarCacheStatus("stale"));
+
+            if (cachedResponse.hasValidators()) {
+                log.trace("Revalidating stale cached response for {}", url);
+
+                cachedResponse.addConditionalHeaders(httpRequest);
+                this.staleResponse = cachedResponse;
+            }
+        }
+
+        if (requestCacheControl.has(CacheControl.ONLY_IF_CACHED)) {
+            // RFC 7234 section 5.2.1.7: a cache that cannot satisfy an only-if-cached request must respond with a 504
+            harCache.setAfterRequest(createStatus(CacheResult.MISS));
+            cache.recordResult(CacheResult.MISS, 0);
+            this.cacheableRequest = null;
+
+            HttpResponse response = new DefaultFullHttpResponse(httpRequest.getProtocolVersion(), HttpResponseStatus.GATEWAY_TIMEOUT);
+            HttpHeaders.setContentLength(response, 0L);
+
+            return response;
+        }
+
+        return null;
+    }
+
+    @Override
+    public HttpObject serverToProxyResponse(HttpObject httpObject) {
+        if (httpObject instanceof HttpResponse) {
+            HttpResponse httpResponse = (HttpResponse) httpObject;
+            this.responseTimeMillis = System.currentTimeMillis();
+
+            if (cacheKey != null && HttpCachePolicy.invalidatesCache(originalRequest, httpResponse)) {
+                log.trace("Invalidating cached response for {}", cacheKey);
+
+                cache.invalidate(cacheKey);
+            }
+
+            if (cacheableRequest == null) {
+                return httpObject;
+            }
+
+            if (staleResponse != null && httpResponse.getStatus().code() == HttpResponseStatus.NOT_MODIFIED.code()) {
+                return serveRevalidatedResponse(httpResponse);
+            }
+
+            cache.recordResult(CacheResult.MISS, 0);
+
+            if (HttpCachePolicy.isStorable(cacheableRequest, httpResponse)) {
+                storableResponse = httpResponse;
+                storableResponseBody = new ByteArrayOutputStream();
+            } else {
+                harCache.setAfterRequest(createStatus(CacheResult.MISS));
+            }
+        }
+
+        if (httpObject instanceof HttpContent) {
+            if (revalidatedResponse != null) {
+                if (httpObject instanceof LastHttpContent) {
+                    return new DefaultLastHttpContent(Unpooled.wrappedBuffer(revalidatedResponse.getBody()));
+                }
+
+                return httpObject;
+            }
+
+            if (storableResponse != null) {
+                captureResponseContent((HttpContent) httpObject);
+            }
+        }
+
+        return httpObject;
+    }
+
+    /**
+     * Updates the cache with the headers of a 304 Not Modified response, and returns the cached response (or its headers) to send to
+     * the client in place of the 304.
+     */
+    private HttpObject serveRevalidatedResponse(HttpResponse notModified) {
+        CachedResponse revalidated = staleResponse.revalidate(notModified, requestTimeMillis, responseTimeMillis);
+        revalidated.recordHit(responseTimeMillis);
+        cache.put(revalidated);
+        cache.recordResult(CacheResult.REVALIDATED, revalidated.getBody().length);
+
+        harCache.setAfterRequest(revalidated.toHarCacheStatus(CacheResult.REVALIDATED.getHarComment()));
+
+        if (notModified instanceof FullHttpResponse) {
+            // the entire 304 has been received, so the entire cached response can be sent
+            return revalidated.toHttpResponse(notModified.getProtocolVersion(), responseTimeMillis);
+        }
+
+        // the 304's (empty) LastHttpContent will be replaced with the cached body
+        this.revalidatedResponse = revalidated;
+
+        return revalidated.toHttpResponseHeaders(notModified.getProtocolVersion(), responseTimeMillis);
+    }
+
+    private void captureResponseContent(HttpContent httpContent) {
+        ByteBuf content = httpContent.content();
+        if (storableResponseBody.size() + content.readableBytes() > cache.getMaxEntrySizeBytes()) {
+            log.trace("Response for {} exceeds maximum cache entry size; not caching", cacheKey);
+
+            harCache.setAfterRequest(createStatus(CacheResult.MISS));
+            storableResponse = null;
+            storableResponseBody = null;
+            return;
+        }
+
+        try {
+            content.getBytes(content.readerIndex(), storableResponseBody, content.readableBytes());
+        } catch (IOException e) {
+            // ByteArrayOutputStream does not throw IOExceptions
+            throw new IllegalStateException(e);
+        }
+
+        if (httpContent instanceof LastHttpContent) {
+            CachedResponse cachedResponse = CachedResponse.create(cacheKey, cacheableRequest, storableResponse,
+                    storableResponseBody.toByteArray(), requestTimeMillis, responseTimeMillis);
+
+            if (cache.put(cachedResponse)) {
+                harCache.setAfterRequest(cachedResponse.toHarCacheStatus(CacheResult.MISS.getHarComment()));
+            } else {
+                harCache.setAfterRequest(createStatus(CacheResult.MISS));
+            }
+
+            storableResponse = null;
+            storableResponseBody = null;
+        }
+    }
+
+    private static HarCacheStatus createStatus(CacheResult result) {
+        HarCacheStatus status = new HarCacheStatus();
+        status.setComment(result.getHarComment());
+
+        return status;
+    }
+}
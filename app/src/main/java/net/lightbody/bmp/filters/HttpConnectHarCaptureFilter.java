@@ -5,6 +5,7 @@ import io.netty.channel.ChannelHandlerContext;
 import io.netty.handler.codec.http.HttpObject;
 import io.netty.handler.codec.http.HttpRequest;
 import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpVersion;
 import net.lightbody.bmp.core.har.Har;
 import net.lightbody.bmp.core.har.HarEntry;
 import net.lightbody.bmp.core.har.HarRequest;
@@ -12,11 +13,14 @@ import net.lightbody.bmp.core.har.HarResponse;
 import net.lightbody.bmp.core.har.HarTimings;
 import net.lightbody.bmp.filters.support.HttpConnectTiming;
 import net.lightbody.bmp.filters.util.HarCaptureUtil;
+import net.lightbody.bmp.mitm.util.SslUtil;
+import net.lightbody.bmp.proxy.tunnel.TunnelHttpResponse;
 import net.lightbody.bmp.util.HttpUtil;
 import org.littleshoot.proxy.impl.ProxyUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.net.ssl.SSLSession;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.util.Date;
@@ -36,6 +40,11 @@ import java.util.concurrent.TimeUnit;
 public class HttpConnectHarCaptureFilter extends HttpsAwareFiltersAdapter implements ModifiedRequestAwareFilter {
     private static final Logger log = LoggerFactory.getLogger(HttpConnectHarCaptureFilter.class);
 
+    /**
+     * Comment recorded on entries for CONNECTs that were tunneled to the server without being decrypted.
+     */
+    public static final String MITM_BYPASSED_ENTRY_COMMENT = "mitm bypassed";
+
     /**
      * The currently active HAR at the time the current request is received.
      */
@@ -75,6 +84,11 @@ public class HttpConnectHarCaptureFilter extends HttpsAwareFiltersAdapter implem
     private volatile long responseReceiveStartedNanos;
     private volatile long sslHandshakeStartedNanos;
 
+    /**
+     * Wall-clock time the SSL handshake started, used to determine whether the handshake resumed an existing session.
+     */
+    private volatile long sslHandshakeStartedMillis;
+
     /**
      * The address of the client making the request. Captured in the constructor and used when calculating and capturing ssl handshake and connect
      * timing information for SSL connections.
@@ -147,6 +161,15 @@ public class HttpConnectHarCaptureFilter extends HttpsAwareFiltersAdapter implem
         return null;
     }
 
+    @Override
+    public HttpObject proxyToClientResponse(HttpObject httpObject) {
+        if (httpObject instanceof TunnelHttpResponse) {
+            captureTunnel((TunnelHttpResponse) httpObject);
+        }
+
+        return super.proxyToClientResponse(httpObject);
+    }
+
     @Override
     public void proxyToServerResolutionFailed(String hostAndPort) {
         // since this is a CONNECT, which is not handled by the HarCaptureFilter, we need to create and populate the
@@ -159,6 +182,8 @@ public class HttpConnectHarCaptureFilter extends HttpsAwareFiltersAdapter implem
             harEntry.getTimings().setDns(System.nanoTime() - dnsResolutionStartedNanos, TimeUnit.NANOSECONDS);
         }
 
+        har.getLog().completeEntry(harEntry);
+
         httpConnectTimes.remove(clientAddress);
     }
 
@@ -174,6 +199,8 @@ public class HttpConnectHarCaptureFilter extends HttpsAwareFiltersAdapter implem
             harEntry.getTimings().setConnect(System.nanoTime() - connectionStartedNanos, TimeUnit.NANOSECONDS);
         }
 
+        har.getLog().completeEntry(harEntry);
+
         httpConnectTimes.remove(clientAddress);
     }
 
@@ -189,6 +216,11 @@ public class HttpConnectHarCaptureFilter extends HttpsAwareFiltersAdapter implem
 
         if (sslHandshakeStartedNanos > 0L) {
             httpConnectTiming.setSslHandshakeTimeNanos(connectionSucceededTimeNanos - sslHandshakeStartedNanos);
+
+            SSLSession sslSession = SslUtil.getSslSession(serverCtx);
+            if (sslSession != null) {
+                httpConnectTiming.setSslSessionResumed(SslUtil.isResumedSession(sslSession, sslHandshakeStartedMillis));
+            }
         } else {
             httpConnectTiming.setSslHandshakeTimeNanos(0L);
         }
@@ -197,6 +229,7 @@ public class HttpConnectHarCaptureFilter extends HttpsAwareFiltersAdapter implem
     @Override
     public void proxyToServerConnectionSSLHandshakeStarted() {
         this.sslHandshakeStartedNanos = System.nanoTime();
+        this.sslHandshakeStartedMillis = System.currentTimeMillis();
     }
 
     @Override
@@ -219,6 +252,8 @@ public class HttpConnectHarCaptureFilter extends HttpsAwareFiltersAdapter implem
         else if (responseReceiveStartedNanos > 0L) {
             harEntry.getTimings().setReceive(timeoutTimestampNanos - responseReceiveStartedNanos, TimeUnit.NANOSECONDS);
         }
+
+        har.getLog().completeEntry(harEntry);
     }
 
     @Override
@@ -274,6 +309,63 @@ public class HttpConnectHarCaptureFilter extends HttpsAwareFiltersAdapter implem
         this.responseReceiveStartedNanos = System.nanoTime();
     }
 
+    /**
+     * Records a HAR entry for a CONNECT that is tunneled without being decrypted. The requests inside the tunnel cannot be seen, so
+     * the entry is recorded when the tunnel closes, with the bytes relayed in each direction as the request and response body sizes
+     * and the lifetime of the tunnel as the receive time.
+     *
+     * @param tunnel the placeholder for the tunnel
+     */
+    private void captureTunnel(TunnelHttpResponse tunnel) {
+        // no request will follow the CONNECT on this connection, so there is nothing to pass the timings to
+        httpConnectTimes.remove(clientAddress);
+
+        final HttpVersion protocolVersion = tunnel.getProtocolVersion();
+
+        tunnel.addListener(new TunnelHttpResponse.Listener() {
+            @Override
+            public void tunnelClosed(TunnelHttpResponse tunnel) {
+                HarEntry harEntry = new HarEntry(currentPageRef);
+                harEntry.setStartedDateTime(tunnel.getStartedDateTime());
+                harEntry.setRequest(createRequestForFailedConnect(originalRequest));
+
+                if (tunnel.getError() != null) {
+                    HarResponse response = HarCaptureUtil.createHarResponseForFailure();
+                    response.setError(tunnel.getError());
+                    harEntry.setResponse(response);
+                } else {
+                    harEntry.setResponse(new HarResponse(tunnel.getStatus().code(), tunnel.getStatus().reasonPhrase(), protocolVersion.text()));
+                }
+
+                harEntry.setComment(MITM_BYPASSED_ENTRY_COMMENT);
+                harEntry.getRequest().setBodySize(tunnel.getBytesSent());
+                harEntry.getResponse().setBodySize(tunnel.getBytesReceived());
+
+                HarTimings timings = harEntry.getTimings();
+                long setupTimeNanos = 0L;
+                if (tunnel.getDnsTimeNanos() >= 0L) {
+                    timings.setDns(tunnel.getDnsTimeNanos(), TimeUnit.NANOSECONDS);
+                    setupTimeNanos += tunnel.getDnsTimeNanos();
+                }
+
+                if (tunnel.getConnectTimeNanos() >= 0L) {
+                    timings.setConnect(tunnel.getConnectTimeNanos(), TimeUnit.NANOSECONDS);
+                    setupTimeNanos += tunnel.getConnectTimeNanos();
+                }
+
+                timings.setReceive(Math.max(0L, tunnel.getDurationNanos() - setupTimeNanos), TimeUnit.NANOSECONDS);
+
+                if (tunnel.getServerAddress() != null) {
+                    harEntry.setServerIPAddress(tunnel.getServerAddress().getHostAddress());
+                }
+
+                // the tunnel has already closed, so the entry is complete as soon as it is added
+                har.getLog().addEntry(harEntry);
+                har.getLog().completeEntry(harEntry);
+            }
+        });
+    }
+
     /**
      * Populates timing information in the specified harEntry for failed rquests. Populates as much timing information
      * as possible, up to the point of failure.
@@ -21,6 +21,11 @@ public class HttpsAwareFiltersAdapter extends HttpFiltersAdapter {
     public static final String IS_HTTPS_ATTRIBUTE_NAME = "isHttps";
     public static final String HOST_ATTRIBUTE_NAME = "host";
     public static final String ORIGINAL_HOST_ATTRIBUTE_NAME = "originalHost";
+    /**
+     * The {@link net.lightbody.bmp.core.har.HarCache} describing how the current request was handled by the response cache. Set by the
+     * {@link HttpCacheFilter} and consumed by the {@link HarCaptureFilter}.
+     */
+    public static final String HAR_CACHE_ATTRIBUTE_NAME = "harCache";
 
     public HttpsAwareFiltersAdapter(HttpRequest originalRequest, ChannelHandlerContext ctx) {
         super(originalRequest, ctx);
@@ -0,0 +1,199 @@
+package net.lightbody.bmp.filters;
+
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpObject;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import net.lightbody.bmp.proxy.MapLocalRule;
+import net.lightbody.bmp.proxy.local.LocalFileHttpResponse;
+import net.lightbody.bmp.proxy.local.LocalFileResponseHandler;
+import net.lightbody.bmp.util.BrowserMobHttpUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+
+/**
+ * Answers GET and HEAD requests that match a {@link MapLocalRule} with a local file, instead of sending them to the server. The
+ * Content-Type is inferred from the file name, and single byte-range requests are answered with 206 Partial Content. The file body is
+ * written by a {@link LocalFileResponseHandler}, so it is never read into the Java heap.
+ * <p/>
+ * The filter does not make a defensive copy of the rules, so there is no guarantee that the rules at the time of construction will
+ * contain the same values when the filter is actually invoked, if the rules are modified concurrently.
+ */
+public class MapLocalFilter extends HttpsAwareFiltersAdapter {
+    private static final Logger log = LoggerFactory.getLogger(MapLocalFilter.class);
+
+    /**
+     * Returned by {@link #parseRange(String, long)} when the requested range does not overlap the file.
+     */
+    static final long[] UNSATISFIABLE_RANGE = new long[0];
+
+    private final Collection<MapLocalRule> mapLocalRules;
+
+    public MapLocalFilter(HttpRequest originalRequest, ChannelHandlerContext ctx, Collection<MapLocalRule> mapLocalRules) {
+        super(originalRequest, ctx);
+
+        if (mapLocalRules != null) {
+            this.mapLocalRules = mapLocalRules;
+        } else {
+            this.mapLocalRules = Collections.emptyList();
+        }
+    }
+
+    @Override
+    public HttpResponse clientToProxyRequest(HttpObject httpObject) {
+        if (httpObject instanceof HttpRequest) {
+            HttpRequest httpRequest = (HttpRequest) httpObject;
+
+            if (!HttpMethod.GET.equals(httpRequest.getMethod()) && !HttpMethod.HEAD.equals(httpRequest.getMethod())) {
+                return null;
+            }
+
+            String url = getFullUrl(httpRequest);
+
+            for (MapLocalRule rule : mapLocalRules) {
+                File file = rule.resolve(url);
+                if (file != null) {
+                    log.trace("Mapping {} to local file {}", url, file);
+
+                    return createLocalFileResponse(httpRequest, file);
+                }
+            }
+        }
+
+        return null;
+    }
+
+    private HttpResponse createLocalFileResponse(HttpRequest httpRequest, File file) {
+        if (!file.isFile() || !file.canRead()) {
+            HttpResponse notFound = new DefaultFullHttpResponse(httpRequest.getProtocolVersion(), HttpResponseStatus.NOT_FOUND);
+            HttpHeaders.setContentLength(notFound, 0L);
+
+            return notFound;
+        }
+
+        long fileLength = file.length();
+        long lastModified = file.lastModified();
+
+        long[] range = null;
+        String rangeHeader = HttpHeaders.getHeader(httpRequest, HttpHeaders.Names.RANGE);
+        if (rangeHeader != null && isIfRangeSatisfied(httpRequest, lastModified)) {
+            range = parseRange(rangeHeader, fileLength);
+        }
+
+        if (range == UNSATISFIABLE_RANGE) {
+            HttpResponse unsatisfiable = new DefaultFullHttpResponse(httpRequest.getProtocolVersion(), HttpResponseStatus.REQUESTED_RANGE_NOT_SATISFIABLE);
+            unsatisfiable.headers().set(HttpHeaders.Names.CONTENT_RANGE, "bytes */" + fileLength);
+            HttpHeaders.setContentLength(unsatisfiable, 0L);
+
+            return unsatisfiable;
+        }
+
+        HttpResponseStatus status;
+        long position;
+        long count;
+        if (range != null) {
+            status = HttpResponseStatus.PARTIAL_CONTENT;
+            position = range[0];
+            count = range[1] - range[0] + 1;
+        } else {
+            status = HttpResponseStatus.OK;
+            position = 0L;
+            count = fileLength;
+        }
+
+        HttpResponse response;
+        if (HttpMethod.HEAD.equals(httpRequest.getMethod()) || count == 0L) {
+            response = new DefaultFullHttpResponse(httpRequest.getProtocolVersion(), status);
+        } else {
+            LocalFileHttpResponse localFileResponse = new LocalFileHttpResponse(httpRequest.getProtocolVersion(), status, file, position, count);
+            ctx.pipeline().addAfter(LocalFileResponseHandler.ENCODER_HANDLER_NAME, null, new LocalFileResponseHandler(localFileResponse));
+
+            response = localFileResponse;
+        }
+
+        response.headers().set(HttpHeaders.Names.CONTENT_TYPE, BrowserMobHttpUtil.guessContentType(file.getName()));
+        response.headers().set(HttpHeaders.Names.ACCEPT_RANGES, HttpHeaders.Values.BYTES);
+        HttpHeaders.setDateHeader(response, HttpHeaders.Names.LAST_MODIFIED, new Date(lastModified));
+        if (range != null) {
+            response.headers().set(HttpHeaders.Names.CONTENT_RANGE, "bytes " + range[0] + '-' + range[1] + '/' + fileLength);
+        }
+        HttpHeaders.setContentLength(response, count);
+
+        return response;
+    }
+
+    /**
+     * Returns true if the request has no If-Range header, or if its If-Range header is a date no earlier than the file's last
+     * modification. Local files have no entity tags, so an entity tag in If-Range never matches.
+     */
+    static boolean isIfRangeSatisfied(HttpRequest httpRequest, long lastModified) {
+        if (!httpRequest.headers().contains(HttpHeaders.Names.IF_RANGE)) {
+            return true;
+        }
+
+        Date ifRange = HttpHeaders.getDateHeader(httpRequest, HttpHeaders.Names.IF_RANGE, null);
+
+        // HTTP dates have a resolution of one second
+        return ifRange != null && ifRange.getTime() >= lastModified / 1000L * 1000L;
+    }
+
+    /**
+     * Parses a Range header. Only a single byte range is supported; the server is free to ignore any Range header, so requests for
+     * multiple ranges, and invalid Range headers, are answered with the entire file.
+     *
+     * @param rangeHeader value of the Range header
+     * @param fileLength length of the file
+     * @return the first and last byte positions of the range (inclusive); {@link #UNSATISFIABLE_RANGE} if the range does not overlap
+     *         the file; or null if the entire file should be sent
+     */
+    static long[] parseRange(String rangeHeader, long fileLength) {
+        String rangeSpec = rangeHeader.trim();
+        if (!rangeSpec.startsWith("bytes=") || rangeSpec.indexOf(',') >= 0) {
+            return null;
+        }
+
+        rangeSpec = rangeSpec.substring("bytes=".length()).trim();
+        int dash = rangeSpec.indexOf('-');
+        if (dash < 0) {
+            return null;
+        }
+
+        try {
+            String firstBytePos = rangeSpec.substring(0, dash).trim();
+            String lastBytePos = rangeSpec.substring(dash + 1).trim();
+
+            if (firstBytePos.isEmpty()) {
+                // suffix range: the last N bytes of the file
+                long suffixLength = Long.parseLong(lastBytePos);
+                if (suffixLength <= 0L || fileLength == 0L) {
+                    return UNSATISFIABLE_RANGE;
+                }
+
+                return new long[] {Math.max(0L, fileLength - suffixLength), fileLength - 1};
+            }
+
+            long first = Long.parseLong(firstBytePos);
+            long last = lastBytePos.isEmpty() ? Long.MAX_VALUE : Long.parseLong(lastBytePos);
+            if (first < 0L || last < first) {
+                return null;
+            }
+
+            if (first >= fileLength) {
+                return UNSATISFIABLE_RANGE;
+            }
+
+            return new long[] {first, Math.min(last, fileLength - 1)};
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+}
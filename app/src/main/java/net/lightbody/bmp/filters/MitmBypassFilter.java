@@ -0,0 +1,107 @@
+package net.lightbody.bmp.filters;
+
+import com.google.common.net.HostAndPort;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpObject;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import net.lightbody.bmp.mitm.manager.SwitchableMitmManager;
+import net.lightbody.bmp.proxy.tunnel.MitmBypassList;
+import net.lightbody.bmp.proxy.tunnel.PinningDetectionHandler;
+import net.lightbody.bmp.proxy.tunnel.TunnelHandler;
+import net.lightbody.bmp.proxy.tunnel.TunnelHttpResponse;
+import org.littleshoot.proxy.HostResolver;
+import org.littleshoot.proxy.impl.ProxyUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Decides, when an HTTP CONNECT is received, whether the connection will be decrypted. CONNECTs to hosts on the {@link MitmBypassList}
+ * are short-circuited with a {@link TunnelHttpResponse} placeholder, and a {@link TunnelHandler} relays the connection to the server
+ * without decrypting it. Other CONNECTs are decrypted as usual: the impersonated certificate is prefetched if the MITM engine supports it,
+ * and if learning is enabled, a {@link PinningDetectionHandler} watches whether the client accepts the impersonated certificate.
+ * <p/>
+ * While the proxy's root certificate is still being loaded or generated, or if that failed, every CONNECT is tunneled, so HTTPS traffic
+ * flows (without being captured) from the moment the proxy starts. When connections go through an upstream proxy, tunnels cannot be
+ * used: such CONNECTs are rejected with a 503 until the root certificate is ready, rather than waiting for it on the event loop.
+ * <p/>
+ * This filter must run after the {@link HttpsHostCaptureFilter}, since it uses the (possibly rewritten) host of the CONNECT.
+ */
+public class MitmBypassFilter extends HttpsAwareFiltersAdapter {
+    private static final Logger log = LoggerFactory.getLogger(MitmBypassFilter.class);
+
+    private static final int HTTPS_DEFAULT_PORT = 443;
+
+    private final MitmBypassList bypassList;
+    private final SwitchableMitmManager mitmManager;
+    private final HostResolver resolver;
+    private final int connectTimeoutMs;
+    private final boolean tunnelingAvailable;
+
+    /**
+     * @param tunnelingAvailable false if connections go through an upstream proxy, so that CONNECTs cannot be tunneled to the server
+     */
+    public MitmBypassFilter(HttpRequest originalRequest, ChannelHandlerContext ctx, MitmBypassList bypassList, SwitchableMitmManager mitmManager,
+                            HostResolver resolver, int connectTimeoutMs, boolean tunnelingAvailable) {
+        super(originalRequest, ctx);
+
+        this.bypassList = bypassList;
+        this.mitmManager = mitmManager;
+        this.resolver = resolver;
+        this.connectTimeoutMs = connectTimeoutMs;
+        this.tunnelingAvailable = tunnelingAvailable;
+    }
+
+    @Override
+    public HttpResponse clientToProxyRequest(HttpObject httpObject) {
+        if (!(httpObject instanceof HttpRequest) || !ProxyUtils.isCONNECT(httpObject)) {
+            return null;
+        }
+
+        HttpRequest httpRequest = (HttpRequest) httpObject;
+
+        if (!tunnelingAvailable) {
+            if (!mitmManager.isReady()) {
+                log.debug("Rejecting CONNECT to {}: MITM is not ready and the connection cannot be tunneled", getHostAndPort(httpRequest));
+
+                HttpResponse response = new DefaultFullHttpResponse(httpRequest.getProtocolVersion(), HttpResponseStatus.SERVICE_UNAVAILABLE);
+                HttpHeaders.setContentLength(response, 0L);
+                HttpHeaders.setHeader(response, HttpHeaders.Names.CONNECTION, HttpHeaders.Values.CLOSE);
+
+                return response;
+            }
+
+            return null;
+        }
+
+        String hostAndPort = getHostAndPort(httpRequest);
+        if (hostAndPort == null) {
+            return null;
+        }
+
+        HostAndPort parsedHostAndPort = HostAndPort.fromString(hostAndPort);
+        String host = parsedHostAndPort.getHost();
+
+        if (!mitmManager.isReady() || bypassList.shouldBypass(host)) {
+            log.debug("Tunneling connection to {} without decrypting it", hostAndPort);
+
+            TunnelHttpResponse placeholder = new TunnelHttpResponse(httpRequest.getProtocolVersion());
+            ctx.pipeline().addBefore(TunnelHandler.CLIENT_CONNECTION_HANDLER_NAME, null, new TunnelHandler(placeholder,
+                    host, parsedHostAndPort.getPortOrDefault(HTTPS_DEFAULT_PORT), resolver, connectTimeoutMs, bypassList));
+
+            return placeholder;
+        }
+
+        if (bypassList.isLearningEnabled()) {
+            ctx.pipeline().addBefore(TunnelHandler.CLIENT_CONNECTION_HANDLER_NAME, null, new PinningDetectionHandler(host, bypassList));
+        }
+
+        // the connection will be decrypted, so start forging the certificate while the proxy connects to the server
+        mitmManager.prefetchClientCertificate(httpRequest);
+
+        return null;
+    }
+}
@@ -0,0 +1,105 @@
+package net.lightbody.bmp.filters;
+
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.http.HttpObject;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.LastHttpContent;
+import net.lightbody.bmp.proxy.cache.HttpCachePolicy;
+import net.lightbody.bmp.proxy.coalesce.CoalescedHttpResponse;
+import net.lightbody.bmp.proxy.coalesce.InFlightResponse;
+import net.lightbody.bmp.proxy.coalesce.RequestCoalescer;
+import org.littleshoot.proxy.impl.ProxyUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Collapses concurrent identical GETs into a single request to the server. The first request (the leader) is sent to the server as
+ * usual, and the response is published to the {@link InFlightResponse} as it is sent to the leader's client. Identical requests that
+ * arrive while the response is in flight are short-circuited with a {@link CoalescedHttpResponse} placeholder, and receive a copy of the
+ * leader's response instead.
+ * <p/>
+ * The leader's response is published from {@link #proxyToClientResponse(HttpObject)}, so followers receive exactly what the leader
+ * receives, including responses generated by the proxy itself (such as a 502 Bad Gateway when the server cannot be reached).
+ */
+public class RequestCoalescingFilter extends HttpsAwareFiltersAdapter {
+    private static final Logger log = LoggerFactory.getLogger(RequestCoalescingFilter.class);
+
+    private final RequestCoalescer coalescer;
+
+    private volatile InFlightResponse leaderResponse;
+    private volatile ChannelFutureListener leaderCloseListener;
+
+    public RequestCoalescingFilter(HttpRequest originalRequest, ChannelHandlerContext ctx, RequestCoalescer coalescer) {
+        super(originalRequest, ctx);
+
+        this.coalescer = coalescer;
+    }
+
+    @Override
+    public HttpResponse clientToProxyRequest(HttpObject httpObject) {
+        if (!(httpObject instanceof HttpRequest) || ProxyUtils.isCONNECT(httpObject)) {
+            return null;
+        }
+
+        HttpRequest httpRequest = (HttpRequest) httpObject;
+        if (!HttpCachePolicy.isCacheableRequest(httpRequest)) {
+            return null;
+        }
+
+        String key = RequestCoalescer.createKey(httpRequest, getFullUrl(httpRequest));
+
+        // if the in-flight response completes between the two calls, the second attempt will make this request the leader
+        for (int attempt = 0; attempt < 2; attempt++) {
+            InFlightResponse newResponse = coalescer.lead(key);
+            if (newResponse != null) {
+                becomeLeader(newResponse);
+                return null;
+            }
+
+            InFlightResponse inFlightResponse = coalescer.getInFlightResponse(key);
+            if (inFlightResponse != null) {
+                CoalescedHttpResponse placeholder = inFlightResponse.follow(ctx, httpRequest);
+                if (placeholder != null) {
+                    log.trace("Coalescing request for {} with in-flight request", getFullUrl(httpRequest));
+
+                    coalescer.recordCoalescedRequest();
+                    return placeholder;
+                }
+            }
+        }
+
+        return null;
+    }
+
+    @Override
+    public HttpObject proxyToClientResponse(HttpObject httpObject) {
+        InFlightResponse response = leaderResponse;
+        if (response != null) {
+            response.publish(httpObject);
+
+            if (httpObject instanceof LastHttpContent) {
+                ctx.channel().closeFuture().removeListener(leaderCloseListener);
+                leaderResponse = null;
+            }
+        }
+
+        return httpObject;
+    }
+
+    private void becomeLeader(final InFlightResponse response) {
+        this.leaderResponse = response;
+
+        // if the leader's client disconnects before the response is complete, the response will never be published in full
+        this.leaderCloseListener = new ChannelFutureListener() {
+            @Override
+            public void operationComplete(ChannelFuture future) throws Exception {
+                response.fail();
+            }
+        };
+
+        ctx.channel().closeFuture().addListener(leaderCloseListener);
+    }
+}
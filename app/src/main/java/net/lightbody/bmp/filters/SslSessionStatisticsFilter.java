@@ -0,0 +1,70 @@
+package net.lightbody.bmp.filters;
+
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.http.HttpObject;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.util.AttributeKey;
+import net.lightbody.bmp.mitm.stats.SslSessionStatistics;
+import net.lightbody.bmp.mitm.util.SslUtil;
+import org.littleshoot.proxy.impl.ProxyUtils;
+
+import javax.net.ssl.SSLSession;
+
+/**
+ * Records whether the TLS handshakes of MITM connections resumed an existing session. The upstream handshake is performed while the
+ * HTTP CONNECT is being processed, so it is recorded when the connection to the server succeeds. The client's handshake is performed
+ * after the CONNECT, so it is recorded when the first request on the encrypted connection arrives.
+ */
+public class SslSessionStatisticsFilter extends HttpsAwareFiltersAdapter {
+    /**
+     * Time the HTTP CONNECT was received on the client channel. Any session created before then was resumed by the client.
+     */
+    private static final AttributeKey<Long> CONNECT_RECEIVED_MILLIS = AttributeKey.valueOf("sslSessionConnectReceivedMillis");
+
+    private final SslSessionStatistics statistics;
+
+    private volatile long sslHandshakeStartedMillis;
+
+    public SslSessionStatisticsFilter(HttpRequest originalRequest, ChannelHandlerContext ctx, SslSessionStatistics statistics) {
+        super(originalRequest, ctx);
+
+        this.statistics = statistics;
+
+        if (ProxyUtils.isCONNECT(originalRequest)) {
+            ctx.attr(CONNECT_RECEIVED_MILLIS).set(System.currentTimeMillis());
+        }
+    }
+
+    @Override
+    public HttpResponse clientToProxyRequest(HttpObject httpObject) {
+        if (httpObject instanceof HttpRequest && !ProxyUtils.isCONNECT(httpObject)) {
+            Long connectReceivedMillis = ctx.attr(CONNECT_RECEIVED_MILLIS).getAndRemove();
+            if (connectReceivedMillis != null) {
+                SSLSession clientSession = SslUtil.getSslSession(ctx);
+                if (clientSession != null) {
+                    statistics.clientHandshakeCompleted(getHost((HttpRequest) httpObject),
+                            SslUtil.isResumedSession(clientSession, connectReceivedMillis));
+                }
+            }
+        }
+
+        return null;
+    }
+
+    @Override
+    public void proxyToServerConnectionSSLHandshakeStarted() {
+        this.sslHandshakeStartedMillis = System.currentTimeMillis();
+    }
+
+    @Override
+    public void proxyToServerConnectionSucceeded(ChannelHandlerContext serverCtx) {
+        if (sslHandshakeStartedMillis > 0L) {
+            SSLSession serverSession = SslUtil.getSslSession(serverCtx);
+            if (serverSession != null) {
+                statistics.upstreamHandshakeCompleted(getHost(originalRequest),
+                        SslUtil.isResumedSession(serverSession, sslHandshakeStartedMillis));
+            }
+        }
+    }
+}
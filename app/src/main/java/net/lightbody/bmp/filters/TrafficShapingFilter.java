@@ -0,0 +1,49 @@
+package net.lightbody.bmp.filters;
+
+import com.google.common.net.HostAndPort;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPipeline;
+import io.netty.handler.codec.http.HttpRequest;
+import net.lightbody.bmp.proxy.throttle.TrafficShaper;
+import net.lightbody.bmp.proxy.throttle.TrafficShapingHandler;
+import net.lightbody.bmp.util.HttpUtil;
+import org.littleshoot.proxy.HttpFiltersAdapter;
+import org.littleshoot.proxy.impl.ProxyUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Installs a {@link TrafficShapingHandler} on each new connection to an upstream server. The handler is installed once per connection,
+ * when the connection is established; for HTTPS, this happens when the HTTP CONNECT succeeds, so all requests sent over the tunnel
+ * are shaped using the host from the CONNECT.
+ */
+public class TrafficShapingFilter extends HttpFiltersAdapter {
+    private static final Logger log = LoggerFactory.getLogger(TrafficShapingFilter.class);
+
+    private final TrafficShaper trafficShaper;
+
+    public TrafficShapingFilter(HttpRequest originalRequest, ChannelHandlerContext ctx, TrafficShaper trafficShaper) {
+        super(originalRequest, ctx);
+
+        this.trafficShaper = trafficShaper;
+    }
+
+    @Override
+    public void proxyToServerConnectionSucceeded(ChannelHandlerContext serverCtx) {
+        ChannelPipeline pipeline = serverCtx.pipeline();
+        if (pipeline.get(TrafficShapingHandler.HANDLER_NAME) != null) {
+            return;
+        }
+
+        String host;
+        if (ProxyUtils.isCONNECT(originalRequest)) {
+            host = HostAndPort.fromString(originalRequest.getUri()).getHost();
+        } else {
+            host = HttpUtil.getHostFromRequest(originalRequest);
+        }
+
+        log.trace("Installing traffic shaping handler on connection to {}", host);
+
+        pipeline.addFirst(TrafficShapingHandler.HANDLER_NAME, new TrafficShapingHandler(trafficShaper, host));
+    }
+}
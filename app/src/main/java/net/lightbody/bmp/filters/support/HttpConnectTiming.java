@@ -16,6 +16,7 @@ public class HttpConnectTiming {
     private volatile long dnsTimeNanos = -1;
     private volatile long connectTimeNanos = -1;
     private volatile long sslHandshakeTimeNanos = -1;
+    private volatile boolean sslSessionResumed;
 
     public void setConnectTimeNanos(long connectTimeNanos) {
         this.connectTimeNanos = connectTimeNanos;
@@ -25,6 +26,13 @@ public class HttpConnectTiming {
         this.sslHandshakeTimeNanos = sslHandshakeTimeNanos;
     }
 
+    /**
+     * Sets whether the SSL handshake resumed an earlier session with the server, rather than performing a full handshake.
+     */
+    public void setSslSessionResumed(boolean sslSessionResumed) {
+        this.sslSessionResumed = sslSessionResumed;
+    }
+
     public void setBlockedTimeNanos(long blockedTimeNanos) {
         this.blockedTimeNanos = blockedTimeNanos;
     }
@@ -41,6 +49,10 @@ public class HttpConnectTiming {
         return sslHandshakeTimeNanos;
     }
 
+    public boolean isSslSessionResumed() {
+        return sslSessionResumed;
+    }
+
     public long getBlockedTimeNanos() {
         return blockedTimeNanos;
     }
@@ -0,0 +1,306 @@
+package net.lightbody.bmp.mitm;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListenableFutureTask;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.Uninterruptibles;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Forges impersonated certificates on a bounded pool of background threads, rather than on the Netty thread that handles the client's
+ * connection. At most one forge is in flight per key (such as the impersonated hostname): connections that need a certificate that is
+ * already being forged wait for the same result instead of forging it again.
+ * <p/>
+ * Forges can be started as soon as the certificate's contents are known, with {@link #prefetch(String, Callable)}, so the certificate is
+ * forged while the proxy is still connecting to the server. {@link #forge(String, Callable)} then only waits for whatever is left.
+ * <p/>
+ * Certificates are never forged on the calling thread, which is usually a Netty event loop that also serves established connections.
+ * When the executor is saturated, {@link #forge(String, Callable)} waits for room in the queue instead, and fails if none frees up within
+ * {@link #MAX_QUEUE_WAIT_MS}.
+ */
+public class CertificateForgingExecutor {
+    private static final Logger log = LoggerFactory.getLogger(CertificateForgingExecutor.class);
+
+    /**
+     * Default maximum number of forges waiting for a thread.
+     */
+    public static final int DEFAULT_MAX_QUEUED_FORGES = 256;
+
+    /**
+     * Maximum time a forge waits for room in a saturated queue before it fails.
+     */
+    public static final long MAX_QUEUE_WAIT_MS = 5000;
+
+    /**
+     * Time idle forging threads are kept alive.
+     */
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    private final ThreadPoolExecutor executor;
+
+    private final ConcurrentMap<String, ListenableFuture<?>> inFlightForges = new ConcurrentHashMap<>();
+
+    private final AtomicLong startedForgeCount = new AtomicLong();
+    private final AtomicLong joinedForgeCount = new AtomicLong();
+    private final AtomicLong saturatedForgeCount = new AtomicLong();
+    private final AtomicLong rejectedForgeCount = new AtomicLong();
+    private final AtomicLong waitCount = new AtomicLong();
+    private final AtomicLong totalWaitNanos = new AtomicLong();
+    private final AtomicLong maxWaitNanos = new AtomicLong();
+
+    public CertificateForgingExecutor() {
+        this(Math.max(2, Runtime.getRuntime().availableProcessors()), DEFAULT_MAX_QUEUED_FORGES);
+    }
+
+    /**
+     * @param threads maximum number of certificates forged at the same time
+     * @param maxQueuedForges maximum number of forges waiting for a thread; further forges wait for room in the queue, and further
+     *                        prefetches are skipped
+     */
+    public CertificateForgingExecutor(int threads, int maxQueuedForges) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("Number of forging threads must be at least 1");
+        }
+
+        this.executor = new ThreadPoolExecutor(threads, threads, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(maxQueuedForges),
+                new ThreadFactoryBuilder()
+                        .setNameFormat("certificate-forger-%d")
+                        .setDaemon(true)
+                        .build());
+
+        // executors of MITM engines that have been replaced release their threads
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Returns the result of the forge for the key, starting the forge if none is in flight, and waits for it to complete.
+     *
+     * @param key identifies the certificate being forged
+     * @param forge creates the certificate; should also store the result wherever later callers look for it before forging
+     * @throws ExecutionException if the forge failed, or could not be queued because the executor was saturated or closed
+     */
+    public <V> V forge(String key, Callable<V> forge) throws ExecutionException {
+        while (true) {
+            long waitStarted = System.nanoTime();
+            ListenableFuture<V> future = submit(key, forge, true);
+
+            boolean waited = !future.isDone();
+            try {
+                return Uninterruptibles.getUninterruptibly(future);
+            } catch (CancellationException e) {
+                // joined a prefetch that was skipped because the executor was saturated, so forge it again
+            } finally {
+                if (waited) {
+                    recordWait(System.nanoTime() - waitStarted);
+                }
+            }
+        }
+    }
+
+    /**
+     * Starts the forge for the key in the background, unless one is already in flight. The forge is skipped if the executor is saturated.
+     *
+     * @param key identifies the certificate being forged
+     * @param forge creates the certificate; must store the result wherever {@link #forge(String, Callable)}'s callers look for it
+     */
+    public void prefetch(String key, Callable<?> forge) {
+        submit(key, forge, false);
+    }
+
+    /**
+     * Returns the number of forges started on the executor's threads.
+     */
+    public long getStartedForgeCount() {
+        return startedForgeCount.get();
+    }
+
+    /**
+     * Returns the number of times a certificate was needed while a forge for it was already in flight.
+     */
+    public long getJoinedForgeCount() {
+        return joinedForgeCount.get();
+    }
+
+    /**
+     * Returns the number of forges that waited for room in the queue because the executor was saturated.
+     */
+    public long getSaturatedForgeCount() {
+        return saturatedForgeCount.get();
+    }
+
+    /**
+     * Returns the number of forges that failed because the executor stayed saturated for {@link #MAX_QUEUE_WAIT_MS}, or was closed.
+     */
+    public long getRejectedForgeCount() {
+        return rejectedForgeCount.get();
+    }
+
+    /**
+     * Returns the number of times a connection waited for a forge to complete.
+     */
+    public long getWaitCount() {
+        return waitCount.get();
+    }
+
+    /**
+     * Returns the average time a connection waited for a forge to complete, in milliseconds, or 0 if no connection has waited.
+     */
+    public double getAverageWaitMs() {
+        long count = waitCount.get();
+        if (count == 0) {
+            return 0;
+        }
+
+        return totalWaitNanos.get() / (double) count / TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    /**
+     * Returns the longest time a connection waited for a forge to complete, in milliseconds.
+     */
+    public long getMaxWaitMs() {
+        return TimeUnit.NANOSECONDS.toMillis(maxWaitNanos.get());
+    }
+
+    /**
+     * Returns the number of forges currently in flight.
+     */
+    public int getInFlightForgeCount() {
+        return inFlightForges.size();
+    }
+
+    /**
+     * Stops accepting forges and releases the forging threads once the forges in flight complete. Forges requested afterwards fail, and
+     * prefetches are skipped.
+     */
+    public void close() {
+        executor.shutdown();
+    }
+
+    @SuppressWarnings("unchecked")
+    private <V> ListenableFuture<V> submit(final String key, Callable<V> forge, boolean waitIfSaturated) {
+        final RejectableForge<V> rejectableForge = new RejectableForge<>(forge);
+        final ListenableFutureTask<V> task = ListenableFutureTask.create(rejectableForge);
+
+        ListenableFuture<?> inFlightForge;
+        while ((inFlightForge = inFlightForges.putIfAbsent(key, task)) != null) {
+            if (!inFlightForge.isDone()) {
+                joinedForgeCount.incrementAndGet();
+                return (ListenableFuture<V>) inFlightForge;
+            }
+
+            // waiters are woken before the completed forge removes itself, so a failed forge could otherwise be joined again
+            inFlightForges.remove(key, inFlightForge);
+        }
+
+        task.addListener(new Runnable() {
+            @Override
+            public void run() {
+                inFlightForges.remove(key, task);
+            }
+        }, MoreExecutors.directExecutor());
+
+        try {
+            executor.execute(task);
+            startedForgeCount.incrementAndGet();
+        } catch (RejectedExecutionException e) {
+            if (waitIfSaturated) {
+                log.debug("Certificate forging threads are saturated; waiting to forge {}", key);
+
+                saturatedForgeCount.incrementAndGet();
+                if (!queueWhenPossible(key, task)) {
+                    // completes the task, and the connections that joined it, with the rejection without forging
+                    rejectableForge.reject();
+                    task.run();
+                }
+            } else {
+                log.debug("Certificate forging threads are saturated; not prefetching {}", key);
+
+                inFlightForges.remove(key, task);
+                task.cancel(false);
+            }
+        }
+
+        return task;
+    }
+
+    /**
+     * Waits for room in the executor's queue and queues the task there, so the task still runs on a forging thread.
+     *
+     * @return false if the executor is closed or stayed saturated, and the task was not queued
+     */
+    private boolean queueWhenPossible(String key, ListenableFutureTask<?> task) {
+        boolean queued = false;
+        if (!executor.isShutdown()) {
+            try {
+                queued = executor.getQueue().offer(task, MAX_QUEUE_WAIT_MS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        if (queued) {
+            // the queue was bypassed, so make sure there are threads to take the task, and that the executor was not closed meanwhile
+            executor.prestartAllCoreThreads();
+            if (!executor.isShutdown() || !executor.remove(task)) {
+                startedForgeCount.incrementAndGet();
+                return true;
+            }
+        }
+
+        log.warn("Certificate forging threads are saturated or closed; failing the forge for {}", key);
+
+        rejectedForgeCount.incrementAndGet();
+        return false;
+    }
+
+    private void recordWait(long waitNanos) {
+        waitCount.incrementAndGet();
+        totalWaitNanos.addAndGet(waitNanos);
+
+        long currentMax;
+        while (waitNanos > (currentMax = maxWaitNanos.get())) {
+            if (maxWaitNanos.compareAndSet(currentMax, waitNanos)) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * A forge that can be made to fail without running, so a task that could not be queued completes on the calling thread without
+     * forging.
+     */
+    private static class RejectableForge<V> implements Callable<V> {
+        private final Callable<V> forge;
+        private volatile boolean rejected;
+
+        RejectableForge(Callable<V> forge) {
+            this.forge = forge;
+        }
+
+        void reject() {
+            rejected = true;
+        }
+
+        @Override
+        public V call() throws Exception {
+            if (rejected) {
+                throw new RejectedExecutionException("Certificate forging queue is full or closed");
+            }
+            return forge.call();
+        }
+    }
+}
@@ -0,0 +1,333 @@
+package net.lightbody.bmp.mitm;
+
+import com.google.common.base.Joiner;
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import net.lightbody.bmp.mitm.util.KeyStoreUtil;
+import net.lightbody.bmp.mitm.util.MitmConstants;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.security.KeyStore;
+import java.security.PrivateKey;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Persists impersonated server certificates and their private keys, so that a certificate forged for a host can be reused across proxy
+ * restarts, instead of being generated again on the first handshake with the host. Each certificate is stored in its own PKCS12 file,
+ * named by the SHA-1 hash of its key (the common name and subject alternative names) and sharded into subdirectories by the first two
+ * hex digits of the hash. The file names are the index: entries are only read from disk when they are requested.
+ * <p/>
+ * A stored certificate is only returned if it was issued by the current CA certificate and will remain valid for longer than the
+ * renewal margin; otherwise it is deleted, and the caller generates a new certificate. Certificates are written on a background thread,
+ * so storing a certificate does not delay the handshake that generated it.
+ * <p/>
+ * Certificates that will be stored should be generated with the validity returned by {@link #getNotAfter(X509Certificate)}, which is much
+ * longer than the renewal margin, so stored certificates remain usable across many restarts.
+ */
+public class DiskCertificateCache {
+    private static final Logger log = LoggerFactory.getLogger(DiskCertificateCache.class);
+
+    /**
+     * Default minimum remaining validity of a stored certificate. Certificates that expire sooner are regenerated.
+     */
+    public static final long DEFAULT_RENEWAL_MARGIN_MS = TimeUnit.MILLISECONDS.convert(1, TimeUnit.HOURS);
+
+    /**
+     * Default validity of certificates generated to be stored, unless the CA certificate expires sooner.
+     */
+    public static final long DEFAULT_CERTIFICATE_VALIDITY_MS = TimeUnit.MILLISECONDS.convert(365, TimeUnit.DAYS);
+
+    private static final String ENTRY_FILE_EXTENSION = ".p12";
+
+    private static final String PRIVATE_KEY_ALIAS = "impersonated";
+
+    private final File directory;
+    private final char[] password;
+    private final long renewalMarginMs;
+    private final long certificateValidityMs;
+
+    private final AtomicLong writeCount = new AtomicLong();
+
+    /**
+     * Single background thread that writes new entries, so that concurrent writes to the same entry are serialized.
+     */
+    private final ExecutorService writeExecutor = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder()
+            .setNameFormat("certificate-disk-cache-%d")
+            .setDaemon(true)
+            .build());
+
+    /**
+     * Creates a cache in the specified directory, using the {@link #DEFAULT_RENEWAL_MARGIN_MS default renewal margin}.
+     *
+     * @param directory directory to store certificates in; will be created if it does not exist
+     * @param password password protecting the stored private keys
+     */
+    public DiskCertificateCache(File directory, char[] password) {
+        this(directory, password, DEFAULT_RENEWAL_MARGIN_MS);
+    }
+
+    /**
+     * @param directory directory to store certificates in; will be created if it does not exist
+     * @param password password protecting the stored private keys
+     * @param renewalMarginMs minimum remaining validity of a certificate returned from the cache
+     */
+    public DiskCertificateCache(File directory, char[] password, long renewalMarginMs) {
+        this(directory, password, renewalMarginMs, DEFAULT_CERTIFICATE_VALIDITY_MS);
+    }
+
+    /**
+     * @param directory directory to store certificates in; will be created if it does not exist
+     * @param password password protecting the stored private keys
+     * @param renewalMarginMs minimum remaining validity of a certificate returned from the cache
+     * @param certificateValidityMs validity of certificates generated to be stored; see {@link #getNotAfter(X509Certificate)}
+     */
+    public DiskCertificateCache(File directory, char[] password, long renewalMarginMs, long certificateValidityMs) {
+        if (directory == null) {
+            throw new IllegalArgumentException("Certificate cache directory cannot be null");
+        }
+
+        if (password == null) {
+            throw new IllegalArgumentException("Certificate cache password cannot be null");
+        }
+
+        this.directory = directory;
+        this.password = password.clone();
+        this.renewalMarginMs = renewalMarginMs;
+        this.certificateValidityMs = certificateValidityMs;
+    }
+
+    /**
+     * Returns the Not After date for a certificate that will be stored: the certificate validity from now, or the CA certificate's
+     * Not After date if that is sooner, since a certificate is not trusted after its issuer expires.
+     *
+     * @param issuer the CA certificate that will sign the certificate
+     */
+    public Date getNotAfter(X509Certificate issuer) {
+        long notAfter = System.currentTimeMillis() + certificateValidityMs;
+
+        return new Date(Math.min(notAfter, issuer.getNotAfter().getTime()));
+    }
+
+    /**
+     * Creates the key that identifies a certificate with the specified names. The order of the subject alternative names does not affect
+     * the key.
+     *
+     * @param commonName the certificate's common name
+     * @param subjectAlternativeNames the certificate's subject alternative names; may be empty or null
+     * @return the cache key
+     */
+    public static String createKey(String commonName, Collection<String> subjectAlternativeNames) {
+        List<String> sortedNames = new ArrayList<>();
+        if (subjectAlternativeNames != null) {
+            for (String name : subjectAlternativeNames) {
+                sortedNames.add(name.toLowerCase(Locale.US));
+            }
+        }
+        Collections.sort(sortedNames);
+
+        return commonName.toLowerCase(Locale.US) + '|' + Joiner.on(',').join(sortedNames);
+    }
+
+    /**
+     * Retrieves a stored certificate and private key.
+     *
+     * @param key key created by {@link #createKey(String, Collection)}
+     * @param issuer the CA certificate that must have signed the stored certificate
+     * @return the stored certificate and its private key, or null if there is no usable certificate for the key
+     */
+    public CertificateAndKey get(String key, X509Certificate issuer) {
+        File entryFile = getEntryFile(key);
+        if (!entryFile.isFile()) {
+            return null;
+        }
+
+        CertificateAndKey certificateAndKey;
+        try {
+            certificateAndKey = readEntry(entryFile);
+        } catch (IOException | GeneralSecurityException | RuntimeException e) {
+            log.warn("Unable to read stored certificate from {}; certificate will be regenerated", entryFile, e);
+
+            deleteEntry(entryFile);
+            return null;
+        }
+
+        if (certificateAndKey == null || !isUsable(certificateAndKey.getCertificate(), issuer)) {
+            deleteEntry(entryFile);
+            return null;
+        }
+
+        return certificateAndKey;
+    }
+
+    /**
+     * Stores a certificate and private key. The entry is written asynchronously.
+     *
+     * @param key key created by {@link #createKey(String, Collection)}
+     * @param certificateAndKey the certificate and its private key
+     * @param issuer the CA certificate that signed the certificate, stored as the rest of the certificate chain
+     */
+    public void put(String key, final CertificateAndKey certificateAndKey, final X509Certificate issuer) {
+        final File entryFile = getEntryFile(key);
+
+        executeWrite(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    writeEntry(entryFile, certificateAndKey, issuer);
+                    writeCount.incrementAndGet();
+                } catch (IOException | GeneralSecurityException | RuntimeException e) {
+                    log.warn("Unable to store impersonated certificate in {}", entryFile, e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Deletes all stored certificates.
+     */
+    public void clear() {
+        executeWrite(new Runnable() {
+            @Override
+            public void run() {
+                File[] shards = directory.listFiles();
+                if (shards == null) {
+                    return;
+                }
+
+                for (File shard : shards) {
+                    File[] entries = shard.listFiles();
+                    if (entries != null) {
+                        for (File entry : entries) {
+                            deleteEntry(entry);
+                        }
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Stops the write thread once the pending writes are complete. Entries stored afterwards are not written to disk.
+     */
+    public void close() {
+        writeExecutor.shutdown();
+    }
+
+    /**
+     * @return the number of certificates written to disk since this cache was created
+     */
+    public long getWriteCount() {
+        return writeCount.get();
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    private void executeWrite(Runnable write) {
+        try {
+            writeExecutor.execute(write);
+        } catch (RejectedExecutionException e) {
+            log.debug("Certificate cache in {} is closed; not writing to disk", directory);
+        }
+    }
+
+    private boolean isUsable(X509Certificate certificate, X509Certificate issuer) {
+        if (certificate.getNotAfter().getTime() - System.currentTimeMillis() <= renewalMarginMs) {
+            log.debug("Stored certificate for {} expires at {}; certificate will be regenerated", certificate.getSubjectX500Principal(), certificate.getNotAfter());
+            return false;
+        }
+
+        // the CA may have been regenerated since the certificate was stored
+        if (!certificate.getIssuerX500Principal().equals(issuer.getSubjectX500Principal())) {
+            return false;
+        }
+
+        try {
+            certificate.verify(issuer.getPublicKey());
+        } catch (GeneralSecurityException e) {
+            log.debug("Stored certificate for {} was not signed by the current CA; certificate will be regenerated", certificate.getSubjectX500Principal());
+            return false;
+        }
+
+        return true;
+    }
+
+    private File getEntryFile(String key) {
+        String hash = Hashing.sha1().hashString(key, StandardCharsets.UTF_8).toString();
+
+        return new File(new File(directory, hash.substring(0, 2)), hash + ENTRY_FILE_EXTENSION);
+    }
+
+    private CertificateAndKey readEntry(File entryFile) throws IOException, GeneralSecurityException {
+        KeyStore keyStore = KeyStore.getInstance(MitmConstants.DEFAULT_KEYSTORE_TYPE);
+
+        InputStream in = new FileInputStream(entryFile);
+        try {
+            keyStore.load(in, password);
+        } finally {
+            in.close();
+        }
+
+        Key privateKey = keyStore.getKey(PRIVATE_KEY_ALIAS, password);
+        Certificate certificate = keyStore.getCertificate(PRIVATE_KEY_ALIAS);
+        if (!(privateKey instanceof PrivateKey) || !(certificate instanceof X509Certificate)) {
+            return null;
+        }
+
+        return new CertificateAndKey((X509Certificate) certificate, (PrivateKey) privateKey);
+    }
+
+    private void writeEntry(File entryFile, CertificateAndKey certificateAndKey, X509Certificate issuer) throws IOException, GeneralSecurityException {
+        File shardDirectory = entryFile.getParentFile();
+        if (!shardDirectory.isDirectory() && !shardDirectory.mkdirs()) {
+            throw new IOException("Unable to create certificate cache directory " + shardDirectory);
+        }
+
+        KeyStore keyStore = KeyStoreUtil.createEmptyKeyStore(MitmConstants.DEFAULT_KEYSTORE_TYPE, null);
+        keyStore.setKeyEntry(PRIVATE_KEY_ALIAS, certificateAndKey.getPrivateKey(), password,
+                new Certificate[]{certificateAndKey.getCertificate(), issuer});
+
+        // write to a temporary file and rename it, so a reader never sees a partially-written entry
+        File tempFile = new File(shardDirectory, entryFile.getName() + ".tmp");
+        OutputStream out = new FileOutputStream(tempFile);
+        try {
+            keyStore.store(out, password);
+        } finally {
+            out.close();
+        }
+
+        if (!tempFile.renameTo(entryFile)) {
+            deleteEntry(tempFile);
+            throw new IOException("Unable to rename " + tempFile + " to " + entryFile);
+        }
+    }
+
+    private static void deleteEntry(File entryFile) {
+        if (entryFile.exists() && !entryFile.delete()) {
+            log.debug("Unable to delete stored certificate {}", entryFile);
+        }
+    }
+}
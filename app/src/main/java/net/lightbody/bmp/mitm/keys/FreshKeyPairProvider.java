@@ -0,0 +1,33 @@
+package net.lightbody.bmp.mitm.keys;
+
+import java.security.KeyPair;
+
+/**
+ * A {@link KeyPairProvider} that generates a new key pair for every server certificate, on the calling thread.
+ */
+public class FreshKeyPairProvider implements KeyPairProvider {
+    private final KeyGenerator keyGenerator;
+
+    public FreshKeyPairProvider(KeyGenerator keyGenerator) {
+        if (keyGenerator == null) {
+            throw new IllegalArgumentException("Key generator cannot be null");
+        }
+
+        this.keyGenerator = keyGenerator;
+    }
+
+    @Override
+    public KeyPair getKeyPair() {
+        return keyGenerator.generate();
+    }
+
+    @Override
+    public void close() {
+        // key pairs are generated on the calling thread, so there is nothing to release
+    }
+
+    @Override
+    public String toString() {
+        return "Fresh " + keyGenerator;
+    }
+}
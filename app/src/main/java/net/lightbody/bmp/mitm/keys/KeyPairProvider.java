@@ -0,0 +1,22 @@
+package net.lightbody.bmp.mitm.keys;
+
+import java.security.KeyPair;
+
+/**
+ * Supplies the key pairs used for impersonated server certificates. Unlike a {@link KeyGenerator}, a provider may reuse key pairs or
+ * generate them ahead of time, so that signing the certificate is the only work left when a client connects to a new host.
+ */
+public interface KeyPairProvider {
+    /**
+     * Returns a key pair for a new server certificate. Depending on the implementation, the key pair may have been returned before.
+     *
+     * @return a public/private key pair
+     */
+    KeyPair getKeyPair();
+
+    /**
+     * Stops any background key generation and releases its threads. Key pairs can still be requested afterwards, but are generated on
+     * the calling thread.
+     */
+    void close();
+}
@@ -0,0 +1,161 @@
+package net.lightbody.bmp.mitm.keys;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.security.KeyPair;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A {@link KeyPairProvider} that keeps a bounded pool of pre-generated key pairs. Every key pair is used for exactly one server
+ * certificate. The pool is filled, and refilled as key pairs are taken, by a low-priority background thread; if the pool is empty when a
+ * key pair is needed, one is generated on the calling thread.
+ */
+public class PooledKeyPairProvider implements KeyPairProvider {
+    private static final Logger log = LoggerFactory.getLogger(PooledKeyPairProvider.class);
+
+    /**
+     * Default maximum number of pre-generated key pairs.
+     */
+    public static final int DEFAULT_POOL_SIZE = 4;
+
+    private final KeyGenerator keyGenerator;
+
+    private final BlockingQueue<KeyPair> pool;
+
+    private final AtomicBoolean refillScheduled = new AtomicBoolean();
+
+    private volatile boolean closed;
+
+    private final AtomicLong pooledKeyPairCount = new AtomicLong();
+    private final AtomicLong onDemandKeyPairCount = new AtomicLong();
+
+    private final ExecutorService refillExecutor = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder()
+            .setNameFormat("key-pair-pool-%d")
+            .setDaemon(true)
+            .setPriority(Thread.MIN_PRIORITY)
+            .build());
+
+    public PooledKeyPairProvider(KeyGenerator keyGenerator) {
+        this(keyGenerator, DEFAULT_POOL_SIZE);
+    }
+
+    /**
+     * Creates a provider and starts filling its pool in the background.
+     *
+     * @param keyGenerator generator for the pooled key pairs
+     * @param poolSize maximum number of pre-generated key pairs
+     */
+    public PooledKeyPairProvider(KeyGenerator keyGenerator, int poolSize) {
+        if (keyGenerator == null) {
+            throw new IllegalArgumentException("Key generator cannot be null");
+        }
+
+        if (poolSize < 1) {
+            throw new IllegalArgumentException("Pool size must be at least 1");
+        }
+
+        this.keyGenerator = keyGenerator;
+        this.pool = new ArrayBlockingQueue<>(poolSize);
+
+        scheduleRefill();
+    }
+
+    @Override
+    public KeyPair getKeyPair() {
+        KeyPair keyPair = pool.poll();
+
+        scheduleRefill();
+
+        if (keyPair != null) {
+            pooledKeyPairCount.incrementAndGet();
+
+            return keyPair;
+        } else {
+            onDemandKeyPairCount.incrementAndGet();
+
+            return keyGenerator.generate();
+        }
+    }
+
+    /**
+     * Stops refilling the pool and discards the pre-generated key pairs. Key pairs requested afterwards are generated on the calling
+     * thread.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        refillExecutor.shutdownNow();
+        pool.clear();
+    }
+
+    /**
+     * @return the number of key pairs that are currently pre-generated
+     */
+    public int getAvailableKeyPairs() {
+        return pool.size();
+    }
+
+    /**
+     * @return the number of key pairs that were taken from the pool
+     */
+    public long getPooledKeyPairCount() {
+        return pooledKeyPairCount.get();
+    }
+
+    /**
+     * @return the number of key pairs that had to be generated on the calling thread, because the pool was empty
+     */
+    public long getOnDemandKeyPairCount() {
+        return onDemandKeyPairCount.get();
+    }
+
+    private void scheduleRefill() {
+        if (!closed && pool.remainingCapacity() > 0 && refillScheduled.compareAndSet(false, true)) {
+            executeRefill(new Runnable() {
+                @Override
+                public void run() {
+                    boolean failed = false;
+                    try {
+                        while (!closed && pool.remainingCapacity() > 0) {
+                            if (!pool.offer(keyGenerator.generate())) {
+                                break;
+                            }
+                        }
+                    } catch (RuntimeException e) {
+                        log.warn("Unable to pre-generate {} key pair", keyGenerator, e);
+                        failed = true;
+                    } finally {
+                        refillScheduled.set(false);
+                    }
+
+                    // a key pair may have been taken after the loop ended, but before the refill was marked as finished
+                    if (!failed) {
+                        scheduleRefill();
+                    }
+                }
+            });
+        }
+    }
+
+    private void executeRefill(Runnable refill) {
+        try {
+            refillExecutor.execute(refill);
+        } catch (RejectedExecutionException e) {
+            // closed while the refill was being scheduled
+            refillScheduled.set(false);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "Pooled " + keyGenerator;
+    }
+}
@@ -0,0 +1,127 @@
+package net.lightbody.bmp.mitm.keys;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.security.KeyPair;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A {@link KeyPairProvider} that uses a single key pair for all server certificates, replacing it once it is older than the rotation
+ * interval. The first key pair is generated on a background thread as soon as the provider is created; replacement key pairs are also
+ * generated in the background, and the current key pair continues to be used until its replacement is ready.
+ */
+public class RotatingKeyPairProvider implements KeyPairProvider {
+    private static final Logger log = LoggerFactory.getLogger(RotatingKeyPairProvider.class);
+
+    /**
+     * Default length of time a key pair is used before it is replaced.
+     */
+    public static final long DEFAULT_ROTATION_INTERVAL_MS = TimeUnit.MILLISECONDS.convert(1, TimeUnit.DAYS);
+
+    private final KeyGenerator keyGenerator;
+    private final long rotationIntervalMs;
+
+    private volatile KeyPair currentKeyPair;
+    private volatile long currentKeyPairCreatedMs;
+
+    private final AtomicBoolean rotationScheduled = new AtomicBoolean();
+
+    private final ExecutorService rotationExecutor = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder()
+            .setNameFormat("key-pair-rotation-%d")
+            .setDaemon(true)
+            .setPriority(Thread.MIN_PRIORITY)
+            .build());
+
+    /**
+     * Creates a provider that replaces its key pair once a day.
+     */
+    public RotatingKeyPairProvider(KeyGenerator keyGenerator) {
+        this(keyGenerator, DEFAULT_ROTATION_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    public RotatingKeyPairProvider(KeyGenerator keyGenerator, long rotationInterval, TimeUnit timeUnit) {
+        if (keyGenerator == null) {
+            throw new IllegalArgumentException("Key generator cannot be null");
+        }
+
+        this.keyGenerator = keyGenerator;
+        this.rotationIntervalMs = TimeUnit.MILLISECONDS.convert(rotationInterval, timeUnit);
+
+        scheduleRotation();
+    }
+
+    @Override
+    public KeyPair getKeyPair() {
+        KeyPair keyPair = currentKeyPair;
+        if (keyPair == null) {
+            // the initial key pair is not ready yet, so the caller has to wait for one
+            synchronized (this) {
+                if (currentKeyPair == null) {
+                    replaceKeyPair(keyGenerator.generate());
+                }
+
+                return currentKeyPair;
+            }
+        }
+
+        if (System.currentTimeMillis() - currentKeyPairCreatedMs > rotationIntervalMs) {
+            scheduleRotation();
+        }
+
+        return keyPair;
+    }
+
+    /**
+     * Stops rotating the key pair. The current key pair keeps being returned afterwards.
+     */
+    @Override
+    public void close() {
+        rotationExecutor.shutdownNow();
+    }
+
+    private void scheduleRotation() {
+        if (!rotationExecutor.isShutdown() && rotationScheduled.compareAndSet(false, true)) {
+            executeRotation(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        KeyPair newKeyPair = keyGenerator.generate();
+
+                        synchronized (RotatingKeyPairProvider.this) {
+                            replaceKeyPair(newKeyPair);
+                        }
+                    } catch (RuntimeException e) {
+                        log.warn("Unable to generate replacement {} key pair", keyGenerator, e);
+                    } finally {
+                        rotationScheduled.set(false);
+                    }
+                }
+            });
+        }
+    }
+
+    private void executeRotation(Runnable rotation) {
+        try {
+            rotationExecutor.execute(rotation);
+        } catch (RejectedExecutionException e) {
+            // closed while the rotation was being scheduled
+            rotationScheduled.set(false);
+        }
+    }
+
+    private void replaceKeyPair(KeyPair keyPair) {
+        currentKeyPairCreatedMs = System.currentTimeMillis();
+        currentKeyPair = keyPair;
+    }
+
+    @Override
+    public String toString() {
+        return "Rotating " + keyGenerator;
+    }
+}
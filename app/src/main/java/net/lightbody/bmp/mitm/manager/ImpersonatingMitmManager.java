@@ -14,15 +14,19 @@ import io.netty.handler.ssl.SslContextBuilder;
 import io.netty.handler.ssl.SupportedCipherSuiteFilter;
 import net.lightbody.bmp.mitm.CertificateAndKey;
 import net.lightbody.bmp.mitm.CertificateAndKeySource;
+import net.lightbody.bmp.mitm.CertificateForgingExecutor;
 import net.lightbody.bmp.mitm.CertificateInfo;
 import net.lightbody.bmp.mitm.CertificateInfoGenerator;
+import net.lightbody.bmp.mitm.DiskCertificateCache;
 import net.lightbody.bmp.mitm.HostnameCertificateInfoGenerator;
 import net.lightbody.bmp.mitm.RootCertificateGenerator;
 import net.lightbody.bmp.mitm.TrustSource;
 import net.lightbody.bmp.mitm.exception.MitmException;
 import net.lightbody.bmp.mitm.exception.SslContextInitializationException;
 import net.lightbody.bmp.mitm.keys.ECKeyGenerator;
+import net.lightbody.bmp.mitm.keys.FreshKeyPairProvider;
 import net.lightbody.bmp.mitm.keys.KeyGenerator;
+import net.lightbody.bmp.mitm.keys.KeyPairProvider;
 import net.lightbody.bmp.mitm.keys.RSAKeyGenerator;
 import net.lightbody.bmp.mitm.stats.CertificateGenerationStatistics;
 import net.lightbody.bmp.mitm.tools.DefaultSecurityProviderTool;
@@ -30,6 +34,7 @@ import net.lightbody.bmp.mitm.tools.SecurityProviderTool;
 import net.lightbody.bmp.mitm.util.EncryptionUtil;
 import net.lightbody.bmp.mitm.util.MitmConstants;
 import net.lightbody.bmp.mitm.util.SslUtil;
+import net.lightbody.bmp.mitm.util.WildcardDomainUtil;
 import net.lightbody.bmp.util.HttpUtil;
 import org.littleshoot.proxy.MitmManager;
 import org.slf4j.Logger;
@@ -54,7 +59,7 @@ import java.util.concurrent.TimeUnit;
  * certificates will be signed using the certificate and private key specified in an {@link #rootCertificateSource}. The impersonated server
  * certificates will be created by the {@link #securityProviderTool} based on the {@link CertificateInfo} returned by the {@link #certificateInfoGenerator}.
  */
-public class ImpersonatingMitmManager implements MitmManager {
+public class ImpersonatingMitmManager implements PrefetchingMitmManager {
     private static final Logger log = LoggerFactory.getLogger(ImpersonatingMitmManager.class);
 
     /**
@@ -84,9 +89,20 @@ public class ImpersonatingMitmManager implements MitmManager {
     private final Cache<String, SslContext> sslContextCache;
 
     /**
-     * Generator used to create public and private keys for the server certificates.
+     * When true, hosts are impersonated with wildcard certificates shared by every host under the same domain.
      */
-    private final KeyGenerator serverKeyGenerator;
+    private volatile boolean wildcardCertificatesEnabled;
+
+    /**
+     * Persists impersonated server certificates, so they survive cache expiration and restarts. May be null.
+     */
+    private volatile DiskCertificateCache diskCertificateCache;
+
+    /**
+     * Provider of the public and private keys for the server certificates. By default, a new key pair is generated by the
+     * server key generator for every certificate.
+     */
+    private volatile KeyPairProvider serverKeyPairProvider;
 
     /**
      * The source of the CA's {@link CertificateAndKey} that will be used to sign generated server certificates.
@@ -132,6 +148,11 @@ public class ImpersonatingMitmManager implements MitmManager {
      */
     private final CertificateGenerationStatistics statistics = new CertificateGenerationStatistics();
 
+    /**
+     * Forges impersonated certificates off the Netty threads, once per hostname at a time.
+     */
+    private final CertificateForgingExecutor forgingExecutor = new CertificateForgingExecutor();
+
     /**
      * Creates a new ImpersonatingMitmManager. In general, use {@link ImpersonatingMitmManager.Builder}
      * to construct new instances.
@@ -172,7 +193,7 @@ public class ImpersonatingMitmManager implements MitmManager {
 
         this.serverCertificateMessageDigest = serverMessageDigest;
 
-        this.serverKeyGenerator = serverKeyGenerator;
+        this.serverKeyPairProvider = new FreshKeyPairProvider(serverKeyGenerator);
 
         this.sslContextCache = CacheBuilder.newBuilder()
                 .concurrencyLevel(sslContextCacheConcurrencyLevel)
@@ -213,6 +234,8 @@ public class ImpersonatingMitmManager implements MitmManager {
             }
             sslEngine.setSSLParameters(sslParams);
 
+            SslUtil.enableSessionTickets(sslEngine);
+
             return sslEngine;
         } catch (RuntimeException e) {
             throw new MitmException("Error creating SSLEngine for connection to upstream server: " + peerHost + ":" + peerPort, e);
@@ -226,7 +249,10 @@ public class ImpersonatingMitmManager implements MitmManager {
         try {
             SslContext ctx = getHostnameImpersonatingSslContext(requestedHostname, sslSession);
 
-            return ctx.newEngine(ByteBufAllocator.DEFAULT);
+            SSLEngine sslEngine = ctx.newEngine(ByteBufAllocator.DEFAULT);
+            SslUtil.enableSessionTickets(sslEngine);
+
+            return sslEngine;
         } catch (RuntimeException e) {
             throw new MitmException("Error creating SSLEngine for connection to client to impersonate upstream host: " + requestedHostname, e);
         }
@@ -235,42 +261,90 @@ public class ImpersonatingMitmManager implements MitmManager {
     /**
      * Retrieves an SSLContext that impersonates the specified hostname. If an impersonating SSLContext has already been
      * created for this hostname and is stored in the cache, it will be reused. Otherwise, a certificate will be created
-     * which impersonates the specified hostname.
+     * which impersonates the specified hostname. When wildcard certificates are enabled, the SSLContext is shared by all
+     * hosts covered by the same wildcard certificate.
      *
      * @param hostnameToImpersonate the hostname for which the impersonated SSLContext is being requested
      * @param sslSession the upstream server SSLSession
      * @return SSLContext which will present an impersonated certificate
      */
     private SslContext getHostnameImpersonatingSslContext(final String hostnameToImpersonate, final SSLSession sslSession) {
+        final List<String> hostnames = getHostnamesToImpersonate(hostnameToImpersonate);
+
+        SslContext sslContext = sslContextCache.getIfPresent(hostnames.get(0));
+        if (sslContext != null) {
+            return sslContext;
+        }
+
         try {
-            return sslContextCache.get(hostnameToImpersonate, new Callable<SslContext>() {
-                @Override
-                public SslContext call() throws Exception {
-                    return createImpersonatingSslContext(sslSession, hostnameToImpersonate);
-                }
-            });
+            return forgingExecutor.forge(hostnames.get(0), newForge(sslSession, hostnames));
         } catch (ExecutionException e) {
             throw new SslContextInitializationException("An error occurred while impersonating the remote host: " + hostnameToImpersonate, e);
         }
+    }
+
+    /**
+     * Starts impersonating the host the CONNECT is addressed to in the background. Only the default {@link HostnameCertificateInfoGenerator}
+     * is known not to need the upstream server's certificate, so certificates are only prefetched when it is in use.
+     */
+    @Override
+    public void prefetchClientCertificate(HttpRequest connectRequest) {
+        if (certificateInfoGenerator.getClass() != HostnameCertificateInfoGenerator.class) {
+            return;
+        }
+
+        List<String> hostnames = getHostnamesToImpersonate(HttpUtil.getHostFromRequest(connectRequest));
+        if (sslContextCache.getIfPresent(hostnames.get(0)) == null) {
+            forgingExecutor.prefetch(hostnames.get(0), newForge(null, hostnames));
+        }
+    }
 
-        //TODO: generate wildcard certificates, rather than one certificate per host, to reduce the number of certs generated
+    /**
+     * Returns the hostnames an impersonated certificate for the host will contain. When wildcard certificates are enabled, the first
+     * hostname is the wildcard name covering the host.
+     */
+    private List<String> getHostnamesToImpersonate(String hostnameToImpersonate) {
+        String baseDomain = wildcardCertificatesEnabled ? WildcardDomainUtil.getWildcardBaseDomain(hostnameToImpersonate) : null;
+        if (baseDomain != null) {
+            return WildcardDomainUtil.getWildcardCertificateNames(baseDomain);
+        } else {
+            return Collections.singletonList(hostnameToImpersonate);
+        }
     }
 
     /**
-     * Creates an SSLContext that will present an impersonated certificate for the specified hostname to the client.
+     * Returns a task that impersonates the hostnames and caches the resulting SslContext.
+     *
+     * @param sslSession the upstream server SSLSession, or null if the connection to the server has not been established
+     */
+    private Callable<SslContext> newForge(final SSLSession sslSession, final List<String> hostnames) {
+        return new Callable<SslContext>() {
+            @Override
+            public SslContext call() throws Exception {
+                SslContext sslContext = createImpersonatingSslContext(sslSession, hostnames);
+                sslContextCache.put(hostnames.get(0), sslContext);
+
+                return sslContext;
+            }
+        };
+    }
+
+    /**
+     * Creates an SSLContext that will present an impersonated certificate for the specified hostnames to the client.
      * This is a convenience method for {@link #createImpersonatingSslContext(CertificateInfo)} that generates the
-     * {@link CertificateInfo} from the specified hostname using the {@link #certificateInfoGenerator}.
+     * {@link CertificateInfo} from the specified hostnames using the {@link #certificateInfoGenerator}.
      *
-     * @param sslSession sslSession between the proxy and the upstream server
-     * @param hostnameToImpersonate hostname (supplied by the client's HTTP CONNECT) that will be impersonated
-     * @return an SSLContext presenting a certificate matching the hostnameToImpersonate
+     * @param sslSession sslSession between the proxy and the upstream server, or null if it has not been established yet
+     * @param hostnamesToImpersonate hostnames that will be impersonated; the first is the hostname (supplied by the client's
+     *                               HTTP CONNECT), or the wildcard name covering it
+     * @return an SSLContext presenting a certificate matching the hostnamesToImpersonate
      */
-    private SslContext createImpersonatingSslContext(SSLSession sslSession, String hostnameToImpersonate) {
+    private SslContext createImpersonatingSslContext(SSLSession sslSession, List<String> hostnamesToImpersonate) {
         // get the upstream server's certificate so the certificateInfoGenerator can (optionally) use it to construct a forged certificate
-        X509Certificate originalCertificate = SslUtil.getServerCertificate(sslSession);
+        X509Certificate originalCertificate = sslSession == null ? null : SslUtil.getServerCertificate(sslSession);
 
         // get the CertificateInfo that will be used to populate the impersonated X509Certificate
-        CertificateInfo certificateInfo = certificateInfoGenerator.generate(Collections.singletonList(hostnameToImpersonate), originalCertificate);
+        CertificateInfo certificateInfo = certificateInfoGenerator.generate(hostnamesToImpersonate, originalCertificate);
 
         SslContext sslContext = createImpersonatingSslContext(certificateInfo);
 
@@ -287,9 +361,28 @@ public class ImpersonatingMitmManager implements MitmManager {
     private SslContext createImpersonatingSslContext(CertificateInfo certificateInfo) {
         long impersonationStart = System.currentTimeMillis();
 
+        DiskCertificateCache currentDiskCache = diskCertificateCache;
+        String diskCacheKey = null;
+        if (currentDiskCache != null) {
+            diskCacheKey = DiskCertificateCache.createKey(certificateInfo.getCommonName(), certificateInfo.getSubjectAlternativeNames());
+
+            CertificateAndKey stored = currentDiskCache.get(diskCacheKey, rootCertificate.get().getCertificate());
+            if (stored != null) {
+                SslContext sslContext = createServerSslContext(stored);
+
+                statistics.certificateLoadedFromDisk();
+
+                log.debug("Loaded impersonated certificate for {} from disk in {}ms", certificateInfo.getCommonName(), System.currentTimeMillis() - impersonationStart);
+
+                return sslContext;
+            }
+        }
+
         // generate a public and private key pair for the forged certificate. the SslContext will send the impersonated certificate to clients
         // to impersonate the real upstream server, and will use the private key to encrypt the channel.
-        KeyPair serverKeyPair = serverKeyGenerator.generate();
+        long keyPairStart = System.currentTimeMillis();
+        KeyPair serverKeyPair = serverKeyPairProvider.getKeyPair();
+        statistics.keyPairObtained(keyPairStart, System.currentTimeMillis());
 
         // get the CA root certificate and private key that will be used to sign the forged certificate
         X509Certificate caRootCertificate = rootCertificate.get().getCertificate();
@@ -308,6 +401,13 @@ public class ImpersonatingMitmManager implements MitmManager {
             log.warn("CA private key is an RSA key and impersonated server private key is an Elliptic Curve key. JDK bug 8136442 may prevent the proxy server from creating connections to clients due to 'no cipher suites in common'.");
         }
 
+        // the certificate info generator's validity (one year by default) is long enough to reuse stored certificates across restarts,
+        // but a stored certificate must not outlive the root certificate that signed it
+        if (currentDiskCache != null && certificateInfo.getNotAfter() != null
+                && certificateInfo.getNotAfter().after(caRootCertificate.getNotAfter())) {
+            certificateInfo.notAfter(caRootCertificate.getNotAfter());
+        }
+
         // create the forged server certificate and sign it with the root certificate and private key
         CertificateAndKey impersonatedCertificateAndKey = securityProviderTool.createServerCertificate(
                 certificateInfo,
@@ -316,24 +416,78 @@ public class ImpersonatingMitmManager implements MitmManager {
                 serverKeyPair,
                 serverCertificateMessageDigest);
 
-        X509Certificate[] certChain = {impersonatedCertificateAndKey.getCertificate(), caRootCertificate};
-        SslContext sslContext;
+        SslContext sslContext = createServerSslContext(impersonatedCertificateAndKey);
+
+        if (currentDiskCache != null) {
+            currentDiskCache.put(diskCacheKey, impersonatedCertificateAndKey, caRootCertificate);
+        }
+
+        long impersonationFinish = System.currentTimeMillis();
+
+        statistics.certificateCreated(impersonationStart, impersonationFinish);
+
+        log.debug("Impersonated certificate for {} in {}ms", certificateInfo.getCommonName(), impersonationFinish - impersonationStart);
+
+        return sslContext;
+    }
+
+    /**
+     * Creates an SslContext that presents the impersonated certificate, followed by the CA root certificate, to clients.
+     */
+    private SslContext createServerSslContext(CertificateAndKey impersonatedCertificateAndKey) {
+        X509Certificate[] certChain = {impersonatedCertificateAndKey.getCertificate(), rootCertificate.get().getCertificate()};
         try {
-            sslContext = SslContextBuilder.forServer(impersonatedCertificateAndKey.getPrivateKey(), certChain)
+            return SslContextBuilder.forServer(impersonatedCertificateAndKey.getPrivateKey(), certChain)
                     .ciphers(clientCipherSuites, SupportedCipherSuiteFilter.INSTANCE)
+                    .sessionCacheSize(SslUtil.DEFAULT_SESSION_CACHE_SIZE)
+                    .sessionTimeout(SslUtil.DEFAULT_SESSION_TIMEOUT_SECONDS)
                     .build();
 
         } catch (SSLException e) {
             throw new MitmException("Error creating SslContext for connection to client using impersonated certificate and private key", e);
         }
+    }
 
-        long impersonationFinish = System.currentTimeMillis();
+    /**
+     * Sets the provider of the key pairs for impersonated server certificates, replacing the server key generator. Use a
+     * {@link net.lightbody.bmp.mitm.keys.PooledKeyPairProvider} or {@link net.lightbody.bmp.mitm.keys.RotatingKeyPairProvider}
+     * to move key generation off the handshake path.
+     */
+    public void setServerKeyPairProvider(KeyPairProvider serverKeyPairProvider) {
+        if (serverKeyPairProvider == null) {
+            throw new IllegalArgumentException("Server key pair provider cannot be null");
+        }
 
-        statistics.certificateCreated(impersonationStart, impersonationFinish);
+        this.serverKeyPairProvider = serverKeyPairProvider;
+    }
 
-        log.debug("Impersonated certificate for {} in {}ms", certificateInfo.getCommonName(), impersonationFinish - impersonationStart);
+    public KeyPairProvider getServerKeyPairProvider() {
+        return serverKeyPairProvider;
+    }
 
-        return sslContext;
+    /**
+     * Enables or disables wildcard certificates. When enabled, hosts are grouped by registrable domain, and every host in a group is
+     * impersonated by the same {@code *.domain} certificate, which also covers the domain itself. Hosts that cannot be covered by a
+     * wildcard, such as IP addresses, are still impersonated individually. See {@link WildcardDomainUtil} for details.
+     */
+    public void setWildcardCertificatesEnabled(boolean wildcardCertificatesEnabled) {
+        this.wildcardCertificatesEnabled = wildcardCertificatesEnabled;
+    }
+
+    public boolean isWildcardCertificatesEnabled() {
+        return wildcardCertificatesEnabled;
+    }
+
+    /**
+     * Sets the cache that persists impersonated server certificates. Certificates in the cache are reused, instead of generated,
+     * until they are close to expiring. Set to null to keep certificates only in memory.
+     */
+    public void setDiskCertificateCache(DiskCertificateCache diskCertificateCache) {
+        this.diskCertificateCache = diskCertificateCache;
+    }
+
+    public DiskCertificateCache getDiskCertificateCache() {
+        return diskCertificateCache;
     }
 
     /**
@@ -343,6 +497,27 @@ public class ImpersonatingMitmManager implements MitmManager {
         return this.statistics;
     }
 
+    /**
+     * Returns the executor that forges impersonated certificates, whose statistics show how long connections waited for certificates.
+     */
+    public CertificateForgingExecutor getForgingExecutor() {
+        return forgingExecutor;
+    }
+
+    /**
+     * Releases the threads used by this MitmManager: the server key pair provider's, the forging executor's and the disk certificate
+     * cache's. Call this when the MitmManager is replaced; connections that are still using it generate certificates on their own threads.
+     */
+    public void close() {
+        serverKeyPairProvider.close();
+        forgingExecutor.close();
+
+        DiskCertificateCache currentDiskCache = diskCertificateCache;
+        if (currentDiskCache != null) {
+            currentDiskCache.close();
+        }
+    }
+
     /**
      * Convenience method to return a new {@link Builder} instance default default values: a {@link RootCertificateGenerator}
      * that dynamically generates an RSA root certificate and RSA server certificates.
@@ -386,6 +561,12 @@ public class ImpersonatingMitmManager implements MitmManager {
 
         private Collection<String> clientCiphers;
 
+        private DiskCertificateCache diskCertificateCache;
+
+        private KeyPairProvider serverKeyPairProvider;
+
+        private boolean wildcardCertificates;
+
         /**
          * The source of the CA root certificate that will be used to sign the impersonated server certificates. Custom
          * certificates can be used by supplying an implementation of {@link CertificateAndKeySource}, such as
@@ -443,6 +624,24 @@ public class ImpersonatingMitmManager implements MitmManager {
             return this;
         }
 
+        /**
+         * The {@link KeyPairProvider} that will supply the server public and private keys. When set, it is used instead of
+         * the {@link #serverKeyGenerator(KeyGenerator) server key generator}.
+         */
+        public Builder serverKeyPairProvider(KeyPairProvider serverKeyPairProvider) {
+            this.serverKeyPairProvider = serverKeyPairProvider;
+            return this;
+        }
+
+        /**
+         * When true, impersonate hosts with wildcard certificates shared by every host under the same registrable domain, rather
+         * than generating one certificate per host.
+         */
+        public Builder wildcardCertificates(boolean wildcardCertificates) {
+            this.wildcardCertificates = wildcardCertificates;
+            return this;
+        }
+
         /**
          * The concurrency level for the SSLContext cache. Increase this beyond the default value for high-volume proxy servers.
          */
@@ -488,6 +687,15 @@ public class ImpersonatingMitmManager implements MitmManager {
             return this;
         }
 
+        /**
+         * The cache in which impersonated server certificates will be persisted, so they can be reused after the in-memory
+         * SSLContext cache expires, or the proxy is restarted. By default, certificates are only kept in memory.
+         */
+        public Builder diskCertificateCache(DiskCertificateCache diskCertificateCache) {
+            this.diskCertificateCache = diskCertificateCache;
+            return this;
+        }
+
         /**
          * The {@link SecurityProviderTool} implementation that will be used to generate certificates.
          */
@@ -505,7 +713,7 @@ public class ImpersonatingMitmManager implements MitmManager {
                 serverCiphers = SslUtil.getDefaultCipherList();
             }
 
-            return new ImpersonatingMitmManager(
+            ImpersonatingMitmManager mitmManager = new ImpersonatingMitmManager(
                     rootCertificateSource,
                     serverKeyGenerator,
                     serverMessageDigest,
@@ -517,6 +725,15 @@ public class ImpersonatingMitmManager implements MitmManager {
                     serverCiphers,
                     clientCiphers
             );
+
+            mitmManager.setDiskCertificateCache(diskCertificateCache);
+            mitmManager.setWildcardCertificatesEnabled(wildcardCertificates);
+
+            if (serverKeyPairProvider != null) {
+                mitmManager.setServerKeyPairProvider(serverKeyPairProvider);
+            }
+
+            return mitmManager;
         }
     }
 }
@@ -0,0 +1,18 @@
+package net.lightbody.bmp.mitm.manager;
+
+/**
+ * The MITM implementations the proxy can use to impersonate upstream servers.
+ */
+public enum MitmEngine {
+    /**
+     * {@link org.littleshoot.proxy.mitm.CertificateSniffingMitmManager}: copies the common name and subject alternative names of the
+     * upstream server's certificate into the impersonated certificate.
+     */
+    CERTIFICATE_SNIFFING,
+
+    /**
+     * {@link ImpersonatingMitmManager}: creates impersonated certificates from the requested hostname, with a configurable key
+     * generator, SSLContext cache and cipher suites.
+     */
+    IMPERSONATING
+}
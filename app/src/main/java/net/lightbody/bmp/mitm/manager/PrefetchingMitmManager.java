@@ -0,0 +1,19 @@
+package net.lightbody.bmp.mitm.manager;
+
+import io.netty.handler.codec.http.HttpRequest;
+import org.littleshoot.proxy.MitmManager;
+
+/**
+ * A {@link MitmManager} that can start impersonating a server as soon as the client's CONNECT is received, so the impersonated
+ * certificate is forged in the background while the proxy connects to the server, instead of when
+ * {@link #clientSslEngineFor(HttpRequest, javax.net.ssl.SSLSession)} is called.
+ */
+public interface PrefetchingMitmManager extends MitmManager {
+    /**
+     * Starts forging the certificate that will impersonate the server the CONNECT is addressed to, if it can be forged before the
+     * proxy has connected to the server. Must not block.
+     *
+     * @param connectRequest the client's CONNECT
+     */
+    void prefetchClientCertificate(HttpRequest connectRequest);
+}
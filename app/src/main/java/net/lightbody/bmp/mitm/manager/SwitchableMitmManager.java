@@ -0,0 +1,132 @@
+package net.lightbody.bmp.mitm.manager;
+
+import io.netty.handler.codec.http.HttpRequest;
+import org.littleshoot.proxy.MitmManager;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLSession;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A {@link MitmManager} that delegates to another MitmManager, which can be replaced while the proxy is running. LittleProxy only
+ * accepts a MitmManager when the proxy is bootstrapped; installing this manager instead allows the MITM engine to be changed later.
+ * Connections that are already established keep the SSLEngines created by the previous manager.
+ * <p/>
+ * The manager may be created without a delegate, so the proxy can start before the root certificate has been loaded or generated.
+ * Until the first delegate is set, {@link #isReady()} returns false. SSLEngines are requested on the proxy's event loops, so requests
+ * for SSLEngines never wait for the delegate: they fail at once, and CONNECTs must instead be tunneled or rejected while the manager is
+ * not ready (see {@link net.lightbody.bmp.filters.MitmBypassFilter}). If creating the delegate fails, {@link #setFailed(Throwable)}
+ * records the failure and releases threads waiting in {@link #awaitReady(long, TimeUnit)}.
+ */
+public class SwitchableMitmManager implements PrefetchingMitmManager {
+    private final CountDownLatch ready = new CountDownLatch(1);
+
+    private volatile MitmManager delegate;
+    private volatile Throwable failure;
+
+    /**
+     * Creates a manager without a delegate. Call {@link #setDelegate(MitmManager)} once the delegate has been created.
+     */
+    public SwitchableMitmManager() {
+    }
+
+    public SwitchableMitmManager(MitmManager delegate) {
+        setDelegate(delegate);
+    }
+
+    /**
+     * Replaces the manager that creates SSLEngines for new connections.
+     */
+    public void setDelegate(MitmManager delegate) {
+        if (delegate == null) {
+            throw new IllegalArgumentException("MitmManager cannot be null");
+        }
+
+        this.delegate = delegate;
+        this.failure = null;
+
+        ready.countDown();
+    }
+
+    /**
+     * Records that the first delegate could not be created. Has no effect once a delegate has been set.
+     */
+    public void setFailed(Throwable failure) {
+        if (delegate != null) {
+            return;
+        }
+
+        this.failure = failure;
+
+        ready.countDown();
+    }
+
+    /**
+     * Returns the reason the first delegate could not be created, or null if it has been created or is still being created.
+     */
+    public Throwable getFailure() {
+        return failure;
+    }
+
+    /**
+     * Returns the current delegate, or null if no delegate has been set yet.
+     */
+    public MitmManager getDelegate() {
+        return delegate;
+    }
+
+    /**
+     * Returns true once a delegate has been set.
+     */
+    public boolean isReady() {
+        return delegate != null;
+    }
+
+    /**
+     * Waits for the first delegate to be set, or for creating it to fail. Must not be called on an event loop.
+     *
+     * @return true if a delegate has been set, false if creating it failed or the timeout elapsed first
+     */
+    public boolean awaitReady(long timeout, TimeUnit unit) throws InterruptedException {
+        return ready.await(timeout, unit) && delegate != null;
+    }
+
+    @Override
+    public SSLEngine serverSslEngine(String peerHost, int peerPort) {
+        return getReadyDelegate().serverSslEngine(peerHost, peerPort);
+    }
+
+    @Override
+    public SSLEngine serverSslEngine() {
+        return getReadyDelegate().serverSslEngine();
+    }
+
+    @Override
+    public SSLEngine clientSslEngineFor(HttpRequest httpRequest, SSLSession serverSslSession) {
+        return getReadyDelegate().clientSslEngineFor(httpRequest, serverSslSession);
+    }
+
+    @Override
+    public void prefetchClientCertificate(HttpRequest connectRequest) {
+        MitmManager currentDelegate = delegate;
+        if (currentDelegate instanceof PrefetchingMitmManager) {
+            ((PrefetchingMitmManager) currentDelegate).prefetchClientCertificate(connectRequest);
+        }
+    }
+
+    private MitmManager getReadyDelegate() {
+        MitmManager currentDelegate = delegate;
+        if (currentDelegate != null) {
+            return currentDelegate;
+        }
+
+        // this is called on an event loop, so it cannot wait for the delegate without stalling every other connection on the loop
+        Throwable currentFailure = failure;
+        if (currentFailure != null) {
+            throw new IllegalStateException("MITM manager could not be initialized", currentFailure);
+        }
+
+        throw new IllegalStateException("MITM manager is not ready");
+    }
+}
@@ -9,6 +9,10 @@ import java.util.concurrent.atomic.AtomicLong;
 public class CertificateGenerationStatistics {
     private AtomicLong certificateGenerationTimeMs = new AtomicLong();
     private AtomicInteger certificatesGenerated = new AtomicInteger();
+    private AtomicInteger certificatesLoadedFromDisk = new AtomicInteger();
+
+    private AtomicLong keyPairWaitTimeMs = new AtomicLong();
+    private AtomicInteger keyPairsObtained = new AtomicInteger();
 
     private AtomicLong firstCertificateGeneratedTimestamp = new AtomicLong();
 
@@ -23,6 +27,22 @@ public class CertificateGenerationStatistics {
         firstCertificateGeneratedTimestamp.compareAndSet(0L, System.currentTimeMillis());
     }
 
+    /**
+     * Records that a previously generated certificate was loaded from disk, instead of being generated.
+     */
+    public void certificateLoadedFromDisk() {
+        certificatesLoadedFromDisk.incrementAndGet();
+    }
+
+    /**
+     * Records that obtaining the key pair for a certificate started at startTimeMs and completed at finishTimeMs. The time is part of
+     * the certificate generation time.
+     */
+    public void keyPairObtained(long startTimeMs, long finishTimeMs) {
+        keyPairsObtained.incrementAndGet();
+        keyPairWaitTimeMs.addAndGet(finishTimeMs - startTimeMs);
+    }
+
     /**
      * Returns the total number of certificates created.
      */
@@ -30,6 +50,13 @@ public class CertificateGenerationStatistics {
         return certificatesGenerated.get();
     }
 
+    /**
+     * Returns the total number of certificates loaded from disk instead of being generated.
+     */
+    public int getCertificatesLoadedFromDisk() {
+        return certificatesLoadedFromDisk.get();
+    }
+
     /**
      * Returns the total number of ms spent generating all certificates.
      */
@@ -48,6 +75,18 @@ public class CertificateGenerationStatistics {
         }
     }
 
+    /**
+     * Returns the average number of ms spent waiting for a key pair per certificate generated. Comparing this to
+     * {@link #getAvgCertificateGenerationTimeMs()} shows how much of the generation time is spent generating keys.
+     */
+    public long getAvgKeyPairWaitTimeMs() {
+        if (keyPairsObtained.get() > 0) {
+            return keyPairWaitTimeMs.get() / keyPairsObtained.get();
+        } else {
+            return 0L;
+        }
+    }
+
     /**
      * Returns the timestamp (ms since epoch) when the first certificate was generated, or 0 if none have been generated.
      */
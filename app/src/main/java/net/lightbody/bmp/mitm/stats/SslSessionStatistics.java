@@ -0,0 +1,128 @@
+package net.lightbody.bmp.mitm.stats;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Tracks, per host, how many TLS handshakes resumed an existing session rather than performing a full handshake. Client-facing
+ * handshakes (between clients and the proxy's impersonated certificates) and upstream handshakes (between the proxy and servers)
+ * are tracked separately.
+ */
+public class SslSessionStatistics {
+    private final ConcurrentMap<String, HostStatistics> clientHandshakes = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, HostStatistics> upstreamHandshakes = new ConcurrentHashMap<>();
+
+    /**
+     * Records a completed handshake between a client and the proxy, for a connection impersonating the host.
+     */
+    public void clientHandshakeCompleted(String host, boolean resumed) {
+        getOrCreate(clientHandshakes, host).handshakeCompleted(resumed);
+    }
+
+    /**
+     * Records a completed handshake between the proxy and the host.
+     */
+    public void upstreamHandshakeCompleted(String host, boolean resumed) {
+        getOrCreate(upstreamHandshakes, host).handshakeCompleted(resumed);
+    }
+
+    /**
+     * Returns the client-facing handshake statistics for the host, or null if no client has connected to the host through the proxy.
+     */
+    public HostStatistics getClientStatistics(String host) {
+        return clientHandshakes.get(host);
+    }
+
+    /**
+     * Returns the upstream handshake statistics for the host, or null if the proxy has not connected to the host.
+     */
+    public HostStatistics getUpstreamStatistics(String host) {
+        return upstreamHandshakes.get(host);
+    }
+
+    /**
+     * Returns the client-facing handshake statistics of every host, keyed by host.
+     */
+    public Map<String, HostStatistics> getClientStatistics() {
+        return Collections.unmodifiableMap(clientHandshakes);
+    }
+
+    /**
+     * Returns the upstream handshake statistics of every host, keyed by host.
+     */
+    public Map<String, HostStatistics> getUpstreamStatistics() {
+        return Collections.unmodifiableMap(upstreamHandshakes);
+    }
+
+    public void reset() {
+        clientHandshakes.clear();
+        upstreamHandshakes.clear();
+    }
+
+    private static HostStatistics getOrCreate(ConcurrentMap<String, HostStatistics> handshakes, String host) {
+        HostStatistics statistics = handshakes.get(host);
+        if (statistics == null) {
+            HostStatistics newStatistics = new HostStatistics();
+            statistics = handshakes.putIfAbsent(host, newStatistics);
+            if (statistics == null) {
+                statistics = newStatistics;
+            }
+        }
+
+        return statistics;
+    }
+
+    /**
+     * Handshake counts for a single host.
+     */
+    public static class HostStatistics {
+        private final AtomicLong fullHandshakes = new AtomicLong();
+        private final AtomicLong resumedHandshakes = new AtomicLong();
+
+        private void handshakeCompleted(boolean resumed) {
+            if (resumed) {
+                resumedHandshakes.incrementAndGet();
+            } else {
+                fullHandshakes.incrementAndGet();
+            }
+        }
+
+        /**
+         * Returns the number of handshakes that established a new session.
+         */
+        public long getFullHandshakes() {
+            return fullHandshakes.get();
+        }
+
+        /**
+         * Returns the number of handshakes that resumed an existing session.
+         */
+        public long getResumedHandshakes() {
+            return resumedHandshakes.get();
+        }
+
+        /**
+         * Returns the fraction of handshakes, between 0 and 1, that resumed an existing session, or 0 if there have been no handshakes.
+         */
+        public double getResumptionRate() {
+            long resumed = resumedHandshakes.get();
+            long total = resumed + fullHandshakes.get();
+            if (total == 0) {
+                return 0;
+            }
+
+            return (double) resumed / total;
+        }
+
+        @Override
+        public String toString() {
+            return "HostStatistics{" +
+                    "fullHandshakes=" + fullHandshakes +
+                    ", resumedHandshakes=" + resumedHandshakes +
+                    '}';
+        }
+    }
+}
@@ -0,0 +1,35 @@
+package net.lightbody.bmp.mitm.trustmanager;
+
+import javax.net.ssl.X509TrustManager;
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+
+/**
+ * An {@link X509TrustManager} that remembers which server certificate chains are trusted, so the delegate trust manager only builds
+ * and validates the path the first time a trusted chain is seen. Trusted chains are kept in a {@link CertificateChainCache} until the
+ * first certificate in the chain expires; chains that are not trusted are validated again on every connection. Client certificates are always validated by the delegate.
+ */
+public class CachingTrustManager implements X509TrustManager {
+    private final X509TrustManager delegate;
+    private final CertificateChainCache cache;
+
+    public CachingTrustManager(X509TrustManager delegate, CertificateChainCache cache) {
+        this.delegate = delegate;
+        this.cache = cache;
+    }
+
+    @Override
+    public void checkServerTrusted(X509Certificate[] chain, String authType) throws CertificateException {
+        cache.checkServerTrusted(chain, authType, delegate);
+    }
+
+    @Override
+    public void checkClientTrusted(X509Certificate[] chain, String authType) throws CertificateException {
+        delegate.checkClientTrusted(chain, authType);
+    }
+
+    @Override
+    public X509Certificate[] getAcceptedIssuers() {
+        return delegate.getAcceptedIssuers();
+    }
+}
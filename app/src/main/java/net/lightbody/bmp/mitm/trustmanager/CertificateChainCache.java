@@ -0,0 +1,276 @@
+package net.lightbody.bmp.mitm.trustmanager;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateParsingException;
+import java.security.cert.X509Certificate;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Caches facts about upstream servers' certificate chains, so repeated connections to the same server do not repeat the work: the
+ * fact that the chain is trusted, and the common name and subject alternative names of the server's certificate. Chains are
+ * identified by the SHA-256 of the server's certificate followed by the rest of the chain, and an entry is discarded once any
+ * certificate in its chain expires.
+ */
+public class CertificateChainCache {
+    /**
+     * Default maximum number of chains kept in the cache.
+     */
+    public static final int DEFAULT_MAXIMUM_SIZE = 1000;
+
+    private final Cache<String, CachedChain> chains;
+
+    private final AtomicLong validationHits = new AtomicLong();
+    private final AtomicLong validationMisses = new AtomicLong();
+    private final AtomicLong nameHits = new AtomicLong();
+    private final AtomicLong nameMisses = new AtomicLong();
+
+    public CertificateChainCache() {
+        this(DEFAULT_MAXIMUM_SIZE);
+    }
+
+    public CertificateChainCache(int maximumSize) {
+        this.chains = CacheBuilder.newBuilder()
+                .maximumSize(maximumSize)
+                .concurrencyLevel(16)
+                .build();
+    }
+
+    /**
+     * Validates the chain with the trust manager, unless the chain is already known to be trusted for the authentication type. Only
+     * successful validations are cached: a chain that fails is validated again on the next connection, so a failure caused by a
+     * missing CA or a transient error does not outlive the trust store change or the error that caused it.
+     *
+     * @param chain the server's certificate chain
+     * @param authType the key exchange algorithm
+     * @param trustManager trust manager that validates the chain on a cache miss
+     * @throws CertificateException if the trust manager does not trust the chain
+     */
+    public void checkServerTrusted(X509Certificate[] chain, String authType, javax.net.ssl.X509TrustManager trustManager) throws CertificateException {
+        CachedChain cachedChain = getCachedChain(chain);
+        if (cachedChain != null && cachedChain.trustedAuthTypes.contains(authType)) {
+            validationHits.incrementAndGet();
+            return;
+        }
+
+        validationMisses.incrementAndGet();
+        trustManager.checkServerTrusted(chain, authType);
+
+        if (cachedChain != null) {
+            cachedChain.trustedAuthTypes.add(authType);
+        }
+    }
+
+    /**
+     * Returns the common name from the subject of the chain's first certificate, or null if the subject has no common name.
+     */
+    public String getCommonName(X509Certificate[] chain) {
+        CachedChain cachedChain = getCachedChain(chain);
+        if (cachedChain == null) {
+            nameMisses.incrementAndGet();
+            return parseCommonName(chain[0]);
+        }
+
+        if (cachedChain.namesParsed) {
+            nameHits.incrementAndGet();
+        } else {
+            nameMisses.incrementAndGet();
+            parseNames(cachedChain, chain[0]);
+        }
+
+        return cachedChain.commonName;
+    }
+
+    /**
+     * Returns the subject alternative names of the chain's first certificate, in the form returned by
+     * {@link X509Certificate#getSubjectAlternativeNames()}, or an empty collection if it has none.
+     */
+    public Collection<List<?>> getSubjectAlternativeNames(X509Certificate[] chain) throws CertificateParsingException {
+        CachedChain cachedChain = getCachedChain(chain);
+        if (cachedChain == null) {
+            nameMisses.incrementAndGet();
+            return nullToEmpty(chain[0].getSubjectAlternativeNames());
+        }
+
+        if (cachedChain.namesParsed) {
+            nameHits.incrementAndGet();
+        } else {
+            nameMisses.incrementAndGet();
+            parseNames(cachedChain, chain[0]);
+        }
+
+        return cachedChain.subjectAlternativeNames;
+    }
+
+    /**
+     * Returns the number of validations answered from the cache.
+     */
+    public long getValidationHitCount() {
+        return validationHits.get();
+    }
+
+    /**
+     * Returns the number of validations performed by the trust manager.
+     */
+    public long getValidationMissCount() {
+        return validationMisses.get();
+    }
+
+    /**
+     * Returns the fraction of validations, between 0 and 1, answered from the cache.
+     */
+    public double getValidationHitRate() {
+        return hitRate(validationHits.get(), validationMisses.get());
+    }
+
+    /**
+     * Returns the number of common name and subject alternative name lookups answered from the cache.
+     */
+    public long getNameHitCount() {
+        return nameHits.get();
+    }
+
+    /**
+     * Returns the number of common name and subject alternative name lookups that parsed the certificate.
+     */
+    public long getNameMissCount() {
+        return nameMisses.get();
+    }
+
+    /**
+     * Returns the fraction of common name and subject alternative name lookups, between 0 and 1, answered from the cache.
+     */
+    public double getNameHitRate() {
+        return hitRate(nameHits.get(), nameMisses.get());
+    }
+
+    /**
+     * Returns the number of chains currently cached.
+     */
+    public long size() {
+        return chains.size();
+    }
+
+    public void clear() {
+        chains.invalidateAll();
+    }
+
+    /**
+     * Returns the cache entry for the chain, creating it if necessary, or null if the chain cannot be fingerprinted or has expired.
+     */
+    private CachedChain getCachedChain(X509Certificate[] chain) {
+        if (chain == null || chain.length == 0) {
+            return null;
+        }
+
+        String fingerprint;
+        try {
+            fingerprint = fingerprint(chain);
+        } catch (CertificateEncodingException e) {
+            return null;
+        }
+
+        long now = System.currentTimeMillis();
+
+        CachedChain cachedChain = chains.getIfPresent(fingerprint);
+        if (cachedChain != null && cachedChain.expiresAtMs <= now) {
+            chains.invalidate(fingerprint);
+            cachedChain = null;
+        }
+
+        if (cachedChain == null) {
+            long expiresAtMs = Long.MAX_VALUE;
+            for (X509Certificate certificate : chain) {
+                expiresAtMs = Math.min(expiresAtMs, certificate.getNotAfter().getTime());
+            }
+
+            if (expiresAtMs <= now) {
+                // an expired chain is never trusted, and there is no point caching its names
+                return null;
+            }
+
+            CachedChain newCachedChain = new CachedChain(expiresAtMs);
+            cachedChain = chains.asMap().putIfAbsent(fingerprint, newCachedChain);
+            if (cachedChain == null) {
+                cachedChain = newCachedChain;
+            }
+        }
+
+        return cachedChain;
+    }
+
+    private static String fingerprint(X509Certificate[] chain) throws CertificateEncodingException {
+        Hasher hasher = Hashing.sha256().newHasher();
+        for (X509Certificate certificate : chain) {
+            byte[] encoded = certificate.getEncoded();
+            hasher.putInt(encoded.length);
+            hasher.putBytes(encoded);
+        }
+
+        return hasher.hash().toString();
+    }
+
+    private static void parseNames(CachedChain cachedChain, X509Certificate certificate) {
+        Collection<List<?>> subjectAlternativeNames;
+        try {
+            subjectAlternativeNames = nullToEmpty(certificate.getSubjectAlternativeNames());
+        } catch (CertificateParsingException e) {
+            subjectAlternativeNames = Collections.emptyList();
+        }
+
+        cachedChain.commonName = parseCommonName(certificate);
+        cachedChain.subjectAlternativeNames = subjectAlternativeNames;
+        cachedChain.namesParsed = true;
+    }
+
+    private static String parseCommonName(X509Certificate certificate) {
+        for (String each : certificate.getSubjectDN().getName().split(",\\s*")) {
+            if (each.startsWith("CN=")) {
+                return each.substring(3);
+            }
+        }
+
+        return null;
+    }
+
+    private static Collection<List<?>> nullToEmpty(Collection<List<?>> subjectAlternativeNames) {
+        if (subjectAlternativeNames == null) {
+            return Collections.emptyList();
+        }
+
+        return Collections.unmodifiableCollection(subjectAlternativeNames);
+    }
+
+    private static double hitRate(long hits, long misses) {
+        long total = hits + misses;
+        if (total == 0) {
+            return 0;
+        }
+
+        return (double) hits / total;
+    }
+
+    private static class CachedChain {
+        private final long expiresAtMs;
+
+        private final Set<String> trustedAuthTypes = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+        private volatile String commonName;
+        private volatile Collection<List<?>> subjectAlternativeNames;
+        private volatile boolean namesParsed;
+
+        private CachedChain(long expiresAtMs) {
+            this.expiresAtMs = expiresAtMs;
+        }
+    }
+}
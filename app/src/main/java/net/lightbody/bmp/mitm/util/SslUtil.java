@@ -3,9 +3,11 @@ package net.lightbody.bmp.mitm.util;
 import com.google.common.base.Supplier;
 import com.google.common.base.Suppliers;
 import com.google.common.io.CharStreams;
+import io.netty.channel.ChannelHandlerContext;
 import io.netty.handler.ssl.OpenSsl;
 import io.netty.handler.ssl.SslContext;
 import io.netty.handler.ssl.SslContextBuilder;
+import io.netty.handler.ssl.SslHandler;
 import io.netty.handler.ssl.SupportedCipherSuiteFilter;
 import net.lightbody.bmp.mitm.trustmanager.InsecureTrustManagerFactory;
 import net.lightbody.bmp.mitm.TrustSource;
@@ -14,13 +16,17 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
 import javax.net.ssl.SSLException;
 import javax.net.ssl.SSLPeerUnverifiedException;
 import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSessionContext;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.Reader;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
 import java.nio.charset.StandardCharsets;
 import java.security.cert.Certificate;
 import java.security.cert.X509Certificate;
@@ -40,6 +46,16 @@ public class SslUtil {
      */
     private static final String DEFAULT_CIPHERS_LIST_RESOURCE = "/default-ciphers.txt";
 
+    /**
+     * Maximum number of TLS sessions kept by each SSLContext for resumption.
+     */
+    public static final int DEFAULT_SESSION_CACHE_SIZE = 1024;
+
+    /**
+     * Length of time, in seconds, TLS sessions can be resumed after they are established.
+     */
+    public static final int DEFAULT_SESSION_TIMEOUT_SECONDS = 24 * 60 * 60;
+
     /**
      * The default cipher list to prefer when creating client or server connections. Stored as a lazily-loaded singleton
      * due to the relatively expensive initialization time, especially when determining the enabled JDK ciphers.
@@ -89,7 +105,9 @@ public class SslUtil {
             sslContextBuilder.trustManager(trustSource.getTrustedCAs());
         }
 
-        sslContextBuilder.ciphers(cipherSuites, SupportedCipherSuiteFilter.INSTANCE);
+        sslContextBuilder.ciphers(cipherSuites, SupportedCipherSuiteFilter.INSTANCE)
+                .sessionCacheSize(DEFAULT_SESSION_CACHE_SIZE)
+                .sessionTimeout(DEFAULT_SESSION_TIMEOUT_SECONDS);
 
         try {
             return sslContextBuilder.build();
@@ -98,6 +116,70 @@ public class SslUtil {
         }
     }
 
+    /**
+     * Sizes the client and server session caches of the SSLContext so that repeated connections can resume TLS sessions instead of
+     * performing full handshakes. Client sessions are only resumed by SSLEngines created with the peer's host and port.
+     *
+     * @param sslContext the SSLContext to configure
+     */
+    public static void configureSessionCache(SSLContext sslContext) {
+        for (SSLSessionContext sessionContext : new SSLSessionContext[]{sslContext.getClientSessionContext(), sslContext.getServerSessionContext()}) {
+            if (sessionContext != null) {
+                sessionContext.setSessionCacheSize(DEFAULT_SESSION_CACHE_SIZE);
+                sessionContext.setSessionTimeout(DEFAULT_SESSION_TIMEOUT_SECONDS);
+            }
+        }
+    }
+
+    /**
+     * Enables RFC 5077 session tickets on the engine, if the SSL provider supports them. Android's Conscrypt provider only uses
+     * session tickets when they are explicitly enabled; providers without the option fall back to session-ID resumption.
+     *
+     * @param sslEngine the engine to configure
+     * @return true if session tickets were enabled
+     */
+    public static boolean enableSessionTickets(SSLEngine sslEngine) {
+        try {
+            Method setUseSessionTickets = sslEngine.getClass().getMethod("setUseSessionTickets", boolean.class);
+            setUseSessionTickets.invoke(sslEngine, true);
+
+            return true;
+        } catch (NoSuchMethodException e) {
+            return false;
+        } catch (IllegalAccessException | InvocationTargetException e) {
+            log.debug("Unable to enable session tickets on {}", sslEngine.getClass().getName(), e);
+
+            return false;
+        }
+    }
+
+    /**
+     * Returns true if the session was resumed from an earlier handshake. A full handshake creates a new session, so a session created
+     * before the handshake started must have been resumed.
+     *
+     * @param sslSession the session negotiated by the handshake
+     * @param handshakeStartedMillis the time the handshake started, in milliseconds since the epoch
+     * @return true if the session was resumed
+     */
+    public static boolean isResumedSession(SSLSession sslSession, long handshakeStartedMillis) {
+        return sslSession.getCreationTime() < handshakeStartedMillis;
+    }
+
+    /**
+     * Returns the TLS session of the channel, or null if the channel is not encrypted or the handshake has not completed.
+     *
+     * @param ctx context of any handler in the channel's pipeline
+     * @return the channel's SSLSession, or null
+     */
+    public static SSLSession getSslSession(ChannelHandlerContext ctx) {
+        SslHandler sslHandler = ctx.pipeline().get(SslHandler.class);
+        if (sslHandler == null || !sslHandler.handshakeFuture().isSuccess()) {
+            return null;
+        }
+
+        return sslHandler.engine().getSession();
+    }
+
     /**
      * Returns the X509Certificate for the server this session is connected to. The certificate may be null.
      *
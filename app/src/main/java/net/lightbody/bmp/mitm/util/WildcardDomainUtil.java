@@ -0,0 +1,61 @@
+package net.lightbody.bmp.mitm.util;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.net.InetAddresses;
+import com.google.common.net.InternetDomainName;
+
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Utility for grouping hostnames under wildcard certificates. Hosts are grouped by registrable domain, as determined by the public
+ * suffix list bundled with Guava's {@link InternetDomainName}.
+ * <p/>
+ * A wildcard only matches a single DNS label, so a certificate for {@code *.example.com} covers {@code example.com} (through an
+ * additional subject alternative name) and {@code cdn.example.com}, but not {@code a.cdn.example.com}. Deeper hosts are grouped under
+ * a wildcard for their parent domain instead.
+ */
+public class WildcardDomainUtil {
+    /**
+     * Returns the domain whose wildcard certificate covers the hostname: the hostname itself if it is a registrable domain, otherwise
+     * its parent domain. For example, both {@code example.com} and {@code cdn.example.com} return {@code example.com}, while
+     * {@code a.cdn.example.com} returns {@code cdn.example.com}.
+     *
+     * @param hostname hostname to impersonate
+     * @return the wildcard base domain, or null if the hostname cannot be covered by a wildcard certificate (for example, IP
+     *         addresses, public suffixes, and hosts that are not under a public suffix, such as {@code localhost})
+     */
+    public static String getWildcardBaseDomain(String hostname) {
+        if (hostname == null || hostname.isEmpty() || InetAddresses.isInetAddress(hostname)) {
+            return null;
+        }
+
+        InternetDomainName domainName;
+        try {
+            domainName = InternetDomainName.from(hostname.toLowerCase(Locale.US));
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+
+        if (!domainName.isUnderPublicSuffix()) {
+            return null;
+        }
+
+        if (domainName.isTopPrivateDomain()) {
+            return domainName.toString();
+        }
+
+        return domainName.parent().toString();
+    }
+
+    /**
+     * Returns the names a wildcard certificate for the base domain should contain: the wildcard itself, which is also used as the common
+     * name, followed by the base domain.
+     *
+     * @param baseDomain base domain returned by {@link #getWildcardBaseDomain(String)}
+     * @return the wildcard name and the base domain
+     */
+    public static List<String> getWildcardCertificateNames(String baseDomain) {
+        return ImmutableList.of("*." + baseDomain, baseDomain);
+    }
+}
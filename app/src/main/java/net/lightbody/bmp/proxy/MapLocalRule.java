@@ -0,0 +1,113 @@
+package net.lightbody.bmp.proxy;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A map-local rule, consisting of a regular expression to match the URL and a local file or directory to answer matching requests with.
+ * <p/>
+ * When the target is a file, every matching URL is answered with that file. When the target is a directory, the file is resolved
+ * relative to the directory: if the URL pattern has a capturing group, the first group is used as the relative path; otherwise the
+ * path of the URL is used. Requests that resolve to a directory are answered with its {@link #INDEX_FILE_NAME} file. Relative paths
+ * cannot escape the target directory.
+ */
+public class MapLocalRule {
+    /**
+     * The file served when a request resolves to a directory.
+     */
+    public static final String INDEX_FILE_NAME = "index.html";
+
+    private final Pattern urlPattern;
+    private final File target;
+
+    /**
+     * @param urlPattern URL pattern to map
+     * @param target local file or directory to answer matching requests with
+     */
+    public MapLocalRule(String urlPattern, File target) {
+        this.urlPattern = Pattern.compile(urlPattern);
+        this.target = target;
+    }
+
+    public Pattern getUrlPattern() {
+        return urlPattern;
+    }
+
+    public File getTarget() {
+        return target;
+    }
+
+    /**
+     * Determines the local file that answers the URL.
+     *
+     * @param url URL of the request
+     * @return the local file, which may not exist; or null if the URL does not match this rule, or resolves to a path outside the
+     *         target directory
+     */
+    public File resolve(String url) {
+        Matcher matcher = urlPattern.matcher(url);
+        if (!matcher.matches()) {
+            return null;
+        }
+
+        if (!target.isDirectory()) {
+            return target;
+        }
+
+        String relativePath;
+        try {
+            if (matcher.groupCount() > 0 && matcher.group(1) != null) {
+                relativePath = new URI(matcher.group(1)).getPath();
+            } else {
+                relativePath = new URI(url).getPath();
+            }
+        } catch (URISyntaxException e) {
+            return null;
+        }
+
+        if (relativePath == null) {
+            relativePath = "";
+        }
+
+        File file = new File(target, relativePath);
+        try {
+            String targetPath = target.getCanonicalPath();
+            String filePath = file.getCanonicalPath();
+            if (!filePath.equals(targetPath) && !filePath.startsWith(targetPath + File.separator)) {
+                return null;
+            }
+        } catch (IOException e) {
+            return null;
+        }
+
+        if (file.isDirectory()) {
+            return new File(file, INDEX_FILE_NAME);
+        } else {
+            return file;
+        }
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+
+        MapLocalRule that = (MapLocalRule) o;
+
+        if (!urlPattern.pattern().equals(that.urlPattern.pattern())) return false;
+        if (!target.equals(that.target)) return false;
+
+        return true;
+    }
+
+    @Override
+    public int hashCode() {
+        int result = urlPattern.pattern().hashCode();
+        result = 31 * result + target.hashCode();
+        return result;
+    }
+}
@@ -0,0 +1,104 @@
+package net.lightbody.bmp.proxy.cache;
+
+import com.google.common.collect.ImmutableMap;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpMessage;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * The directives of the Cache-Control headers of a request or response (RFC 7234, section 5.2). Directive names are case-insensitive;
+ * if a directive appears more than once, the first occurrence wins.
+ */
+public class CacheControl {
+    public static final String NO_STORE = "no-store";
+    public static final String NO_CACHE = "no-cache";
+    public static final String MAX_AGE = "max-age";
+    public static final String S_MAXAGE = "s-maxage";
+    public static final String PRIVATE = "private";
+    public static final String PUBLIC = "public";
+    public static final String MUST_REVALIDATE = "must-revalidate";
+    public static final String PROXY_REVALIDATE = "proxy-revalidate";
+    public static final String ONLY_IF_CACHED = "only-if-cached";
+
+    private static final CacheControl EMPTY = new CacheControl(ImmutableMap.<String, String>of());
+
+    private final Map<String, String> directives;
+
+    private CacheControl(Map<String, String> directives) {
+        this.directives = directives;
+    }
+
+    /**
+     * Parses the Cache-Control headers of the message. A Pragma: no-cache header is treated as Cache-Control: no-cache, as required
+     * for HTTP/1.0 compatibility.
+     */
+    public static CacheControl parse(HttpMessage message) {
+        List<String> values = message.headers().getAll(HttpHeaders.Names.CACHE_CONTROL);
+        boolean pragmaNoCache = NO_CACHE.equalsIgnoreCase(HttpHeaders.getHeader(message, HttpHeaders.Names.PRAGMA, "").trim());
+
+        if (values.isEmpty() && !pragmaNoCache) {
+            return EMPTY;
+        }
+
+        Map<String, String> directives = new HashMap<>();
+        for (String value : values) {
+            for (String directive : value.split(",")) {
+                String name;
+                String argument;
+
+                int equals = directive.indexOf('=');
+                if (equals == -1) {
+                    name = directive.trim();
+                    argument = "";
+                } else {
+                    name = directive.substring(0, equals).trim();
+                    argument = directive.substring(equals + 1).trim();
+                    if (argument.length() >= 2 && argument.startsWith("\"") && argument.endsWith("\"")) {
+                        argument = argument.substring(1, argument.length() - 1);
+                    }
+                }
+
+                if (!name.isEmpty()) {
+                    name = name.toLowerCase(Locale.US);
+                    if (!directives.containsKey(name)) {
+                        directives.put(name, argument);
+                    }
+                }
+            }
+        }
+
+        if (pragmaNoCache && !directives.containsKey(NO_CACHE)) {
+            directives.put(NO_CACHE, "");
+        }
+
+        return new CacheControl(ImmutableMap.copyOf(directives));
+    }
+
+    public boolean has(String directive) {
+        return directives.containsKey(directive);
+    }
+
+    /**
+     * Returns the value of a delta-seconds directive such as max-age.
+     *
+     * @return the number of seconds, or -1 if the directive is absent or its value is not a valid number
+     */
+    public long getSeconds(String directive) {
+        String value = directives.get(directive);
+        if (value == null || value.isEmpty()) {
+            return -1;
+        }
+
+        try {
+            return Math.max(0L, Long.parseLong(value));
+        } catch (NumberFormatException e) {
+            // RFC 7234 section 1.2.1: a delta-seconds value too large to represent must be treated as the largest value that can be
+            // represented; any other malformed value is ignored
+            return value.matches("[0-9]+") ? Integer.MAX_VALUE : -1;
+        }
+    }
+}
@@ -0,0 +1,32 @@
+package net.lightbody.bmp.proxy.cache;
+
+import java.util.Locale;
+
+/**
+ * How the {@link HttpResponseCache} handled a request. The result is recorded in the comment of the entry's HAR cache status.
+ */
+public enum CacheResult {
+    /**
+     * A fresh response was served from the cache, without contacting the server.
+     */
+    HIT,
+
+    /**
+     * A stale response was revalidated with the server, which responded 304 Not Modified, so the cached body was served.
+     */
+    REVALIDATED,
+
+    /**
+     * No usable response was cached, so the response was fetched from the server.
+     */
+    MISS,
+
+    /**
+     * The request or response could not be cached, for example because it was not a GET or carried its own validators.
+     */
+    BYPASS;
+
+    public String getHarComment() {
+        return name().toLowerCase(Locale.US);
+    }
+}
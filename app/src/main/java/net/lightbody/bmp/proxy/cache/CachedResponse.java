@@ -0,0 +1,447 @@
+package net.lightbody.bmp.proxy.cache;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.DefaultHttpResponse;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpVersion;
+import net.lightbody.bmp.core.har.HarCacheStatus;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A response stored in the {@link HttpResponseCache}, along with the information needed to calculate its age and freshness (RFC 7234,
+ * section 4.2). The status, headers, and body are immutable; revalidating a response creates a new CachedResponse.
+ */
+public class CachedResponse {
+    /**
+     * Version of the serialized form written by {@link #writeTo(DataOutputStream)}.
+     */
+    private static final int SERIAL_VERSION = 1;
+
+    /**
+     * Headers that are not stored, because they describe the connection or the transfer rather than the response. Content-Length
+     * is regenerated from the stored body.
+     */
+    private static final ImmutableSet<String> UNSTORED_HEADERS = ImmutableSet.of(
+            HttpHeaders.Names.CONNECTION.toLowerCase(Locale.US),
+            "keep-alive",
+            HttpHeaders.Names.PROXY_AUTHENTICATE.toLowerCase(Locale.US),
+            HttpHeaders.Names.TRANSFER_ENCODING.toLowerCase(Locale.US),
+            HttpHeaders.Names.TRAILER.toLowerCase(Locale.US),
+            HttpHeaders.Names.UPGRADE.toLowerCase(Locale.US),
+            HttpHeaders.Names.CONTENT_LENGTH.toLowerCase(Locale.US),
+            HttpHeaders.Names.AGE.toLowerCase(Locale.US));
+
+    private final String key;
+    private final int status;
+    private final String reasonPhrase;
+    private final Map<String, List<String>> headers;
+    private final byte[] body;
+
+    /**
+     * Values of the request headers named by the response's Vary header, keyed by lowercase header name. A missing request header is
+     * stored as an empty string.
+     */
+    private final Map<String, String> varyValues;
+
+    private final long responseTimeMillis;
+    private final long initialAgeMillis;
+    private final long freshnessLifetimeMillis;
+
+    private final AtomicInteger hitCount;
+    private volatile long lastAccessMillis;
+
+    private CachedResponse(String key, int status, String reasonPhrase, Map<String, List<String>> headers, byte[] body,
+                           Map<String, String> varyValues, long responseTimeMillis, long initialAgeMillis, long freshnessLifetimeMillis,
+                           int hitCount, long lastAccessMillis) {
+        this.key = key;
+        this.status = status;
+        this.reasonPhrase = reasonPhrase;
+        this.headers = headers;
+        this.body = body;
+        this.varyValues = varyValues;
+        this.responseTimeMillis = responseTimeMillis;
+        this.initialAgeMillis = initialAgeMillis;
+        this.freshnessLifetimeMillis = freshnessLifetimeMillis;
+        this.hitCount = new AtomicInteger(hitCount);
+        this.lastAccessMillis = lastAccessMillis;
+    }
+
+    /**
+     * Creates a new cached response from a response received from a server. The caller is responsible for checking that the response
+     * is storable using {@link HttpCachePolicy#isStorable(HttpRequest, HttpResponse)}.
+     *
+     * @param key cache key, normally the full URL of the request
+     * @param request request sent to the server
+     * @param response response received from the server
+     * @param body complete response body, exactly as sent by the server (i.e. still content-encoded)
+     * @param requestTimeMillis time the request was sent
+     * @param responseTimeMillis time the response was received
+     */
+    public static CachedResponse create(String key, HttpRequest request, HttpResponse response, byte[] body, long requestTimeMillis, long responseTimeMillis) {
+        return create(key, getVaryValues(request, response), response, body, requestTimeMillis, responseTimeMillis, 0);
+    }
+
+    private static CachedResponse create(String key, Map<String, String> varyValues, HttpResponse response, byte[] body,
+                                         long requestTimeMillis, long responseTimeMillis, int hitCount) {
+        Map<String, List<String>> headers = new LinkedHashMap<>();
+        for (String name : response.headers().names()) {
+            if (!UNSTORED_HEADERS.contains(name.toLowerCase(Locale.US))) {
+                headers.put(name, ImmutableList.copyOf(response.headers().getAll(name)));
+            }
+        }
+
+        Date date = HttpHeaders.getDateHeader(response, HttpHeaders.Names.DATE, null);
+        long dateMillis = date != null ? date.getTime() : responseTimeMillis;
+
+        // RFC 7234 section 4.2.3
+        long apparentAge = Math.max(0L, responseTimeMillis - dateMillis);
+        long ageValue = TimeUnit.SECONDS.toMillis(parseAgeSeconds(response));
+        long correctedAgeValue = ageValue + (responseTimeMillis - requestTimeMillis);
+        long initialAge = Math.max(apparentAge, correctedAgeValue);
+
+        long freshnessLifetime = HttpCachePolicy.getFreshnessLifetimeMillis(response, dateMillis);
+
+        return new CachedResponse(key, response.getStatus().code(), response.getStatus().reasonPhrase(), headers, body, varyValues,
+                responseTimeMillis, initialAge, freshnessLifetime, hitCount, responseTimeMillis);
+    }
+
+    /**
+     * Creates a new cached response by updating this response with the headers of a 304 Not Modified response received when
+     * revalidating it (RFC 7234, section 4.3.4). The body of this response is reused.
+     */
+    public CachedResponse revalidate(HttpResponse notModified, long requestTimeMillis, long responseTimeMillis) {
+        HttpResponse updated = new DefaultHttpResponse(HttpVersion.HTTP_1_1, new HttpResponseStatus(status, reasonPhrase));
+        for (Map.Entry<String, List<String>> header : headers.entrySet()) {
+            updated.headers().add(header.getKey(), header.getValue());
+        }
+
+        for (String name : notModified.headers().names()) {
+            if (!UNSTORED_HEADERS.contains(name.toLowerCase(Locale.US))
+                    && !HttpHeaders.Names.CONTENT_ENCODING.equalsIgnoreCase(name)) {
+                updated.headers().set(name, notModified.headers().getAll(name));
+            }
+        }
+
+        return create(key, varyValues, updated, body, requestTimeMillis, responseTimeMillis, hitCount.get());
+    }
+
+    /**
+     * Returns true if this response was stored for a request with the same values for all headers named in the response's Vary header.
+     */
+    public boolean matchesVary(HttpRequest request) {
+        for (Map.Entry<String, String> vary : varyValues.entrySet()) {
+            if (!vary.getValue().equals(getRequestHeaderValue(request, vary.getKey()))) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    public long getCurrentAgeMillis(long nowMillis) {
+        return initialAgeMillis + Math.max(0L, nowMillis - responseTimeMillis);
+    }
+
+    /**
+     * Returns true if this response may be served without revalidation to a request with the specified Cache-Control directives.
+     */
+    public boolean isFresh(CacheControl requestCacheControl, long nowMillis) {
+        if (requestCacheControl.has(CacheControl.NO_CACHE)) {
+            return false;
+        }
+
+        long currentAge = getCurrentAgeMillis(nowMillis);
+
+        long requestMaxAge = requestCacheControl.getSeconds(CacheControl.MAX_AGE);
+        if (requestMaxAge >= 0 && currentAge > TimeUnit.SECONDS.toMillis(requestMaxAge)) {
+            return false;
+        }
+
+        return freshnessLifetimeMillis > currentAge;
+    }
+
+    /**
+     * @return true if this response has an ETag or Last-Modified header that can be used to revalidate it
+     */
+    public boolean hasValidators() {
+        return getETag() != null || getLastModified() != null;
+    }
+
+    public String getETag() {
+        return getHeader(HttpHeaders.Names.ETAG);
+    }
+
+    public String getLastModified() {
+        return getHeader(HttpHeaders.Names.LAST_MODIFIED);
+    }
+
+    /**
+     * Adds the conditional headers needed to revalidate this response to a request.
+     */
+    public void addConditionalHeaders(HttpRequest request) {
+        String eTag = getETag();
+        if (eTag != null) {
+            request.headers().set(HttpHeaders.Names.IF_NONE_MATCH, eTag);
+        }
+
+        String lastModified = getLastModified();
+        if (lastModified != null) {
+            request.headers().set(HttpHeaders.Names.IF_MODIFIED_SINCE, lastModified);
+        }
+    }
+
+    /**
+     * Creates a complete response to send to a client. The response shares this object's body, so no data is copied.
+     */
+    public FullHttpResponse toHttpResponse(HttpVersion httpVersion, long nowMillis) {
+        FullHttpResponse response = new DefaultFullHttpResponse(httpVersion, new HttpResponseStatus(status, reasonPhrase), Unpooled.wrappedBuffer(body));
+        populateHeaders(response, nowMillis);
+
+        return response;
+    }
+
+    /**
+     * Creates the initial line and headers of a response to send to a client. The caller is responsible for sending the body, which is
+     * available from {@link #getBody()}.
+     */
+    public HttpResponse toHttpResponseHeaders(HttpVersion httpVersion, long nowMillis) {
+        HttpResponse response = new DefaultHttpResponse(httpVersion, new HttpResponseStatus(status, reasonPhrase));
+        populateHeaders(response, nowMillis);
+
+        return response;
+    }
+
+    private void populateHeaders(HttpResponse response, long nowMillis) {
+        for (Map.Entry<String, List<String>> header : headers.entrySet()) {
+            response.headers().add(header.getKey(), header.getValue());
+        }
+
+        HttpHeaders.setContentLength(response, body.length);
+        response.headers().set(HttpHeaders.Names.AGE, TimeUnit.MILLISECONDS.toSeconds(getCurrentAgeMillis(nowMillis)));
+    }
+
+    /**
+     * Records that this response was served to a client.
+     */
+    public void recordHit(long nowMillis) {
+        hitCount.incrementAndGet();
+        lastAccessMillis = nowMillis;
+    }
+
+    /**
+     * Describes the state of this cached response in the form used by HAR files.
+     *
+     * @param comment description of how the cache handled the request
+     */
+    public HarCacheStatus toHarCacheStatus(String comment) {
+        HarCacheStatus harCacheStatus = new HarCacheStatus();
+        harCacheStatus.setExpires(new Date(responseTimeMillis - initialAgeMillis + freshnessLifetimeMillis));
+        harCacheStatus.setLastAccess(new Date(lastAccessMillis));
+        harCacheStatus.seteTag(getETag());
+        harCacheStatus.setHitCount(hitCount.get());
+        harCacheStatus.setComment(comment);
+
+        return harCacheStatus;
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    public int getStatus() {
+        return status;
+    }
+
+    public byte[] getBody() {
+        return body;
+    }
+
+    public int getHitCount() {
+        return hitCount.get();
+    }
+
+    /**
+     * @return approximate number of bytes of memory used by this response
+     */
+    public int getWeight() {
+        int weight = body.length + key.length() * 2;
+        for (Map.Entry<String, List<String>> header : headers.entrySet()) {
+            for (String value : header.getValue()) {
+                weight += (header.getKey().length() + value.length()) * 2;
+            }
+        }
+
+        return weight;
+    }
+
+    /**
+     * Writes this response in a compact binary form that can be read by {@link #readFrom(DataInputStream)}.
+     */
+    public void writeTo(DataOutputStream out) throws IOException {
+        out.writeInt(SERIAL_VERSION);
+        writeString(out, key);
+        out.writeInt(status);
+        writeString(out, reasonPhrase);
+
+        out.writeInt(headers.size());
+        for (Map.Entry<String, List<String>> header : headers.entrySet()) {
+            writeString(out, header.getKey());
+            out.writeInt(header.getValue().size());
+            for (String value : header.getValue()) {
+                writeString(out, value);
+            }
+        }
+
+        out.writeInt(varyValues.size());
+        for (Map.Entry<String, String> vary : varyValues.entrySet()) {
+            writeString(out, vary.getKey());
+            writeString(out, vary.getValue());
+        }
+
+        out.writeLong(responseTimeMillis);
+        out.writeLong(initialAgeMillis);
+        out.writeLong(freshnessLifetimeMillis);
+        out.writeInt(hitCount.get());
+        out.writeLong(lastAccessMillis);
+
+        out.writeInt(body.length);
+        out.write(body);
+    }
+
+    /**
+     * Reads a response written by {@link #writeTo(DataOutputStream)}.
+     *
+     * @throws IOException if the data cannot be read or was written by an incompatible version
+     */
+    public static CachedResponse readFrom(DataInputStream in) throws IOException {
+        int version = in.readInt();
+        if (version != SERIAL_VERSION) {
+            throw new IOException("Unsupported cached response version: " + version);
+        }
+
+        String key = readString(in);
+        int status = in.readInt();
+        String reasonPhrase = readString(in);
+
+        int headerCount = in.readInt();
+        Map<String, List<String>> headers = new LinkedHashMap<>(headerCount);
+        for (int i = 0; i < headerCount; i++) {
+            String name = readString(in);
+            int valueCount = in.readInt();
+            String[] values = new String[valueCount];
+            for (int j = 0; j < valueCount; j++) {
+                values[j] = readString(in);
+            }
+            headers.put(name, ImmutableList.copyOf(values));
+        }
+
+        int varyCount = in.readInt();
+        ImmutableMap.Builder<String, String> varyValues = ImmutableMap.builder();
+        for (int i = 0; i < varyCount; i++) {
+            varyValues.put(readString(in), readString(in));
+        }
+
+        long responseTimeMillis = in.readLong();
+        long initialAgeMillis = in.readLong();
+        long freshnessLifetimeMillis = in.readLong();
+        int hitCount = in.readInt();
+        long lastAccessMillis = in.readLong();
+
+        byte[] body = new byte[in.readInt()];
+        in.readFully(body);
+
+        return new CachedResponse(key, status, reasonPhrase, headers, body, varyValues.build(), responseTimeMillis, initialAgeMillis,
+                freshnessLifetimeMillis, hitCount, lastAccessMillis);
+    }
+
+    private String getHeader(String name) {
+        for (Map.Entry<String, List<String>> header : headers.entrySet()) {
+            if (header.getKey().equalsIgnoreCase(name) && !header.getValue().isEmpty()) {
+                return header.getValue().get(0);
+            }
+        }
+
+        return null;
+    }
+
+    private static Map<String, String> getVaryValues(HttpRequest request, HttpResponse response) {
+        List<String> varyHeaders = response.headers().getAll(HttpHeaders.Names.VARY);
+        if (varyHeaders.isEmpty()) {
+            return ImmutableMap.of();
+        }
+
+        Map<String, String> varyValues = new LinkedHashMap<>();
+        for (String varyHeader : varyHeaders) {
+            for (String name : varyHeader.split(",")) {
+                name = name.trim().toLowerCase(Locale.US);
+                if (!name.isEmpty()) {
+                    varyValues.put(name, getRequestHeaderValue(request, name));
+                }
+            }
+        }
+
+        return ImmutableMap.copyOf(varyValues);
+    }
+
+    private static String getRequestHeaderValue(HttpRequest request, String name) {
+        List<String> values = request.headers().getAll(name);
+        if (values.isEmpty()) {
+            return "";
+        }
+
+        // combine multiple headers as if they had been sent as a single comma-separated header
+        StringBuilder combined = new StringBuilder();
+        for (String value : values) {
+            if (combined.length() > 0) {
+                combined.append(',');
+            }
+            combined.append(value.trim());
+        }
+
+        return combined.toString();
+    }
+
+    private static long parseAgeSeconds(HttpResponse response) {
+        String age = HttpHeaders.getHeader(response, HttpHeaders.Names.AGE);
+        if (age == null) {
+            return 0;
+        }
+
+        try {
+            return Math.max(0L, Long.parseLong(age.trim()));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
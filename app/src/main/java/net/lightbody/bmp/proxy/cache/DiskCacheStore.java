@@ -0,0 +1,178 @@
+package net.lightbody.bmp.proxy.cache;
+
+import com.google.common.hash.Hashing;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The disk tier of the {@link HttpResponseCache}. Each response is stored in its own file, named by a hash of the cache key. The store
+ * keeps an in-memory index of file sizes in least-recently-used order, and deletes the least recently used files when the total size
+ * exceeds the limit. Existing files are re-indexed when the store is created, so the cache survives restarts.
+ * <p/>
+ * All methods are synchronized; callers should avoid invoking them from latency-sensitive threads where possible.
+ */
+public class DiskCacheStore {
+    private static final Logger log = LoggerFactory.getLogger(DiskCacheStore.class);
+
+    private static final String ENTRY_SUFFIX = ".entry";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private final File directory;
+    private final long maxSizeBytes;
+
+    /**
+     * Sizes of the stored files, keyed by file name, in access order.
+     */
+    private final LinkedHashMap<String, Long> index = new LinkedHashMap<>(16, 0.75f, true);
+    private long sizeBytes;
+
+    public DiskCacheStore(File directory, long maxSizeBytes) {
+        this.directory = directory;
+        this.maxSizeBytes = maxSizeBytes;
+
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            log.warn("Unable to create disk cache directory {}. Responses will not be cached on disk.", directory);
+            return;
+        }
+
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+
+        // approximate the previous access order using the files' modification times
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File f1, File f2) {
+                return Long.compare(f1.lastModified(), f2.lastModified());
+            }
+        });
+
+        for (File file : files) {
+            if (file.getName().endsWith(ENTRY_SUFFIX)) {
+                index.put(file.getName(), file.length());
+                sizeBytes += file.length();
+            } else if (file.getName().endsWith(TEMP_SUFFIX)) {
+                deleteFile(file);
+            }
+        }
+
+        trimToSize();
+    }
+
+    /**
+     * @return the response stored under the key, or null if there is none or it cannot be read
+     */
+    public synchronized CachedResponse get(String key) {
+        String fileName = fileNameFor(key);
+        if (index.get(fileName) == null) {
+            return null;
+        }
+
+        File file = new File(directory, fileName);
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            CachedResponse response = CachedResponse.readFrom(in);
+            if (!key.equals(response.getKey())) {
+                // hash collision
+                return null;
+            }
+
+            return response;
+        } catch (IOException e) {
+            log.debug("Unable to read cached response from {}; removing it", file, e);
+            removeFile(fileName);
+            return null;
+        }
+    }
+
+    public synchronized void put(CachedResponse response) {
+        String fileName = fileNameFor(response.getKey());
+        File file = new File(directory, fileName);
+        File tempFile = new File(directory, fileName + TEMP_SUFFIX);
+
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)))) {
+            response.writeTo(out);
+        } catch (IOException e) {
+            log.debug("Unable to write cached response to {}", tempFile, e);
+            deleteFile(tempFile);
+            return;
+        }
+
+        removeFile(fileName);
+
+        if (!tempFile.renameTo(file)) {
+            log.debug("Unable to rename {} to {}", tempFile, file);
+            deleteFile(tempFile);
+            return;
+        }
+
+        index.put(fileName, file.length());
+        sizeBytes += file.length();
+
+        trimToSize();
+    }
+
+    public synchronized void remove(String key) {
+        removeFile(fileNameFor(key));
+    }
+
+    public synchronized void clear() {
+        for (String fileName : index.keySet()) {
+            deleteFile(new File(directory, fileName));
+        }
+
+        index.clear();
+        sizeBytes = 0;
+    }
+
+    public synchronized long getSizeBytes() {
+        return sizeBytes;
+    }
+
+    public synchronized int getEntryCount() {
+        return index.size();
+    }
+
+    private void removeFile(String fileName) {
+        Long size = index.remove(fileName);
+        if (size != null) {
+            sizeBytes -= size;
+            deleteFile(new File(directory, fileName));
+        }
+    }
+
+    private void trimToSize() {
+        Iterator<Map.Entry<String, Long>> iterator = index.entrySet().iterator();
+        while (sizeBytes > maxSizeBytes && iterator.hasNext()) {
+            Map.Entry<String, Long> eldest = iterator.next();
+            iterator.remove();
+            sizeBytes -= eldest.getValue();
+            deleteFile(new File(directory, eldest.getKey()));
+        }
+    }
+
+    private static String fileNameFor(String key) {
+        return Hashing.sha1().hashString(key, StandardCharsets.UTF_8) + ENTRY_SUFFIX;
+    }
+
+    private static void deleteFile(File file) {
+        if (file.exists() && !file.delete()) {
+            log.debug("Unable to delete cache file {}", file);
+        }
+    }
+}
@@ -0,0 +1,156 @@
+package net.lightbody.bmp.proxy.cache;
+
+import com.google.common.collect.ImmutableSet;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponse;
+
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The rules of RFC 7234 that decide whether a response may be stored by a shared cache, and for how long it is fresh.
+ */
+public final class HttpCachePolicy {
+    /**
+     * Status codes that are cacheable by default (RFC 7231, section 6.1). Responses with these codes may be stored without explicit
+     * freshness information, and may be given a heuristic freshness lifetime.
+     */
+    private static final ImmutableSet<Integer> CACHEABLE_BY_DEFAULT = ImmutableSet.of(200, 203, 204, 300, 301, 404, 405, 410, 414, 501);
+
+    /**
+     * Fraction of the time since the response was last modified to use as a heuristic freshness lifetime (RFC 7234, section 4.2.2).
+     */
+    private static final int HEURISTIC_FRESHNESS_DIVISOR = 10;
+
+    /**
+     * Upper bound for heuristic freshness. Caches that exceed a day must warn the client (RFC 7234, section 4.2.2), so stay below it.
+     */
+    private static final long MAX_HEURISTIC_FRESHNESS_MS = TimeUnit.HOURS.toMillis(24);
+
+    private HttpCachePolicy() {
+    }
+
+    /**
+     * Returns true if the cache may answer the request, or store the response to it. Only plain GETs qualify: requests that carry
+     * their own validators or ranges are sent to the server unmodified, so the client's view of the exchange is not altered.
+     */
+    public static boolean isCacheableRequest(HttpRequest request) {
+        if (!HttpMethod.GET.equals(request.getMethod())) {
+            return false;
+        }
+
+        HttpHeaders headers = request.headers();
+        if (headers.contains(HttpHeaders.Names.IF_NONE_MATCH)
+                || headers.contains(HttpHeaders.Names.IF_MODIFIED_SINCE)
+                || headers.contains(HttpHeaders.Names.IF_MATCH)
+                || headers.contains(HttpHeaders.Names.IF_UNMODIFIED_SINCE)
+                || headers.contains(HttpHeaders.Names.IF_RANGE)
+                || headers.contains(HttpHeaders.Names.RANGE)) {
+            return false;
+        }
+
+        return !CacheControl.parse(request).has(CacheControl.NO_STORE);
+    }
+
+    /**
+     * Returns true if a successful response to an unsafe request must invalidate the cached response for the request URL (RFC 7234,
+     * section 4.4).
+     */
+    public static boolean invalidatesCache(HttpRequest request, HttpResponse response) {
+        HttpMethod method = request.getMethod();
+        if (HttpMethod.GET.equals(method) || HttpMethod.HEAD.equals(method) || HttpMethod.OPTIONS.equals(method)
+                || HttpMethod.TRACE.equals(method) || HttpMethod.CONNECT.equals(method)) {
+            return false;
+        }
+
+        int status = response.getStatus().code();
+        return status >= 200 && status < 400;
+    }
+
+    /**
+     * Returns true if a shared cache may store the response (RFC 7234, section 3). Responses that set cookies are not stored, since
+     * the cookies are specific to the client that made the request.
+     */
+    public static boolean isStorable(HttpRequest request, HttpResponse response) {
+        int status = response.getStatus().code();
+        CacheControl cacheControl = CacheControl.parse(response);
+
+        if (cacheControl.has(CacheControl.NO_STORE) || cacheControl.has(CacheControl.PRIVATE)) {
+            return false;
+        }
+
+        if (request.headers().contains(HttpHeaders.Names.AUTHORIZATION)
+                && !cacheControl.has(CacheControl.PUBLIC)
+                && !cacheControl.has(CacheControl.S_MAXAGE)
+                && !cacheControl.has(CacheControl.MUST_REVALIDATE)) {
+            return false;
+        }
+
+        if (response.headers().contains(HttpHeaders.Names.SET_COOKIE)) {
+            return false;
+        }
+
+        for (String vary : response.headers().getAll(HttpHeaders.Names.VARY)) {
+            if (vary.trim().equals("*")) {
+                return false;
+            }
+        }
+
+        boolean explicitFreshness = cacheControl.has(CacheControl.MAX_AGE)
+                || cacheControl.has(CacheControl.S_MAXAGE)
+                || response.headers().contains(HttpHeaders.Names.EXPIRES);
+
+        if (!explicitFreshness && !CACHEABLE_BY_DEFAULT.contains(status)) {
+            return false;
+        }
+
+        // a response that is never fresh and cannot be revalidated would never be served
+        return explicitFreshness
+                || response.headers().contains(HttpHeaders.Names.ETAG)
+                || response.headers().contains(HttpHeaders.Names.LAST_MODIFIED);
+    }
+
+    /**
+     * Calculates the freshness lifetime of a response (RFC 7234, section 4.2.1).
+     *
+     * @param response response from the server
+     * @param dateMillis value of the response's Date header, or the time the response was received if it has none
+     * @return freshness lifetime in milliseconds
+     */
+    public static long getFreshnessLifetimeMillis(HttpResponse response, long dateMillis) {
+        CacheControl cacheControl = CacheControl.parse(response);
+        if (cacheControl.has(CacheControl.NO_CACHE)) {
+            return 0;
+        }
+
+        long sharedMaxAge = cacheControl.getSeconds(CacheControl.S_MAXAGE);
+        if (sharedMaxAge >= 0) {
+            return TimeUnit.SECONDS.toMillis(sharedMaxAge);
+        }
+
+        long maxAge = cacheControl.getSeconds(CacheControl.MAX_AGE);
+        if (maxAge >= 0) {
+            return TimeUnit.SECONDS.toMillis(maxAge);
+        }
+
+        if (response.headers().contains(HttpHeaders.Names.EXPIRES)) {
+            // an invalid Expires value, such as "0", means the response has already expired
+            Date expires = HttpHeaders.getDateHeader(response, HttpHeaders.Names.EXPIRES, null);
+            if (expires == null) {
+                return 0;
+            }
+
+            return Math.max(0L, expires.getTime() - dateMillis);
+        }
+
+        Date lastModified = HttpHeaders.getDateHeader(response, HttpHeaders.Names.LAST_MODIFIED, null);
+        if (lastModified != null && CACHEABLE_BY_DEFAULT.contains(response.getStatus().code())) {
+            long heuristic = (dateMillis - lastModified.getTime()) / HEURISTIC_FRESHNESS_DIVISOR;
+            return Math.max(0L, Math.min(heuristic, MAX_HEURISTIC_FRESHNESS_MS));
+        }
+
+        return 0;
+    }
+}
@@ -0,0 +1,293 @@
+package net.lightbody.bmp.proxy.cache;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalCause;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.cache.Weigher;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A size-bounded, two-tier HTTP response cache shared by all clients of the proxy. Responses are kept in a memory tier; when the memory
+ * tier is full, the least recently used responses are moved to an optional disk tier, and are moved back to memory when they are
+ * requested again. The decisions of what to store and when to revalidate follow RFC 7234 and are made by {@link HttpCachePolicy} and
+ * {@link CachedResponse}; this class only stores responses and keeps statistics.
+ * <p/>
+ * Reads and writes of the disk tier are performed on a background thread, so neither evicting a response from memory nor looking up a
+ * response that is only on disk blocks the proxy's event loops. A response found on disk is served from memory by later requests.
+ */
+public class HttpResponseCache {
+    private static final Logger log = LoggerFactory.getLogger(HttpResponseCache.class);
+
+    /**
+     * Default size of the memory tier.
+     */
+    public static final long DEFAULT_MEMORY_SIZE_BYTES = 16 * 1024 * 1024;
+
+    /**
+     * Default size of the disk tier.
+     */
+    public static final long DEFAULT_DISK_SIZE_BYTES = 128 * 1024 * 1024;
+
+    /**
+     * Default maximum size of a single response body. Larger responses are not cached.
+     */
+    public static final int DEFAULT_MAX_ENTRY_SIZE_BYTES = 2 * 1024 * 1024;
+
+    private final Cache<String, CachedResponse> memoryTier;
+    private final DiskCacheStore diskTier;
+    private final ExecutorService diskWriter;
+    private final int maxEntrySizeBytes;
+
+    /**
+     * Keys of the responses currently being read from disk, so each response is only read once.
+     */
+    private final Set<String> pendingPromotions = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong revalidatedCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+    private final AtomicLong bytesSaved = new AtomicLong();
+
+    /**
+     * Creates a memory-only cache with the default size limits.
+     */
+    public HttpResponseCache() {
+        this(DEFAULT_MEMORY_SIZE_BYTES, null, 0, DEFAULT_MAX_ENTRY_SIZE_BYTES);
+    }
+
+    /**
+     * Creates a cache with a memory tier and a disk tier, using the default size limits.
+     *
+     * @param diskDirectory directory in which to store the disk tier
+     */
+    public HttpResponseCache(File diskDirectory) {
+        this(DEFAULT_MEMORY_SIZE_BYTES, diskDirectory, DEFAULT_DISK_SIZE_BYTES, DEFAULT_MAX_ENTRY_SIZE_BYTES);
+    }
+
+    /**
+     * @param memorySizeBytes maximum size of the memory tier
+     * @param diskDirectory directory in which to store the disk tier, or null for a memory-only cache
+     * @param diskSizeBytes maximum size of the disk tier
+     * @param maxEntrySizeBytes maximum size of a single response body
+     */
+    public HttpResponseCache(long memorySizeBytes, File diskDirectory, long diskSizeBytes, int maxEntrySizeBytes) {
+        this.maxEntrySizeBytes = maxEntrySizeBytes;
+
+        if (diskDirectory != null) {
+            this.diskTier = new DiskCacheStore(diskDirectory, diskSizeBytes);
+
+            // a single thread keeps disk reads and writes in order; the queue is unbounded because entries are bounded by the memory tier's size
+            this.diskWriter = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "bmp-http-cache-writer");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        } else {
+            this.diskTier = null;
+            this.diskWriter = null;
+        }
+
+        this.memoryTier = CacheBuilder.newBuilder()
+                .maximumWeight(memorySizeBytes)
+                .weigher(new Weigher<String, CachedResponse>() {
+                    @Override
+                    public int weigh(String key, CachedResponse value) {
+                        return value.getWeight();
+                    }
+                })
+                .removalListener(new RemovalListener<String, CachedResponse>() {
+                    @Override
+                    public void onRemoval(RemovalNotification<String, CachedResponse> notification) {
+                        if (notification.getCause() == RemovalCause.SIZE) {
+                            demote(notification.getValue());
+                        }
+                    }
+                })
+                .build();
+    }
+
+    /**
+     * Returns the response cached under the key in the memory tier, without blocking. If it is not in memory, the response is read from
+     * the disk tier in the background and moved back into memory, where it is found by later requests. The caller is responsible for
+     * checking that the response matches the request and is fresh.
+     *
+     * @return the cached response, or null if it is not in memory
+     */
+    public CachedResponse get(String key) {
+        CachedResponse response = memoryTier.getIfPresent(key);
+        if (response == null && diskTier != null) {
+            promote(key);
+        }
+
+        return response;
+    }
+
+    /**
+     * Stores a response, replacing any response previously cached under the same key.
+     *
+     * @return true if the response was stored, false if its body exceeds the maximum entry size
+     */
+    public boolean put(CachedResponse response) {
+        if (response.getBody().length > maxEntrySizeBytes) {
+            return false;
+        }
+
+        memoryTier.put(response.getKey(), response);
+
+        if (diskTier != null) {
+            // the disk copy is now out of date; the new response will be written to disk if it is evicted from memory
+            final String key = response.getKey();
+            diskWriter.execute(new Runnable() {
+                @Override
+                public void run() {
+                    diskTier.remove(key);
+                }
+            });
+        }
+
+        return true;
+    }
+
+    public void invalidate(final String key) {
+        memoryTier.invalidate(key);
+
+        if (diskTier != null) {
+            diskWriter.execute(new Runnable() {
+                @Override
+                public void run() {
+                    diskTier.remove(key);
+                }
+            });
+        }
+    }
+
+    /**
+     * Removes all responses from both tiers. Statistics are not reset.
+     */
+    public void clear() {
+        memoryTier.invalidateAll();
+
+        if (diskTier != null) {
+            diskWriter.execute(new Runnable() {
+                @Override
+                public void run() {
+                    diskTier.clear();
+                }
+            });
+        }
+    }
+
+    /**
+     * @return the maximum size of a response body that can be cached
+     */
+    public int getMaxEntrySizeBytes() {
+        return maxEntrySizeBytes;
+    }
+
+    /**
+     * Records how a request was handled, for the cache statistics.
+     *
+     * @param result how the cache handled the request
+     * @param bodySize size of the body served from the cache, for hits and revalidations
+     */
+    public void recordResult(CacheResult result, long bodySize) {
+        switch (result) {
+            case HIT:
+                hitCount.incrementAndGet();
+                bytesSaved.addAndGet(bodySize);
+                break;
+
+            case REVALIDATED:
+                revalidatedCount.incrementAndGet();
+                bytesSaved.addAndGet(bodySize);
+                break;
+
+            case MISS:
+                missCount.incrementAndGet();
+                break;
+
+            default:
+                break;
+        }
+    }
+
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    public long getRevalidatedCount() {
+        return revalidatedCount.get();
+    }
+
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    /**
+     * @return total number of response body bytes served from the cache instead of being downloaded from servers
+     */
+    public long getBytesSaved() {
+        return bytesSaved.get();
+    }
+
+    public long getMemoryEntryCount() {
+        return memoryTier.size();
+    }
+
+    public int getDiskEntryCount() {
+        return diskTier == null ? 0 : diskTier.getEntryCount();
+    }
+
+    private void promote(final String key) {
+        if (!pendingPromotions.add(key)) {
+            return;
+        }
+
+        diskWriter.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    CachedResponse response = diskTier.get(key);
+                    if (response != null) {
+                        // a response stored while this one was being read is newer, and must not be replaced
+                        memoryTier.asMap().putIfAbsent(key, response);
+                    }
+                } finally {
+                    pendingPromotions.remove(key);
+                }
+            }
+        });
+    }
+
+    private void demote(final CachedResponse response) {
+        if (diskTier == null) {
+            return;
+        }
+
+        log.trace("Moving cached response for {} to disk", response.getKey());
+
+        diskWriter.execute(new Runnable() {
+            @Override
+            public void run() {
+                diskTier.put(response);
+            }
+        });
+    }
+}
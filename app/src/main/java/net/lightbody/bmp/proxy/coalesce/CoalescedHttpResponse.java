@@ -0,0 +1,66 @@
+package net.lightbody.bmp.proxy.coalesce;
+
+import io.netty.handler.codec.http.DefaultHttpResponse;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpVersion;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Placeholder returned to LittleProxy in place of a response that will be copied from another client's in-flight request. The
+ * placeholder is never sent to the client: the {@link CoalescedResponseHandler} discards it and writes the real response once it
+ * arrives. Filters that need the real response, such as the HAR capture filter, can register a {@link Listener}.
+ */
+public class CoalescedHttpResponse extends DefaultHttpResponse {
+    /**
+     * Notified on the client's event loop once the real response has been sent to the client.
+     */
+    public interface Listener {
+        /**
+         * @param response the complete response sent to the client. If the response was too large to be buffered, its content is empty
+         *                 and the actual body size is available from {@link #getBodySize()}. The response is only valid for the duration
+         *                 of the call.
+         */
+        void responseReceived(FullHttpResponse response);
+
+        /**
+         * The request that this request was coalesced with failed, so the client received an error or was disconnected.
+         */
+        void responseFailed();
+    }
+
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+
+    private volatile long bodySize = -1;
+
+    public CoalescedHttpResponse(HttpVersion version) {
+        super(version, HttpResponseStatus.OK);
+    }
+
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * @return the size of the response body sent to the client, or -1 if the response has not been sent yet
+     */
+    public long getBodySize() {
+        return bodySize;
+    }
+
+    void fireResponseReceived(FullHttpResponse response, long bodySize) {
+        this.bodySize = bodySize;
+
+        for (Listener listener : listeners) {
+            listener.responseReceived(response);
+        }
+    }
+
+    void fireResponseFailed() {
+        for (Listener listener : listeners) {
+            listener.responseFailed();
+        }
+    }
+}
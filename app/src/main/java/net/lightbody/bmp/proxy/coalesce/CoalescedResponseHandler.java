@@ -0,0 +1,255 @@
+package net.lightbody.bmp.proxy.coalesce;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelOutboundHandlerAdapter;
+import io.netty.channel.ChannelPromise;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.DefaultHttpContent;
+import io.netty.handler.codec.http.DefaultHttpResponse;
+import io.netty.handler.codec.http.DefaultLastHttpContent;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.util.ReferenceCountUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.channels.ClosedChannelException;
+import java.util.ArrayDeque;
+import java.util.List;
+
+/**
+ * Writes a coalesced response to a follower's client connection. The handler is installed immediately after LittleProxy's HTTP response
+ * encoder, so it sees the HTTP objects LittleProxy writes to the client: it discards the {@link CoalescedHttpResponse} placeholder, holds
+ * back anything LittleProxy writes after it (including a close, if the connection is not keep-alive), and writes the real response as
+ * it is delivered by the {@link InFlightResponse}. Once the response has been written, the handler removes itself.
+ * <p/>
+ * The deliver methods may be called from any thread; all work is performed on the follower channel's event loop.
+ */
+public class CoalescedResponseHandler extends ChannelOutboundHandlerAdapter {
+    private static final Logger log = LoggerFactory.getLogger(CoalescedResponseHandler.class);
+
+    /**
+     * The name of LittleProxy's HttpResponseEncoder in the client-to-proxy pipeline.
+     */
+    public static final String ENCODER_HANDLER_NAME = "encoder";
+
+    private final CoalescedHttpResponse placeholder;
+    private final boolean keepAlive;
+
+    private volatile ChannelHandlerContext ctx;
+
+    private final ArrayDeque<PendingWrite> heldWrites = new ArrayDeque<>();
+    private ChannelPromise heldClose;
+    private HttpResponse clientResponse;
+    private boolean closeAfterResponse;
+    private boolean finished;
+    private long bodySize;
+
+    CoalescedResponseHandler(CoalescedHttpResponse placeholder, boolean keepAlive) {
+        this.placeholder = placeholder;
+        this.keepAlive = keepAlive;
+    }
+
+    @Override
+    public void handlerAdded(ChannelHandlerContext ctx) throws Exception {
+        this.ctx = ctx;
+    }
+
+    @Override
+    public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+        if (msg == placeholder) {
+            ReferenceCountUtil.release(msg);
+            promise.setSuccess();
+        } else if (finished) {
+            ctx.write(msg, promise);
+        } else {
+            heldWrites.add(new PendingWrite(msg, promise));
+        }
+    }
+
+    @Override
+    public void flush(ChannelHandlerContext ctx) throws Exception {
+        // held writes are flushed when the coalesced response has been written
+        if (finished) {
+            ctx.flush();
+        }
+    }
+
+    @Override
+    public void close(ChannelHandlerContext ctx, ChannelPromise promise) throws Exception {
+        if (finished) {
+            ctx.close(promise);
+        } else {
+            heldClose = promise;
+        }
+    }
+
+    @Override
+    public void handlerRemoved(ChannelHandlerContext ctx) throws Exception {
+        PendingWrite pendingWrite;
+        while ((pendingWrite = heldWrites.poll()) != null) {
+            ReferenceCountUtil.release(pendingWrite.msg);
+            pendingWrite.promise.tryFailure(new ClosedChannelException());
+        }
+    }
+
+    void deliverResponse(final HttpResponse response) {
+        ctx.executor().execute(new Runnable() {
+            @Override
+            public void run() {
+                if (finished) {
+                    return;
+                }
+
+                // the leader's framing does not necessarily suit this connection, so frame the response for this client
+                clientResponse = new DefaultHttpResponse(placeholder.getProtocolVersion(), response.getStatus());
+                clientResponse.headers().set(response.headers());
+
+                boolean connectionKeepAlive = keepAlive;
+                if (!HttpHeaders.isContentLengthSet(clientResponse)) {
+                    if (HttpVersion.HTTP_1_1.equals(placeholder.getProtocolVersion())) {
+                        HttpHeaders.setTransferEncodingChunked(clientResponse);
+                    } else {
+                        // the end of the body can only be signaled by closing the connection
+                        connectionKeepAlive = false;
+                    }
+                }
+                HttpHeaders.setKeepAlive(clientResponse, connectionKeepAlive);
+                closeAfterResponse = !connectionKeepAlive;
+
+                ctx.write(clientResponse);
+            }
+        });
+    }
+
+    void deliverContent(final ByteBuf content, final boolean last) {
+        ctx.executor().execute(new Runnable() {
+            @Override
+            public void run() {
+                if (finished || clientResponse == null) {
+                    content.release();
+                    return;
+                }
+
+                bodySize += content.readableBytes();
+
+                if (last) {
+                    ctx.writeAndFlush(new DefaultLastHttpContent(content));
+                } else {
+                    ctx.writeAndFlush(new DefaultHttpContent(content));
+                }
+            }
+        });
+    }
+
+    /**
+     * Completes the response. Must be called after the last content has been delivered.
+     *
+     * @param bufferedContent the complete response body, or null if the body was too large to be buffered. The buffers are retained by
+     *                        this method, so the caller may release them as soon as it returns.
+     */
+    void deliverCompletion(List<ByteBuf> bufferedContent) {
+        final ByteBuf body;
+        if (bufferedContent != null) {
+            ByteBuf[] buffers = new ByteBuf[bufferedContent.size()];
+            for (int i = 0; i < buffers.length; i++) {
+                buffers[i] = bufferedContent.get(i).duplicate().retain();
+            }
+            body = Unpooled.wrappedBuffer(buffers);
+        } else {
+            body = Unpooled.EMPTY_BUFFER;
+        }
+
+        ctx.executor().execute(new Runnable() {
+            @Override
+            public void run() {
+                if (finished) {
+                    body.release();
+                    return;
+                }
+
+                FullHttpResponse fullResponse = null;
+                try {
+                    finish();
+
+                    fullResponse = new DefaultFullHttpResponse(placeholder.getProtocolVersion(), clientResponse.getStatus(), body);
+                    fullResponse.headers().set(clientResponse.headers());
+                    placeholder.fireResponseReceived(fullResponse, bodySize);
+                } catch (RuntimeException e) {
+                    log.warn("Error notifying listeners of coalesced response", e);
+                } finally {
+                    if (fullResponse != null) {
+                        fullResponse.release();
+                    } else {
+                        body.release();
+                    }
+                }
+            }
+        });
+    }
+
+    void deliverFailure() {
+        ctx.executor().execute(new Runnable() {
+            @Override
+            public void run() {
+                if (finished) {
+                    return;
+                }
+
+                if (clientResponse != null) {
+                    // part of the response has already been written, so the only way to signal the failure is to close the connection
+                    closeAfterResponse = true;
+                } else {
+                    FullHttpResponse badGateway = new DefaultFullHttpResponse(placeholder.getProtocolVersion(), HttpResponseStatus.BAD_GATEWAY);
+                    HttpHeaders.setContentLength(badGateway, 0L);
+                    HttpHeaders.setKeepAlive(badGateway, keepAlive);
+                    ctx.write(badGateway);
+                }
+
+                finish();
+
+                placeholder.fireResponseFailed();
+            }
+        });
+    }
+
+    /**
+     * Writes everything LittleProxy wrote after the placeholder, closes the connection if required, and removes this handler from the
+     * pipeline.
+     */
+    private void finish() {
+        finished = true;
+
+        PendingWrite pendingWrite;
+        while ((pendingWrite = heldWrites.poll()) != null) {
+            ctx.write(pendingWrite.msg, pendingWrite.promise);
+        }
+        ctx.flush();
+
+        if (heldClose != null) {
+            ctx.close(heldClose);
+            heldClose = null;
+        } else if (closeAfterResponse) {
+            ctx.close();
+        }
+
+        if (!ctx.isRemoved()) {
+            ctx.pipeline().remove(this);
+        }
+    }
+
+    private static class PendingWrite {
+        private final Object msg;
+        private final ChannelPromise promise;
+
+        private PendingWrite(Object msg, ChannelPromise promise) {
+            this.msg = msg;
+            this.promise = promise;
+        }
+    }
+}
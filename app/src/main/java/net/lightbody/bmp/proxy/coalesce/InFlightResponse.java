@@ -0,0 +1,201 @@
+package net.lightbody.bmp.proxy.coalesce;
+
+import com.google.common.collect.ImmutableSet;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.http.DefaultHttpResponse;
+import io.netty.handler.codec.http.HttpContent;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.LastHttpContent;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * The response to a request that other clients are waiting on. The client whose request is sent to the server (the leader) publishes
+ * the response as it is received; each waiting client (a follower) receives its own copy of the headers and a reference-counted
+ * duplicate of every content buffer, so the body is never copied.
+ * <p/>
+ * Content is kept for followers that join after the response has started, up to a limit. Once the limit is exceeded, no further
+ * followers can join, and the buffered content is released; followers that have already joined continue to receive the response.
+ */
+public class InFlightResponse {
+    /**
+     * Headers that apply to the leader's connection, rather than the response.
+     */
+    private static final ImmutableSet<String> CONNECTION_HEADERS = ImmutableSet.of(
+            HttpHeaders.Names.CONNECTION.toLowerCase(Locale.US),
+            "keep-alive",
+            HttpHeaders.Names.PROXY_AUTHENTICATE.toLowerCase(Locale.US),
+            HttpHeaders.Names.TE.toLowerCase(Locale.US),
+            HttpHeaders.Names.TRAILER.toLowerCase(Locale.US),
+            HttpHeaders.Names.TRANSFER_ENCODING.toLowerCase(Locale.US),
+            HttpHeaders.Names.UPGRADE.toLowerCase(Locale.US));
+
+    private final RequestCoalescer coalescer;
+    private final String key;
+
+    private final List<CoalescedResponseHandler> followers = new ArrayList<>();
+    private final List<ByteBuf> bufferedContent = new ArrayList<>();
+    private long bufferedBytes;
+    private boolean bufferingAbandoned;
+
+    private HttpResponse response;
+    private boolean complete;
+    private boolean closedToFollowers;
+
+    InFlightResponse(RequestCoalescer coalescer, String key) {
+        this.coalescer = coalescer;
+        this.key = key;
+    }
+
+    /**
+     * Adds a follower that will receive a copy of this response. The follower's filter must return the returned placeholder to
+     * LittleProxy as a short-circuit response.
+     *
+     * @param ctx the follower's client channel context
+     * @param request the follower's request
+     * @return placeholder response, or null if the response can no longer be shared and the follower must send its own request
+     */
+    public synchronized CoalescedHttpResponse follow(ChannelHandlerContext ctx, HttpRequest request) {
+        if (closedToFollowers) {
+            return null;
+        }
+
+        CoalescedHttpResponse placeholder = new CoalescedHttpResponse(request.getProtocolVersion());
+        CoalescedResponseHandler handler = new CoalescedResponseHandler(placeholder, HttpHeaders.isKeepAlive(request));
+        ctx.pipeline().addAfter(CoalescedResponseHandler.ENCODER_HANDLER_NAME, null, handler);
+
+        if (response != null) {
+            handler.deliverResponse(copyResponse(response));
+            for (ByteBuf content : bufferedContent) {
+                handler.deliverContent(content.duplicate().retain(), false);
+            }
+        }
+
+        followers.add(handler);
+
+        return placeholder;
+    }
+
+    /**
+     * Publishes part of the leader's response. Must be called with the response objects in the order they are sent to the leader.
+     */
+    public void publish(Object httpObject) {
+        boolean last = false;
+        CoalescedResponseHandler[] recipients;
+
+        synchronized (this) {
+            if (complete) {
+                return;
+            }
+
+            if (httpObject instanceof HttpResponse) {
+                response = copyResponse((HttpResponse) httpObject);
+                for (CoalescedResponseHandler follower : followers) {
+                    follower.deliverResponse(copyResponse(response));
+                }
+            }
+
+            if (!(httpObject instanceof HttpContent) || response == null) {
+                return;
+            }
+
+            ByteBuf content = ((HttpContent) httpObject).content();
+            last = httpObject instanceof LastHttpContent;
+
+            if (!bufferingAbandoned) {
+                if (bufferedBytes + content.readableBytes() <= coalescer.getMaxBufferedBytes()) {
+                    bufferedContent.add(content.duplicate().retain());
+                    bufferedBytes += content.readableBytes();
+                } else {
+                    abandonBuffering();
+                }
+            }
+
+            for (CoalescedResponseHandler follower : followers) {
+                follower.deliverContent(content.duplicate().retain(), last);
+            }
+
+            if (last) {
+                complete = true;
+                closedToFollowers = true;
+                recipients = followers.toArray(new CoalescedResponseHandler[followers.size()]);
+            } else {
+                return;
+            }
+        }
+
+        // the response is complete, so the buffered content is no longer needed by new followers, only by the followers' listeners
+        coalescer.remove(key, this);
+
+        for (CoalescedResponseHandler follower : recipients) {
+            follower.deliverCompletion(bufferingAbandoned ? null : bufferedContent);
+        }
+
+        releaseBufferedContent();
+    }
+
+    /**
+     * Fails the response, if it has not already completed. Followers that have not received any part of the response receive a
+     * 502 Bad Gateway; followers that have received part of it are disconnected.
+     */
+    public void fail() {
+        synchronized (this) {
+            if (complete) {
+                return;
+            }
+
+            complete = true;
+            closedToFollowers = true;
+        }
+
+        coalescer.remove(key, this);
+
+        for (CoalescedResponseHandler follower : followers) {
+            follower.deliverFailure();
+        }
+
+        releaseBufferedContent();
+    }
+
+    public synchronized int getFollowerCount() {
+        return followers.size();
+    }
+
+    private void abandonBuffering() {
+        bufferingAbandoned = true;
+        closedToFollowers = true;
+        coalescer.remove(key, this);
+
+        for (ByteBuf content : bufferedContent) {
+            content.release();
+        }
+        bufferedContent.clear();
+        bufferedBytes = 0;
+    }
+
+    private synchronized void releaseBufferedContent() {
+        for (ByteBuf content : bufferedContent) {
+            content.release();
+        }
+        bufferedContent.clear();
+    }
+
+    /**
+     * Copies the status and end-to-end headers of a response. Each follower's handler sets its own framing and connection headers.
+     */
+    private static HttpResponse copyResponse(HttpResponse original) {
+        HttpResponse copy = new DefaultHttpResponse(original.getProtocolVersion(), original.getStatus());
+        for (String name : original.headers().names()) {
+            if (!CONNECTION_HEADERS.contains(name.toLowerCase(Locale.US))) {
+                copy.headers().set(name, original.headers().getAll(name));
+            }
+        }
+
+        return copy;
+    }
+}
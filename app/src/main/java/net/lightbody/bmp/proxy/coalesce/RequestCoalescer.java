@@ -0,0 +1,128 @@
+package net.lightbody.bmp.proxy.coalesce;
+
+import com.google.common.collect.ImmutableSet;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpRequest;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Tracks the in-flight responses that concurrent identical requests can share. Requests are identical when they have the same URL and
+ * the same end-to-end headers. Comparing every header, rather than only the headers named in the response's Vary header (which is not
+ * known until the response arrives), guarantees that a shared response is one the server would have sent to every waiting client.
+ */
+public class RequestCoalescer {
+    /**
+     * Default maximum number of response body bytes buffered for clients that join an in-flight response after it has started.
+     */
+    public static final int DEFAULT_MAX_BUFFERED_BYTES = 2 * 1024 * 1024;
+
+    /**
+     * Headers that apply to the client's connection to the proxy, and so do not affect the response.
+     */
+    private static final ImmutableSet<String> IGNORED_HEADERS = ImmutableSet.of(
+            HttpHeaders.Names.CONNECTION.toLowerCase(Locale.US),
+            "keep-alive",
+            "proxy-connection",
+            HttpHeaders.Names.PROXY_AUTHORIZATION.toLowerCase(Locale.US),
+            HttpHeaders.Names.TE.toLowerCase(Locale.US),
+            HttpHeaders.Names.UPGRADE.toLowerCase(Locale.US));
+
+    private final ConcurrentMap<String, InFlightResponse> inFlightResponses = new ConcurrentHashMap<>();
+
+    private final int maxBufferedBytes;
+
+    private final AtomicLong coalescedRequestCount = new AtomicLong();
+
+    public RequestCoalescer() {
+        this(DEFAULT_MAX_BUFFERED_BYTES);
+    }
+
+    public RequestCoalescer(int maxBufferedBytes) {
+        this.maxBufferedBytes = maxBufferedBytes;
+    }
+
+    /**
+     * Creates the key that identifies requests that can share a response.
+     *
+     * @param request the client's request
+     * @param url full URL of the request
+     */
+    public static String createKey(HttpRequest request, String url) {
+        List<String> headers = new ArrayList<>();
+        for (Map.Entry<String, String> header : request.headers()) {
+            String name = header.getKey().toLowerCase(Locale.US);
+            if (!IGNORED_HEADERS.contains(name)) {
+                headers.add(name + ':' + header.getValue());
+            }
+        }
+
+        // header order does not affect the response, so normalize it
+        Collections.sort(headers);
+
+        StringBuilder key = new StringBuilder(request.getMethod().name()).append(' ').append(url);
+        for (String header : headers) {
+            key.append('\n').append(header);
+        }
+
+        return key.toString();
+    }
+
+    /**
+     * Registers a new in-flight response for the key, unless one already exists.
+     *
+     * @return the new in-flight response, which the caller must publish to or fail; or null if a response for the key is already in
+     *         flight, in which case the caller should {@link #getInFlightResponse(String) follow} it
+     */
+    public InFlightResponse lead(String key) {
+        InFlightResponse inFlightResponse = new InFlightResponse(this, key);
+        if (inFlightResponses.putIfAbsent(key, inFlightResponse) == null) {
+            return inFlightResponse;
+        } else {
+            return null;
+        }
+    }
+
+    /**
+     * @return the in-flight response for the key, or null if there is none
+     */
+    public InFlightResponse getInFlightResponse(String key) {
+        return inFlightResponses.get(key);
+    }
+
+    /**
+     * Records that a request was served from another request's response.
+     */
+    public void recordCoalescedRequest() {
+        coalescedRequestCount.incrementAndGet();
+    }
+
+    /**
+     * @return the number of requests that were served from another request's response, rather than being sent to the server
+     */
+    public long getCoalescedRequestCount() {
+        return coalescedRequestCount.get();
+    }
+
+    /**
+     * @return the number of responses currently in flight that new requests can join
+     */
+    public int getInFlightCount() {
+        return inFlightResponses.size();
+    }
+
+    int getMaxBufferedBytes() {
+        return maxBufferedBytes;
+    }
+
+    void remove(String key, InFlightResponse inFlightResponse) {
+        inFlightResponses.remove(key, inFlightResponse);
+    }
+}
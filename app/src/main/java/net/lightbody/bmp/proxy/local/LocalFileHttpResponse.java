@@ -0,0 +1,42 @@
+package net.lightbody.bmp.proxy.local;
+
+import io.netty.handler.codec.http.DefaultHttpResponse;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpVersion;
+
+import java.io.File;
+
+/**
+ * A header-only response whose body is a region of a local file. The body is not part of the response object: the
+ * {@link LocalFileResponseHandler} installed on the client channel writes it directly from the file once the headers have been written.
+ */
+public class LocalFileHttpResponse extends DefaultHttpResponse {
+    private final File file;
+    private final long position;
+    private final long count;
+
+    /**
+     * @param file file containing the body
+     * @param position offset of the first byte of the body in the file
+     * @param count length of the body, in bytes
+     */
+    public LocalFileHttpResponse(HttpVersion version, HttpResponseStatus status, File file, long position, long count) {
+        super(version, status);
+
+        this.file = file;
+        this.position = position;
+        this.count = count;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public long getPosition() {
+        return position;
+    }
+
+    public long getCount() {
+        return count;
+    }
+}
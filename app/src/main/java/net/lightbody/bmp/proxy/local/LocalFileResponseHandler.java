@@ -0,0 +1,225 @@
+package net.lightbody.bmp.proxy.local;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelOutboundHandlerAdapter;
+import io.netty.channel.ChannelPromise;
+import io.netty.channel.DefaultFileRegion;
+import io.netty.handler.codec.http.DefaultHttpContent;
+import io.netty.handler.codec.http.DefaultLastHttpContent;
+import io.netty.handler.codec.http.HttpContent;
+import io.netty.handler.codec.http.LastHttpContent;
+import io.netty.handler.ssl.SslHandler;
+import io.netty.util.ReferenceCountUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+
+/**
+ * Writes the body of a {@link LocalFileHttpResponse} to the client, without copying the file through the Java heap. The handler must be
+ * installed immediately after LittleProxy's HTTP response encoder, so it sees the response when LittleProxy writes it.
+ * <p/>
+ * On a plain HTTP connection, the body is written as a single {@link DefaultFileRegion}, which the operating system can transfer
+ * directly from the file to the socket. {@link SslHandler} cannot encrypt a file region, so on an HTTPS connection the body is written
+ * as a sequence of memory-mapped chunks instead; each chunk is written once the previous chunk has been written, so only one chunk is
+ * mapped at a time. While the chunks are being written, anything else LittleProxy writes to the client (including a close, if the
+ * connection is not keep-alive) is held back.
+ */
+public class LocalFileResponseHandler extends ChannelOutboundHandlerAdapter {
+    private static final Logger log = LoggerFactory.getLogger(LocalFileResponseHandler.class);
+
+    /**
+     * The name of LittleProxy's HttpResponseEncoder in the client-to-proxy pipeline.
+     */
+    public static final String ENCODER_HANDLER_NAME = "encoder";
+
+    /**
+     * Size of each memory-mapped chunk written to HTTPS connections.
+     */
+    public static final int MAPPED_CHUNK_SIZE = 512 * 1024;
+
+    private final LocalFileHttpResponse response;
+
+    private ChannelHandlerContext ctx;
+
+    private FileChannel fileChannel;
+    private long nextPosition;
+    private long endPosition;
+
+    private boolean writingChunks;
+    private final ArrayDeque<PendingWrite> heldWrites = new ArrayDeque<>();
+    private ChannelPromise heldClose;
+    private boolean closeAfterBody;
+
+    public LocalFileResponseHandler(LocalFileHttpResponse response) {
+        this.response = response;
+    }
+
+    @Override
+    public void handlerAdded(ChannelHandlerContext ctx) throws Exception {
+        this.ctx = ctx;
+    }
+
+    @Override
+    public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+        if (msg == response) {
+            ctx.write(msg, promise);
+
+            writeBody();
+        } else if (writingChunks) {
+            heldWrites.add(new PendingWrite(msg, promise));
+        } else {
+            ctx.write(msg, promise);
+        }
+    }
+
+    @Override
+    public void close(ChannelHandlerContext ctx, ChannelPromise promise) throws Exception {
+        if (writingChunks) {
+            heldClose = promise;
+        } else {
+            ctx.close(promise);
+        }
+    }
+
+    @Override
+    public void handlerRemoved(ChannelHandlerContext ctx) throws Exception {
+        closeFile();
+
+        PendingWrite pendingWrite;
+        while ((pendingWrite = heldWrites.poll()) != null) {
+            ReferenceCountUtil.release(pendingWrite.msg);
+            pendingWrite.promise.tryFailure(new ClosedChannelException());
+        }
+    }
+
+    private void writeBody() {
+        RandomAccessFile file = null;
+        try {
+            file = new RandomAccessFile(response.getFile(), "r");
+
+            if (ctx.pipeline().get(SslHandler.class) == null) {
+                // the file region closes the file when it has been written
+                ctx.write(new DefaultFileRegion(file.getChannel(), response.getPosition(), response.getCount()));
+                ctx.write(LastHttpContent.EMPTY_LAST_CONTENT);
+
+                finish();
+            } else {
+                fileChannel = file.getChannel();
+                nextPosition = response.getPosition();
+                endPosition = response.getPosition() + response.getCount();
+                writingChunks = true;
+
+                writeNextChunk();
+            }
+        } catch (IOException e) {
+            if (file != null) {
+                try {
+                    file.close();
+                } catch (IOException closeException) {
+                    log.debug("Unable to close file {}", response.getFile(), closeException);
+                }
+            }
+
+            abort(e);
+        }
+    }
+
+    private void writeNextChunk() {
+        final boolean last = endPosition - nextPosition <= MAPPED_CHUNK_SIZE;
+        int chunkSize = (int) Math.min(MAPPED_CHUNK_SIZE, endPosition - nextPosition);
+
+        ByteBuf chunk;
+        try {
+            chunk = Unpooled.wrappedBuffer(fileChannel.map(FileChannel.MapMode.READ_ONLY, nextPosition, chunkSize));
+        } catch (IOException e) {
+            abort(e);
+            return;
+        }
+
+        nextPosition += chunkSize;
+
+        HttpContent content = last ? new DefaultLastHttpContent(chunk) : new DefaultHttpContent(chunk);
+        ctx.writeAndFlush(content).addListener(new ChannelFutureListener() {
+            @Override
+            public void operationComplete(ChannelFuture future) throws Exception {
+                if (!future.isSuccess()) {
+                    abort(future.cause());
+                } else if (last) {
+                    finish();
+                } else {
+                    writeNextChunk();
+                }
+            }
+        });
+    }
+
+    /**
+     * Closes the connection after part of the body could not be written. The headers have already been written, so closing the
+     * connection is the only way to tell the client the response is incomplete.
+     */
+    private void abort(Throwable cause) {
+        log.warn("Unable to write local file {} to client", response.getFile(), cause);
+
+        closeAfterBody = true;
+
+        finish();
+    }
+
+    /**
+     * Writes everything LittleProxy wrote while the body was being written, closes the connection if required, and removes this
+     * handler from the pipeline.
+     */
+    private void finish() {
+        writingChunks = false;
+
+        closeFile();
+
+        PendingWrite pendingWrite;
+        while ((pendingWrite = heldWrites.poll()) != null) {
+            ctx.write(pendingWrite.msg, pendingWrite.promise);
+        }
+        ctx.flush();
+
+        if (heldClose != null) {
+            ctx.close(heldClose);
+            heldClose = null;
+        } else if (closeAfterBody) {
+            ctx.close();
+        }
+
+        if (!ctx.isRemoved()) {
+            ctx.pipeline().remove(this);
+        }
+    }
+
+    private void closeFile() {
+        if (fileChannel != null) {
+            try {
+                fileChannel.close();
+            } catch (IOException e) {
+                log.debug("Unable to close file {}", response.getFile(), e);
+            }
+
+            fileChannel = null;
+        }
+    }
+
+    private static class PendingWrite {
+        private final Object msg;
+        private final ChannelPromise promise;
+
+        private PendingWrite(Object msg, ChannelPromise promise) {
+            this.msg = msg;
+            this.promise = promise;
+        }
+    }
+}
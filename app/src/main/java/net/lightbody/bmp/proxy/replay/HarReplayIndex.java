@@ -0,0 +1,558 @@
+package net.lightbody.bmp.proxy.replay;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.hash.Hashing;
+import com.google.common.io.BaseEncoding;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.QueryStringDecoder;
+import net.lightbody.bmp.core.har.Har;
+import net.lightbody.bmp.core.har.HarContent;
+import net.lightbody.bmp.core.har.HarEntry;
+import net.lightbody.bmp.core.har.HarNameValuePair;
+import net.lightbody.bmp.core.har.HarPostData;
+import net.lightbody.bmp.core.har.HarPostDataParam;
+import net.lightbody.bmp.exception.UnsupportedCharsetException;
+import net.lightbody.bmp.util.BrowserMobHttpUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An index of the responses recorded in a HAR, keyed by request method, normalized URL, and a hash of the request body. The index is
+ * immutable once built and is safe to use from any number of threads.
+ * <p/>
+ * URLs are normalized before matching: the scheme and host are lowercased, default ports are removed, the fragment is dropped, and
+ * query parameters are sorted, so that requests which differ only in parameter order still match. URL-encoded form bodies are
+ * normalized the same way.
+ * <p/>
+ * When the same request was recorded more than once, the recorded responses are served in the order they were recorded, and the last
+ * response is repeated once all of them have been served.
+ */
+public class HarReplayIndex {
+    private static final Logger log = LoggerFactory.getLogger(HarReplayIndex.class);
+
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+    private final Map<String, RecordedExchanges> exchanges;
+    private final int responseCount;
+
+    private HarReplayIndex(Map<String, List<RecordedResponse>> responses) {
+        ImmutableMap.Builder<String, RecordedExchanges> builder = ImmutableMap.builder();
+        int count = 0;
+        for (Map.Entry<String, List<RecordedResponse>> entry : responses.entrySet()) {
+            builder.put(entry.getKey(), new RecordedExchanges(entry.getValue()));
+            count += entry.getValue().size();
+        }
+
+        this.exchanges = builder.build();
+        this.responseCount = count;
+    }
+
+    /**
+     * Builds an index from a HAR that is already in memory, such as the HAR currently being captured. Response bodies are copied into
+     * the index, so the HAR can be modified or discarded afterward.
+     */
+    public static HarReplayIndex fromHar(Har har) {
+        try {
+            Loader loader = new Loader(null);
+
+            for (HarEntry entry : har.getLog().getEntries()) {
+                if (entry.getRequest() == null || entry.getResponse() == null) {
+                    continue;
+                }
+
+                HarContent content = entry.getResponse().getContent();
+                long recordedTimeMs = 0;
+                if (entry.getTimings() != null) {
+                    recordedTimeMs = Math.max(0L, entry.getTimings().getWait()) + Math.max(0L, entry.getTimings().getReceive());
+                }
+
+                loader.add(entry.getRequest().getMethod(),
+                        entry.getRequest().getUrl(),
+                        canonicalRecordedBody(entry.getRequest().getPostData()),
+                        entry.getResponse().getStatus(),
+                        entry.getResponse().getStatusText(),
+                        entry.getResponse().getHeaders(),
+                        content == null ? null : content.getText(),
+                        content == null ? null : content.getEncoding(),
+                        content == null ? null : content.getMimeType(),
+                        recordedTimeMs);
+            }
+
+            return loader.build();
+        } catch (IOException e) {
+            // the loader only performs I/O when it has a body store
+            throw new IllegalStateException("Unexpected I/O error while indexing HAR", e);
+        }
+    }
+
+    /**
+     * Builds an index from a HAR file, keeping response bodies in memory. See {@link #fromFile(File, File)}.
+     */
+    public static HarReplayIndex fromFile(File harFile) throws IOException {
+        return fromFile(harFile, null);
+    }
+
+    /**
+     * Builds an index from a HAR file. The file is parsed one entry at a time, so the HAR itself is never held in memory. If a body
+     * store is specified, response bodies are written to it and memory-mapped, so that even very large recordings use little heap;
+     * the body store is overwritten if it exists.
+     *
+     * @param harFile HAR file to index
+     * @param bodyStoreFile file to store response bodies in, or null to keep response bodies in memory
+     * @return the new index
+     * @throws IOException if the HAR cannot be read or is not valid JSON, or the body store cannot be written
+     */
+    public static HarReplayIndex fromFile(File harFile, File bodyStoreFile) throws IOException {
+        Loader loader = new Loader(bodyStoreFile);
+
+        try (JsonParser parser = OBJECT_MAPPER.getFactory().createParser(harFile)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new IOException("HAR file does not contain a JSON object: " + harFile);
+            }
+
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.getCurrentName();
+                JsonToken value = parser.nextToken();
+                if ("log".equals(field) && value == JsonToken.START_OBJECT) {
+                    readLog(parser, loader);
+                } else {
+                    parser.skipChildren();
+                }
+            }
+        } catch (IOException e) {
+            loader.abort();
+            throw e;
+        }
+
+        HarReplayIndex index = loader.build();
+
+        log.info("Indexed {} recorded responses from {}", index.getResponseCount(), harFile);
+
+        return index;
+    }
+
+    /**
+     * Returns the next recorded response for the specified request, or null if the request was not recorded. If the request is a
+     * {@link FullHttpRequest}, its body is used when matching.
+     *
+     * @param request request from the client
+     * @param url full URL of the request, including the scheme and host
+     */
+    public RecordedResponse match(HttpRequest request, String url) {
+        String canonicalBody = "";
+        if (request instanceof FullHttpRequest) {
+            canonicalBody = canonicalRequestBody((FullHttpRequest) request);
+        }
+
+        RecordedExchanges recorded = exchanges.get(createKey(request.getMethod().name(), url, canonicalBody));
+        if (recorded == null) {
+            return null;
+        }
+
+        return recorded.next();
+    }
+
+    /**
+     * Restarts every recorded sequence from its first response.
+     */
+    public void rewind() {
+        for (RecordedExchanges recorded : exchanges.values()) {
+            recorded.rewind();
+        }
+    }
+
+    /**
+     * @return the number of distinct requests in the index
+     */
+    public int getRequestCount() {
+        return exchanges.size();
+    }
+
+    /**
+     * @return the total number of recorded responses in the index
+     */
+    public int getResponseCount() {
+        return responseCount;
+    }
+
+    private static void readLog(JsonParser parser, Loader loader) throws IOException {
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.getCurrentName();
+            JsonToken value = parser.nextToken();
+            if ("entries".equals(field) && value == JsonToken.START_ARRAY) {
+                while (parser.nextToken() == JsonToken.START_OBJECT) {
+                    JsonNode entry = parser.readValueAsTree();
+                    readEntry(entry, loader);
+                }
+            } else {
+                parser.skipChildren();
+            }
+        }
+    }
+
+    private static void readEntry(JsonNode entry, Loader loader) throws IOException {
+        JsonNode request = entry.path("request");
+        JsonNode response = entry.path("response");
+        if (!request.isObject() || !response.isObject()) {
+            return;
+        }
+
+        String canonicalBody = "";
+        JsonNode postData = request.path("postData");
+        if (postData.isObject()) {
+            JsonNode params = postData.path("params");
+            if (params.isArray() && params.size() > 0) {
+                List<String> nameValuePairs = new ArrayList<>(params.size());
+                for (JsonNode param : params) {
+                    nameValuePairs.add(param.path("name").asText() + '=' + param.path("value").asText());
+                }
+                canonicalBody = canonicalParams(nameValuePairs);
+            } else {
+                canonicalBody = postData.path("text").asText();
+            }
+        }
+
+        ImmutableList.Builder<HarNameValuePair> headers = ImmutableList.builder();
+        for (JsonNode header : response.path("headers")) {
+            headers.add(new HarNameValuePair(header.path("name").asText(), header.path("value").asText()));
+        }
+
+        JsonNode content = response.path("content");
+        JsonNode timings = entry.path("timings");
+        long recordedTimeMs = Math.max(0L, timings.path("wait").asLong()) + Math.max(0L, timings.path("receive").asLong());
+
+        loader.add(request.path("method").asText(),
+                request.path("url").asText(),
+                canonicalBody,
+                response.path("status").asInt(),
+                response.path("statusText").asText(),
+                headers.build(),
+                content.hasNonNull("text") ? content.get("text").asText() : null,
+                content.hasNonNull("encoding") ? content.get("encoding").asText() : null,
+                content.hasNonNull("mimeType") ? content.get("mimeType").asText() : null,
+                recordedTimeMs);
+    }
+
+    /**
+     * Creates the key used to look up a request. Bodies are hashed rather than stored, so the key stays small regardless of the size
+     * of the request.
+     */
+    static String createKey(String method, String url, String canonicalBody) {
+        StringBuilder key = new StringBuilder(method.toUpperCase(Locale.US)).append(' ').append(normalizeUrl(url));
+        if (canonicalBody != null && !canonicalBody.isEmpty()) {
+            key.append(' ').append(Hashing.murmur3_128().hashString(canonicalBody, StandardCharsets.UTF_8));
+        }
+
+        return key.toString();
+    }
+
+    /**
+     * Normalizes a URL so that equivalent URLs produce the same string. URLs that cannot be parsed are returned unmodified.
+     */
+    static String normalizeUrl(String url) {
+        URI uri;
+        try {
+            uri = new URI(url);
+        } catch (URISyntaxException e) {
+            return url;
+        }
+
+        if (uri.getScheme() == null || uri.getHost() == null) {
+            return url;
+        }
+
+        String scheme = uri.getScheme().toLowerCase(Locale.US);
+        int port = uri.getPort();
+        if (("http".equals(scheme) && port == 80) || ("https".equals(scheme) && port == 443)) {
+            port = -1;
+        }
+
+        StringBuilder normalized = new StringBuilder(url.length())
+                .append(scheme).append("://").append(uri.getHost().toLowerCase(Locale.US));
+        if (port != -1) {
+            normalized.append(':').append(port);
+        }
+
+        String path = uri.getRawPath();
+        normalized.append(path == null || path.isEmpty() ? "/" : path);
+
+        String query = uri.getRawQuery();
+        if (query != null && !query.isEmpty()) {
+            List<String> params = new ArrayList<>();
+            Collections.addAll(params, query.split("&"));
+            Collections.sort(params);
+            normalized.append('?');
+            for (int i = 0; i < params.size(); i++) {
+                if (i > 0) {
+                    normalized.append('&');
+                }
+                normalized.append(params.get(i));
+            }
+        }
+
+        return normalized.toString();
+    }
+
+    /**
+     * Returns the canonical form of a recorded request body. HarCaptureFilter records URL-encoded form bodies as decoded parameters
+     * and all other bodies as text, so the canonical form of a live request must be computed the same way.
+     */
+    private static String canonicalRecordedBody(HarPostData postData) {
+        if (postData == null) {
+            return "";
+        }
+
+        List<HarPostDataParam> params = postData.getParams();
+        if (params != null && !params.isEmpty()) {
+            List<String> nameValuePairs = new ArrayList<>(params.size());
+            for (HarPostDataParam param : params) {
+                nameValuePairs.add(Strings.nullToEmpty(param.getName()) + '=' + Strings.nullToEmpty(param.getValue()));
+            }
+            return canonicalParams(nameValuePairs);
+        }
+
+        return postData.getText() == null ? "" : postData.getText();
+    }
+
+    private static String canonicalRequestBody(FullHttpRequest request) {
+        ByteBuf content = request.content();
+        if (!content.isReadable()) {
+            return "";
+        }
+
+        String contentType = HttpHeaders.getHeader(request, HttpHeaders.Names.CONTENT_TYPE);
+        Charset charset = charsetOf(contentType);
+        String text = content.toString(charset);
+
+        if (contentType != null && contentType.startsWith(HttpHeaders.Values.APPLICATION_X_WWW_FORM_URLENCODED)) {
+            QueryStringDecoder decoder = new QueryStringDecoder(text, charset, false);
+            List<String> nameValuePairs = new ArrayList<>();
+            for (Map.Entry<String, List<String>> param : decoder.parameters().entrySet()) {
+                for (String value : param.getValue()) {
+                    nameValuePairs.add(param.getKey() + '=' + value);
+                }
+            }
+            return canonicalParams(nameValuePairs);
+        }
+
+        return text;
+    }
+
+    private static String canonicalParams(List<String> nameValuePairs) {
+        List<String> sorted = new ArrayList<>(nameValuePairs);
+        Collections.sort(sorted);
+
+        StringBuilder canonical = new StringBuilder();
+        for (String nameValuePair : sorted) {
+            if (canonical.length() > 0) {
+                canonical.append('&');
+            }
+            canonical.append(nameValuePair);
+        }
+
+        return canonical.toString();
+    }
+
+    private static Charset charsetOf(String contentType) {
+        if (contentType == null) {
+            return BrowserMobHttpUtil.DEFAULT_HTTP_CHARSET;
+        }
+
+        try {
+            Charset charset = BrowserMobHttpUtil.readCharsetInContentTypeHeader(contentType);
+            return charset == null ? BrowserMobHttpUtil.DEFAULT_HTTP_CHARSET : charset;
+        } catch (UnsupportedCharsetException e) {
+            return BrowserMobHttpUtil.DEFAULT_HTTP_CHARSET;
+        }
+    }
+
+    /**
+     * Decodes recorded HAR content to the bytes originally sent by the server (after content decoding).
+     */
+    private static byte[] decodeContent(String text, String encoding, String mimeType) {
+        if (text == null || text.isEmpty()) {
+            return new byte[0];
+        }
+
+        if ("base64".equalsIgnoreCase(encoding)) {
+            try {
+                return BaseEncoding.base64().decode(text);
+            } catch (IllegalArgumentException e) {
+                log.warn("Unable to decode base64 content in HAR. Response will be replayed with an empty body.", e);
+                return new byte[0];
+            }
+        }
+
+        return text.getBytes(charsetOf(mimeType));
+    }
+
+    /**
+     * Collects recorded responses while a HAR is read. When a body store is used, bodies are appended to the store as they are read,
+     * and the store is mapped into memory once every entry has been read.
+     */
+    private static class Loader {
+        private final File bodyStoreFile;
+        private final OutputStream bodyStore;
+        private long bodyStoreSize;
+
+        private final Map<String, List<PendingResponse>> responses = new LinkedHashMap<>();
+
+        private Loader(File bodyStoreFile) throws IOException {
+            this.bodyStoreFile = bodyStoreFile;
+            if (bodyStoreFile != null) {
+                this.bodyStore = new BufferedOutputStream(new FileOutputStream(bodyStoreFile));
+            } else {
+                this.bodyStore = null;
+            }
+        }
+
+        private void add(String method, String url, String canonicalBody, int status, String statusText, List<HarNameValuePair> headers,
+                         String text, String encoding, String mimeType, long recordedTimeMs) throws IOException {
+            if (method == null || method.isEmpty() || url == null || url.isEmpty() || status <= 0) {
+                // aborted or incomplete entries cannot be replayed
+                return;
+            }
+
+            byte[] body = decodeContent(text, encoding, mimeType);
+
+            PendingResponse response = new PendingResponse(status, statusText, headers, recordedTimeMs);
+            if (bodyStore != null) {
+                response.offset = bodyStoreSize;
+                response.length = body.length;
+                bodyStore.write(body);
+                bodyStoreSize += body.length;
+            } else {
+                response.body = body;
+            }
+
+            String key = createKey(method, url, canonicalBody);
+            List<PendingResponse> recorded = responses.get(key);
+            if (recorded == null) {
+                recorded = new ArrayList<>(1);
+                responses.put(key, recorded);
+            }
+            recorded.add(response);
+        }
+
+        private HarReplayIndex build() throws IOException {
+            ByteBuf store = null;
+            if (bodyStore != null) {
+                bodyStore.close();
+
+                if (bodyStoreSize > Integer.MAX_VALUE) {
+                    throw new IOException("Response bodies exceed the maximum body store size: " + bodyStoreSize + " bytes");
+                }
+
+                try (RandomAccessFile file = new RandomAccessFile(bodyStoreFile, "r");
+                     FileChannel channel = file.getChannel()) {
+                    // the mapping remains valid after the channel is closed
+                    MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, bodyStoreSize);
+                    store = Unpooled.unreleasableBuffer(Unpooled.wrappedBuffer(mapped));
+                }
+            }
+
+            Map<String, List<RecordedResponse>> recordedResponses = new LinkedHashMap<>(responses.size());
+            for (Map.Entry<String, List<PendingResponse>> entry : responses.entrySet()) {
+                List<RecordedResponse> recorded = new ArrayList<>(entry.getValue().size());
+                for (PendingResponse pending : entry.getValue()) {
+                    ByteBuf body;
+                    if (store != null) {
+                        body = store.slice((int) pending.offset, pending.length);
+                    } else {
+                        body = Unpooled.unreleasableBuffer(Unpooled.wrappedBuffer(pending.body));
+                    }
+
+                    recorded.add(new RecordedResponse(pending.status, pending.statusText, pending.headers, body, pending.recordedTimeMs));
+                }
+                recordedResponses.put(entry.getKey(), recorded);
+            }
+
+            return new HarReplayIndex(recordedResponses);
+        }
+
+        private void abort() {
+            if (bodyStore != null) {
+                try {
+                    bodyStore.close();
+                } catch (IOException e) {
+                    log.debug("Unable to close body store {}", bodyStoreFile, e);
+                }
+            }
+        }
+    }
+
+    private static class PendingResponse {
+        private final int status;
+        private final String statusText;
+        private final List<HarNameValuePair> headers;
+        private final long recordedTimeMs;
+
+        private byte[] body;
+        private long offset;
+        private int length;
+
+        private PendingResponse(int status, String statusText, List<HarNameValuePair> headers, long recordedTimeMs) {
+            this.status = status;
+            this.statusText = statusText;
+            this.headers = headers;
+            this.recordedTimeMs = recordedTimeMs;
+        }
+    }
+
+    /**
+     * The responses recorded for a single request, served in recorded order.
+     */
+    private static class RecordedExchanges {
+        private final List<RecordedResponse> responses;
+        private final AtomicInteger nextIndex = new AtomicInteger(0);
+
+        private RecordedExchanges(List<RecordedResponse> responses) {
+            this.responses = ImmutableList.copyOf(responses);
+        }
+
+        private RecordedResponse next() {
+            int index = nextIndex.getAndIncrement();
+            if (index >= responses.size()) {
+                // avoid overflowing the counter when a request is replayed many times
+                nextIndex.set(responses.size());
+                index = responses.size() - 1;
+            }
+
+            return responses.get(index);
+        }
+
+        private void rewind() {
+            nextIndex.set(0);
+        }
+    }
+}
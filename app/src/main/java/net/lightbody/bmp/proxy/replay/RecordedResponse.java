@@ -0,0 +1,92 @@
+package net.lightbody.bmp.proxy.replay;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import io.netty.buffer.ByteBuf;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpVersion;
+import net.lightbody.bmp.core.har.HarNameValuePair;
+
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * An immutable response recorded in a HAR, ready to be served to clients. The body is shared by every response created from this
+ * object, so it is never copied or released.
+ */
+public class RecordedResponse {
+    /**
+     * Headers that describe how the recorded body was transferred, rather than the body itself. HAR content is stored decoded, so these
+     * headers no longer apply and are regenerated when the response is served.
+     */
+    private static final ImmutableSet<String> TRANSFER_HEADERS = ImmutableSet.of(
+            HttpHeaders.Names.CONTENT_LENGTH.toLowerCase(Locale.US),
+            HttpHeaders.Names.CONTENT_ENCODING.toLowerCase(Locale.US),
+            HttpHeaders.Names.TRANSFER_ENCODING.toLowerCase(Locale.US),
+            HttpHeaders.Names.CONNECTION.toLowerCase(Locale.US),
+            "keep-alive");
+
+    private final HttpResponseStatus status;
+    private final List<HarNameValuePair> headers;
+    private final ByteBuf body;
+    private final long recordedTimeMs;
+
+    /**
+     * @param status recorded status code
+     * @param reasonPhrase recorded reason phrase; if null or empty, the default reason phrase for the status code will be used
+     * @param headers recorded response headers
+     * @param body unreleasable buffer containing the decoded response body
+     * @param recordedTimeMs time the server took to produce and send the response (HAR wait + receive), in milliseconds
+     */
+    public RecordedResponse(int status, String reasonPhrase, List<HarNameValuePair> headers, ByteBuf body, long recordedTimeMs) {
+        if (reasonPhrase == null || reasonPhrase.isEmpty()) {
+            this.status = HttpResponseStatus.valueOf(status);
+        } else {
+            this.status = new HttpResponseStatus(status, reasonPhrase);
+        }
+
+        this.headers = ImmutableList.copyOf(headers);
+        this.body = body;
+        this.recordedTimeMs = recordedTimeMs;
+    }
+
+    /**
+     * Creates a new response for the client. The response's content is a duplicate of the recorded body, so creating a response
+     * does not copy any data.
+     *
+     * @param httpVersion HTTP version of the client's request
+     * @return a new response containing the recorded status, headers, and body
+     */
+    public FullHttpResponse toHttpResponse(HttpVersion httpVersion) {
+        FullHttpResponse response = new DefaultFullHttpResponse(httpVersion, status, body.duplicate());
+
+        for (HarNameValuePair header : headers) {
+            if (!TRANSFER_HEADERS.contains(header.getName().toLowerCase(Locale.US))) {
+                response.headers().add(header.getName(), header.getValue());
+            }
+        }
+
+        HttpHeaders.setContentLength(response, body.readableBytes());
+
+        return response;
+    }
+
+    public HttpResponseStatus getStatus() {
+        return status;
+    }
+
+    public List<HarNameValuePair> getHeaders() {
+        return headers;
+    }
+
+    public int getBodySize() {
+        return body.readableBytes();
+    }
+
+    public long getRecordedTimeMs() {
+        return recordedTimeMs;
+    }
+}
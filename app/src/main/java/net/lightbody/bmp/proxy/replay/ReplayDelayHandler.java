@@ -0,0 +1,118 @@
+package net.lightbody.bmp.proxy.replay;
+
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelOutboundHandlerAdapter;
+import io.netty.channel.ChannelPromise;
+import io.netty.util.ReferenceCountUtil;
+
+import java.nio.channels.ClosedChannelException;
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One-shot handler that holds back a replayed response until the time the server originally took to respond has elapsed. Unlike
+ * sleeping in a filter, this never blocks the event loop, so other connections are served while the response is delayed. The handler
+ * is installed immediately after LittleProxy's HTTP response encoder, so it holds the response's HTTP objects rather than encoded (or,
+ * for HTTPS, encrypted) bytes. The handler removes itself from the pipeline once the response has been released.
+ */
+public class ReplayDelayHandler extends ChannelOutboundHandlerAdapter {
+    /**
+     * The name of LittleProxy's HttpResponseEncoder in the client-to-proxy pipeline.
+     */
+    public static final String ENCODER_HANDLER_NAME = "encoder";
+
+    private final long releaseNanos;
+
+    private final ArrayDeque<PendingWrite> pendingWrites = new ArrayDeque<>();
+    private boolean flushPending;
+    private boolean released;
+
+    /**
+     * @param delay time to hold back writes, measured from when the handler is created
+     */
+    public ReplayDelayHandler(long delay, TimeUnit timeUnit) {
+        this.releaseNanos = System.nanoTime() + timeUnit.toNanos(delay);
+    }
+
+    @Override
+    public void handlerAdded(final ChannelHandlerContext ctx) throws Exception {
+        long delayNanos = releaseNanos - System.nanoTime();
+        if (delayNanos <= 0) {
+            release(ctx);
+            return;
+        }
+
+        ctx.executor().schedule(new Runnable() {
+            @Override
+            public void run() {
+                release(ctx);
+            }
+        }, delayNanos, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+        if (released) {
+            ctx.write(msg, promise);
+        } else {
+            pendingWrites.add(new PendingWrite(msg, promise));
+        }
+    }
+
+    @Override
+    public void flush(ChannelHandlerContext ctx) throws Exception {
+        if (released) {
+            ctx.flush();
+        } else {
+            flushPending = true;
+        }
+    }
+
+    @Override
+    public void close(ChannelHandlerContext ctx, ChannelPromise promise) throws Exception {
+        // the response must reach the client before the connection is closed
+        release(ctx);
+
+        ctx.close(promise);
+    }
+
+    @Override
+    public void handlerRemoved(ChannelHandlerContext ctx) throws Exception {
+        PendingWrite pendingWrite;
+        while ((pendingWrite = pendingWrites.poll()) != null) {
+            ReferenceCountUtil.release(pendingWrite.msg);
+            pendingWrite.promise.tryFailure(new ClosedChannelException());
+        }
+    }
+
+    private void release(ChannelHandlerContext ctx) {
+        if (released) {
+            return;
+        }
+
+        released = true;
+
+        PendingWrite pendingWrite;
+        while ((pendingWrite = pendingWrites.poll()) != null) {
+            ctx.write(pendingWrite.msg, pendingWrite.promise);
+        }
+
+        if (flushPending) {
+            ctx.flush();
+        }
+
+        if (!ctx.isRemoved()) {
+            ctx.pipeline().remove(this);
+        }
+    }
+
+    private static class PendingWrite {
+        private final Object msg;
+        private final ChannelPromise promise;
+
+        private PendingWrite(Object msg, ChannelPromise promise) {
+            this.msg = msg;
+            this.promise = promise;
+        }
+    }
+}
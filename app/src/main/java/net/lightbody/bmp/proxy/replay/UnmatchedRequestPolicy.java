@@ -0,0 +1,16 @@
+package net.lightbody.bmp.proxy.replay;
+
+/**
+ * Determines what happens to a request that is not found in the {@link HarReplayIndex} while replaying.
+ */
+public enum UnmatchedRequestPolicy {
+    /**
+     * Send the request to the real server, as if replay were disabled.
+     */
+    PASS_THROUGH,
+
+    /**
+     * Respond immediately with a 404 Not Found, so that no traffic leaves the device and missing recordings are easy to spot.
+     */
+    FAIL_FAST
+}
@@ -0,0 +1,58 @@
+package net.lightbody.bmp.proxy.throttle;
+
+import java.util.regex.Pattern;
+
+/**
+ * A bandwidth limit that applies to all upstream connections whose host matches a regular expression. All matching connections share
+ * the same pair of {@link TokenBucket}s, so the limit applies to the hosts in aggregate, not to each connection individually.
+ */
+public class HostBandwidthLimit {
+    private final Pattern hostPattern;
+    private final TokenBucket readBucket;
+    private final TokenBucket writeBucket;
+
+    /**
+     * Creates a new limit for hosts matching the specified pattern.
+     *
+     * @param hostPattern regular expression matching the hostname (without the port)
+     * @param readBytesPerSecond maximum bandwidth when reading responses, or 0 for unlimited
+     * @param writeBytesPerSecond maximum bandwidth when writing requests, or 0 for unlimited
+     */
+    public HostBandwidthLimit(String hostPattern, long readBytesPerSecond, long writeBytesPerSecond) {
+        this.hostPattern = Pattern.compile(hostPattern);
+        this.readBucket = new TokenBucket(readBytesPerSecond);
+        this.writeBucket = new TokenBucket(writeBytesPerSecond);
+    }
+
+    public boolean matches(String host) {
+        return host != null && hostPattern.matcher(host).matches();
+    }
+
+    public Pattern getHostPattern() {
+        return hostPattern;
+    }
+
+    public long getReadBandwidthLimit() {
+        return readBucket.getRate();
+    }
+
+    public void setReadBandwidthLimit(long bytesPerSecond) {
+        readBucket.setRate(bytesPerSecond);
+    }
+
+    public long getWriteBandwidthLimit() {
+        return writeBucket.getRate();
+    }
+
+    public void setWriteBandwidthLimit(long bytesPerSecond) {
+        writeBucket.setRate(bytesPerSecond);
+    }
+
+    TokenBucket getReadBucket() {
+        return readBucket;
+    }
+
+    TokenBucket getWriteBucket() {
+        return writeBucket;
+    }
+}
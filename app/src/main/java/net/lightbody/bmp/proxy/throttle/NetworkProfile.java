@@ -0,0 +1,58 @@
+package net.lightbody.bmp.proxy.throttle;
+
+/**
+ * Built-in network conditions that combine bandwidth limits with round-trip latency. Bandwidth values are expressed in kilobits per
+ * second, as they usually are when describing mobile networks, and are converted to bytes per second by {@link #getDownstreamBytesPerSecond()}
+ * and {@link #getUpstreamBytesPerSecond()}.
+ * <p/>
+ * Jitter is applied as a random +/- variation of the latency. Packet loss cannot be reproduced above TCP, so lossy profiles approximate
+ * it with jitter, which is how retransmissions appear to the application.
+ */
+public enum NetworkProfile {
+    UNLIMITED("No throttling", 0, 0, 0, 0),
+    GPRS_2G("2G (GPRS)", 50, 20, 500, 0),
+    EDGE("EDGE", 240, 200, 400, 0),
+    UMTS_3G("3G", 780, 330, 100, 0),
+    LTE("LTE", 50000, 10000, 50, 0),
+    LOSSY_WIFI("Lossy Wi-Fi", 2000, 1000, 150, 100);
+
+    private final String displayName;
+    private final long downstreamKbps;
+    private final long upstreamKbps;
+    private final long latencyMs;
+    private final long jitterMs;
+
+    NetworkProfile(String displayName, long downstreamKbps, long upstreamKbps, long latencyMs, long jitterMs) {
+        this.displayName = displayName;
+        this.downstreamKbps = downstreamKbps;
+        this.upstreamKbps = upstreamKbps;
+        this.latencyMs = latencyMs;
+        this.jitterMs = jitterMs;
+    }
+
+    public String getDisplayName() {
+        return displayName;
+    }
+
+    /**
+     * @return bandwidth available when reading responses from servers, in bytes per second, or 0 for unlimited
+     */
+    public long getDownstreamBytesPerSecond() {
+        return downstreamKbps * 1000 / 8;
+    }
+
+    /**
+     * @return bandwidth available when writing requests to servers, in bytes per second, or 0 for unlimited
+     */
+    public long getUpstreamBytesPerSecond() {
+        return upstreamKbps * 1000 / 8;
+    }
+
+    public long getLatencyMs() {
+        return latencyMs;
+    }
+
+    public long getJitterMs() {
+        return jitterMs;
+    }
+}
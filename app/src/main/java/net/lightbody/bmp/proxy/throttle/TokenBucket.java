@@ -0,0 +1,111 @@
+package net.lightbody.bmp.proxy.throttle;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A thread-safe token bucket that meters bytes at a configurable rate. Rather than blocking, callers reserve bytes and are told how long
+ * they must wait before the bytes may be transferred. The bucket is allowed to go into "debt", so concurrent reservations from many
+ * connections are queued behind one another and the aggregate rate stays accurate regardless of how many connections share the bucket.
+ * <p/>
+ * The rate can be changed at any time. Outstanding debt is repaid at the new rate, so a change takes effect on the very next reservation.
+ */
+public class TokenBucket {
+    /**
+     * The smallest burst the bucket will allow, regardless of rate. Roughly one TCP segment.
+     */
+    private static final long MIN_BURST_BYTES = 1460;
+
+    /**
+     * The bucket may accumulate at most this fraction of a second's worth of bytes while idle.
+     */
+    private static final long BURST_DIVISOR = 10;
+
+    private long bytesPerSecond;
+
+    private long capacity;
+
+    /**
+     * Available tokens, in bytes. Negative values indicate debt that must be repaid before any more bytes may be transferred.
+     */
+    private double tokens;
+
+    private long lastRefillNanos;
+
+    /**
+     * Creates a new bucket with the specified rate. A rate of 0 or less disables metering.
+     *
+     * @param bytesPerSecond maximum rate, in bytes per second
+     */
+    public TokenBucket(long bytesPerSecond) {
+        this.lastRefillNanos = System.nanoTime();
+        setRate(bytesPerSecond);
+        this.tokens = capacity;
+    }
+
+    /**
+     * Changes the rate of this bucket. Takes effect immediately, including for connections that are currently being metered.
+     *
+     * @param bytesPerSecond maximum rate, in bytes per second, or 0 to disable metering
+     */
+    public synchronized void setRate(long bytesPerSecond) {
+        refill(System.nanoTime());
+
+        if (bytesPerSecond <= 0) {
+            this.bytesPerSecond = 0;
+            this.capacity = 0;
+            this.tokens = 0;
+        } else {
+            this.bytesPerSecond = bytesPerSecond;
+            this.capacity = Math.max(bytesPerSecond / BURST_DIVISOR, MIN_BURST_BYTES);
+            this.tokens = Math.min(tokens, capacity);
+        }
+    }
+
+    /**
+     * @return the current rate of this bucket, in bytes per second, or 0 if metering is disabled
+     */
+    public synchronized long getRate() {
+        return bytesPerSecond;
+    }
+
+    /**
+     * @return true if this bucket is currently metering bytes
+     */
+    public synchronized boolean isLimited() {
+        return bytesPerSecond > 0;
+    }
+
+    /**
+     * Reserves the specified number of bytes, returning the amount of time the caller must wait before transferring them.
+     * The bytes are always debited from the bucket, so callers must honor the returned delay.
+     *
+     * @param bytes number of bytes to transfer
+     * @return time to wait before transferring the bytes, in nanoseconds; 0 if the bytes may be transferred immediately
+     */
+    public synchronized long reserve(long bytes) {
+        if (bytesPerSecond <= 0 || bytes <= 0) {
+            return 0L;
+        }
+
+        refill(System.nanoTime());
+
+        tokens -= bytes;
+
+        if (tokens >= 0) {
+            return 0L;
+        }
+
+        return (long) (-tokens * TimeUnit.SECONDS.toNanos(1) / bytesPerSecond);
+    }
+
+    private void refill(long nowNanos) {
+        long elapsedNanos = nowNanos - lastRefillNanos;
+        lastRefillNanos = nowNanos;
+
+        if (bytesPerSecond <= 0 || elapsedNanos <= 0) {
+            return;
+        }
+
+        tokens = Math.min(capacity, tokens + (double) elapsedNanos * bytesPerSecond / TimeUnit.SECONDS.toNanos(1));
+    }
+}
@@ -0,0 +1,219 @@
+package net.lightbody.bmp.proxy.throttle;
+
+import com.google.common.collect.ImmutableList;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Shapes upstream traffic using a global pair of {@link TokenBucket}s and any number of per-host {@link HostBandwidthLimit}s. Every
+ * setting can be changed while the proxy is running; the {@link TrafficShapingHandler}s installed on upstream connections consult the
+ * shaper on every read and write, so changes apply to existing connections as well as new ones.
+ * <p/>
+ * When a connection matches one or more host limits, the connection must satisfy both the global limit and every matching host limit,
+ * so the effective bandwidth is the smallest of them.
+ */
+public class TrafficShaper {
+    private final TokenBucket globalReadBucket = new TokenBucket(0);
+    private final TokenBucket globalWriteBucket = new TokenBucket(0);
+
+    private final List<HostBandwidthLimit> hostLimits = new CopyOnWriteArrayList<>();
+
+    /**
+     * Incremented whenever the host limits change, so handlers can cache the limits that apply to their host.
+     */
+    private final AtomicInteger hostLimitsVersion = new AtomicInteger(0);
+
+    private final Random random = new Random();
+
+    private volatile long latencyNanos;
+    private volatile long jitterNanos;
+
+    private volatile NetworkProfile networkProfile = NetworkProfile.UNLIMITED;
+
+    /**
+     * Applies the bandwidth and latency of a built-in network profile as the global limits. Host limits are not affected.
+     *
+     * @param profile network profile to emulate; {@link NetworkProfile#UNLIMITED} removes the global limits and latency
+     */
+    public void applyProfile(NetworkProfile profile) {
+        if (profile == null) {
+            profile = NetworkProfile.UNLIMITED;
+        }
+
+        globalReadBucket.setRate(profile.getDownstreamBytesPerSecond());
+        globalWriteBucket.setRate(profile.getUpstreamBytesPerSecond());
+        setLatency(profile.getLatencyMs(), TimeUnit.MILLISECONDS);
+        setJitter(profile.getJitterMs(), TimeUnit.MILLISECONDS);
+
+        this.networkProfile = profile;
+    }
+
+    /**
+     * @return the most recently applied network profile. The global limits may have been changed since the profile was applied.
+     */
+    public NetworkProfile getNetworkProfile() {
+        return networkProfile;
+    }
+
+    public void setGlobalReadLimit(long bytesPerSecond) {
+        globalReadBucket.setRate(bytesPerSecond);
+    }
+
+    public long getGlobalReadLimit() {
+        return globalReadBucket.getRate();
+    }
+
+    public void setGlobalWriteLimit(long bytesPerSecond) {
+        globalWriteBucket.setRate(bytesPerSecond);
+    }
+
+    public long getGlobalWriteLimit() {
+        return globalWriteBucket.getRate();
+    }
+
+    /**
+     * Sets the one-way latency added to each request sent to a server.
+     */
+    public void setLatency(long latency, TimeUnit timeUnit) {
+        this.latencyNanos = Math.max(0L, timeUnit.toNanos(latency));
+    }
+
+    public long getLatency(TimeUnit timeUnit) {
+        return timeUnit.convert(latencyNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Sets the maximum random variation applied to the latency.
+     */
+    public void setJitter(long jitter, TimeUnit timeUnit) {
+        this.jitterNanos = Math.max(0L, timeUnit.toNanos(jitter));
+    }
+
+    public long getJitter(TimeUnit timeUnit) {
+        return timeUnit.convert(jitterNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Limits the bandwidth of all hosts matching the pattern. If a limit already exists for the pattern, it is updated in place, so
+     * connections that are currently using it keep sharing the same buckets.
+     *
+     * @param hostPattern regular expression matching the hostname (without the port)
+     * @param readBytesPerSecond maximum bandwidth when reading responses, or 0 for unlimited
+     * @param writeBytesPerSecond maximum bandwidth when writing requests, or 0 for unlimited
+     */
+    public synchronized void setHostLimit(String hostPattern, long readBytesPerSecond, long writeBytesPerSecond) {
+        for (HostBandwidthLimit limit : hostLimits) {
+            if (limit.getHostPattern().pattern().equals(hostPattern)) {
+                limit.setReadBandwidthLimit(readBytesPerSecond);
+                limit.setWriteBandwidthLimit(writeBytesPerSecond);
+                return;
+            }
+        }
+
+        hostLimits.add(new HostBandwidthLimit(hostPattern, readBytesPerSecond, writeBytesPerSecond));
+        hostLimitsVersion.incrementAndGet();
+    }
+
+    public synchronized void removeHostLimit(String hostPattern) {
+        // the CopyOnWriteArrayList iterator is a snapshot, so removing while iterating is safe
+        for (HostBandwidthLimit limit : hostLimits) {
+            if (limit.getHostPattern().pattern().equals(hostPattern)) {
+                hostLimits.remove(limit);
+            }
+        }
+
+        hostLimitsVersion.incrementAndGet();
+    }
+
+    public synchronized void clearHostLimits() {
+        hostLimits.clear();
+        hostLimitsVersion.incrementAndGet();
+    }
+
+    public List<HostBandwidthLimit> getHostLimits() {
+        return ImmutableList.copyOf(hostLimits);
+    }
+
+    /**
+     * Removes all global limits, host limits, and latency.
+     */
+    public void reset() {
+        applyProfile(NetworkProfile.UNLIMITED);
+        clearHostLimits();
+    }
+
+    /**
+     * @return true if any bandwidth limit or latency is currently configured
+     */
+    public boolean isActive() {
+        return latencyNanos > 0 || globalReadBucket.isLimited() || globalWriteBucket.isLimited() || !hostLimits.isEmpty();
+    }
+
+    int getHostLimitsVersion() {
+        return hostLimitsVersion.get();
+    }
+
+    /**
+     * Returns the host limits that apply to the specified host.
+     */
+    List<HostBandwidthLimit> getHostLimitsFor(String host) {
+        if (hostLimits.isEmpty()) {
+            return ImmutableList.of();
+        }
+
+        ImmutableList.Builder<HostBandwidthLimit> builder = ImmutableList.builder();
+        for (HostBandwidthLimit limit : hostLimits) {
+            if (limit.matches(host)) {
+                builder.add(limit);
+            }
+        }
+
+        return builder.build();
+    }
+
+    /**
+     * Reserves bytes read from a server against the global bucket and the specified host limits.
+     *
+     * @return time to wait before reading more data, in nanoseconds
+     */
+    long reserveRead(List<HostBandwidthLimit> limits, long bytes) {
+        long delay = globalReadBucket.reserve(bytes);
+        for (HostBandwidthLimit limit : limits) {
+            delay = Math.max(delay, limit.getReadBucket().reserve(bytes));
+        }
+
+        return delay;
+    }
+
+    /**
+     * Reserves bytes written to a server against the global bucket and the specified host limits.
+     *
+     * @return time to wait before writing the data, in nanoseconds
+     */
+    long reserveWrite(List<HostBandwidthLimit> limits, long bytes) {
+        long delay = globalWriteBucket.reserve(bytes);
+        for (HostBandwidthLimit limit : limits) {
+            delay = Math.max(delay, limit.getWriteBucket().reserve(bytes));
+        }
+
+        return delay;
+    }
+
+    /**
+     * @return the latency to add to the next request, including jitter, in nanoseconds
+     */
+    long nextLatencyNanos() {
+        long latency = latencyNanos;
+        long jitter = jitterNanos;
+        if (jitter > 0) {
+            // nextDouble() is in [0, 1), so this yields a variation in [-jitter, +jitter)
+            latency += (long) ((random.nextDouble() * 2 - 1) * jitter);
+        }
+
+        return Math.max(0L, latency);
+    }
+}
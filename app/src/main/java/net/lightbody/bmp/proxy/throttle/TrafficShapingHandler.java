@@ -0,0 +1,216 @@
+package net.lightbody.bmp.proxy.throttle;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufHolder;
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+import io.netty.channel.FileRegion;
+import io.netty.util.ReferenceCountUtil;
+
+import java.nio.channels.ClosedChannelException;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Netty handler that applies a {@link TrafficShaper} to a single upstream connection. The handler should be installed at the head
+ * of the pipeline, so that it meters the bytes actually sent over the network (including TLS overhead).
+ * <p/>
+ * Reads are never buffered: when the read limit is exceeded, the handler turns off auto-read on the channel until the bucket has
+ * recovered, which stops reading from the socket and lets TCP flow control slow the server down. Writes are queued and released when the write limit and the
+ * configured latency allow. Like all channel handlers, a handler instance is confined to its channel's event loop.
+ */
+public class TrafficShapingHandler extends ChannelDuplexHandler {
+    /**
+     * The name of this handler in the channel pipeline.
+     */
+    public static final String HANDLER_NAME = "bmp-traffic-shaping";
+
+    /**
+     * Delays shorter than this are not worth scheduling a task for.
+     */
+    private static final long MIN_DELAY_NANOS = TimeUnit.MILLISECONDS.toNanos(2);
+
+    private final TrafficShaper trafficShaper;
+    private final String host;
+
+    private final ArrayDeque<PendingWrite> pendingWrites = new ArrayDeque<>();
+
+    private List<HostBandwidthLimit> hostLimits;
+    private int hostLimitsVersion = -1;
+
+    private boolean readSuspended;
+
+    /**
+     * True if this handler turned off auto-read when it suspended reading, and so must turn it back on.
+     */
+    private boolean autoReadSuspended;
+    private long lastWriteReleaseNanos;
+
+    private ChannelHandlerContext ctx;
+
+    public TrafficShapingHandler(TrafficShaper trafficShaper, String host) {
+        this.trafficShaper = trafficShaper;
+        this.host = host;
+    }
+
+    @Override
+    public void handlerAdded(ChannelHandlerContext ctx) throws Exception {
+        this.ctx = ctx;
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        long size = sizeOf(msg);
+        if (size > 0 && trafficShaper.isActive()) {
+            long delayNanos = trafficShaper.reserveRead(currentHostLimits(), size);
+            if (delayNanos >= MIN_DELAY_NANOS && !readSuspended) {
+                readSuspended = true;
+                // with auto-read on, the channel keeps the socket registered for reads whether or not read() is called, so it must be
+                // turned off to actually stop reading. like netty's AbstractTrafficShapingHandler, only suspend if it is on to begin with.
+                autoReadSuspended = ctx.channel().config().isAutoRead();
+                if (autoReadSuspended) {
+                    ctx.channel().config().setAutoRead(false);
+                }
+                ctx.executor().schedule(resumeReading, delayNanos, TimeUnit.NANOSECONDS);
+            }
+        }
+
+        ctx.fireChannelRead(msg);
+    }
+
+    @Override
+    public void read(ChannelHandlerContext ctx) throws Exception {
+        // while reading is suspended, swallow read requests. resumeReading will issue a read once the bucket has recovered.
+        if (!readSuspended) {
+            ctx.read();
+        }
+    }
+
+    @Override
+    public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+        long size = sizeOf(msg);
+        if (!trafficShaper.isActive() && pendingWrites.isEmpty()) {
+            ctx.write(msg, promise);
+            return;
+        }
+
+        long delayNanos = trafficShaper.reserveWrite(currentHostLimits(), size) + trafficShaper.nextLatencyNanos();
+        if (delayNanos < MIN_DELAY_NANOS && pendingWrites.isEmpty()) {
+            ctx.write(msg, promise);
+            return;
+        }
+
+        // writes must be released in order, so a write can never be released before the write that preceded it
+        long now = System.nanoTime();
+        long releaseNanos = Math.max(now + delayNanos, lastWriteReleaseNanos);
+        lastWriteReleaseNanos = releaseNanos;
+
+        pendingWrites.add(new PendingWrite(msg, promise, releaseNanos));
+        ctx.executor().schedule(releaseWrites, releaseNanos - now, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public void flush(ChannelHandlerContext ctx) throws Exception {
+        // pending writes are flushed when they are released
+        if (pendingWrites.isEmpty()) {
+            ctx.flush();
+        }
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        discardPendingWrites();
+
+        super.channelInactive(ctx);
+    }
+
+    @Override
+    public void handlerRemoved(ChannelHandlerContext ctx) throws Exception {
+        discardPendingWrites();
+
+        if (autoReadSuspended) {
+            autoReadSuspended = false;
+            ctx.channel().config().setAutoRead(true);
+        }
+    }
+
+    private final Runnable resumeReading = new Runnable() {
+        @Override
+        public void run() {
+            readSuspended = false;
+
+            if (autoReadSuspended) {
+                autoReadSuspended = false;
+                // turning auto-read back on also issues a read
+                ctx.channel().config().setAutoRead(true);
+            } else if (ctx.channel().config().isAutoRead()) {
+                ctx.read();
+            }
+        }
+    };
+
+    private final Runnable releaseWrites = new Runnable() {
+        @Override
+        public void run() {
+            long now = System.nanoTime();
+
+            boolean released = false;
+            while (!pendingWrites.isEmpty() && pendingWrites.peek().releaseNanos - now < MIN_DELAY_NANOS) {
+                PendingWrite pendingWrite = pendingWrites.poll();
+                ctx.write(pendingWrite.msg, pendingWrite.promise);
+                released = true;
+            }
+
+            if (released) {
+                ctx.flush();
+            }
+        }
+    };
+
+    private void discardPendingWrites() {
+        PendingWrite pendingWrite;
+        while ((pendingWrite = pendingWrites.poll()) != null) {
+            ReferenceCountUtil.release(pendingWrite.msg);
+            pendingWrite.promise.tryFailure(new ClosedChannelException());
+        }
+    }
+
+    /**
+     * Returns the host limits that apply to this connection, re-evaluating them only when the shaper's host limits have changed.
+     */
+    private List<HostBandwidthLimit> currentHostLimits() {
+        int version = trafficShaper.getHostLimitsVersion();
+        if (version != hostLimitsVersion) {
+            hostLimits = trafficShaper.getHostLimitsFor(host);
+            hostLimitsVersion = version;
+        }
+
+        return hostLimits;
+    }
+
+    private static long sizeOf(Object msg) {
+        if (msg instanceof ByteBuf) {
+            return ((ByteBuf) msg).readableBytes();
+        } else if (msg instanceof ByteBufHolder) {
+            return ((ByteBufHolder) msg).content().readableBytes();
+        } else if (msg instanceof FileRegion) {
+            return ((FileRegion) msg).count();
+        } else {
+            return 0L;
+        }
+    }
+
+    private static class PendingWrite {
+        private final Object msg;
+        private final ChannelPromise promise;
+        private final long releaseNanos;
+
+        private PendingWrite(Object msg, ChannelPromise promise, long releaseNanos) {
+            this.msg = msg;
+            this.promise = promise;
+            this.releaseNanos = releaseNanos;
+        }
+    }
+}
@@ -0,0 +1,291 @@
+package net.lightbody.bmp.proxy.tunnel;
+
+import com.google.common.collect.ImmutableSet;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collections;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The hosts whose HTTPS connections are tunneled to the server without being decrypted. Hosts are either added explicitly, or learned:
+ * a host is learned once clients have rejected the proxy's impersonated certificate for it a number of times in a row, which is how
+ * apps that pin their server's certificate behave. Tunneling those hosts avoids both the cost of impersonating them and the failing
+ * retries of the pinned apps.
+ * <p/>
+ * A rejection is either a failed handshake, or a certificate_unknown or bad_certificate alert from the client. Apps that check the pin
+ * after the handshake usually close the connection without an alert, so a handshake followed by a close without a request also counts,
+ * but only after more of them in a row, since clients also close unused connections. Learned hosts expire, so a host learned by mistake
+ * is decrypted again later.
+ * <p/>
+ * Explicit entries may be host names, such as {@code api.example.com}, or wildcards such as {@code *.example.com}, which match every
+ * host under example.com (but not example.com itself).
+ */
+public class MitmBypassList {
+    private static final Logger log = LoggerFactory.getLogger(MitmBypassList.class);
+
+    /**
+     * Default number of consecutive client handshake failures after which a host is treated as pinned.
+     */
+    public static final int DEFAULT_PINNING_FAILURE_THRESHOLD = 3;
+
+    /**
+     * Default number of consecutive connections closed after the handshake without a request, after which a host is treated as pinned.
+     */
+    public static final int DEFAULT_CLOSE_WITHOUT_REQUEST_THRESHOLD = 6;
+
+    /**
+     * Default time a learned host is tunneled before connections to it are decrypted again.
+     */
+    public static final long DEFAULT_LEARNED_HOST_EXPIRY_MS = TimeUnit.MILLISECONDS.convert(1, TimeUnit.HOURS);
+
+    private final Set<String> hosts = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    /**
+     * Learned hosts, and the time they expire, as returned by {@link System#currentTimeMillis()}.
+     */
+    private final ConcurrentMap<String, Long> learnedHosts = new ConcurrentHashMap<>();
+
+    private final ConcurrentMap<String, AtomicInteger> handshakeFailures = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, AtomicInteger> closesWithoutRequest = new ConcurrentHashMap<>();
+
+    private volatile int pinningFailureThreshold = DEFAULT_PINNING_FAILURE_THRESHOLD;
+    private volatile int closeWithoutRequestThreshold = DEFAULT_CLOSE_WITHOUT_REQUEST_THRESHOLD;
+    private volatile long learnedHostExpiryMs = DEFAULT_LEARNED_HOST_EXPIRY_MS;
+
+    private final AtomicLong tunneledConnections = new AtomicLong();
+    private final AtomicLong tunneledBytes = new AtomicLong();
+
+    /**
+     * Returns true if connections to the host should be tunneled without being decrypted.
+     */
+    public boolean shouldBypass(String host) {
+        if (host == null) {
+            return false;
+        }
+
+        String normalizedHost = normalize(host);
+        if (hosts.contains(normalizedHost) || isLearned(normalizedHost)) {
+            return true;
+        }
+
+        // check wildcard entries for every parent domain, e.g. *.example.com and *.com for www.example.com
+        int dot = normalizedHost.indexOf('.');
+        while (dot >= 0) {
+            if (hosts.contains('*' + normalizedHost.substring(dot))) {
+                return true;
+            }
+
+            dot = normalizedHost.indexOf('.', dot + 1);
+        }
+
+        return false;
+    }
+
+    /**
+     * Adds a host name, or a wildcard such as {@code *.example.com}, to the list.
+     */
+    public void addHost(String host) {
+        hosts.add(normalize(host));
+    }
+
+    /**
+     * Removes a host from the list, whether it was added explicitly or learned. A learned host will be learned again if clients keep
+     * rejecting the proxy's certificate.
+     */
+    public void removeHost(String host) {
+        String normalizedHost = normalize(host);
+
+        hosts.remove(normalizedHost);
+        learnedHosts.remove(normalizedHost);
+        handshakeFailures.remove(normalizedHost);
+        closesWithoutRequest.remove(normalizedHost);
+    }
+
+    /**
+     * Returns the hosts and wildcards that were added explicitly.
+     */
+    public Set<String> getHosts() {
+        return ImmutableSet.copyOf(hosts);
+    }
+
+    /**
+     * Returns the hosts that were added because clients repeatedly rejected the proxy's certificate, and have not expired yet.
+     */
+    public Set<String> getLearnedHosts() {
+        ImmutableSet.Builder<String> unexpiredHosts = ImmutableSet.builder();
+        for (String host : learnedHosts.keySet()) {
+            if (isLearned(host)) {
+                unexpiredHosts.add(host);
+            }
+        }
+
+        return unexpiredHosts.build();
+    }
+
+    /**
+     * Removes every explicit and learned host.
+     */
+    public void clear() {
+        hosts.clear();
+        learnedHosts.clear();
+        handshakeFailures.clear();
+        closesWithoutRequest.clear();
+    }
+
+    /**
+     * Sets the number of consecutive client handshake failures after which a host is added to the list. Set to 0 to disable learning.
+     */
+    public void setPinningFailureThreshold(int pinningFailureThreshold) {
+        if (pinningFailureThreshold < 0) {
+            throw new IllegalArgumentException("Pinning failure threshold cannot be negative");
+        }
+
+        this.pinningFailureThreshold = pinningFailureThreshold;
+    }
+
+    public int getPinningFailureThreshold() {
+        return pinningFailureThreshold;
+    }
+
+    public boolean isLearningEnabled() {
+        return pinningFailureThreshold > 0;
+    }
+
+    /**
+     * Sets the number of consecutive connections that are closed after the handshake without sending a request, after which a host is
+     * added to the list. Set to 0 to only learn hosts from failed handshakes. Has no effect while learning is disabled.
+     */
+    public void setCloseWithoutRequestThreshold(int closeWithoutRequestThreshold) {
+        if (closeWithoutRequestThreshold < 0) {
+            throw new IllegalArgumentException("Close without request threshold cannot be negative");
+        }
+
+        this.closeWithoutRequestThreshold = closeWithoutRequestThreshold;
+    }
+
+    public int getCloseWithoutRequestThreshold() {
+        return closeWithoutRequestThreshold;
+    }
+
+    /**
+     * Sets the time a learned host is tunneled, after which connections to it are decrypted, and checked for pinning, again. Set to 0
+     * to keep learned hosts until they are removed.
+     */
+    public void setLearnedHostExpiryMs(long learnedHostExpiryMs) {
+        if (learnedHostExpiryMs < 0) {
+            throw new IllegalArgumentException("Learned host expiry cannot be negative");
+        }
+
+        this.learnedHostExpiryMs = learnedHostExpiryMs;
+    }
+
+    public long getLearnedHostExpiryMs() {
+        return learnedHostExpiryMs;
+    }
+
+    /**
+     * Records that a client rejected the proxy's impersonated certificate for the host, by failing the handshake or by sending a
+     * certificate alert.
+     */
+    public void clientHandshakeFailed(String host) {
+        recordRejection(handshakeFailures, host, pinningFailureThreshold, "rejected the impersonated certificate");
+    }
+
+    /**
+     * Records that a client completed the handshake for the host, then closed the connection without sending a request.
+     */
+    public void clientClosedWithoutRequest(String host) {
+        if (pinningFailureThreshold <= 0) {
+            return;
+        }
+
+        recordRejection(closesWithoutRequest, host, closeWithoutRequestThreshold, "closed the connection without a request");
+    }
+
+    /**
+     * Records that a client accepted the proxy's impersonated certificate for the host, and sent a request.
+     */
+    public void clientHandshakeSucceeded(String host) {
+        String normalizedHost = normalize(host);
+
+        handshakeFailures.remove(normalizedHost);
+        closesWithoutRequest.remove(normalizedHost);
+    }
+
+    /**
+     * Records a tunneled connection that has closed.
+     *
+     * @param bytes the number of bytes relayed in both directions
+     */
+    public void tunnelClosed(long bytes) {
+        tunneledConnections.incrementAndGet();
+        tunneledBytes.addAndGet(bytes);
+    }
+
+    /**
+     * Returns the number of connections that were tunneled instead of decrypted.
+     */
+    public long getTunneledConnectionCount() {
+        return tunneledConnections.get();
+    }
+
+    /**
+     * Returns the number of bytes relayed, in both directions, by tunneled connections.
+     */
+    public long getTunneledByteCount() {
+        return tunneledBytes.get();
+    }
+
+    private void recordRejection(ConcurrentMap<String, AtomicInteger> rejections, String host, int threshold, String reason) {
+        if (threshold <= 0) {
+            return;
+        }
+
+        String normalizedHost = normalize(host);
+
+        AtomicInteger count = rejections.get(normalizedHost);
+        if (count == null) {
+            AtomicInteger newCount = new AtomicInteger();
+            count = rejections.putIfAbsent(normalizedHost, newCount);
+            if (count == null) {
+                count = newCount;
+            }
+        }
+
+        if (count.incrementAndGet() >= threshold) {
+            rejections.remove(normalizedHost);
+
+            long expiryMs = learnedHostExpiryMs;
+            long expires = expiryMs > 0 ? System.currentTimeMillis() + expiryMs : Long.MAX_VALUE;
+            if (learnedHosts.put(normalizedHost, expires) == null) {
+                log.info("Clients {} for {} {} times in a row; connections to the host will no longer be decrypted",
+                        reason, normalizedHost, threshold);
+            }
+        }
+    }
+
+    private boolean isLearned(String normalizedHost) {
+        Long expires = learnedHosts.get(normalizedHost);
+        if (expires == null) {
+            return false;
+        }
+
+        if (expires <= System.currentTimeMillis()) {
+            learnedHosts.remove(normalizedHost, expires);
+            return false;
+        }
+
+        return true;
+    }
+
+    private static String normalize(String host) {
+        return host.toLowerCase(Locale.US);
+    }
+}
@@ -0,0 +1,128 @@
+package net.lightbody.bmp.proxy.tunnel;
+
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.ssl.SslHandshakeCompletionEvent;
+
+import javax.net.ssl.SSLException;
+
+/**
+ * Detects clients that reject the proxy's impersonated certificate, and reports them to the {@link MitmBypassList}. Apps that pin the
+ * server's certificate either fail the handshake or send a certificate alert, which count as rejections, or complete the handshake and
+ * close the connection without sending a request, which the list counts separately since clients also close unused connections. A
+ * connection closed before the handshake completed is not reported. The first request on the connection counts as a success. The
+ * handler removes itself once the outcome is known.
+ */
+public class PinningDetectionHandler extends ChannelInboundHandlerAdapter {
+    private final String host;
+    private final MitmBypassList bypassList;
+
+    private boolean handshakeSucceeded;
+    private boolean reported;
+
+    public PinningDetectionHandler(String host, MitmBypassList bypassList) {
+        this.host = host;
+        this.bypassList = bypassList;
+    }
+
+    @Override
+    public void userEventTriggered(ChannelHandlerContext ctx, Object evt) throws Exception {
+        if (evt instanceof SslHandshakeCompletionEvent) {
+            SslHandshakeCompletionEvent handshakeEvent = (SslHandshakeCompletionEvent) evt;
+            if (handshakeEvent.isSuccess()) {
+                handshakeSucceeded = true;
+            } else if (handshakeEvent.cause() instanceof SSLException) {
+                // the SslHandler reports a connection closed during the handshake as a ClosedChannelException, which is not a rejection
+                report(ctx, Outcome.REJECTED);
+            } else {
+                report(ctx, Outcome.NONE);
+            }
+        }
+
+        super.userEventTriggered(ctx, evt);
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        if (handshakeSucceeded && msg instanceof HttpRequest) {
+            report(ctx, Outcome.ACCEPTED);
+        }
+
+        super.channelRead(ctx, msg);
+    }
+
+    @Override
+    public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
+        if (handshakeSucceeded && isCertificateAlert(cause)) {
+            report(ctx, Outcome.REJECTED);
+        }
+
+        super.exceptionCaught(ctx, cause);
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        if (handshakeSucceeded) {
+            report(ctx, Outcome.CLOSED_WITHOUT_REQUEST);
+        }
+
+        super.channelInactive(ctx);
+    }
+
+    /**
+     * Returns true if the exception was caused by a certificate_unknown or bad_certificate alert from the client, which JSSE reports
+     * as an SSLException whose message names the alert.
+     */
+    private static boolean isCertificateAlert(Throwable cause) {
+        while (cause != null) {
+            if (cause instanceof SSLException) {
+                String message = cause.getMessage();
+                if (message != null && (message.contains("certificate_unknown") || message.contains("bad_certificate"))) {
+                    return true;
+                }
+            }
+
+            cause = cause.getCause();
+        }
+
+        return false;
+    }
+
+    private void report(ChannelHandlerContext ctx, Outcome outcome) {
+        if (reported) {
+            return;
+        }
+
+        reported = true;
+
+        switch (outcome) {
+            case ACCEPTED:
+                bypassList.clientHandshakeSucceeded(host);
+                break;
+
+            case REJECTED:
+                bypassList.clientHandshakeFailed(host);
+                break;
+
+            case CLOSED_WITHOUT_REQUEST:
+                bypassList.clientClosedWithoutRequest(host);
+                break;
+
+            case NONE:
+            default:
+                break;
+        }
+
+        if (!ctx.isRemoved()) {
+            ctx.pipeline().remove(this);
+        }
+    }
+
+    private enum Outcome {
+        ACCEPTED,
+        REJECTED,
+        CLOSED_WITHOUT_REQUEST,
+        NONE
+    }
+}
@@ -0,0 +1,363 @@
+package net.lightbody.bmp.proxy.tunnel;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.ChannelPipeline;
+import io.netty.channel.ChannelPromise;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.util.ReferenceCountUtil;
+import net.lightbody.bmp.filters.util.HarCaptureUtil;
+import org.littleshoot.proxy.HostResolver;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Turns a client's connection into a tunnel to the server, without decrypting it. The handler is installed immediately before
+ * LittleProxy's connection handler when an HTTP CONNECT is received, and the filter that installed it returns the
+ * {@link TunnelHttpResponse} placeholder to LittleProxy. When the placeholder is written, the handler discards it and removes
+ * LittleProxy's HTTP codec from the pipeline. Once the connection to the server is established, the handler answers the CONNECT and
+ * relays bytes in both directions, reading from each side only after the previous read has been written to the other side.
+ * <p/>
+ * LittleProxy's connection handler never sees the tunneled bytes, but still sees the idle and close events, so idle tunnels are closed
+ * by LittleProxy's idle timeout as usual.
+ */
+public class TunnelHandler extends ChannelDuplexHandler {
+    private static final Logger log = LoggerFactory.getLogger(TunnelHandler.class);
+
+    /**
+     * The name of LittleProxy's ClientToProxyConnection handler in the client-to-proxy pipeline.
+     */
+    public static final String CLIENT_CONNECTION_HANDLER_NAME = "handler";
+
+    /**
+     * LittleProxy's HTTP handlers in the client-to-proxy pipeline, which are removed once the connection becomes a tunnel.
+     */
+    private static final String[] HTTP_HANDLER_NAMES = {"encoder", "decoder", "inflater", "aggregator", "requestReadMonitor", "responseWrittenMonitor"};
+
+    private static final byte[] CONNECTION_ESTABLISHED = "HTTP/1.1 200 Connection established\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] BAD_GATEWAY = "HTTP/1.1 502 Bad Gateway\r\nContent-Length: 0\r\nConnection: close\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+
+    /**
+     * Resolves server addresses, which may block, off the event loop.
+     */
+    private static final ExecutorService resolverExecutor = Executors.newCachedThreadPool(new ThreadFactoryBuilder()
+            .setDaemon(true)
+            .setNameFormat("tunnel-resolver-%d")
+            .build());
+
+    private final TunnelHttpResponse placeholder;
+    private final String host;
+    private final int port;
+    private final HostResolver resolver;
+    private final int connectTimeoutMs;
+    private final MitmBypassList bypassList;
+
+    private final long startedNanos = System.nanoTime();
+
+    private volatile ChannelHandlerContext ctx;
+
+    private final ArrayDeque<Object> pendingReads = new ArrayDeque<>();
+    private Channel serverChannel;
+    private boolean httpHandlersRemoved;
+    private boolean established;
+    private boolean closed;
+    private long bytesSent;
+    private long bytesReceived;
+
+    /**
+     * @param placeholder the placeholder the filter returns to LittleProxy as the response to the CONNECT
+     * @param host host to connect to
+     * @param port port to connect to
+     * @param resolver resolver for the host's address
+     * @param connectTimeoutMs connection timeout, or 0 to use the default
+     * @param bypassList list to record the tunnel's statistics in
+     */
+    public TunnelHandler(TunnelHttpResponse placeholder, String host, int port, HostResolver resolver, int connectTimeoutMs, MitmBypassList bypassList) {
+        this.placeholder = placeholder;
+        this.host = host;
+        this.port = port;
+        this.resolver = resolver;
+        this.connectTimeoutMs = connectTimeoutMs;
+        this.bypassList = bypassList;
+    }
+
+    @Override
+    public void handlerAdded(final ChannelHandlerContext ctx) throws Exception {
+        this.ctx = ctx;
+
+        // reads resume once the server connection is established, and are paced by writes to the server after that
+        ctx.channel().config().setAutoRead(false);
+
+        ctx.channel().closeFuture().addListener(new ChannelFutureListener() {
+            @Override
+            public void operationComplete(ChannelFuture future) throws Exception {
+                finish();
+            }
+        });
+
+        resolverExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                resolveAndConnect();
+            }
+        });
+    }
+
+    @Override
+    public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+        if (msg == placeholder) {
+            ReferenceCountUtil.release(msg);
+            promise.setSuccess();
+
+            // the codec is in the middle of decoding the CONNECT, so it cannot be removed until the current read completes
+            ctx.executor().execute(new Runnable() {
+                @Override
+                public void run() {
+                    removeHttpHandlers();
+                }
+            });
+        } else {
+            ctx.write(msg, promise);
+        }
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        if (!(msg instanceof ByteBuf)) {
+            // the rest of the CONNECT (such as its empty last content), decoded before the codec was removed
+            log.debug("Discarding {} received on tunnel to {}:{}", msg.getClass().getSimpleName(), host, port);
+            ReferenceCountUtil.release(msg);
+            return;
+        }
+
+        if (established) {
+            relayToServer((ByteBuf) msg);
+        } else {
+            pendingReads.add(msg);
+        }
+    }
+
+    @Override
+    public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
+        log.debug("Error on client side of tunnel to {}:{}", host, port, cause);
+
+        closeOnFlush(ctx.channel());
+    }
+
+    private void resolveAndConnect() {
+        final InetSocketAddress address;
+        try {
+            long dnsStartedNanos = System.nanoTime();
+            address = resolver.resolve(host, port);
+            placeholder.setDnsTimeNanos(System.nanoTime() - dnsStartedNanos);
+            placeholder.setServerAddress(address.getAddress());
+        } catch (UnknownHostException | RuntimeException e) {
+            log.debug("Unable to resolve {} for tunnel", host, e);
+
+            placeholder.setError(HarCaptureUtil.getResolutionFailedErrorMessage(host + ':' + port));
+            ctx.executor().execute(new Runnable() {
+                @Override
+                public void run() {
+                    fail();
+                }
+            });
+            return;
+        }
+
+        ctx.executor().execute(new Runnable() {
+            @Override
+            public void run() {
+                connect(address);
+            }
+        });
+    }
+
+    private void connect(InetSocketAddress address) {
+        if (closed) {
+            return;
+        }
+
+        Bootstrap bootstrap = new Bootstrap()
+                .group(ctx.channel().eventLoop())
+                .channel(NioSocketChannel.class)
+                .option(ChannelOption.AUTO_READ, false)
+                .handler(new ServerHandler());
+
+        if (connectTimeoutMs > 0) {
+            bootstrap.option(ChannelOption.CONNECT_TIMEOUT_MILLIS, connectTimeoutMs);
+        }
+
+        final long connectStartedNanos = System.nanoTime();
+        ChannelFuture connectFuture = bootstrap.connect(address);
+        serverChannel = connectFuture.channel();
+
+        connectFuture.addListener(new ChannelFutureListener() {
+            @Override
+            public void operationComplete(ChannelFuture future) throws Exception {
+                if (future.isSuccess()) {
+                    placeholder.setConnectTimeNanos(System.nanoTime() - connectStartedNanos);
+                    connected();
+                } else {
+                    log.debug("Unable to connect to {}:{} for tunnel", host, port, future.cause());
+
+                    placeholder.setError(HarCaptureUtil.getConnectionFailedErrorMessage());
+                    fail();
+                }
+            }
+        });
+    }
+
+    private void removeHttpHandlers() {
+        ChannelPipeline pipeline = ctx.pipeline();
+        for (String name : HTTP_HANDLER_NAMES) {
+            if (pipeline.get(name) != null) {
+                pipeline.remove(name);
+            }
+        }
+
+        httpHandlersRemoved = true;
+
+        if (serverChannel != null && serverChannel.isActive()) {
+            connected();
+        }
+    }
+
+    private void connected() {
+        // the CONNECT can only be answered once LittleProxy's codec is gone, since the answer is written as raw bytes
+        if (established || closed || !httpHandlersRemoved) {
+            return;
+        }
+
+        if (!ctx.channel().isActive()) {
+            serverChannel.close();
+            return;
+        }
+
+        established = true;
+
+        ctx.writeAndFlush(Unpooled.wrappedBuffer(CONNECTION_ESTABLISHED));
+
+        Object pendingRead;
+        boolean relayedPendingRead = false;
+        while ((pendingRead = pendingReads.poll()) != null) {
+            relayToServer((ByteBuf) pendingRead);
+            relayedPendingRead = true;
+        }
+
+        if (!relayedPendingRead) {
+            ctx.read();
+        }
+
+        serverChannel.read();
+    }
+
+    private void fail() {
+        if (closed) {
+            return;
+        }
+
+        if (httpHandlersRemoved) {
+            ctx.writeAndFlush(Unpooled.wrappedBuffer(BAD_GATEWAY)).addListener(ChannelFutureListener.CLOSE);
+        } else {
+            ctx.close();
+        }
+    }
+
+    private void relayToServer(final ByteBuf buf) {
+        bytesSent += buf.readableBytes();
+
+        serverChannel.writeAndFlush(buf).addListener(new ChannelFutureListener() {
+            @Override
+            public void operationComplete(ChannelFuture future) throws Exception {
+                if (future.isSuccess()) {
+                    ctx.read();
+                } else {
+                    future.channel().close();
+                    closeOnFlush(ctx.channel());
+                }
+            }
+        });
+    }
+
+    private void finish() {
+        if (closed) {
+            return;
+        }
+
+        closed = true;
+
+        Object pendingRead;
+        while ((pendingRead = pendingReads.poll()) != null) {
+            ReferenceCountUtil.release(pendingRead);
+        }
+
+        if (serverChannel != null) {
+            closeOnFlush(serverChannel);
+        }
+
+        bypassList.tunnelClosed(bytesSent + bytesReceived);
+
+        try {
+            placeholder.fireTunnelClosed(System.nanoTime() - startedNanos, bytesSent, bytesReceived);
+        } catch (RuntimeException e) {
+            log.warn("Error notifying listeners of closed tunnel", e);
+        }
+    }
+
+    private static void closeOnFlush(Channel channel) {
+        if (channel.isActive()) {
+            channel.writeAndFlush(Unpooled.EMPTY_BUFFER).addListener(ChannelFutureListener.CLOSE);
+        }
+    }
+
+    /**
+     * Relays bytes from the server to the client.
+     */
+    private class ServerHandler extends ChannelInboundHandlerAdapter {
+        @Override
+        public void channelRead(final ChannelHandlerContext serverCtx, Object msg) throws Exception {
+            ByteBuf buf = (ByteBuf) msg;
+            bytesReceived += buf.readableBytes();
+
+            ctx.writeAndFlush(buf).addListener(new ChannelFutureListener() {
+                @Override
+                public void operationComplete(ChannelFuture future) throws Exception {
+                    if (future.isSuccess()) {
+                        serverCtx.read();
+                    } else {
+                        future.channel().close();
+                        closeOnFlush(serverCtx.channel());
+                    }
+                }
+            });
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext serverCtx) throws Exception {
+            closeOnFlush(ctx.channel());
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext serverCtx, Throwable cause) throws Exception {
+            log.debug("Error on server side of tunnel to {}:{}", host, port, cause);
+
+            serverCtx.close();
+        }
+    }
+}
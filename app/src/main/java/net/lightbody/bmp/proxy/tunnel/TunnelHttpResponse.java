@@ -0,0 +1,123 @@
+package net.lightbody.bmp.proxy.tunnel;
+
+import io.netty.handler.codec.http.DefaultHttpResponse;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpVersion;
+
+import java.net.InetAddress;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Placeholder returned to LittleProxy in place of the response to an HTTP CONNECT that is tunneled without being decrypted. The
+ * placeholder is never sent to the client: the {@link TunnelHandler} discards it, connects to the server, and answers the CONNECT
+ * itself. Filters that need to record the tunnel, such as the HAR capture filter, can register a {@link Listener}.
+ */
+public class TunnelHttpResponse extends DefaultHttpResponse {
+    /**
+     * Notified on the client's event loop once the tunnel has closed.
+     */
+    public interface Listener {
+        void tunnelClosed(TunnelHttpResponse tunnel);
+    }
+
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+
+    private final Date startedDateTime = new Date();
+
+    private volatile long dnsTimeNanos = -1;
+    private volatile long connectTimeNanos = -1;
+    private volatile long durationNanos = -1;
+    private volatile long bytesSent;
+    private volatile long bytesReceived;
+    private volatile InetAddress serverAddress;
+    private volatile String error;
+
+    public TunnelHttpResponse(HttpVersion version) {
+        super(version, HttpResponseStatus.OK);
+    }
+
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    public Date getStartedDateTime() {
+        return startedDateTime;
+    }
+
+    /**
+     * Returns the time spent resolving the server's address, or -1 if resolution did not complete.
+     */
+    public long getDnsTimeNanos() {
+        return dnsTimeNanos;
+    }
+
+    /**
+     * Returns the time spent connecting to the server, or -1 if the connection was not established.
+     */
+    public long getConnectTimeNanos() {
+        return connectTimeNanos;
+    }
+
+    /**
+     * Returns the time from the CONNECT to the tunnel closing, or -1 if the tunnel has not closed.
+     */
+    public long getDurationNanos() {
+        return durationNanos;
+    }
+
+    /**
+     * Returns the number of bytes relayed from the client to the server.
+     */
+    public long getBytesSent() {
+        return bytesSent;
+    }
+
+    /**
+     * Returns the number of bytes relayed from the server to the client.
+     */
+    public long getBytesReceived() {
+        return bytesReceived;
+    }
+
+    /**
+     * Returns the address of the server, or null if it was not resolved.
+     */
+    public InetAddress getServerAddress() {
+        return serverAddress;
+    }
+
+    /**
+     * Returns a description of the error that prevented the tunnel from being established, or null if it was established.
+     */
+    public String getError() {
+        return error;
+    }
+
+    void setDnsTimeNanos(long dnsTimeNanos) {
+        this.dnsTimeNanos = dnsTimeNanos;
+    }
+
+    void setConnectTimeNanos(long connectTimeNanos) {
+        this.connectTimeNanos = connectTimeNanos;
+    }
+
+    void setServerAddress(InetAddress serverAddress) {
+        this.serverAddress = serverAddress;
+    }
+
+    void setError(String error) {
+        this.error = error;
+    }
+
+    void fireTunnelClosed(long durationNanos, long bytesSent, long bytesReceived) {
+        this.durationNanos = durationNanos;
+        this.bytesSent = bytesSent;
+        this.bytesReceived = bytesReceived;
+
+        for (Listener listener : listeners) {
+            listener.tunnelClosed(this);
+        }
+    }
+}
@@ -1,5 +1,6 @@
 package net.lightbody.bmp.util;
 
+import com.google.common.collect.ImmutableMap;
 import com.google.common.io.BaseEncoding;
 import com.google.common.net.HostAndPort;
 import com.google.common.net.MediaType;
@@ -16,9 +17,11 @@ import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.net.URI;
+import java.net.URLConnection;
 import java.net.URISyntaxException;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
+import java.util.Locale;
 import java.util.Map;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.Inflater;
@@ -61,6 +64,32 @@ public class BrowserMobHttpUtil {
      */
     public static final int DECOMPRESS_BUFFER_SIZE = 16192;
 
+    /**
+     * Content types for common web file extensions that are missing from, or outdated in, the platform's file name map.
+     */
+    private static final Map<String, String> CONTENT_TYPES_BY_EXTENSION = ImmutableMap.<String, String>builder()
+            .put("html", "text/html; charset=utf-8")
+            .put("htm", "text/html; charset=utf-8")
+            .put("css", "text/css; charset=utf-8")
+            .put("js", "application/javascript; charset=utf-8")
+            .put("json", "application/json; charset=utf-8")
+            .put("xml", "application/xml; charset=utf-8")
+            .put("txt", "text/plain; charset=utf-8")
+            .put("svg", "image/svg+xml")
+            .put("png", "image/png")
+            .put("jpg", "image/jpeg")
+            .put("jpeg", "image/jpeg")
+            .put("gif", "image/gif")
+            .put("webp", "image/webp")
+            .put("ico", "image/x-icon")
+            .put("woff", "font/woff")
+            .put("woff2", "font/woff2")
+            .put("mp4", "video/mp4")
+            .put("webm", "video/webm")
+            .put("mp3", "audio/mpeg")
+            .put("wasm", "application/wasm")
+            .build();
+
     /**
      * Returns the size of the headers, including the 2 CRLFs at the end of the header block.
      *
@@ -245,6 +274,30 @@ public class BrowserMobHttpUtil {
         }
     }
 
+    /**
+     * Infers the Content-Type of a file from its extension. Common web file types are recognized directly; other extensions are looked
+     * up in the platform's file name map.
+     *
+     * @param fileName name of the file
+     * @return the inferred Content-Type, or {@link #UNKNOWN_CONTENT_TYPE} if the extension is not recognized
+     */
+    public static String guessContentType(String fileName) {
+        int extensionStart = fileName.lastIndexOf('.');
+        if (extensionStart >= 0) {
+            String contentType = CONTENT_TYPES_BY_EXTENSION.get(fileName.substring(extensionStart + 1).toLowerCase(Locale.US));
+            if (contentType != null) {
+                return contentType;
+            }
+        }
+
+        String contentType = URLConnection.guessContentTypeFromName(fileName);
+        if (contentType != null) {
+            return contentType;
+        } else {
+            return UNKNOWN_CONTENT_TYPE;
+        }
+    }
+
     /**
      * Returns true if the specified response is an HTTP redirect response, i.e. a 300, 301, 302, 303, or 307.
      *
@@ -0,0 +1,186 @@
+package net.lightbody.bmp.util;
+
+import java.util.Arrays;
+
+/**
+ * Streaming quantile sketch for non-negative values such as timings in milliseconds. Values are counted in logarithmically sized
+ * buckets, so any quantile is returned with a bounded relative error rather than an absolute one: with the default accuracy of 2%,
+ * the p95 of a 40 ms wait is reported as 40 ms &plusmn; 0.8 ms, and the p95 of a 10 s wait as 10 s &plusmn; 200 ms.
+ * <p/>
+ * Adding a value and reading a quantile do not depend on the number of values added. The memory used grows only with the range of
+ * the values: values between 1 ms and one hour fit in about 380 buckets. Values of zero are counted separately.
+ * <p/>
+ * This class is not thread-safe.
+ */
+public class QuantileSketch {
+    public static final double DEFAULT_RELATIVE_ACCURACY = 0.02;
+
+    private final double relativeAccuracy;
+    private final double gamma;
+    private final double logGamma;
+
+    /**
+     * Counts of the buckets from {@link #minIndex} on. Bucket i holds the values in (gamma^(i-1), gamma^i].
+     */
+    private int[] counts = new int[0];
+    private int minIndex;
+
+    private long zeroCount;
+    private long count;
+    private long min = Long.MAX_VALUE;
+    private long max = Long.MIN_VALUE;
+    private double sum;
+
+    public QuantileSketch() {
+        this(DEFAULT_RELATIVE_ACCURACY);
+    }
+
+    /**
+     * @param relativeAccuracy the maximum relative error of the returned quantiles, between 0 and 1 exclusive
+     */
+    public QuantileSketch(double relativeAccuracy) {
+        if (relativeAccuracy <= 0 || relativeAccuracy >= 1) {
+            throw new IllegalArgumentException("Relative accuracy must be between 0 and 1: " + relativeAccuracy);
+        }
+
+        this.relativeAccuracy = relativeAccuracy;
+        this.gamma = (1 + relativeAccuracy) / (1 - relativeAccuracy);
+        this.logGamma = Math.log(gamma);
+    }
+
+    /**
+     * Adds a value to the sketch. Negative values, which the HAR spec uses for timings that do not apply, are ignored.
+     */
+    public void add(long value) {
+        if (value < 0) {
+            return;
+        }
+
+        if (value == 0) {
+            zeroCount++;
+        } else {
+            int index = (int) Math.ceil(Math.log(value) / logGamma);
+            ensureBucket(index);
+            counts[index - minIndex]++;
+        }
+
+        count++;
+        sum += value;
+        min = Math.min(min, value);
+        max = Math.max(max, value);
+    }
+
+    /**
+     * Adds every value of another sketch with the same accuracy to this one.
+     */
+    public void merge(QuantileSketch other) {
+        if (other.relativeAccuracy != relativeAccuracy) {
+            throw new IllegalArgumentException("Cannot merge sketches with different accuracies");
+        }
+        if (other.count == 0) {
+            return;
+        }
+
+        for (int i = 0; i < other.counts.length; i++) {
+            if (other.counts[i] != 0) {
+                int index = other.minIndex + i;
+                ensureBucket(index);
+                counts[index - minIndex] += other.counts[i];
+            }
+        }
+
+        zeroCount += other.zeroCount;
+        count += other.count;
+        sum += other.sum;
+        min = Math.min(min, other.min);
+        max = Math.max(max, other.max);
+    }
+
+    public void clear() {
+        counts = new int[0];
+        minIndex = 0;
+        zeroCount = 0;
+        count = 0;
+        sum = 0;
+        min = Long.MAX_VALUE;
+        max = Long.MIN_VALUE;
+    }
+
+    /**
+     * @param quantile the quantile to return, between 0 and 1; for example 0.95 for the p95
+     * @return the approximate value at the quantile, or -1 if no values have been added
+     */
+    public long getQuantile(double quantile) {
+        if (quantile < 0 || quantile > 1) {
+            throw new IllegalArgumentException("Quantile must be between 0 and 1: " + quantile);
+        }
+        if (count == 0) {
+            return -1;
+        }
+
+        long rank = (long) (quantile * (count - 1));
+        if (rank < zeroCount) {
+            return 0;
+        }
+
+        long seen = zeroCount;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen > rank) {
+                // the midpoint of the bucket, which is within the relative accuracy of every value in it
+                double value = 2 * Math.pow(gamma, minIndex + i) / (gamma + 1);
+                return Math.max(min, Math.min(max, Math.round(value)));
+            }
+        }
+
+        return max;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * @return the smallest value added, or -1 if no values have been added
+     */
+    public long getMin() {
+        return count == 0 ? -1 : min;
+    }
+
+    /**
+     * @return the largest value added, or -1 if no values have been added
+     */
+    public long getMax() {
+        return count == 0 ? -1 : max;
+    }
+
+    /**
+     * @return the mean of the values added, or -1 if no values have been added
+     */
+    public double getMean() {
+        return count == 0 ? -1 : sum / count;
+    }
+
+    public double getRelativeAccuracy() {
+        return relativeAccuracy;
+    }
+
+    private void ensureBucket(int index) {
+        if (counts.length == 0) {
+            counts = new int[16];
+            minIndex = index;
+            return;
+        }
+
+        if (index < minIndex) {
+            // grow downwards, leaving some room for smaller values still
+            int newMinIndex = Math.min(index, minIndex - counts.length / 2);
+            int[] newCounts = new int[counts.length + (minIndex - newMinIndex)];
+            System.arraycopy(counts, 0, newCounts, minIndex - newMinIndex, counts.length);
+            counts = newCounts;
+            minIndex = newMinIndex;
+        } else if (index >= minIndex + counts.length) {
+            counts = Arrays.copyOf(counts, Math.max(index - minIndex + 1, counts.length + counts.length / 2));
+        }
+    }
+}
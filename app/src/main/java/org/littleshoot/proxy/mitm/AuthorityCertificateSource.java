@@ -0,0 +1,41 @@
+package org.littleshoot.proxy.mitm;
+
+import java.io.File;
+
+import net.lightbody.bmp.mitm.CertificateAndKey;
+import net.lightbody.bmp.mitm.CertificateAndKeySource;
+import net.lightbody.bmp.mitm.KeyStoreFileCertificateSource;
+import net.lightbody.bmp.mitm.exception.CertificateSourceException;
+
+/**
+ * {@link CertificateAndKeySource} for the root certificate of an
+ * {@link Authority}, so that any MITM engine can sign with the same
+ * Certificate Authority that {@link BouncyCastleSslEngineSource} creates and
+ * exports for installation on devices. The Certificate Authority key store is
+ * created on first use if it doesn't exist yet.
+ */
+public class AuthorityCertificateSource implements CertificateAndKeySource {
+
+    private static final String KEY_STORE_FILE_EXTENSION = ".p12";
+
+    private final Authority authority;
+
+    public AuthorityCertificateSource(Authority authority) {
+        this.authority = authority;
+    }
+
+    @Override
+    public CertificateAndKey load() {
+        try {
+            BouncyCastleSslEngineSource.initializeKeyStore(authority);
+        } catch (Exception e) {
+            throw new CertificateSourceException(
+                    "Unable to create root certificate authority key store", e);
+        }
+
+        File keyStoreFile = authority.aliasFile(KEY_STORE_FILE_EXTENSION);
+        return new KeyStoreFileCertificateSource(
+                BouncyCastleSslEngineSource.getKeyStoreType(), keyStoreFile,
+                authority.alias(), new String(authority.password())).load();
+    }
+}
@@ -12,10 +12,14 @@ import java.io.Writer;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.security.GeneralSecurityException;
+import java.security.KeyPair;
 import java.security.KeyStore;
 import java.security.PrivateKey;
 import java.security.cert.Certificate;
 import java.security.cert.CertificateEncodingException;
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.concurrent.Callable;
@@ -27,6 +31,20 @@ import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLEngine;
 import javax.net.ssl.SSLParameters;
 import javax.net.ssl.TrustManager;
+import javax.net.ssl.TrustManagerFactory;
+import javax.net.ssl.X509TrustManager;
+
+import net.lightbody.bmp.mitm.CertificateAndKey;
+import net.lightbody.bmp.mitm.CertificateForgingExecutor;
+import net.lightbody.bmp.mitm.DiskCertificateCache;
+import net.lightbody.bmp.mitm.TrustSource;
+import net.lightbody.bmp.mitm.keys.KeyPairProvider;
+import net.lightbody.bmp.mitm.keys.PooledKeyPairProvider;
+import net.lightbody.bmp.mitm.keys.RSAKeyGenerator;
+import net.lightbody.bmp.mitm.stats.CertificateGenerationStatistics;
+import net.lightbody.bmp.mitm.trustmanager.CachingTrustManager;
+import net.lightbody.bmp.mitm.trustmanager.CertificateChainCache;
+import net.lightbody.bmp.mitm.util.SslUtil;
 
 import org.apache.commons.io.IOUtils;
 import org.bouncycastle.openssl.jcajce.JcaPEMWriter;
@@ -66,9 +84,33 @@ public class BouncyCastleSslEngineSource implements SslEngineSource {
 
     private static final String KEY_STORE_FILE_EXTENSION = ".p12";
 
+    /**
+     * Suffix of the directory, next to the root certificate key store, in
+     * which impersonated server certificates are persisted by default.
+     */
+    private static final String CERTIFICATE_CACHE_DIRECTORY_SUFFIX = "-certs";
+
     private final Authority authority;
 
     private final boolean trustAllServers;
+
+    /**
+     * The CAs that upstream servers' certificates must chain to, or null to
+     * trust the CAs trusted by the JVM and the Certificate Authority itself.
+     * Ignored when all servers are trusted.
+     */
+    private final TrustSource trustSource;
+
+    private final CertificateChainCache certificateChainCache = new CertificateChainCache();
+
+    private final CertificateForgingExecutor forgingExecutor = new CertificateForgingExecutor();
+
+    /**
+     * When true, the certificate impersonating an upstream server is forged
+     * as soon as the server's certificate chain has been checked, rather
+     * than when the client's connection needs it.
+     */
+    private volatile boolean prefetchFromUpstreamChains = true;
     private final boolean sendCerts;
 
     private SSLContext sslContext;
@@ -79,6 +121,23 @@ public class BouncyCastleSslEngineSource implements SslEngineSource {
 
     private Cache<String, SSLContext> serverSSLContexts;
 
+    private final DiskCertificateCache diskCertificateCache;
+
+    /**
+     * Supplies the key pairs of the dynamic server certificates. By default,
+     * key pairs are pre-generated in the background, so a handshake with a
+     * new host only has to sign a certificate. The default pool is only
+     * created when the first dynamic certificate is needed, so it is not
+     * started for sources that are given another provider.
+     */
+    private volatile KeyPairProvider serverKeyPairProvider;
+
+    private KeyPairProvider defaultServerKeyPairProvider;
+
+    private volatile boolean closed;
+
+    private final CertificateGenerationStatistics statistics = new CertificateGenerationStatistics();
+
     /**
      * Creates a SSL engine source create a Certificate Authority if needed and
      * initializes a SSL context. Exceptions will be thrown to let the manager
@@ -104,20 +163,66 @@ public class BouncyCastleSslEngineSource implements SslEngineSource {
             Cache<String, SSLContext> sslContexts)
             throws GeneralSecurityException, OperatorCreationException,
             RootCertificateException, IOException {
+        this(authority, trustAllServers, sendCerts, sslContexts, null);
+    }
+
+    /**
+     * Creates a SSL engine source create a Certificate Authority if needed and
+     * initializes a SSL context. Exceptions will be thrown to let the manager
+     * decide how to react. Don't install a MITM manager in the proxy in case of
+     * a failure.
+     * 
+     * @param authority
+     *            a parameter object to provide personal informations of the
+     *            Certificate Authority and the dynamic certificates.
+     * 
+     * @param trustAllServers
+     * 
+     * @param sendCerts
+     * 
+     * @param sslContexts
+     *            a cache to store dynamically created server certificates.
+     *            It's save to give a null cache to prevent memory or locking
+     *            issues.
+     * 
+     * @param diskCertificateCache
+     *            persists dynamically created server certificates, so they
+     *            survive cache expiry and restarts. May be null, in which
+     *            case certificates are only kept in memory.
+     */
+    public BouncyCastleSslEngineSource(Authority authority,
+            boolean trustAllServers, boolean sendCerts,
+            Cache<String, SSLContext> sslContexts,
+            DiskCertificateCache diskCertificateCache)
+            throws GeneralSecurityException, OperatorCreationException,
+            RootCertificateException, IOException {
+        this(authority, trustAllServers, null, sendCerts, sslContexts,
+                diskCertificateCache);
+    }
+
+    private BouncyCastleSslEngineSource(Authority authority,
+            boolean trustAllServers, TrustSource trustSource,
+            boolean sendCerts, Cache<String, SSLContext> sslContexts,
+            DiskCertificateCache diskCertificateCache)
+            throws GeneralSecurityException, OperatorCreationException,
+            RootCertificateException, IOException {
         this.authority = authority;
         this.trustAllServers = trustAllServers;
+        this.trustSource = trustSource;
         this.sendCerts = sendCerts;
         this.serverSSLContexts = sslContexts;
-        initializeKeyStore();
+        this.diskCertificateCache = diskCertificateCache;
+        initializeKeyStore(authority);
         initializeSSLContext();
     }
 
     /**
      * Creates a SSL engine source create a Certificate Authority if needed and
      * initializes a SSL context. This constructor defaults a cache to store
-     * dynamically created server certificates. Exceptions will be thrown to let
-     * the manager decide how to react. Don't install a MITM manager in the
-     * proxy in case of a failure.
+     * dynamically created server certificates, and persists them in a
+     * directory next to the root certificate key store. Exceptions will be
+     * thrown to let the manager decide how to react. Don't install a MITM
+     * manager in the proxy in case of a failure.
      * 
      * @param authority
      *            a parameter object to provide personal informations of the
@@ -132,16 +237,52 @@ public class BouncyCastleSslEngineSource implements SslEngineSource {
             throws RootCertificateException, GeneralSecurityException,
             IOException, OperatorCreationException {
         this(authority, trustAllServers, sendCerts,
-                initDefaultCertificateCache());
+                initDefaultCertificateCache(),
+                initDefaultDiskCertificateCache(authority));
+    }
+
+    /**
+     * Creates a SSL engine source that validates upstream servers against
+     * the CAs of a {@link TrustSource}, with the same default caches as
+     * {@link #BouncyCastleSslEngineSource(Authority, boolean, boolean)}.
+     * 
+     * @param authority
+     *            a parameter object to provide personal informations of the
+     *            Certificate Authority and the dynamic certificates.
+     * 
+     * @param trustSource
+     *            the CAs that upstream servers' certificates must chain to,
+     *            or null to trust all servers.
+     * 
+     * @param sendCerts
+     */
+    public BouncyCastleSslEngineSource(Authority authority,
+            TrustSource trustSource, boolean sendCerts)
+            throws RootCertificateException, GeneralSecurityException,
+            IOException, OperatorCreationException {
+        this(authority, trustSource == null, trustSource, sendCerts,
+                initDefaultCertificateCache(),
+                initDefaultDiskCertificateCache(authority));
     }
 
     private static Cache<String, SSLContext> initDefaultCertificateCache() {
+        // server certificates are short-lived, so even frequently used
+        // contexts are periodically reloaded. reloading from the disk cache is
+        // cheap, and the disk cache renews certificates before they expire.
         return CacheBuilder.newBuilder() //
                 .expireAfterAccess(5, TimeUnit.MINUTES) //
+                .expireAfterWrite(1, TimeUnit.HOURS) //
                 .concurrencyLevel(16) //
                 .build();
     }
 
+    private static DiskCertificateCache initDefaultDiskCertificateCache(
+            Authority authority) {
+        return new DiskCertificateCache(
+                authority.aliasFile(CERTIFICATE_CACHE_DIRECTORY_SUFFIX),
+                authority.password());
+    }
+
     private void filterWeakCipherSuites(SSLEngine sslEngine) {
         List<String> ciphers = new LinkedList<String>();
         for (String each : sslEngine.getEnabledCipherSuites()) {
@@ -180,6 +321,7 @@ public class BouncyCastleSslEngineSource implements SslEngineSource {
         if (!tryHostNameVerificationJava7(sslEngine)) {
             LOG.debug("Host Name Verification is not supported, causes insecure HTTPS connection");
         }
+        SslUtil.enableSessionTickets(sslEngine);
         filterWeakCipherSuites(sslEngine);
         return sslEngine;
     }
@@ -209,8 +351,17 @@ public class BouncyCastleSslEngineSource implements SslEngineSource {
         return false;
     }
 
-    private void initializeKeyStore() throws RootCertificateException,
-            GeneralSecurityException, OperatorCreationException, IOException {
+    /**
+     * Creates the Certificate Authority key store and its PEM export, unless
+     * both already exist. Other MITM engines use this to share the same root
+     * certificate.
+     * 
+     * @param authority
+     *            the Certificate Authority to create
+     */
+    public static void initializeKeyStore(Authority authority)
+            throws RootCertificateException, GeneralSecurityException,
+            OperatorCreationException, IOException {
         if (authority.aliasFile(KEY_STORE_FILE_EXTENSION).exists()
                 && authority.aliasFile(".pem").exists()) {
             return;
@@ -241,13 +392,22 @@ public class BouncyCastleSslEngineSource implements SslEngineSource {
         caPrivKey = (PrivateKey) ks.getKey(authority.alias(),
                 authority.password());
 
-        TrustManager[] trustManagers;
+        X509TrustManager trustManager;
         if (trustAllServers) {
-            trustManagers = InsecureTrustManagerFactory.INSTANCE
-                    .getTrustManagers();
+            trustManager = (X509TrustManager) InsecureTrustManagerFactory.INSTANCE
+                    .getTrustManagers()[0];
+        } else if (trustSource != null) {
+            trustManager = new CachingTrustManager(
+                    newTrustManager(trustSource.getTrustedCAs()),
+                    certificateChainCache);
         } else {
-            trustManagers = new TrustManager[] { new MergeTrustManager(ks) };
+            // validating a chain means building its path to a trusted root,
+            // so trusted chains are cached for servers that are connected to again
+            trustManager = new CachingTrustManager(new MergeTrustManager(ks),
+                    certificateChainCache);
         }
+        TrustManager[] trustManagers = { new PrefetchingTrustManager(
+                trustManager) };
 
         KeyManager[] keyManagers;
         if (sendCerts) {
@@ -258,6 +418,9 @@ public class BouncyCastleSslEngineSource implements SslEngineSource {
 
         sslContext = CertificateHelper.newClientContext(keyManagers,
                 trustManagers);
+        // upstream sessions are cached by host and port, so repeated
+        // connections to the same server resume the session
+        SslUtil.configureSessionCache(sslContext);
         SSLEngine sslEngine = sslContext.createSSLEngine();
         if (!tryHostNameVerificationJava7(sslEngine)) {
             LOG.warn("Host Name Verification is not supported, causes insecure HTTPS connection to upstream servers.");
@@ -312,19 +475,69 @@ public class BouncyCastleSslEngineSource implements SslEngineSource {
                     "Error, 'subjectAlternativeNames' is not allowed to be null!");
         }
 
-        SSLContext ctx;
-        if (serverSSLContexts == null) {
-            ctx = createServerContext(commonName, subjectAlternativeNames);
-        } else {
-            ctx = serverSSLContexts.get(commonName, new Callable<SSLContext>() {
-                @Override
-                public SSLContext call() throws Exception {
-                    return createServerContext(commonName,
-                            subjectAlternativeNames);
-                }
-            });
+        SSLContext ctx = null;
+        if (serverSSLContexts != null) {
+            ctx = serverSSLContexts.getIfPresent(commonName);
+        }
+        if (ctx == null) {
+            // forged off the calling Netty thread, and only once for
+            // connections that need the same certificate at the same time
+            ctx = forgingExecutor.forge(commonName,
+                    newForge(commonName, subjectAlternativeNames));
+        }
+        SSLEngine sslEngine = ctx.createSSLEngine();
+        SslUtil.enableSessionTickets(sslEngine);
+        return sslEngine;
+    }
+
+    /**
+     * Starts forging the certificate for the host in the background, unless
+     * it is cached or already being forged. A later call to
+     * {@link #createCertForHost(String, SubjectAlternativeNameHolder)} with
+     * the same common name waits for the result instead of forging again.
+     */
+    public void prefetchCertForHost(String commonName,
+            SubjectAlternativeNameHolder subjectAlternativeNames) {
+        if (serverSSLContexts != null
+                && serverSSLContexts.getIfPresent(commonName) != null) {
+            return;
         }
-        return ctx.createSSLEngine();
+
+        forgingExecutor.prefetch(commonName,
+                newForge(commonName, subjectAlternativeNames));
+    }
+
+    private Callable<SSLContext> newForge(final String commonName,
+            final SubjectAlternativeNameHolder subjectAlternativeNames) {
+        return new Callable<SSLContext>() {
+            @Override
+            public SSLContext call() throws Exception {
+                SSLContext ctx = createServerContext(commonName,
+                        subjectAlternativeNames);
+                if (serverSSLContexts != null) {
+                    serverSSLContexts.put(commonName, ctx);
+                }
+                return ctx;
+            }
+        };
+    }
+
+    /**
+     * Enables or disables forging the certificate impersonating an upstream
+     * server as soon as the server's certificate chain has been checked.
+     * Should be disabled when certificates are not named after the upstream
+     * certificate, such as wildcard certificates.
+     */
+    public void setPrefetchFromUpstreamChains(boolean prefetchFromUpstreamChains) {
+        this.prefetchFromUpstreamChains = prefetchFromUpstreamChains;
+    }
+
+    /**
+     * Returns the executor that forges server certificates, whose statistics
+     * show how long connections waited for certificates.
+     */
+    public CertificateForgingExecutor getForgingExecutor() {
+        return forgingExecutor;
     }
 
     private SSLContext createServerContext(String commonName,
@@ -334,17 +547,195 @@ public class BouncyCastleSslEngineSource implements SslEngineSource {
 
         MillisecondsDuration duration = new MillisecondsDuration();
 
-        KeyStore ks = CertificateHelper.createServerCertificate(commonName,
-                subjectAlternativeNames, authority, caCert, caPrivKey);
+        String diskCacheKey = null;
+        if (diskCertificateCache != null) {
+            diskCacheKey = DiskCertificateCache.createKey(commonName,
+                    subjectAlternativeNames.getNames());
+
+            CertificateAndKey stored = diskCertificateCache.get(diskCacheKey,
+                    (X509Certificate) caCert);
+            if (stored != null) {
+                SSLContext result = createServerContext(stored);
+                statistics.certificateLoadedFromDisk();
+
+                LOG.info("Loaded impersonated {} from disk in {}ms",
+                        commonName, duration);
+                return result;
+            }
+        }
+
+        long generationStart = System.currentTimeMillis();
+        KeyPair keyPair = getServerKeyPairProvider().getKeyPair();
+        statistics.keyPairObtained(generationStart,
+                System.currentTimeMillis());
+
+        // stored certificates are reused across restarts, so they are valid
+        // for longer than the one day of certificates kept in memory only
+        KeyStore ks = diskCertificateCache != null
+                ? CertificateHelper.createServerCertificate(commonName,
+                        subjectAlternativeNames, authority, caCert, caPrivKey,
+                        keyPair, diskCertificateCache
+                                .getNotAfter((X509Certificate) caCert))
+                : CertificateHelper.createServerCertificate(commonName,
+                        subjectAlternativeNames, authority, caCert, caPrivKey,
+                        keyPair);
+        statistics.certificateCreated(generationStart,
+                System.currentTimeMillis());
+
+        if (diskCertificateCache != null) {
+            PrivateKey key = (PrivateKey) ks.getKey(authority.alias(),
+                    authority.password());
+            X509Certificate cert = (X509Certificate) ks
+                    .getCertificate(authority.alias());
+            diskCertificateCache.put(diskCacheKey,
+                    new CertificateAndKey(cert, key),
+                    (X509Certificate) caCert);
+        }
+
         KeyManager[] keyManagers = CertificateHelper.getKeyManagers(ks,
                 authority);
 
         SSLContext result = CertificateHelper.newServerContext(keyManagers);
+        SslUtil.configureSessionCache(result);
 
         LOG.info("Impersonated {} in {}ms", commonName, duration);
         return result;
     }
 
+    private SSLContext createServerContext(CertificateAndKey stored)
+            throws GeneralSecurityException, IOException {
+        KeyStore ks = KeyStore.getInstance(KeyStore.getDefaultType());
+        ks.load(null, null);
+        Certificate[] chain = { stored.getCertificate(), caCert };
+        ks.setKeyEntry(authority.alias(), stored.getPrivateKey(),
+                authority.password(), chain);
+
+        KeyManager[] keyManagers = CertificateHelper.getKeyManagers(ks,
+                authority);
+
+        SSLContext result = CertificateHelper.newServerContext(keyManagers);
+        SslUtil.configureSessionCache(result);
+        return result;
+    }
+
+    /**
+     * Returns the key store type of the Certificate Authority key store,
+     * which is stored in {@code authority.aliasFile(".p12")}.
+     */
+    public static String getKeyStoreType() {
+        return KEY_STORE_TYPE;
+    }
+
+    /**
+     * Sets the provider of the key pairs of dynamic server certificates, such
+     * as a {@link PooledKeyPairProvider} or a
+     * {@link net.lightbody.bmp.mitm.keys.RotatingKeyPairProvider}.
+     */
+    public void setServerKeyPairProvider(KeyPairProvider serverKeyPairProvider) {
+        if (serverKeyPairProvider == null) {
+            throw new IllegalArgumentException(
+                    "Error, 'serverKeyPairProvider' is not allowed to be null!");
+        }
+        KeyPairProvider replacedDefaultProvider;
+        synchronized (this) {
+            replacedDefaultProvider = defaultServerKeyPairProvider;
+            defaultServerKeyPairProvider = null;
+            this.serverKeyPairProvider = serverKeyPairProvider;
+        }
+        // providers set by the caller may be shared, so only the default pool
+        // created by this source is closed
+        if (replacedDefaultProvider != null) {
+            replacedDefaultProvider.close();
+        }
+    }
+
+    public KeyPairProvider getServerKeyPairProvider() {
+        KeyPairProvider provider = serverKeyPairProvider;
+        if (provider == null) {
+            synchronized (this) {
+                provider = serverKeyPairProvider;
+                if (provider == null) {
+                    provider = new PooledKeyPairProvider(new RSAKeyGenerator(
+                            CertificateHelper.FAKE_KEYSIZE));
+                    if (closed) {
+                        provider.close();
+                    }
+                    serverKeyPairProvider = provider;
+                    defaultServerKeyPairProvider = provider;
+                }
+            }
+        }
+        return provider;
+    }
+
+    /**
+     * Releases the threads used by this source: the key pair provider's, the
+     * forging executor's and the disk cache's. Engines that have already been
+     * created keep working, and dynamic certificates requested afterwards
+     * are generated on the calling thread.
+     */
+    public void close() {
+        KeyPairProvider provider;
+        synchronized (this) {
+            closed = true;
+            provider = serverKeyPairProvider;
+        }
+        if (provider != null) {
+            provider.close();
+        }
+        forgingExecutor.close();
+        if (diskCertificateCache != null) {
+            diskCertificateCache.close();
+        }
+    }
+
+    /**
+     * Returns statistics of the server certificates generated, or loaded from
+     * disk, by this source.
+     */
+    public CertificateGenerationStatistics getStatistics() {
+        return statistics;
+    }
+
+    /**
+     * Returns the cache of upstream servers' certificate chains, which holds
+     * the chains that have been validated and the names of the servers'
+     * certificates. Chains are only validated when servers are not all
+     * trusted.
+     */
+    public CertificateChainCache getCertificateChainCache() {
+        return certificateChainCache;
+    }
+
+    /**
+     * Returns the cache in which server certificates are persisted, or null if
+     * they are only kept in memory.
+     */
+    public DiskCertificateCache getDiskCertificateCache() {
+        return diskCertificateCache;
+    }
+
+    private static X509TrustManager newTrustManager(
+            X509Certificate[] trustedCAs) throws GeneralSecurityException,
+            IOException {
+        KeyStore trustStore = KeyStore.getInstance(KeyStore.getDefaultType());
+        trustStore.load(null, null);
+        for (int i = 0; i < trustedCAs.length; i++) {
+            trustStore.setCertificateEntry("trusted-ca-" + i, trustedCAs[i]);
+        }
+
+        TrustManagerFactory tmf = TrustManagerFactory
+                .getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        tmf.init(trustStore);
+        for (TrustManager each : tmf.getTrustManagers()) {
+            if (each instanceof X509TrustManager) {
+                return (X509TrustManager) each;
+            }
+        }
+        throw new IllegalStateException("Missed X509TrustManager in "
+                + Arrays.toString(tmf.getTrustManagers()));
+    }
+
     public void initializeServerCertificates(String commonName,
             SubjectAlternativeNameHolder subjectAlternativeNames)
             throws GeneralSecurityException, OperatorCreationException,
@@ -361,7 +752,7 @@ public class BouncyCastleSslEngineSource implements SslEngineSource {
         exportPem(authority.aliasFile("-" + commonName + "-cert.pem"), certs);
     }
 
-    private void exportPem(File exportFile, Object... certs)
+    private static void exportPem(File exportFile, Object... certs)
             throws IOException, CertificateEncodingException {
         Writer sw = null;
         JcaPEMWriter pw = null;
@@ -378,6 +769,47 @@ public class BouncyCastleSslEngineSource implements SslEngineSource {
         }
     }
 
+    /**
+     * Starts forging the certificate impersonating an upstream server once
+     * the server's chain has been checked, during the upstream handshake.
+     * By the time the handshake completes and the client's connection needs
+     * the certificate, most of the work has been done off the client's
+     * Netty thread.
+     */
+    private class PrefetchingTrustManager implements X509TrustManager {
+        private final X509TrustManager delegate;
+
+        private PrefetchingTrustManager(X509TrustManager delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public void checkServerTrusted(X509Certificate[] chain,
+                String authType) throws CertificateException {
+            delegate.checkServerTrusted(chain, authType);
+
+            if (prefetchFromUpstreamChains) {
+                String commonName = certificateChainCache.getCommonName(chain);
+                if (commonName != null) {
+                    SubjectAlternativeNameHolder san = new SubjectAlternativeNameHolder();
+                    san.addAll(certificateChainCache
+                            .getSubjectAlternativeNames(chain));
+                    prefetchCertForHost(commonName, san);
+                }
+            }
+        }
+
+        @Override
+        public void checkClientTrusted(X509Certificate[] chain,
+                String authType) throws CertificateException {
+            delegate.checkClientTrusted(chain, authType);
+        }
+
+        @Override
+        public X509Certificate[] getAcceptedIssuers() {
+            return delegate.getAcceptedIssuers();
+        }
+    }
 }
 
 class MillisecondsDuration {
@@ -81,7 +81,7 @@ public final class CertificateHelper {
 
     private static final int ROOT_KEYSIZE = 2048;
 
-    private static final int FAKE_KEYSIZE = 1024;
+    static final int FAKE_KEYSIZE = 1024;
 
     /** The milliseconds of a day */
     private static final long ONE_DAY = 86400000L;
@@ -214,7 +214,41 @@ public final class CertificateHelper {
             IOException, OperatorCreationException, CertificateException,
             InvalidKeyException, SignatureException, KeyStoreException {
 
-        KeyPair keyPair = generateKeyPair(FAKE_KEYSIZE);
+        return createServerCertificate(commonName, subjectAlternativeNames,
+                authority, caCert, caPrivKey, generateKeyPair(FAKE_KEYSIZE));
+    }
+
+    /**
+     * Creates a server certificate for the given key pair, signed by the CA.
+     * Unlike {@link #createServerCertificate(String, SubjectAlternativeNameHolder, Authority, Certificate, PrivateKey)},
+     * no key pair is generated, so signing is the only expensive operation.
+     * The certificate is valid for one day.
+     */
+    public static KeyStore createServerCertificate(String commonName,
+            SubjectAlternativeNameHolder subjectAlternativeNames,
+            Authority authority, Certificate caCert, PrivateKey caPrivKey,
+            KeyPair keyPair)
+            throws IOException, OperatorCreationException, CertificateException,
+            NoSuchAlgorithmException, NoSuchProviderException,
+            InvalidKeyException, SignatureException, KeyStoreException {
+
+        return createServerCertificate(commonName, subjectAlternativeNames,
+                authority, caCert, caPrivKey, keyPair,
+                new Date(System.currentTimeMillis() + ONE_DAY));
+    }
+
+    /**
+     * Creates a server certificate for the given key pair, signed by the CA,
+     * that is valid until notAfter. Used for certificates that are kept for
+     * longer than a day, such as those persisted across restarts.
+     */
+    public static KeyStore createServerCertificate(String commonName,
+            SubjectAlternativeNameHolder subjectAlternativeNames,
+            Authority authority, Certificate caCert, PrivateKey caPrivKey,
+            KeyPair keyPair, Date notAfter)
+            throws IOException, OperatorCreationException, CertificateException,
+            NoSuchAlgorithmException, NoSuchProviderException,
+            InvalidKeyException, SignatureException, KeyStoreException {
 
         X500Name issuer = new X509CertificateHolder(caCert.getEncoded())
                 .getSubject();
@@ -227,7 +261,7 @@ public final class CertificateHelper {
         X500Name subject = name.build();
 
         X509v3CertificateBuilder builder = new JcaX509v3CertificateBuilder(issuer, serial, NOT_BEFORE,
-                new Date(System.currentTimeMillis() + ONE_DAY), subject, keyPair.getPublic());
+                notAfter, subject, keyPair.getPublic());
 
         builder.addExtension(Extension.subjectKeyIdentifier, false,
                 createSubjectKeyIdentifier(keyPair.getPublic()));
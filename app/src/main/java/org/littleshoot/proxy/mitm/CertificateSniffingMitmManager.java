@@ -2,11 +2,21 @@ package org.littleshoot.proxy.mitm;
 
 import java.security.cert.Certificate;
 import java.security.cert.X509Certificate;
+import java.util.List;
 
 import javax.net.ssl.SSLEngine;
 import javax.net.ssl.SSLPeerUnverifiedException;
 import javax.net.ssl.SSLSession;
 
+import net.lightbody.bmp.mitm.CertificateForgingExecutor;
+import net.lightbody.bmp.mitm.TrustSource;
+import net.lightbody.bmp.mitm.keys.KeyPairProvider;
+import net.lightbody.bmp.mitm.manager.PrefetchingMitmManager;
+import net.lightbody.bmp.mitm.stats.CertificateGenerationStatistics;
+import net.lightbody.bmp.mitm.trustmanager.CertificateChainCache;
+import net.lightbody.bmp.mitm.util.WildcardDomainUtil;
+import net.lightbody.bmp.util.HttpUtil;
+
 import org.littleshoot.proxy.MitmManager;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -17,28 +27,68 @@ import io.netty.handler.codec.http.HttpRequest;
  * {@link MitmManager} that uses the common name and subject alternative names
  * from the upstream certificate to create a dynamic certificate with it.
  */
-public class CertificateSniffingMitmManager implements MitmManager {
+public class CertificateSniffingMitmManager implements PrefetchingMitmManager {
 
     private static final Logger LOG = LoggerFactory
             .getLogger(CertificateSniffingMitmManager.class);
 
     private BouncyCastleSslEngineSource sslEngineSource;
 
+    private volatile boolean wildcardCertificates;
+
     public CertificateSniffingMitmManager() throws RootCertificateException {
         this(new Authority());
     }
 
     public CertificateSniffingMitmManager(Authority authority)
             throws RootCertificateException {
+        this(authority, true);
+    }
+
+    /**
+     * @param authority
+     *            the Certificate Authority that signs dynamic certificates
+     * @param trustAllServers
+     *            when true, upstream server certificates are not validated
+     */
+    public CertificateSniffingMitmManager(Authority authority,
+            boolean trustAllServers) throws RootCertificateException {
+        try {
+            sslEngineSource = new BouncyCastleSslEngineSource(authority,
+                    trustAllServers, true);
+        } catch (final Exception e) {
+            throw new RootCertificateException(
+                    "Errors during assembling root CA.", e);
+        }
+    }
+
+    /**
+     * @param authority
+     *            the Certificate Authority that signs dynamic certificates
+     * @param trustSource
+     *            the CAs that upstream server certificates must chain to, or
+     *            null to trust all servers
+     */
+    public CertificateSniffingMitmManager(Authority authority,
+            TrustSource trustSource) throws RootCertificateException {
         try {
-            sslEngineSource = new BouncyCastleSslEngineSource(authority, true,
-                    true);
+            sslEngineSource = new BouncyCastleSslEngineSource(authority,
+                    trustSource, true);
         } catch (final Exception e) {
             throw new RootCertificateException(
                     "Errors during assembling root CA.", e);
         }
     }
 
+    /**
+     * Releases the background threads of this manager's engine source. Call
+     * this when the manager is replaced; connections that are still using it
+     * generate certificates on their own threads.
+     */
+    public void close() {
+        sslEngineSource.close();
+    }
+
     public SSLEngine serverSslEngine(String peerHost, int peerPort) {
         return sslEngineSource.newSslEngine(peerHost, peerPort);
     }
@@ -49,7 +99,14 @@ public class CertificateSniffingMitmManager implements MitmManager {
 
     public SSLEngine clientSslEngineFor(HttpRequest httpRequest, SSLSession serverSslSession) {
         try {
-            X509Certificate upstreamCert = getCertificateFromSession(serverSslSession);
+            if (wildcardCertificates) {
+                SSLEngine wildcardEngine = createWildcardSslEngine(httpRequest);
+                if (wildcardEngine != null) {
+                    return wildcardEngine;
+                }
+            }
+
+            X509Certificate[] upstreamChain = getCertificatesFromSession(serverSslSession);
             // TODO store the upstream cert by commonName to review it later
 
             // A reasons to not use the common name and the alternative names
@@ -58,11 +115,19 @@ public class CertificateSniffingMitmManager implements MitmManager {
             //
             // It's not necessary. The host name is accepted by the browser.
             //
-            String commonName = getCommonName(upstreamCert);
+            // the names are parsed once per upstream chain, and reused by
+            // every connection to a server presenting the same chain
+            CertificateChainCache chainCache = sslEngineSource.getCertificateChainCache();
+            String commonName = chainCache.getCommonName(upstreamChain);
+            if (commonName == null) {
+                throw new IllegalStateException("Missed CN in Subject DN: "
+                        + upstreamChain[0].getSubjectDN());
+            }
+            LOG.debug("Common Name: {}", commonName);
 
             SubjectAlternativeNameHolder san = new SubjectAlternativeNameHolder();
 
-            san.addAll(upstreamCert.getSubjectAlternativeNames());
+            san.addAll(chainCache.getSubjectAlternativeNames(upstreamChain));
 
             LOG.debug("Subject Alternative Names: {}", san);
             return sslEngineSource.createCertForHost(commonName, san);
@@ -73,28 +138,121 @@ public class CertificateSniffingMitmManager implements MitmManager {
         }
     }
 
-    private X509Certificate getCertificateFromSession(SSLSession sslSession)
+    /**
+     * Starts forging the wildcard certificate for the requested host, when
+     * wildcard certificates are enabled. Otherwise the certificate is named
+     * after the upstream certificate, and is prefetched by the engine source
+     * once the upstream certificate has been received.
+     */
+    @Override
+    public void prefetchClientCertificate(HttpRequest connectRequest) {
+        if (!wildcardCertificates) {
+            return;
+        }
+
+        String baseDomain = WildcardDomainUtil.getWildcardBaseDomain(
+                HttpUtil.getHostFromRequest(connectRequest));
+        if (baseDomain == null) {
+            return;
+        }
+
+        List<String> names = WildcardDomainUtil
+                .getWildcardCertificateNames(baseDomain);
+        sslEngineSource.prefetchCertForHost(names.get(0),
+                createWildcardSubjectAlternativeNames(names));
+    }
+
+    /**
+     * Creates an engine presenting a wildcard certificate for the registrable
+     * domain of the requested host. The certificate is cached by its wildcard
+     * name, so all subdomains share it.
+     * 
+     * @return the engine, or null if the host cannot be covered by a wildcard
+     */
+    private SSLEngine createWildcardSslEngine(HttpRequest httpRequest)
+            throws Exception {
+        String baseDomain = WildcardDomainUtil.getWildcardBaseDomain(
+                HttpUtil.getHostFromRequest(httpRequest));
+        if (baseDomain == null) {
+            return null;
+        }
+
+        List<String> names = WildcardDomainUtil
+                .getWildcardCertificateNames(baseDomain);
+
+        LOG.debug("Wildcard certificate names: {}", names);
+        return sslEngineSource.createCertForHost(names.get(0),
+                createWildcardSubjectAlternativeNames(names));
+    }
+
+    private static SubjectAlternativeNameHolder createWildcardSubjectAlternativeNames(
+            List<String> names) {
+        SubjectAlternativeNameHolder san = new SubjectAlternativeNameHolder();
+        for (String name : names) {
+            san.addDomainName(name);
+        }
+        return san;
+    }
+
+    /**
+     * Enables or disables wildcard certificates. When enabled, hosts are
+     * grouped by registrable domain and impersonated with one shared
+     * {@code *.domain} certificate, which also covers the domain itself,
+     * instead of one certificate per upstream common name.
+     */
+    public void setWildcardCertificates(boolean wildcardCertificates) {
+        this.wildcardCertificates = wildcardCertificates;
+        sslEngineSource.setPrefetchFromUpstreamChains(!wildcardCertificates);
+    }
+
+    public boolean isWildcardCertificates() {
+        return wildcardCertificates;
+    }
+
+    /**
+     * Sets the provider of the key pairs of dynamic certificates, for example
+     * to use Elliptic Curve keys.
+     */
+    public void setServerKeyPairProvider(KeyPairProvider serverKeyPairProvider) {
+        sslEngineSource.setServerKeyPairProvider(serverKeyPairProvider);
+    }
+
+    /**
+     * Returns statistics of the dynamic certificates generated, or loaded
+     * from disk, by this manager.
+     */
+    public CertificateGenerationStatistics getStatistics() {
+        return sslEngineSource.getStatistics();
+    }
+
+    /**
+     * Returns the cache of upstream certificate chains, whose hit rates show
+     * how often validation and name parsing were skipped.
+     */
+    public CertificateChainCache getCertificateChainCache() {
+        return sslEngineSource.getCertificateChainCache();
+    }
+
+    /**
+     * Returns the executor that forges dynamic certificates, whose statistics
+     * show how long connections waited for certificates.
+     */
+    public CertificateForgingExecutor getForgingExecutor() {
+        return sslEngineSource.getForgingExecutor();
+    }
+
+    private X509Certificate[] getCertificatesFromSession(SSLSession sslSession)
             throws SSLPeerUnverifiedException {
         Certificate[] peerCerts = sslSession.getPeerCertificates();
-        Certificate peerCert = peerCerts[0];
-        if (peerCert instanceof X509Certificate) {
-            return (X509Certificate) peerCert;
-        }
-        throw new IllegalStateException(
-                "Required java.security.cert.X509Certificate, found: "
-                        + peerCert);
-    }
-
-    private String getCommonName(X509Certificate c) {
-        LOG.debug("Subject DN principal name: {}", c.getSubjectDN().getName());
-        for (String each : c.getSubjectDN().getName().split(",\\s*")) {
-            if (each.startsWith("CN=")) {
-                String result = each.substring(3);
-                LOG.debug("Common Name: {}", result);
-                return result;
+        X509Certificate[] chain = new X509Certificate[peerCerts.length];
+        for (int i = 0; i < peerCerts.length; i++) {
+            if (!(peerCerts[i] instanceof X509Certificate)) {
+                throw new IllegalStateException(
+                        "Required java.security.cert.X509Certificate, found: "
+                                + peerCerts[i]);
             }
+            chain[i] = (X509Certificate) peerCerts[i];
         }
-        throw new IllegalStateException("Missed CN in Subject DN: "
-                + c.getSubjectDN());
+        return chain;
     }
 }
@@ -2,6 +2,7 @@ package org.littleshoot.proxy.mitm;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -20,12 +21,24 @@ public class SubjectAlternativeNameHolder {
 
     private final List<ASN1Encodable> sans = new ArrayList<ASN1Encodable>();
 
+    private final List<String> names = new ArrayList<String>();
+
     public void addIpAddress(String ipAddress) {
         sans.add(new GeneralName(GeneralName.iPAddress, ipAddress));
+        names.add(GeneralName.iPAddress + ":" + ipAddress);
     }
 
     public void addDomainName(String subjectAlternativeName) {
         sans.add(new GeneralName(GeneralName.dNSName, subjectAlternativeName));
+        names.add(GeneralName.dNSName + ":" + subjectAlternativeName);
+    }
+
+    /**
+     * Returns the names added to this holder, each prefixed with its
+     * {@link GeneralName} tag, in the order they were added.
+     */
+    public List<String> getNames() {
+        return Collections.unmodifiableList(names);
     }
 
     public void fillInto(X509v3CertificateBuilder certGen)
@@ -42,6 +55,7 @@ public class SubjectAlternativeNameHolder {
         if (subjectAlternativeNames != null) {
             for (List<?> each : subjectAlternativeNames) {
                 sans.add(parseGeneralName(each));
+                names.add(each.get(0) + ":" + each.get(1));
             }
         }
     }
@@ -0,0 +1,436 @@
+package cn.darkal.networkdiagnosis.Export;
+
+import com.google.common.hash.Hashing;
+import com.google.common.io.BaseEncoding;
+import com.google.common.io.Files;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 用本地的HTTP桩服务器测试分块上传：重试、断点续传、拒绝上传，以及服务器不支持分块上传时改用multipart上传。
+ */
+public class ChunkedUploaderTest {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final int CHUNK_SIZE = 16 * 1024;
+    private static final int FILE_SIZE = 200 * 1024;
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private StubServer server;
+    private File file;
+    private byte[] content;
+
+    @Before
+    public void setUp() throws IOException {
+        server = new StubServer();
+
+        content = new byte[FILE_SIZE];
+        new Random(42).nextBytes(content);
+        file = temporaryFolder.newFile("upload.zip");
+        Files.write(content, file);
+    }
+
+    @After
+    public void tearDown() {
+        server.stop();
+    }
+
+    @Test
+    public void testUploadsAllChunks() throws Exception {
+        Result result = upload(UploadState.create(file, CHUNK_SIZE), ChunkedUploader.DEFAULT_WINDOW);
+
+        assertNull(result.error);
+        assertEquals("{\"errId\":0,\"md5\":\"" + md5(content) + "\"}", result.result);
+        assertArrayEquals(content, server.assemble());
+        assertTrue("at most " + ChunkedUploader.DEFAULT_WINDOW + " chunks in flight, was " + server.maxConcurrentChunks.get(),
+                server.maxConcurrentChunks.get() <= ChunkedUploader.DEFAULT_WINDOW);
+        assertEquals(100, result.lastProgressPercent());
+        assertNull("state is deleted once the upload completes", UploadState.load(file));
+    }
+
+    @Test
+    public void testRetriesServerErrorsAndCorruptedChunks() throws Exception {
+        server.failChunk(2, 503, 500);
+        server.corruptChunk(5);
+
+        Result result = upload(UploadState.create(file, CHUNK_SIZE), ChunkedUploader.DEFAULT_WINDOW);
+
+        assertNull(result.error);
+        assertArrayEquals(content, server.assemble());
+        assertEquals(3, server.countChunkRequests(2));
+        assertEquals(2, server.countChunkRequests(5));
+    }
+
+    @Test
+    public void testResumesFromServerOffsetAfterFailure() throws Exception {
+        server.failChunk(4, 400);
+
+        Result failed = upload(UploadState.create(file, CHUNK_SIZE), 1);
+
+        assertTrue(failed.error instanceof ChunkedUploader.HttpStatusException);
+        assertEquals(400, ((ChunkedUploader.HttpStatusException) failed.error).getStatusCode());
+
+        // 模拟应用重启：从进度文件中读取进度继续上传
+        UploadState state = UploadState.load(file);
+        assertNotNull(state);
+        assertEquals(4L * CHUNK_SIZE, state.getUploadedBytes());
+
+        server.clearRequests();
+        Result resumed = upload(state, ChunkedUploader.DEFAULT_WINDOW);
+
+        assertNull(resumed.error);
+        assertArrayEquals(content, server.assemble());
+        for (int i = 0; i < 4; i++) {
+            assertEquals("chunk " + i + " was already uploaded", 0, server.countChunkRequests(i));
+        }
+        assertEquals(1, server.countChunkRequests(4));
+    }
+
+    @Test
+    public void testChangedFileInvalidatesState() throws Exception {
+        UploadState.create(file, CHUNK_SIZE);
+        assertNotNull(UploadState.load(file));
+
+        Files.append("changed", file, UTF_8);
+
+        assertNull(UploadState.load(file));
+    }
+
+    @Test
+    public void testNotFoundFailsWithoutRetrying() throws Exception {
+        server.failChunk(1, 404);
+
+        Result result = upload(UploadState.create(file, CHUNK_SIZE), 1);
+
+        assertTrue(result.error instanceof ChunkedUploader.HttpStatusException);
+        assertEquals(404, ((ChunkedUploader.HttpStatusException) result.error).getStatusCode());
+        assertEquals(1, server.countChunkRequests(1));
+        assertEquals(0, server.countRequests("complete"));
+    }
+
+    @Test
+    public void testRejectedUploadIsReportedAsResult() throws Exception {
+        server.rejectWith = "{\"errId\":2,\"offset\":0,\"errMsg\":\"captcha\"}";
+
+        Result result = upload(UploadState.create(file, CHUNK_SIZE), ChunkedUploader.DEFAULT_WINDOW);
+
+        assertNull(result.error);
+        assertEquals(server.rejectWith, result.result);
+        assertEquals(0, server.countRequests("chunk"));
+        assertNotNull("state is kept so that the upload can continue with a new captcha", UploadState.load(file));
+    }
+
+    @Test
+    public void testFallsBackToMultipartWhenStatusIsNotUnderstood() throws Exception {
+        server.chunked = false;
+
+        Result result = upload(UploadState.create(file, CHUNK_SIZE), ChunkedUploader.DEFAULT_WINDOW);
+
+        assertNull(result.error);
+        assertEquals("{\"errId\":0,\"md5\":\"" + md5(content) + "\"}", result.result);
+        assertArrayEquals(content, server.multipartFile);
+        assertEquals(0, server.countRequests("chunk"));
+        assertEquals(100, result.lastProgressPercent());
+        assertNull(UploadState.load(file));
+    }
+
+    @Test
+    public void testFallsBackToMultipartWhenStatusIsNotFound() throws Exception {
+        server.chunked = false;
+        server.statusCode = 404;
+
+        Result result = upload(UploadState.create(file, CHUNK_SIZE), ChunkedUploader.DEFAULT_WINDOW);
+
+        assertNull(result.error);
+        assertArrayEquals(content, server.multipartFile);
+    }
+
+    private Result upload(UploadState state, int window) throws InterruptedException {
+        final Result result = new Result();
+        final CountDownLatch done = new CountDownLatch(1);
+
+        new ChunkedUploader(state, server.getUrl(), "test.zip", new ChunkedUploader.Listener() {
+            @Override
+            public void onProgress(long uploadedBytes, long totalBytes) {
+                result.progress.add((int) (uploadedBytes * 100 / totalBytes));
+            }
+
+            @Override
+            public void onCompleted(String response) {
+                result.result = response;
+                done.countDown();
+            }
+
+            @Override
+            public void onFailed(Exception e) {
+                result.error = e;
+                done.countDown();
+            }
+        }).setWindow(window).setRetryDelay(10).start();
+
+        assertTrue("upload did not finish", done.await(30, TimeUnit.SECONDS));
+        return result;
+    }
+
+    private static String md5(byte[] data) {
+        return Hashing.md5().hashBytes(data).toString();
+    }
+
+    private static class Result {
+        private final List<Integer> progress = Collections.synchronizedList(new ArrayList<Integer>());
+        private volatile String result;
+        private volatile Exception error;
+
+        private int lastProgressPercent() {
+            return progress.isEmpty() ? -1 : progress.get(progress.size() - 1);
+        }
+    }
+
+    /**
+     * 实现 {@link ChunkedUploader} 协议的桩服务器。chunked为false时模拟原来的上传接口：忽略action参数，只接受multipart上传。
+     */
+    private static class StubServer implements HttpHandler {
+        private final HttpServer httpServer;
+
+        private final Map<Integer, byte[]> chunks = new HashMap<>();
+        private final Map<Integer, Deque<Integer>> chunkFailures = new HashMap<>();
+        private final Set<Integer> corruptChunks = new HashSet<>();
+        private final List<String> requests = new ArrayList<>();
+
+        private final AtomicInteger concurrentChunks = new AtomicInteger();
+        private final AtomicInteger maxConcurrentChunks = new AtomicInteger();
+
+        private volatile boolean chunked = true;
+        private volatile int statusCode = 200;
+        private volatile String rejectWith;
+        private volatile byte[] multipartFile;
+
+        private StubServer() throws IOException {
+            httpServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+            httpServer.createContext("/upload", this);
+            httpServer.setExecutor(Executors.newCachedThreadPool());
+            httpServer.start();
+        }
+
+        private String getUrl() {
+            return "http://127.0.0.1:" + httpServer.getAddress().getPort() + "/upload?code=1234&os=Android";
+        }
+
+        private void stop() {
+            httpServer.stop(0);
+        }
+
+        private synchronized void failChunk(int index, Integer... statusCodes) {
+            chunkFailures.put(index, new ArrayDeque<>(Arrays.asList(statusCodes)));
+        }
+
+        private synchronized void corruptChunk(int index) {
+            corruptChunks.add(index);
+        }
+
+        private synchronized void clearRequests() {
+            requests.clear();
+        }
+
+        private synchronized int countRequests(String action) {
+            int count = 0;
+            for (String request : requests) {
+                if (request.startsWith(action)) {
+                    count++;
+                }
+            }
+            return count;
+        }
+
+        private synchronized int countChunkRequests(int index) {
+            return Collections.frequency(requests, "chunk " + index);
+        }
+
+        private synchronized byte[] assemble() {
+            ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+            for (int i = 0; chunks.containsKey(i); i++) {
+                outputStream.write(chunks.get(i), 0, chunks.get(i).length);
+            }
+            return outputStream.toByteArray();
+        }
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            try {
+                Map<String, String> params = parseQuery(exchange.getRequestURI().getRawQuery());
+                byte[] body = IOUtils.toByteArray(exchange.getRequestBody());
+
+                if (!chunked) {
+                    if (params.containsKey("action") && statusCode != 200) {
+                        respond(exchange, statusCode, "");
+                    } else {
+                        handleMultipart(exchange, body);
+                    }
+                    return;
+                }
+
+                String action = params.get("action");
+                if ("status".equals(action)) {
+                    handleStatus(exchange, Integer.parseInt(params.get("chunk_size")));
+                } else if ("chunk".equals(action)) {
+                    handleChunk(exchange, Integer.parseInt(params.get("index")), body);
+                } else if ("complete".equals(action)) {
+                    synchronized (this) {
+                        requests.add("complete");
+                    }
+                    respond(exchange, 200, "{\"errId\":0,\"md5\":\"" + md5(assemble()) + "\"}");
+                } else {
+                    respond(exchange, 400, "unknown action");
+                }
+            } finally {
+                exchange.close();
+            }
+        }
+
+        private void handleStatus(HttpExchange exchange, int chunkSize) throws IOException {
+            long offset = 0;
+            synchronized (this) {
+                requests.add("status");
+                for (int i = 0; chunks.containsKey(i); i++) {
+                    offset += chunks.get(i).length;
+                }
+            }
+
+            respond(exchange, 200, rejectWith != null ? rejectWith : "{\"errId\":0,\"offset\":" + offset + "}");
+        }
+
+        private void handleChunk(HttpExchange exchange, int index, byte[] data) throws IOException {
+            int concurrent = concurrentChunks.incrementAndGet();
+            try {
+                synchronized (maxConcurrentChunks) {
+                    maxConcurrentChunks.set(Math.max(maxConcurrentChunks.get(), concurrent));
+                }
+
+                Integer failure;
+                boolean corrupt;
+                synchronized (this) {
+                    requests.add("chunk " + index);
+                    Deque<Integer> failures = chunkFailures.get(index);
+                    failure = failures == null ? null : failures.poll();
+                    corrupt = corruptChunks.remove(index);
+                }
+
+                // 让多个分块同时在服务器上处理，以检查同时上传的分块数
+                Thread.sleep(5);
+
+                if (failure != null) {
+                    respond(exchange, failure, "injected failure");
+                    return;
+                }
+
+                if (corrupt) {
+                    data[0] ^= 1;
+                }
+                String expectedMd5 = BaseEncoding.base64().encode(Hashing.md5().hashBytes(data).asBytes());
+                if (!expectedMd5.equals(exchange.getRequestHeaders().getFirst("Content-MD5"))) {
+                    respond(exchange, 422, "checksum mismatch");
+                    return;
+                }
+                assertNotNull(exchange.getRequestHeaders().getFirst("Content-Range"));
+
+                synchronized (this) {
+                    chunks.put(index, data);
+                }
+                respond(exchange, 200, "{\"errId\":0}");
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                respond(exchange, 500, "interrupted");
+            } finally {
+                concurrentChunks.decrementAndGet();
+            }
+        }
+
+        private void handleMultipart(HttpExchange exchange, byte[] body) throws IOException {
+            String contentType = exchange.getRequestHeaders().getFirst("Content-Type");
+            if (contentType == null || !contentType.startsWith("multipart/form-data; boundary=")) {
+                // 原来的上传接口没有收到文件
+                respond(exchange, 200, "{\"errId\":1,\"errMsg\":\"no file\"}");
+                return;
+            }
+
+            String boundary = contentType.substring(contentType.indexOf('=') + 1);
+            String text = new String(body, "ISO-8859-1");
+            assertTrue(text.startsWith("--" + boundary + "\r\n"));
+            assertTrue(text.contains("name=\"upload\"; filename=\"test.zip\""));
+
+            int start = text.indexOf("\r\n\r\n") + 4;
+            int end = text.lastIndexOf("\r\n--" + boundary + "--");
+            multipartFile = Arrays.copyOfRange(body, start, end);
+
+            synchronized (this) {
+                requests.add("multipart");
+            }
+            respond(exchange, 200, "{\"errId\":0,\"md5\":\"" + md5(multipartFile) + "\"}");
+        }
+
+        private static void respond(HttpExchange exchange, int code, String body) throws IOException {
+            byte[] bytes = body.getBytes(UTF_8);
+            exchange.sendResponseHeaders(code, bytes.length == 0 ? -1 : bytes.length);
+            if (bytes.length > 0) {
+                OutputStream outputStream = exchange.getResponseBody();
+                outputStream.write(bytes);
+                outputStream.close();
+            }
+        }
+
+        private static Map<String, String> parseQuery(String query) throws IOException {
+            Map<String, String> params = new HashMap<>();
+            if (query == null) {
+                return params;
+            }
+            for (String param : query.split("&")) {
+                int equals = param.indexOf('=');
+                if (equals > 0) {
+                    params.put(param.substring(0, equals), URLDecoder.decode(param.substring(equals + 1), "UTF-8"));
+                }
+            }
+            return params;
+        }
+    }
+}
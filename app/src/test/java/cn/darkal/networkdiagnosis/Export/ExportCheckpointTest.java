@@ -0,0 +1,185 @@
+package cn.darkal.networkdiagnosis.Export;
+
+import net.lightbody.bmp.core.har.HarEntry;
+import net.lightbody.bmp.core.har.HarLog;
+import net.lightbody.bmp.core.har.HarPage;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 增量导出检查点的测试：每次选出的请求和提交检查点后保留的完成记录
+ */
+public class ExportCheckpointTest {
+    private ExportCheckpoint checkpoint;
+    private HarLog log;
+    private long time;
+
+    @Before
+    public void setUp() {
+        checkpoint = new ExportCheckpoint();
+        log = newLog();
+    }
+
+    @Test
+    public void testFirstExportIsFull() {
+        HarEntry a = add(log, "A");
+        HarEntry b = add(log, "B");
+
+        ExportCheckpoint.Delta delta = checkpoint.select(log, null, false);
+
+        assertTrue(delta.isFull());
+        assertEquals(Arrays.asList(a, b), delta.getEntries());
+        assertEquals(2, delta.getPages().size());
+    }
+
+    @Test
+    public void testIncrementalExportOnlyHasNewEntries() {
+        add(log, "A");
+        checkpoint.commit(checkpoint.select(log, null, false));
+
+        HarEntry c = add(log, "A");
+        ExportCheckpoint.Delta delta = checkpoint.select(log, null, false);
+
+        assertFalse(delta.isFull());
+        assertEquals(Collections.singletonList(c), delta.getEntries());
+    }
+
+    @Test
+    public void testEntryCompletedAfterExportIsExportedAgain() {
+        HarEntry a = add(log, "A");
+        checkpoint.commit(checkpoint.select(log, null, false));
+
+        complete(a);
+        ExportCheckpoint.Delta delta = checkpoint.select(log, null, false);
+        assertEquals(Collections.singletonList(a), delta.getEntries());
+
+        checkpoint.commit(delta);
+        assertEquals(Collections.<HarEntry>emptyList(), checkpoint.select(log, null, false).getEntries());
+    }
+
+    @Test
+    public void testEntryCompletedDuringExportIsKept() {
+        HarEntry a = add(log, "A");
+        checkpoint.commit(checkpoint.select(log, null, false));
+
+        complete(a);
+        ExportCheckpoint.Delta delta = checkpoint.select(log, null, false);
+        // 导出过程中又收到了完成事件
+        complete(a);
+        checkpoint.commit(delta);
+
+        assertEquals(Collections.singletonList(a), checkpoint.select(log, null, false).getEntries());
+    }
+
+    @Test
+    public void testCompletedEntryOfUnselectedPageIsKept() {
+        HarEntry a = add(log, "A");
+        HarEntry b = add(log, "B");
+        checkpoint.commit(checkpoint.select(log, null, false));
+
+        complete(a);
+        complete(b);
+        ExportCheckpoint.Delta pageA = checkpoint.select(log, pageRefs("A"), false);
+        assertEquals(Collections.singletonList(a), pageA.getEntries());
+        checkpoint.commit(pageA);
+
+        // B 已经导出过，之后完成的记录没有被只导出 A 的检查点清除
+        ExportCheckpoint.Delta all = checkpoint.select(log, null, false);
+        assertFalse(all.isFull());
+        assertEquals(Collections.singletonList(b), all.getEntries());
+    }
+
+    @Test
+    public void testNewlySelectedPageExportsItsOldEntries() {
+        add(log, "A");
+        HarEntry b = add(log, "B");
+        checkpoint.commit(checkpoint.select(log, pageRefs("A"), false));
+
+        HarEntry c = add(log, "A");
+        ExportCheckpoint.Delta delta = checkpoint.select(log, null, false);
+
+        assertFalse(delta.isFull());
+        assertEquals(Arrays.asList(b, c), delta.getEntries());
+    }
+
+    @Test
+    public void testClearedEntriesForceFullExport() {
+        add(log, "A");
+        add(log, "A");
+        checkpoint.commit(checkpoint.select(log, null, false));
+
+        log.clearAllEntries();
+        HarEntry c = add(log, "A");
+        ExportCheckpoint.Delta delta = checkpoint.select(log, null, false);
+
+        assertTrue(delta.isFull());
+        assertEquals(Collections.singletonList(c), delta.getEntries());
+    }
+
+    @Test
+    public void testNewLogDropsCompletedEntriesOfOldLog() {
+        HarEntry a = add(log, "A");
+        checkpoint.commit(checkpoint.select(log, null, false));
+
+        // 完成记录属于旧的请求列表，newHar 不会对旧列表发出 entriesCleared
+        complete(a);
+        HarLog newLog = newLog();
+        HarEntry b = add(newLog, "A");
+
+        ExportCheckpoint.Delta first = checkpoint.select(newLog, null, false);
+        assertTrue(first.isFull());
+        assertEquals(Collections.singletonList(b), first.getEntries());
+        checkpoint.commit(first);
+
+        ExportCheckpoint.Delta second = checkpoint.select(newLog, null, false);
+        assertFalse(second.isFull());
+        assertEquals(Collections.<HarEntry>emptyList(), second.getEntries());
+        assertSame(newLog, second.getHarLog());
+    }
+
+    @Test
+    public void testFullExportWhenRequested() {
+        HarEntry a = add(log, "A");
+        checkpoint.commit(checkpoint.select(log, null, false));
+
+        ExportCheckpoint.Delta delta = checkpoint.select(log, null, true);
+
+        assertTrue(delta.isFull());
+        assertEquals(Collections.singletonList(a), delta.getEntries());
+    }
+
+    private HarLog newLog() {
+        HarLog harLog = new HarLog();
+        harLog.addPage(new HarPage("A"));
+        harLog.addPage(new HarPage("B"));
+        harLog.addCaptureListener(checkpoint);
+        return harLog;
+    }
+
+    private HarEntry add(HarLog harLog, String pageRef) {
+        HarEntry entry = new HarEntry(pageRef);
+        entry.setStartedDateTime(new Date(++time));
+        harLog.addEntry(entry);
+        return entry;
+    }
+
+    private void complete(HarEntry entry) {
+        checkpoint.entryCompleted(entry);
+    }
+
+    private static Set<String> pageRefs(String... pageRefs) {
+        return new HashSet<>(Arrays.<String>asList(pageRefs));
+    }
+}
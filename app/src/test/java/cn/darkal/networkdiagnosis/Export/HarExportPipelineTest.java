@@ -0,0 +1,270 @@
+package cn.darkal.networkdiagnosis.Export;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import net.lightbody.bmp.core.har.Har;
+import net.lightbody.bmp.core.har.HarEntry;
+import net.lightbody.bmp.core.har.HarLog;
+import net.lightbody.bmp.core.har.HarPage;
+import net.lightbody.bmp.core.har.HarRequest;
+import net.lightbody.bmp.core.har.HarResponse;
+import net.lightbody.bmp.core.har.PageRefFilteredHar;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 流式导出的结果应该和 {@link PageRefFilteredHar#writeTo} 生成的HAR相同。
+ */
+public class HarExportPipelineTest {
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private HarLog harLog;
+    private Set<String> pageRefs;
+
+    @Before
+    public void setUp() {
+        harLog = new HarLog();
+        for (int i = 0; i < 3; i++) {
+            harLog.addPage(new HarPage("Page " + i, "Title " + i));
+        }
+
+        // 足够多且不容易压缩的请求，让压缩后的数据分成多个块
+        Random random = new Random(42);
+        for (int i = 0; i < 5000; i++) {
+            StringBuilder body = new StringBuilder();
+            for (int j = 0; j < 20; j++) {
+                body.append(Long.toHexString(random.nextLong()));
+            }
+
+            HarEntry entry = new HarEntry("Page " + (i % 3));
+            entry.setRequest(new HarRequest("GET", "http://host" + (i % 50) + ".com/path/" + i + "?q=" + i, "HTTP/1.1"));
+            HarResponse response = new HarResponse(200, "OK", "HTTP/1.1");
+            response.getContent().setText("{\"id\":" + i + ",\"body\":\"" + body + "\"}");
+            entry.setResponse(response);
+            harLog.getEntries().add(entry);
+        }
+
+        pageRefs = new HashSet<>(Arrays.asList("Page 0", "Page 2"));
+    }
+
+    @Test
+    public void testFileExportMatchesPageRefFilteredHar() throws Exception {
+        File file = new File(temporaryFolder.getRoot(), "export/test.zip");
+        Result result = export(pageRefs, new FileExportSink(file), 4, HarExportPipeline.Format.HAR_ZIP);
+
+        assertNull(result.error);
+        assertEquals(file.getPath(), result.result);
+        assertEquals(expectedEntryCount(), result.entries);
+        assertEquals(file.length(), result.bytes);
+        assertFalse(new File(file.getPath() + ".part").exists());
+
+        try (InputStream inputStream = new FileInputStream(file)) {
+            assertEquals(expectedHar(), readZippedHar(inputStream));
+        }
+    }
+
+    @Test
+    public void testSlowSinkReceivesSameHar() throws Exception {
+        MemorySink sink = new MemorySink(true);
+        Result result = export(pageRefs, sink, 4, HarExportPipeline.Format.HAR_ZIP);
+
+        assertNull(result.error);
+        assertEquals("ok", result.result);
+        assertEquals(sink.data.size(), result.bytes);
+        assertEquals(expectedHar(), readZippedHar(new ByteArrayInputStream(sink.data.toByteArray())));
+    }
+
+    @Test
+    public void testSingleThreadedExportMatchesAllPages() throws Exception {
+        MemorySink sink = new MemorySink(false);
+        Result result = export(null, sink, 1, HarExportPipeline.Format.HAR_ZIP);
+
+        assertNull(result.error);
+        assertEquals(harLog.getEntries().size(), result.entries);
+
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        new Har(harLog).writeTo(expected);
+        assertEquals(OBJECT_MAPPER.readTree(expected.toByteArray()), readZippedHar(new ByteArrayInputStream(sink.data.toByteArray())));
+    }
+
+    @Test
+    public void testNdjsonExportWritesOneEntryPerLine() throws Exception {
+        MemorySink sink = new MemorySink(false);
+        Result result = export(pageRefs, sink, 4, HarExportPipeline.Format.NDJSON_GZIP);
+
+        assertNull(result.error);
+
+        List<JsonNode> expected = new ArrayList<>();
+        for (JsonNode entry : expectedHar().path("log").path("entries")) {
+            expected.add(entry);
+        }
+
+        List<JsonNode> lines = new ArrayList<>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new GZIPInputStream(new ByteArrayInputStream(sink.data.toByteArray())), "UTF-8"));
+        String line;
+        while ((line = reader.readLine()) != null) {
+            lines.add(OBJECT_MAPPER.readTree(line));
+        }
+
+        assertEquals(expected, lines);
+    }
+
+    @Test
+    public void testFailingSinkIsAborted() throws Exception {
+        MemorySink sink = new MemorySink(false);
+        sink.failAfter = 4 * 1024;
+        Result result = export(pageRefs, sink, 4, HarExportPipeline.Format.HAR_ZIP);
+
+        assertNotNull(result.error);
+        assertNull(result.result);
+        assertTrue(sink.aborted);
+    }
+
+    private int expectedEntryCount() {
+        int count = 0;
+        for (HarEntry entry : harLog.getEntries()) {
+            if (pageRefs.contains(entry.getPageref())) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private JsonNode expectedHar() throws IOException {
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        new PageRefFilteredHar(new Har(harLog), pageRefs).writeTo(expected);
+        return OBJECT_MAPPER.readTree(expected.toByteArray());
+    }
+
+    private static JsonNode readZippedHar(InputStream inputStream) throws IOException {
+        ZipInputStream zipInputStream = new ZipInputStream(inputStream);
+        ZipEntry zipEntry = zipInputStream.getNextEntry();
+        assertNotNull(zipEntry);
+        assertEquals(HarExportPipeline.HAR_ENTRY_NAME, zipEntry.getName());
+
+        JsonNode har = OBJECT_MAPPER.readTree(IOUtils.toByteArray(zipInputStream));
+        assertNull(zipInputStream.getNextEntry());
+        return har;
+    }
+
+    private Result export(Set<String> pageRefs, ExportSink sink, int compressionThreads, HarExportPipeline.Format format)
+            throws Exception {
+        final Result result = new Result();
+        final CountDownLatch done = new CountDownLatch(1);
+
+        new HarExportPipeline(harLog, pageRefs, sink, new HarExportPipeline.Listener() {
+            @Override
+            public void onProgress(int entries, int totalEntries, long bytes) {
+            }
+
+            @Override
+            public void onCompleted(int entries, long bytes, String response) {
+                result.entries = entries;
+                result.bytes = bytes;
+                result.result = response;
+                done.countDown();
+            }
+
+            @Override
+            public void onFailed(Exception e) {
+                result.error = e;
+                done.countDown();
+            }
+        }).setCompressionThreads(compressionThreads).setFormat(format).start();
+
+        assertTrue("export did not finish", done.await(30, TimeUnit.SECONDS));
+        return result;
+    }
+
+    private static class Result {
+        private volatile int entries;
+        private volatile long bytes;
+        private volatile String result;
+        private volatile Exception error;
+    }
+
+    /**
+     * 写到内存中的桩，可以模拟上传一样较慢的写出，或在写出一定字节后失败
+     */
+    private static class MemorySink implements ExportSink {
+        private final boolean slow;
+        private final ByteArrayOutputStream data = new ByteArrayOutputStream();
+        private long failAfter = -1;
+        private volatile boolean aborted;
+
+        private MemorySink(boolean slow) {
+            this.slow = slow;
+        }
+
+        @Override
+        public OutputStream open() throws IOException {
+            return new OutputStream() {
+                @Override
+                public void write(int b) throws IOException {
+                    write(new byte[]{(byte) b}, 0, 1);
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    if (failAfter >= 0 && data.size() + len > failAfter) {
+                        throw new IOException("Connection reset");
+                    }
+                    if (slow) {
+                        try {
+                            Thread.sleep(2);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                    }
+                    data.write(b, off, len);
+                }
+            };
+        }
+
+        @Override
+        public String finish() throws IOException {
+            return "ok";
+        }
+
+        @Override
+        public void abort() {
+            aborted = true;
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package cn.darkal.networkdiagnosis.Utils;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 流式格式化的测试，重点是解析到一半失败时已发布的行不被覆盖
+ */
+public class JsonLineFormatterTest {
+    @Test
+    public void testFormatJson() {
+        JsonLineFormatter formatter = new JsonLineFormatter("{\"a\":1,\"b\":[true,{}],\"c\":{\"d\":\"x\"}}");
+        RecordingListener listener = new RecordingListener();
+        formatter.format(listener);
+
+        assertTrue(formatter.isJson());
+        assertEquals(0, listener.resets);
+        List<String> lines = lines(formatter, listener.lastCount);
+        assertEquals(10, lines.size());
+        assertEquals("{", lines.get(0));
+        assertEquals("  \"a\": 1,", lines.get(1));
+        assertEquals("  \"b\": [", lines.get(2));
+        assertEquals("    true,", lines.get(3));
+        assertEquals("    {}", lines.get(4));
+        assertEquals("  ],", lines.get(5));
+        assertEquals("  \"c\": {", lines.get(6));
+        assertEquals("    \"d\": \"x\"", lines.get(7));
+        assertEquals("  }", lines.get(8));
+        assertEquals("}", lines.get(9));
+    }
+
+    @Test
+    public void testPlainText() {
+        JsonLineFormatter formatter = new JsonLineFormatter("first\r\nsecond\nthird");
+        RecordingListener listener = new RecordingListener();
+        formatter.format(listener);
+
+        assertFalse(formatter.isJson());
+        assertEquals(0, listener.resets);
+        assertEquals(3, listener.lastCount);
+        assertEquals("second", formatter.getLine(1));
+    }
+
+    @Test
+    public void testTruncatedJsonKeepsPublishedLines() {
+        // 足够多的行，失败前已经发布过一批
+        StringBuilder json = new StringBuilder("[\n");
+        for (int i = 0; i < 1000; i++) {
+            json.append("{\"id\":").append(i).append(",\"name\":\"item").append(i).append("\"},\n");
+        }
+        String content = json.substring(0, json.length() - 20);
+
+        final JsonLineFormatter formatter = new JsonLineFormatter(content);
+        final List<String> published = new ArrayList<>();
+        RecordingListener listener = new RecordingListener() {
+            @Override
+            public void onLines(int count) {
+                if (textFormatter == null) {
+                    // 界面线程在这之后仍可能读取这些行
+                    for (int i = published.size(); i < count; i++) {
+                        published.add(formatter.getLine(i));
+                    }
+                }
+                super.onLines(count);
+            }
+        };
+        formatter.format(listener);
+
+        assertFalse(formatter.isJson());
+        assertEquals(1, listener.resets);
+        assertTrue(published.size() > 0);
+        assertEquals(published, lines(formatter, published.size()));
+
+        assertNotNull(listener.textFormatter);
+        assertNotSame(formatter, listener.textFormatter);
+        String[] rawLines = content.split("\n", -1);
+        assertEquals(rawLines.length, listener.lastCount);
+        for (int i = 0; i < rawLines.length; i++) {
+            assertEquals(rawLines[i], listener.textFormatter.getLine(i));
+        }
+    }
+
+    @Test
+    public void testCancelStopsTextFallback() {
+        final JsonLineFormatter formatter = new JsonLineFormatter("{\"a\":\n1\n2\n3");
+        RecordingListener listener = new RecordingListener() {
+            @Override
+            public void onReset(JsonLineFormatter textFormatter) {
+                super.onReset(textFormatter);
+                formatter.cancel();
+            }
+        };
+        formatter.format(listener);
+
+        assertEquals(1, listener.resets);
+        assertTrue(listener.textFormatter.isCancelled());
+        assertEquals(0, listener.lastCount);
+    }
+
+    private static List<String> lines(JsonLineFormatter formatter, int count) {
+        List<String> lines = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            lines.add(formatter.getLine(i));
+        }
+        return lines;
+    }
+
+    private static class RecordingListener implements JsonLineFormatter.Listener {
+        int lastCount;
+        int resets;
+        JsonLineFormatter textFormatter;
+
+        @Override
+        public void onLines(int count) {
+            lastCount = count;
+        }
+
+        @Override
+        public void onReset(JsonLineFormatter textFormatter) {
+            resets++;
+            this.textFormatter = textFormatter;
+            lastCount = 0;
+        }
+    }
+}
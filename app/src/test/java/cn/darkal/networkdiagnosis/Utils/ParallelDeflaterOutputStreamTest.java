@@ -0,0 +1,191 @@
+package cn.darkal.networkdiagnosis.Utils;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 多线程压缩的输出用标准的 {@link Inflater}、{@link GZIPInputStream} 解压后应和原始数据相同
+ */
+public class ParallelDeflaterOutputStreamTest {
+    private static final int THREADS = 4;
+    private static final int BLOCK_SIZE = 32 * 1024;
+
+    private static ExecutorService executor;
+
+    @BeforeClass
+    public static void setUpExecutor() {
+        executor = Executors.newFixedThreadPool(THREADS);
+    }
+
+    @AfterClass
+    public static void shutDownExecutor() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testParallelSupported() {
+        assertTrue(ParallelDeflaterOutputStream.isParallelSupported());
+    }
+
+    @Test
+    public void testEmptyInput() throws IOException {
+        assertDeflateRoundTrip(new byte[0], THREADS);
+        assertGzipRoundTrip(new byte[0], THREADS);
+    }
+
+    @Test
+    public void testSmallerThanOneBlock() throws IOException {
+        assertDeflateRoundTrip(text(1000), THREADS);
+        assertGzipRoundTrip(text(1000), THREADS);
+    }
+
+    @Test
+    public void testExactlyOneBlock() throws IOException {
+        assertDeflateRoundTrip(text(BLOCK_SIZE), THREADS);
+    }
+
+    @Test
+    public void testMultipleBlocks() throws IOException {
+        // 超过同时压缩的块数上限，写入线程需要等待
+        byte[] data = text(BLOCK_SIZE * THREADS * 5 + 123);
+
+        assertDeflateRoundTrip(data, THREADS);
+        assertGzipRoundTrip(data, THREADS);
+    }
+
+    @Test
+    public void testIncompressibleBlocks() throws IOException {
+        byte[] data = new byte[BLOCK_SIZE * 3 + 7];
+        new Random(1).nextBytes(data);
+
+        assertDeflateRoundTrip(data, THREADS);
+    }
+
+    @Test
+    public void testSingleThread() throws IOException {
+        byte[] data = text(BLOCK_SIZE * 3 + 123);
+
+        assertDeflateRoundTrip(data, 1);
+        assertGzipRoundTrip(data, 1);
+    }
+
+    @Test
+    public void testSingleByteWrites() throws IOException {
+        byte[] data = text(BLOCK_SIZE * 2 + 5);
+
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        ParallelDeflaterOutputStream out = new ParallelDeflaterOutputStream(compressed, Deflater.DEFAULT_COMPRESSION, executor, THREADS, BLOCK_SIZE);
+        for (byte b : data) {
+            out.write(b);
+        }
+        out.finish();
+
+        assertArrayEquals(data, readAll(new InflaterInputStream(new ByteArrayInputStream(compressed.toByteArray()), new Inflater(true))));
+    }
+
+    @Test
+    public void testCompressionCloseToSingleThread() throws IOException {
+        // 每块以上一块的最后32KB作为字典，分块不应明显降低压缩率
+        byte[] data = text(BLOCK_SIZE * 8);
+
+        int parallel = deflate(data, THREADS).length;
+        int sequential = deflate(data, 1).length;
+
+        assertTrue("parallel " + parallel + " bytes vs sequential " + sequential + " bytes", parallel < sequential * 1.05);
+    }
+
+    @Test
+    public void testCountersAndCrc() throws IOException {
+        byte[] data = text(BLOCK_SIZE * 2 + 9);
+
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        ParallelDeflaterOutputStream out = new ParallelDeflaterOutputStream(compressed, Deflater.DEFAULT_COMPRESSION, executor, THREADS, BLOCK_SIZE);
+        out.write(data);
+        out.finish();
+
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        assertEquals(crc.getValue(), out.getCrc());
+        assertEquals(data.length, out.getBytesRead());
+        assertEquals(compressed.size(), out.getBytesWritten());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testBlockSmallerThanDictionary() {
+        new ParallelDeflaterOutputStream(new ByteArrayOutputStream(), Deflater.DEFAULT_COMPRESSION, executor, THREADS, 1024);
+    }
+
+    private static void assertDeflateRoundTrip(byte[] data, int threads) throws IOException {
+        byte[] compressed = deflate(data, threads);
+
+        Inflater inflater = new Inflater(true);
+        assertArrayEquals(data, readAll(new InflaterInputStream(new ByteArrayInputStream(compressed), inflater)));
+        // 整个deflate流只有一个结束块
+        assertTrue(inflater.finished());
+        assertEquals(0, inflater.getRemaining());
+    }
+
+    private static void assertGzipRoundTrip(byte[] data, int threads) throws IOException {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        ParallelGzipOutputStream out = new ParallelGzipOutputStream(compressed, Deflater.DEFAULT_COMPRESSION, executor, threads);
+        out.write(data);
+        out.close();
+
+        // GZIPInputStream会校验结尾的CRC和长度
+        assertArrayEquals(data, readAll(new GZIPInputStream(new ByteArrayInputStream(compressed.toByteArray()))));
+    }
+
+    private static byte[] deflate(byte[] data, int threads) throws IOException {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        ParallelDeflaterOutputStream out = new ParallelDeflaterOutputStream(compressed, Deflater.DEFAULT_COMPRESSION, executor, threads, BLOCK_SIZE);
+        out.write(data);
+        out.close();
+        return compressed.toByteArray();
+    }
+
+    /**
+     * 类似抓包内容的可压缩文本
+     */
+    static byte[] text(int length) {
+        String[] words = {"GET", "POST", "http://", "example.com", "/api/v1/", "Content-Type", "application/json", "\"id\":", "\"name\":", "200", "\r\n"};
+        Random random = new Random(length);
+        StringBuilder builder = new StringBuilder(length + 32);
+        while (builder.length() < length) {
+            builder.append(words[random.nextInt(words.length)]).append(random.nextInt(1000)).append(' ');
+        }
+        builder.setLength(length);
+        return builder.toString().getBytes();
+    }
+
+    static byte[] readAll(InputStream in) throws IOException {
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                out.write(buffer, 0, n);
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+}
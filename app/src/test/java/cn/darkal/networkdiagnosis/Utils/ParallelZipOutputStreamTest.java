@@ -0,0 +1,151 @@
+package cn.darkal.networkdiagnosis.Utils;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+
+import static cn.darkal.networkdiagnosis.Utils.ParallelDeflaterOutputStreamTest.readAll;
+import static cn.darkal.networkdiagnosis.Utils.ParallelDeflaterOutputStreamTest.text;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+/**
+ * 多线程压缩的zip用 {@link ZipInputStream}（按本地文件头顺序读取）和 {@link ZipFile}（按中央目录读取）都应能解压
+ */
+public class ParallelZipOutputStreamTest {
+    private static final int THREADS = 4;
+
+    private static ExecutorService executor;
+
+    @BeforeClass
+    public static void setUpExecutor() {
+        executor = Executors.newFixedThreadPool(THREADS);
+    }
+
+    @AfterClass
+    public static void shutDownExecutor() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testEmptyArchive() throws IOException {
+        byte[] zip = zip(new String[0], new byte[0][]);
+
+        ZipInputStream in = new ZipInputStream(new ByteArrayInputStream(zip));
+        assertNull(in.getNextEntry());
+        in.close();
+    }
+
+    @Test
+    public void testEmptyEntry() throws IOException {
+        assertZipRoundTrip(new String[]{"empty.har"}, new byte[][]{new byte[0]});
+    }
+
+    @Test
+    public void testMultiBlockEntries() throws IOException {
+        int blocks = ParallelDeflaterOutputStream.DEFAULT_BLOCK_SIZE * THREADS * 3;
+        assertZipRoundTrip(new String[]{"first.har", "empty.txt", "抓包/second.har"},
+                new byte[][]{text(blocks + 17), new byte[0], text(ParallelDeflaterOutputStream.DEFAULT_BLOCK_SIZE + 1)});
+    }
+
+    @Test
+    public void testSingleThread() throws IOException {
+        String[] names = {"a.har", "b.har"};
+        byte[][] contents = {text(ParallelDeflaterOutputStream.DEFAULT_BLOCK_SIZE * 2 + 3), text(100)};
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ParallelZipOutputStream zip = new ParallelZipOutputStream(out, Deflater.DEFAULT_COMPRESSION, executor, 1);
+        for (int i = 0; i < names.length; i++) {
+            zip.putNextEntry(names[i]);
+            zip.write(contents[i]);
+        }
+        zip.close();
+
+        assertZipInputStream(out.toByteArray(), names, contents);
+    }
+
+    @Test(expected = IOException.class)
+    public void testWriteWithoutEntry() throws IOException {
+        ParallelZipOutputStream zip = new ParallelZipOutputStream(new ByteArrayOutputStream(), Deflater.DEFAULT_COMPRESSION, executor, THREADS);
+        zip.write(1);
+    }
+
+    private static void assertZipRoundTrip(String[] names, byte[][] contents) throws IOException {
+        byte[] zip = zip(names, contents);
+
+        assertZipInputStream(zip, names, contents);
+
+        File file = File.createTempFile("parallel", ".zip");
+        try {
+            FileOutputStream out = new FileOutputStream(file);
+            try {
+                out.write(zip);
+            } finally {
+                out.close();
+            }
+
+            ZipFile zipFile = new ZipFile(file);
+            try {
+                assertEquals(names.length, zipFile.size());
+                for (int i = 0; i < names.length; i++) {
+                    ZipEntry entry = zipFile.getEntry(names[i]);
+                    assertNotNull(names[i], entry);
+                    assertEquals(contents[i].length, entry.getSize());
+                    assertArrayEquals(contents[i], readAll(zipFile.getInputStream(entry)));
+                }
+            } finally {
+                zipFile.close();
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    private static void assertZipInputStream(byte[] zip, String[] names, byte[][] contents) throws IOException {
+        ZipInputStream in = new ZipInputStream(new ByteArrayInputStream(zip));
+        try {
+            for (int i = 0; i < names.length; i++) {
+                ZipEntry entry = in.getNextEntry();
+                assertNotNull(entry);
+                assertEquals(names[i], entry.getName());
+
+                ByteArrayOutputStream content = new ByteArrayOutputStream();
+                byte[] buffer = new byte[8192];
+                int n;
+                while ((n = in.read(buffer)) != -1) {
+                    content.write(buffer, 0, n);
+                }
+                // ZipInputStream会用data descriptor校验CRC和长度
+                assertArrayEquals(contents[i], content.toByteArray());
+            }
+            assertNull(in.getNextEntry());
+        } finally {
+            in.close();
+        }
+    }
+
+    private static byte[] zip(String[] names, byte[][] contents) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ParallelZipOutputStream zip = new ParallelZipOutputStream(out, Deflater.DEFAULT_COMPRESSION, executor, THREADS);
+        for (int i = 0; i < names.length; i++) {
+            zip.putNextEntry(names[i]);
+            zip.write(contents[i]);
+        }
+        zip.close();
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,259 @@
+package net.lightbody.bmp.core.har;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the URL templates {@link HarComparison} joins entries on, and that reading a HAR file as a stream aggregates the same
+ * statistics as adding the entries of the {@link HarLog}.
+ */
+public class HarComparisonTest {
+    private static final double[] QUANTILES = {0.5, 0.95};
+
+    @Test
+    public void testTemplateReplacesIds() {
+        assertEquals("GET https://api.example.com/users/{n}/avatar?size",
+                HarComparison.templateOf("get", "https://api.example.com/users/42/avatar?size=64"));
+        assertEquals("GET https://api.example.com/orders/{uuid}",
+                HarComparison.templateOf("GET", "https://api.example.com/orders/123e4567-e89b-12d3-a456-426614174000"));
+        assertEquals("GET https://api.example.com/commits/{hash}",
+                HarComparison.templateOf("GET", "https://api.example.com/commits/3f2a9c1b7d"));
+        assertEquals("GET https://api.example.com/session/{token}",
+                HarComparison.templateOf("GET", "https://api.example.com/session/aZ3kLm9QwErT5yUiOp2sDf"));
+        assertEquals("GET https://cdn.example.com/static/app.{hash}.js",
+                HarComparison.templateOf("GET", "https://cdn.example.com/static/app.3f2a9c1b.js"));
+    }
+
+    @Test
+    public void testTemplateKeepsWords() {
+        // words without digits are not hashes or tokens, even when they are long or made of hex letters
+        assertEquals("GET https://example.com/accessibility/deadbeef/facade",
+                HarComparison.templateOf("GET", "https://example.com/accessibility/deadbeef/facade"));
+        assertEquals("GET https://example.com/v2/app.min.js",
+                HarComparison.templateOf("GET", "https://example.com/v2/app.min.js"));
+    }
+
+    @Test
+    public void testTemplateNormalizesHostAndPort() {
+        String expected = "POST https://example.com/login";
+        assertEquals(expected, HarComparison.templateOf("POST", "HTTPS://Example.COM:443/login"));
+        assertEquals(expected, HarComparison.templateOf("POST", "https://example.com/login"));
+        assertEquals("POST http://example.com:8080/login", HarComparison.templateOf("POST", "http://example.com:8080/login"));
+        assertEquals("GET http://example.com/", HarComparison.templateOf("GET", "http://example.com"));
+    }
+
+    @Test
+    public void testTemplateKeepsSortedQueryNames() {
+        String expected = "GET https://example.com/search?page&q";
+        assertEquals(expected, HarComparison.templateOf("GET", "https://example.com/search?q=cats&page=2"));
+        assertEquals(expected, HarComparison.templateOf("GET", "https://example.com/search?page=3&q=dogs&q=birds"));
+        assertEquals(expected, HarComparison.templateOf("GET", "https://example.com/search?page&&q="));
+    }
+
+    @Test
+    public void testTemplateOfInvalidUrl() {
+        assertEquals("GET not a url", HarComparison.templateOf("GET", "not a url"));
+        assertEquals("GET ", HarComparison.templateOf("GET", null));
+    }
+
+    @Test
+    public void testStreamMatchesHarLog() throws IOException {
+        HarLog harLog = newLog();
+
+        HarComparison fromLog = new HarComparison();
+        fromLog.addAll(HarComparison.Side.CURRENT, harLog, null);
+
+        HarComparison fromStream = new HarComparison();
+        fromStream.addAll(HarComparison.Side.CURRENT, toStream(harLog), null);
+
+        HarComparison.Report report = fromStream.getReport(null);
+        assertSameReport(fromLog.getReport(null), report);
+        assertEquals(12, report.getTotal().getCurrent().getRequests());
+        // the server errors, the failed requests and the entries without a response
+        assertEquals(6, report.getTotal().getCurrent().getErrors());
+        assertEquals(2, report.getHosts().size());
+    }
+
+    @Test
+    public void testStreamMatchesHarLogForPage() throws IOException {
+        HarLog harLog = newLog();
+
+        HarComparison fromLog = new HarComparison();
+        fromLog.addAll(HarComparison.Side.BASELINE, harLog, "page_1");
+        fromLog.addAll(HarComparison.Side.CURRENT, harLog, "page_2");
+
+        HarComparison fromStream = new HarComparison();
+        fromStream.addAll(HarComparison.Side.BASELINE, toStream(harLog), "page_1");
+        fromStream.addAll(HarComparison.Side.CURRENT, toStream(harLog), "page_2");
+
+        HarComparison.Report report = fromStream.getReport(null);
+        assertSameReport(fromLog.getReport(null), report);
+        assertEquals(6, report.getTotal().getBaseline().getRequests());
+        assertEquals(6, report.getTotal().getCurrent().getRequests());
+    }
+
+    @Test
+    public void testStreamSkipsUnknownFields() throws IOException {
+        String har = "{\"comment\":{\"log\":{}},\"log\":{\"version\":\"1.2\",\"pages\":[{\"id\":\"page_1\"}],\"entries\":["
+                + "{\"pageref\":\"page_1\",\"_extra\":[1,{\"a\":2}],\"request\":{\"method\":\"GET\",\"url\":\"https://example.com/a/1\"},"
+                + "\"response\":{\"status\":200,\"bodySize\":100},\"timings\":{\"wait\":40}}]}}";
+
+        HarComparison comparison = new HarComparison();
+        comparison.addAll(HarComparison.Side.CURRENT, new ByteArrayInputStream(har.getBytes("UTF-8")), null);
+
+        HarComparison.Delta total = comparison.getReport(null).getTotal();
+        assertEquals(1, total.getCurrent().getRequests());
+        assertEquals(100, total.getCurrent().getBytes());
+        assertEquals(40, total.getCurrent().getPercentile(HarAnalytics.Timing.WAIT, 0.5));
+    }
+
+    @Test(expected = IOException.class)
+    public void testStreamWithoutObject() throws IOException {
+        new HarComparison().addAll(HarComparison.Side.CURRENT, new ByteArrayInputStream("[]".getBytes("UTF-8")), null);
+    }
+
+    @Test
+    public void testAddedRemovedAndChangedTemplates() {
+        HarComparison comparison = new HarComparison();
+        comparison.add(HarComparison.Side.BASELINE, newEntry(null, "GET", "https://example.com/users/1", 200, 100, 10));
+        comparison.add(HarComparison.Side.BASELINE, newEntry(null, "GET", "https://example.com/old", 200, 50, 10));
+        comparison.add(HarComparison.Side.CURRENT, newEntry(null, "GET", "https://example.com/users/2", 200, 100, 10));
+        comparison.add(HarComparison.Side.CURRENT, newEntry(null, "GET", "https://example.com/users/3", 200, 100, 10));
+        comparison.add(HarComparison.Side.CURRENT, newEntry(null, "GET", "https://example.com/new", 404, 10, 10));
+
+        HarComparison.Report report = comparison.getReport(null);
+
+        assertEquals(1, report.getAdded().size());
+        assertEquals("GET https://example.com/new", report.getAdded().get(0).getKey());
+        assertEquals(1, report.getAdded().get(0).getCurrent().getErrors());
+        assertEquals(1, report.getRemoved().size());
+        assertEquals("GET https://example.com/old", report.getRemoved().get(0).getKey());
+        assertEquals(1, report.getChanged().size());
+        assertEquals("GET https://example.com/users/{n}", report.getChanged().get(0).getKey());
+        assertEquals(1, report.getChanged().get(0).getRequestDelta());
+        assertEquals(100, report.getChanged().get(0).getByteDelta());
+    }
+
+    @Test
+    public void testBudget() {
+        HarComparison comparison = new HarComparison();
+        for (int i = 0; i < 10; i++) {
+            comparison.add(HarComparison.Side.BASELINE, newEntry(null, "GET", "https://example.com/a", 200, 100, 40));
+            comparison.add(HarComparison.Side.CURRENT, newEntry(null, "GET", "https://example.com/a", 200, 120, 40));
+        }
+
+        HarComparison.Budget budget = new HarComparison.Budget()
+                .setMaxIncrease(HarComparison.Metric.TOTAL_BYTES, 0.1)
+                .setMaxValue(HarComparison.Metric.REQUESTS, 10)
+                .setMaxValue(HarComparison.Metric.P95_WAIT, 50);
+
+        HarComparison.Report report = comparison.getReport(budget);
+
+        assertFalse(report.isWithinBudget());
+        assertEquals(1, report.getViolations().size());
+        HarComparison.Violation violation = report.getViolations().get(0);
+        assertEquals(HarComparison.Metric.TOTAL_BYTES, violation.getMetric());
+        assertEquals(1000, violation.getBaselineValue());
+        assertEquals(1200, violation.getCurrentValue());
+        assertEquals(1100, violation.getLimit());
+
+        assertTrue(comparison.getReport(budget.setMaxIncrease(HarComparison.Metric.TOTAL_BYTES, 0.2)).isWithinBudget());
+    }
+
+    /**
+     * Two pages with the same requests at different ids and sizes, over two hosts, including an error, a failed request without a
+     * status and an entry without a response.
+     */
+    private static HarLog newLog() {
+        HarLog harLog = new HarLog();
+        harLog.addPage(new HarPage("page_1"));
+        harLog.addPage(new HarPage("page_2"));
+
+        for (int page = 1; page <= 2; page++) {
+            String pageRef = "page_" + page;
+            harLog.addEntry(newEntry(pageRef, "GET", "https://api.example.com/users/" + page + "?fields=name", 200, 1000 * page, 40 * page));
+            harLog.addEntry(newEntry(pageRef, "GET", "https://api.example.com/users/" + (page + 10) + "?fields=id", 200, 900, 35));
+            harLog.addEntry(newEntry(pageRef, "POST", "https://api.example.com/events", 500, 20, 300 * page));
+            harLog.addEntry(newEntry(pageRef, "GET", "https://cdn.example.com/app." + (page == 1 ? "3f2a9c1b" : "77e0d4a2") + ".js", 200, 50000, 5));
+
+            HarEntry failed = newEntry(pageRef, "GET", "https://cdn.example.com/logo.png", 0, -1, -1);
+            failed.getResponse().setError("Unable to connect to host");
+            harLog.addEntry(failed);
+
+            HarEntry noResponse = new HarEntry(pageRef);
+            noResponse.setStartedDateTime(new Date());
+            noResponse.setRequest(new HarRequest("GET", "https://api.example.com/pending", "HTTP/1.1"));
+            harLog.addEntry(noResponse);
+        }
+
+        return harLog;
+    }
+
+    private static HarEntry newEntry(String pageRef, String method, String url, int status, long bodySize, long wait) {
+        HarEntry entry = new HarEntry(pageRef);
+        entry.setStartedDateTime(new Date());
+        entry.setRequest(new HarRequest(method, url, "HTTP/1.1"));
+
+        HarResponse response = new HarResponse(status, "", "HTTP/1.1");
+        response.setBodySize(bodySize);
+        entry.setResponse(response);
+
+        HarTimings timings = new HarTimings();
+        timings.setDns(wait < 0 ? -1 : 2);
+        timings.setConnect(wait < 0 ? -1 : 10);
+        timings.setSsl(wait < 0 ? -1 : 6);
+        timings.setSend(1);
+        timings.setWait(wait);
+        timings.setReceive(wait < 0 ? 0 : 3);
+        entry.setTimings(timings);
+
+        return entry;
+    }
+
+    private static InputStream toStream(HarLog harLog) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new Har(harLog).writeTo(out);
+        return new ByteArrayInputStream(out.toByteArray());
+    }
+
+    private static void assertSameReport(HarComparison.Report expected, HarComparison.Report actual) {
+        assertSameDeltas(Collections.singletonList(expected.getTotal()), Collections.singletonList(actual.getTotal()));
+        assertSameDeltas(expected.getAdded(), actual.getAdded());
+        assertSameDeltas(expected.getRemoved(), actual.getRemoved());
+        assertSameDeltas(expected.getChanged(), actual.getChanged());
+        assertSameDeltas(expected.getHosts(), actual.getHosts());
+    }
+
+    private static void assertSameDeltas(List<HarComparison.Delta> expected, List<HarComparison.Delta> actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.get(i).getKey(), actual.get(i).getKey());
+            assertSameStats(expected.get(i).getKey(), expected.get(i).getBaseline(), actual.get(i).getBaseline());
+            assertSameStats(expected.get(i).getKey(), expected.get(i).getCurrent(), actual.get(i).getCurrent());
+        }
+    }
+
+    private static void assertSameStats(String key, HarComparison.Stats expected, HarComparison.Stats actual) {
+        assertEquals(key, expected.getRequests(), actual.getRequests());
+        assertEquals(key, expected.getErrors(), actual.getErrors());
+        assertEquals(key, expected.getBytes(), actual.getBytes());
+        assertEquals(key, expected.getMeanTime(), actual.getMeanTime(), 1e-9);
+        for (HarAnalytics.Timing timing : HarAnalytics.Timing.values()) {
+            for (double quantile : QUANTILES) {
+                assertEquals(key + " " + timing + " p" + quantile * 100,
+                        expected.getPercentile(timing, quantile), actual.getPercentile(timing, quantile));
+            }
+        }
+    }
+}
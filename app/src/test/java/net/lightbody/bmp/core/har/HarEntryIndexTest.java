@@ -0,0 +1,63 @@
+package net.lightbody.bmp.core.har;
+
+import org.junit.Test;
+
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks which fields of an entry can be searched before and after the entry completes.
+ */
+public class HarEntryIndexTest {
+    @Test
+    public void testUrlIsSearchableWhenAdded() {
+        HarEntryIndex index = new HarEntryIndex();
+        HarEntry entry = newEntry("https://api.example.com/v2/items?page=1");
+
+        index.entryAdded(entry);
+
+        assertTrue(index.matches(entry, "host:api.example.com"));
+        assertTrue(index.matches(entry, "query:page"));
+        assertTrue(index.matches(entry, "v2"));
+        assertEquals(Collections.singletonList(entry), index.search("items"));
+    }
+
+    @Test
+    public void testHeadersAreSearchableOnlyAfterCompletion() {
+        HarEntryIndex index = new HarEntryIndex();
+        HarEntry entry = newEntry("https://cdn.example.com/logo");
+
+        index.entryAdded(entry);
+        assertFalse(index.matches(entry, "header:image/webp"));
+
+        HarResponse response = new HarResponse(200, "OK", "HTTP/1.1");
+        response.getHeaders().add(new HarNameValuePair("Content-Type", "image/webp"));
+        response.getContent().setMimeType("image/webp");
+        entry.setResponse(response);
+        index.entryCompleted(entry);
+
+        assertTrue(index.matches(entry, "header:image/webp"));
+        assertTrue(index.matches(entry, "webp"));
+    }
+
+    @Test
+    public void testUserAgentIsNotIndexedByDefault() {
+        HarEntryIndex index = new HarEntryIndex();
+        HarEntry entry = newEntry("https://example.com/");
+        entry.getRequest().getHeaders().add(new HarNameValuePair("User-Agent", "Mozilla/5.0 (Linux; Android 7.0) Chrome/58.0"));
+
+        index.entryAdded(entry);
+        index.entryCompleted(entry);
+
+        assertFalse(index.matches(entry, "header:mozilla"));
+    }
+
+    private static HarEntry newEntry(String url) {
+        HarEntry entry = new HarEntry("page");
+        entry.setRequest(new HarRequest("GET", url, "HTTP/1.1"));
+        return entry;
+    }
+}
@@ -0,0 +1,80 @@
+package net.lightbody.bmp.core.har;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Evaluates queries against the summary's columns, for completed and in-flight entries.
+ */
+public class HarEntrySummaryTest {
+    private HarEntrySummary summary;
+    private HarEntry completed;
+    private HarEntry inFlight;
+
+    @Before
+    public void setUp() {
+        summary = new HarEntrySummary();
+
+        completed = newEntry("https://api.example.com/items");
+        summary.entryAdded(completed);
+        HarResponse response = new HarResponse(200, "OK", "HTTP/1.1");
+        response.setBodySize(512);
+        response.getContent().setMimeType("application/json");
+        completed.setResponse(response);
+        summary.entryCompleted(completed);
+
+        inFlight = newEntry("https://api.example.com/slow");
+        summary.entryAdded(inFlight);
+    }
+
+    @Test
+    public void testNumericConditionsSkipInFlightEntries() {
+        assertEquals(Collections.singletonList(completed), select("status!=404"));
+        assertEquals(Collections.singletonList(completed), select("size<1KB"));
+        assertEquals(Collections.<HarEntry>emptyList(), select("status<100"));
+
+        assertFalse(summary.matches(inFlight, HarQuery.parse("status!=404"), null));
+        assertFalse(summary.matches(inFlight, HarQuery.parse("time<10ms"), null));
+    }
+
+    @Test
+    public void testMimeConditionsSkipInFlightEntries() {
+        assertEquals(Collections.<HarEntry>emptyList(), select("mime!=application/json"));
+        assertFalse(summary.matches(inFlight, HarQuery.parse("mime!=application/json"), null));
+    }
+
+    @Test
+    public void testConditionsKnownWhenAddedMatchInFlightEntries() {
+        assertEquals(Arrays.asList(completed, inFlight), select("host:api.example.com"));
+        assertTrue(summary.matches(inFlight, HarQuery.parse("method=GET"), null));
+    }
+
+    @Test
+    public void testEntryMatchesOnceCompleted() {
+        assertFalse(summary.matches(inFlight, HarQuery.parse("status>=500"), null));
+
+        inFlight.setResponse(new HarResponse(503, "Service Unavailable", "HTTP/1.1"));
+        summary.entryCompleted(inFlight);
+
+        assertTrue(summary.matches(inFlight, HarQuery.parse("status>=500"), null));
+        assertEquals(Collections.singletonList(inFlight), select("status>=500"));
+    }
+
+    private List<HarEntry> select(String query) {
+        return summary.select(HarQuery.parse(query), null);
+    }
+
+    private static HarEntry newEntry(String url) {
+        HarEntry entry = new HarEntry("page");
+        entry.setRequest(new HarRequest("GET", url, "HTTP/1.1"));
+        return entry;
+    }
+}
@@ -0,0 +1,184 @@
+package net.lightbody.bmp.filters;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelOutboundHandlerAdapter;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.DefaultHttpRequest;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpResponseEncoder;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpVersion;
+import net.lightbody.bmp.proxy.replay.HarReplayIndex;
+import net.lightbody.bmp.proxy.replay.ReplayDelayHandler;
+import net.lightbody.bmp.proxy.replay.UnmatchedRequestPolicy;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that {@link HarReplayFilter} short-circuits recorded requests, handles unmatched requests according to the policy, and
+ * delays replayed responses ahead of the HTTP encoder rather than the TLS handler.
+ */
+public class HarReplayFilterTest {
+    private static final String URL = "http://www.example.com/recorded";
+
+    private static final int RECORDED_TIME_MS = 25;
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    private HarReplayIndex index;
+    private EmbeddedChannel channel;
+
+    @Before
+    public void setUp() throws IOException {
+        StringBuilder har = new StringBuilder("{\"log\":{\"entries\":[");
+        for (int i = 0; i < 1000; i++) {
+            if (i > 0) {
+                har.append(',');
+            }
+            har.append("{\"request\":{\"method\":\"GET\",\"url\":\"").append(URL).append(i == 0 ? "" : "/" + i).append("\"},")
+                    .append("\"response\":{\"status\":200,\"statusText\":\"OK\",\"headers\":[],")
+                    .append("\"content\":{\"mimeType\":\"text/plain\",\"text\":\"recorded body\"}},")
+                    .append("\"timings\":{\"wait\":").append(RECORDED_TIME_MS).append(",\"receive\":0}}");
+        }
+        har.append("]}}");
+
+        File harFile = tempFolder.newFile();
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(harFile), StandardCharsets.UTF_8)) {
+            writer.write(har.toString());
+        }
+
+        index = HarReplayIndex.fromFile(harFile);
+
+        // stands in for the SslHandler at the head of an HTTPS client pipeline
+        channel = new EmbeddedChannel();
+        channel.pipeline().addLast("ssl", new ChannelOutboundHandlerAdapter());
+        channel.pipeline().addLast(ReplayDelayHandler.ENCODER_HANDLER_NAME, new HttpResponseEncoder());
+    }
+
+    @After
+    public void tearDown() {
+        channel.finish();
+        releaseOutbound();
+    }
+
+    @Test
+    public void testRecordedRequestIsShortCircuited() {
+        HttpResponse response = replay(URL, false, UnmatchedRequestPolicy.PASS_THROUGH);
+
+        assertNotNull(response);
+        assertEquals(HttpResponseStatus.OK, response.getStatus());
+        assertNull("no delay without preserved timings", channel.pipeline().get(ReplayDelayHandler.class));
+    }
+
+    @Test
+    public void testUnmatchedRequestPassesThrough() {
+        assertNull(replay("http://www.example.com/unrecorded", false, UnmatchedRequestPolicy.PASS_THROUGH));
+    }
+
+    @Test
+    public void testUnmatchedRequestFailsFast() {
+        HttpResponse response = replay("http://www.example.com/unrecorded", false, UnmatchedRequestPolicy.FAIL_FAST);
+
+        assertNotNull(response);
+        assertEquals(HttpResponseStatus.NOT_FOUND, response.getStatus());
+    }
+
+    @Test
+    public void testConnectIsNeverReplayed() {
+        HttpRequest connect = new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.CONNECT, "www.example.com:443");
+        HarReplayFilter filter = new HarReplayFilter(connect, channel.pipeline().context(ReplayDelayHandler.ENCODER_HANDLER_NAME), index,
+                true, UnmatchedRequestPolicy.FAIL_FAST);
+
+        assertNull(filter.clientToProxyRequest(connect));
+    }
+
+    @Test
+    public void testDelayIsInstalledAfterEncoder() throws InterruptedException {
+        long start = System.nanoTime();
+        HttpResponse response = replay(URL, true, UnmatchedRequestPolicy.PASS_THROUGH);
+        assertNotNull(response);
+
+        List<String> names = channel.pipeline().names();
+        int encoderIndex = names.indexOf(ReplayDelayHandler.ENCODER_HANDLER_NAME);
+        assertEquals("the delay should hold HTTP objects, not ciphertext", 0, names.indexOf("ssl"));
+        assertTrue(names.toString(), channel.pipeline().get(names.get(encoderIndex + 1)) instanceof ReplayDelayHandler);
+
+        // LittleProxy writes the short-circuit response to the client
+        channel.writeAndFlush(response);
+        assertNull("the response should be held until the recorded time has elapsed", channel.readOutbound());
+
+        while (channel.pipeline().get(ReplayDelayHandler.class) != null) {
+            Thread.sleep(5);
+            channel.runScheduledPendingTasks();
+        }
+
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(RECORDED_TIME_MS));
+        assertTrue("the released response should have been encoded", releaseOutbound().startsWith("HTTP/1.1 200 OK"));
+    }
+
+    /**
+     * Replays recorded responses through the filter and the client's HTTP encoder on one thread. Fetching from a real server takes at
+     * least a network round trip (a millisecond or more even on a LAN), so replay has to sustain well over 1,000 responses per second on
+     * one thread to be useful for load testing client code. Replay sustains tens of thousands per second here, even before the JIT has
+     * warmed up, so the bound only fails if replay regresses to something like per-request I/O.
+     */
+    @Test
+    public void testReplayThroughput() {
+        int requests = 20000;
+
+        long start = System.nanoTime();
+        for (int i = 0; i < requests; i++) {
+            String url = URL + (i % 1000 == 0 ? "" : "/" + (i % 1000));
+            HttpResponse response = replay(url, false, UnmatchedRequestPolicy.FAIL_FAST);
+            assertEquals(HttpResponseStatus.OK, response.getStatus());
+
+            channel.writeAndFlush(response);
+            releaseOutbound();
+        }
+        long elapsedNanos = System.nanoTime() - start;
+
+        double responsesPerSecond = requests / (elapsedNanos / 1e9);
+        assertTrue("replayed only " + (long) responsesPerSecond + " responses per second", responsesPerSecond > 1000);
+    }
+
+    private HttpResponse replay(String url, boolean preserveTimings, UnmatchedRequestPolicy policy) {
+        HttpRequest request = new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, url);
+        ChannelHandlerContext ctx = channel.pipeline().context(ReplayDelayHandler.ENCODER_HANDLER_NAME);
+
+        HarReplayFilter filter = new HarReplayFilter(request, ctx, index, preserveTimings, policy);
+
+        return filter.clientToProxyRequest(request);
+    }
+
+    private String releaseOutbound() {
+        StringBuilder output = new StringBuilder();
+        Object msg;
+        while ((msg = channel.readOutbound()) != null) {
+            output.append(((ByteBuf) msg).toString(StandardCharsets.UTF_8));
+            ((ByteBuf) msg).release();
+        }
+
+        return output.toString();
+    }
+}
@@ -0,0 +1,212 @@
+package net.lightbody.bmp.filters;
+
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.DefaultHttpRequest;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpResponseEncoder;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpVersion;
+import net.lightbody.bmp.proxy.MapLocalRule;
+import net.lightbody.bmp.proxy.local.LocalFileHttpResponse;
+import net.lightbody.bmp.proxy.local.LocalFileResponseHandler;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Date;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks how {@link MapLocalFilter} parses Range and If-Range headers and answers mapped requests.
+ */
+public class MapLocalFilterTest {
+    private static final long FILE_LENGTH = 1000L;
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    private File file;
+    private EmbeddedChannel channel;
+
+    @Before
+    public void setUp() throws IOException {
+        file = tempFolder.newFile("data.json");
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(new byte[(int) FILE_LENGTH]);
+        }
+
+        channel = new EmbeddedChannel();
+        channel.pipeline().addLast(LocalFileResponseHandler.ENCODER_HANDLER_NAME, new HttpResponseEncoder());
+    }
+
+    @After
+    public void tearDown() {
+        channel.finish();
+    }
+
+    @Test
+    public void testParseSingleRange() {
+        assertArrayEquals(new long[] {0, 99}, MapLocalFilter.parseRange("bytes=0-99", FILE_LENGTH));
+        assertArrayEquals(new long[] {100, 100}, MapLocalFilter.parseRange(" bytes= 100 - 100 ", FILE_LENGTH));
+        assertArrayEquals("last position is capped at the end of the file", new long[] {900, 999},
+                MapLocalFilter.parseRange("bytes=900-5000", FILE_LENGTH));
+    }
+
+    @Test
+    public void testParseOpenEndedRange() {
+        assertArrayEquals(new long[] {500, 999}, MapLocalFilter.parseRange("bytes=500-", FILE_LENGTH));
+        assertArrayEquals(new long[] {999, 999}, MapLocalFilter.parseRange("bytes=999-", FILE_LENGTH));
+        assertSame(MapLocalFilter.UNSATISFIABLE_RANGE, MapLocalFilter.parseRange("bytes=1000-", FILE_LENGTH));
+    }
+
+    @Test
+    public void testParseSuffixRange() {
+        assertArrayEquals(new long[] {900, 999}, MapLocalFilter.parseRange("bytes=-100", FILE_LENGTH));
+        assertArrayEquals("a suffix longer than the file selects the whole file", new long[] {0, 999},
+                MapLocalFilter.parseRange("bytes=-5000", FILE_LENGTH));
+        assertSame(MapLocalFilter.UNSATISFIABLE_RANGE, MapLocalFilter.parseRange("bytes=-0", FILE_LENGTH));
+        assertSame(MapLocalFilter.UNSATISFIABLE_RANGE, MapLocalFilter.parseRange("bytes=-10", 0L));
+    }
+
+    @Test
+    public void testUnsupportedOrInvalidRangesSelectWholeFile() {
+        assertNull("multiple ranges fall back to the whole file", MapLocalFilter.parseRange("bytes=0-9,20-29", FILE_LENGTH));
+        assertNull(MapLocalFilter.parseRange("items=0-9", FILE_LENGTH));
+        assertNull(MapLocalFilter.parseRange("bytes=9-0", FILE_LENGTH));
+        assertNull(MapLocalFilter.parseRange("bytes=a-b", FILE_LENGTH));
+        assertNull(MapLocalFilter.parseRange("bytes=10", FILE_LENGTH));
+        assertNull(MapLocalFilter.parseRange("bytes=-", FILE_LENGTH));
+    }
+
+    @Test
+    public void testIfRangeDates() {
+        // HTTP dates have a resolution of one second
+        long lastModified = 1500000000123L;
+
+        HttpRequest noIfRange = request(HttpMethod.GET);
+        assertTrue(MapLocalFilter.isIfRangeSatisfied(noIfRange, lastModified));
+
+        HttpRequest sameSecond = request(HttpMethod.GET);
+        HttpHeaders.setDateHeader(sameSecond, HttpHeaders.Names.IF_RANGE, new Date(1500000000000L));
+        assertTrue(MapLocalFilter.isIfRangeSatisfied(sameSecond, lastModified));
+
+        HttpRequest later = request(HttpMethod.GET);
+        HttpHeaders.setDateHeader(later, HttpHeaders.Names.IF_RANGE, new Date(1500000060000L));
+        assertTrue(MapLocalFilter.isIfRangeSatisfied(later, lastModified));
+
+        HttpRequest earlier = request(HttpMethod.GET);
+        HttpHeaders.setDateHeader(earlier, HttpHeaders.Names.IF_RANGE, new Date(1499999999000L));
+        assertFalse("file changed since the client's copy", MapLocalFilter.isIfRangeSatisfied(earlier, lastModified));
+
+        HttpRequest entityTag = request(HttpMethod.GET);
+        entityTag.headers().set(HttpHeaders.Names.IF_RANGE, "\"abc123\"");
+        assertFalse("local files have no entity tags", MapLocalFilter.isIfRangeSatisfied(entityTag, lastModified));
+    }
+
+    @Test
+    public void testWholeFileResponse() {
+        HttpResponse response = mapLocal(request(HttpMethod.GET));
+
+        assertTrue(response instanceof LocalFileHttpResponse);
+        assertEquals(HttpResponseStatus.OK, response.getStatus());
+        assertEquals(FILE_LENGTH, HttpHeaders.getContentLength(response));
+        assertTrue(HttpHeaders.getHeader(response, HttpHeaders.Names.CONTENT_TYPE).startsWith("application/json"));
+        assertEquals(HttpHeaders.Values.BYTES, HttpHeaders.getHeader(response, HttpHeaders.Names.ACCEPT_RANGES));
+        assertNotNull(HttpHeaders.getHeader(response, HttpHeaders.Names.LAST_MODIFIED));
+        assertNotNull("body writer should be installed after the encoder", channel.pipeline().get(LocalFileResponseHandler.class));
+    }
+
+    @Test
+    public void testPartialContentResponse() {
+        HttpRequest request = request(HttpMethod.GET);
+        request.headers().set(HttpHeaders.Names.RANGE, "bytes=-100");
+
+        LocalFileHttpResponse response = (LocalFileHttpResponse) mapLocal(request);
+
+        assertEquals(HttpResponseStatus.PARTIAL_CONTENT, response.getStatus());
+        assertEquals("bytes 900-999/1000", HttpHeaders.getHeader(response, HttpHeaders.Names.CONTENT_RANGE));
+        assertEquals(100L, HttpHeaders.getContentLength(response));
+        assertEquals(900L, response.getPosition());
+        assertEquals(100L, response.getCount());
+    }
+
+    @Test
+    public void testStaleIfRangeSendsWholeFile() {
+        HttpRequest request = request(HttpMethod.GET);
+        request.headers().set(HttpHeaders.Names.RANGE, "bytes=0-9");
+        HttpHeaders.setDateHeader(request, HttpHeaders.Names.IF_RANGE, new Date(file.lastModified() - 60000L));
+
+        HttpResponse response = mapLocal(request);
+
+        assertEquals(HttpResponseStatus.OK, response.getStatus());
+        assertEquals(FILE_LENGTH, HttpHeaders.getContentLength(response));
+    }
+
+    @Test
+    public void testUnsatisfiableRange() {
+        HttpRequest request = request(HttpMethod.GET);
+        request.headers().set(HttpHeaders.Names.RANGE, "bytes=2000-");
+
+        HttpResponse response = mapLocal(request);
+
+        assertEquals(HttpResponseStatus.REQUESTED_RANGE_NOT_SATISFIABLE, response.getStatus());
+        assertEquals("bytes */1000", HttpHeaders.getHeader(response, HttpHeaders.Names.CONTENT_RANGE));
+        assertEquals(0L, HttpHeaders.getContentLength(response));
+        assertNull(channel.pipeline().get(LocalFileResponseHandler.class));
+    }
+
+    @Test
+    public void testHeadResponseHasNoBody() {
+        HttpResponse response = mapLocal(request(HttpMethod.HEAD));
+
+        assertTrue(response instanceof FullHttpResponse);
+        assertEquals(FILE_LENGTH, HttpHeaders.getContentLength(response));
+        assertNull(channel.pipeline().get(LocalFileResponseHandler.class));
+    }
+
+    @Test
+    public void testMissingFileIsNotFound() {
+        assertTrue(file.delete());
+
+        HttpResponse response = mapLocal(request(HttpMethod.GET));
+
+        assertEquals(HttpResponseStatus.NOT_FOUND, response.getStatus());
+    }
+
+    @Test
+    public void testOtherMethodsAndUrlsAreNotMapped() {
+        assertNull(mapLocal(request(HttpMethod.POST)));
+
+        HttpRequest unmapped = new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, "http://www.example.com/other.json");
+        assertNull(mapLocal(unmapped));
+    }
+
+    private HttpResponse mapLocal(HttpRequest request) {
+        MapLocalRule rule = new MapLocalRule("http://www\\.example\\.com/data\\.json", file);
+        MapLocalFilter filter = new MapLocalFilter(request, channel.pipeline().context(LocalFileResponseHandler.ENCODER_HANDLER_NAME),
+                Collections.singletonList(rule));
+
+        return filter.clientToProxyRequest(request);
+    }
+
+    private static HttpRequest request(HttpMethod method) {
+        return new DefaultHttpRequest(HttpVersion.HTTP_1_1, method, "http://www.example.com/data.json");
+    }
+}
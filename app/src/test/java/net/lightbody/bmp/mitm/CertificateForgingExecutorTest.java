@@ -0,0 +1,208 @@
+package net.lightbody.bmp.mitm;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks that forges for the same key are joined, and that certificates are never forged on the calling thread, even when the executor
+ * is saturated.
+ */
+public class CertificateForgingExecutorTest {
+    private ExecutorService callers;
+
+    @Before
+    public void setUp() {
+        callers = Executors.newCachedThreadPool();
+    }
+
+    @After
+    public void tearDown() {
+        callers.shutdownNow();
+    }
+
+    @Test
+    public void testConcurrentForgesAreJoined() throws Exception {
+        CertificateForgingExecutor forgingExecutor = new CertificateForgingExecutor(2, 16);
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger forges = new AtomicInteger();
+
+        Future<String> first = forgeOnCaller(forgingExecutor, "example.com", blockingForge(release, forges));
+        waitForInFlight(forgingExecutor, 1);
+        Future<String> second = forgeOnCaller(forgingExecutor, "example.com", blockingForge(release, forges));
+        waitForJoined(forgingExecutor, 1);
+
+        release.countDown();
+
+        assertEquals(first.get(5, TimeUnit.SECONDS), second.get(5, TimeUnit.SECONDS));
+        assertEquals(1, forges.get());
+        assertEquals(1, forgingExecutor.getStartedForgeCount());
+        assertEquals(1, forgingExecutor.getJoinedForgeCount());
+        forgingExecutor.close();
+    }
+
+    @Test
+    public void testForgeJoinsPrefetch() throws Exception {
+        CertificateForgingExecutor forgingExecutor = new CertificateForgingExecutor(1, 16);
+        AtomicInteger forges = new AtomicInteger();
+        CountDownLatch release = new CountDownLatch(1);
+
+        forgingExecutor.prefetch("example.com", blockingForge(release, forges));
+        Future<String> forge = forgeOnCaller(forgingExecutor, "example.com", blockingForge(release, forges));
+        waitForJoined(forgingExecutor, 1);
+        release.countDown();
+
+        forge.get(5, TimeUnit.SECONDS);
+        assertEquals(1, forges.get());
+        assertEquals(1, forgingExecutor.getJoinedForgeCount());
+        forgingExecutor.close();
+    }
+
+    @Test
+    public void testSaturatedForgeRunsOnForgingThread() throws Exception {
+        CertificateForgingExecutor forgingExecutor = new CertificateForgingExecutor(1, 1);
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger forges = new AtomicInteger();
+
+        // one forge running and one queued saturate the executor
+        forgingExecutor.prefetch("running.example.com", blockingForge(release, forges));
+        waitForInFlight(forgingExecutor, 1);
+        forgingExecutor.prefetch("queued.example.com", blockingForge(release, forges));
+
+        Future<String> saturated = forgeOnCaller(forgingExecutor, "saturated.example.com", new Callable<String>() {
+            @Override
+            public String call() {
+                return Thread.currentThread().getName();
+            }
+        });
+        waitForSaturated(forgingExecutor, 1);
+        assertFalse(saturated.isDone());
+
+        release.countDown();
+
+        assertTrue(saturated.get(5, TimeUnit.SECONDS).startsWith("certificate-forger-"));
+        assertEquals(0, forgingExecutor.getRejectedForgeCount());
+        assertEquals(3, forgingExecutor.getStartedForgeCount());
+        forgingExecutor.close();
+    }
+
+    @Test
+    public void testPrefetchSkippedWhenSaturated() throws Exception {
+        CertificateForgingExecutor forgingExecutor = new CertificateForgingExecutor(1, 1);
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger forges = new AtomicInteger();
+
+        forgingExecutor.prefetch("running.example.com", blockingForge(release, forges));
+        waitForInFlight(forgingExecutor, 1);
+        forgingExecutor.prefetch("queued.example.com", blockingForge(release, forges));
+        forgingExecutor.prefetch("skipped.example.com", blockingForge(release, forges));
+
+        assertEquals(2, forgingExecutor.getInFlightForgeCount());
+        assertEquals(2, forgingExecutor.getStartedForgeCount());
+
+        release.countDown();
+        forgingExecutor.close();
+    }
+
+    @Test
+    public void testForgeAfterCloseFails() throws InterruptedException {
+        CertificateForgingExecutor forgingExecutor = new CertificateForgingExecutor(1, 1);
+        forgingExecutor.close();
+
+        final AtomicInteger forges = new AtomicInteger();
+        try {
+            forgingExecutor.forge("example.com", new Callable<String>() {
+                @Override
+                public String call() {
+                    forges.incrementAndGet();
+                    return "forged";
+                }
+            });
+            fail("Expected the forge to fail");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof RejectedExecutionException);
+        }
+
+        assertEquals(0, forges.get());
+        assertEquals(1, forgingExecutor.getRejectedForgeCount());
+        assertEquals(0, forgingExecutor.getInFlightForgeCount());
+    }
+
+    @Test
+    public void testFailedForgeIsForgedAgain() throws Exception {
+        CertificateForgingExecutor forgingExecutor = new CertificateForgingExecutor(1, 16);
+        final AtomicInteger forges = new AtomicInteger();
+        Callable<String> failOnce = new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                if (forges.incrementAndGet() == 1) {
+                    throw new IllegalStateException("Signing failed");
+                }
+                return "forged";
+            }
+        };
+
+        try {
+            forgingExecutor.forge("example.com", failOnce);
+            fail("Expected the forge to fail");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+
+        assertEquals("forged", forgingExecutor.forge("example.com", failOnce));
+        forgingExecutor.close();
+    }
+
+    private Future<String> forgeOnCaller(final CertificateForgingExecutor forgingExecutor, final String key, final Callable<String> forge) {
+        return callers.submit(new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                return forgingExecutor.forge(key, forge);
+            }
+        });
+    }
+
+    private static Callable<String> blockingForge(final CountDownLatch release, final AtomicInteger forges) {
+        return new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                forges.incrementAndGet();
+                release.await();
+                return "forged by " + Thread.currentThread().getName();
+            }
+        };
+    }
+
+    private static void waitForInFlight(CertificateForgingExecutor forgingExecutor, int inFlight) throws InterruptedException {
+        while (forgingExecutor.getInFlightForgeCount() < inFlight) {
+            Thread.sleep(1);
+        }
+    }
+
+    private static void waitForJoined(CertificateForgingExecutor forgingExecutor, int joined) throws InterruptedException {
+        while (forgingExecutor.getJoinedForgeCount() < joined) {
+            Thread.sleep(1);
+        }
+    }
+
+    private static void waitForSaturated(CertificateForgingExecutor forgingExecutor, int saturated) throws InterruptedException {
+        while (forgingExecutor.getSaturatedForgeCount() < saturated) {
+            Thread.sleep(1);
+        }
+    }
+}
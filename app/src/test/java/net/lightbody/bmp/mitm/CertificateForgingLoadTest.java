@@ -0,0 +1,143 @@
+package net.lightbody.bmp.mitm;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Replays a burst of connections to new hosts on a single-threaded event loop that also serves established connections, and measures
+ * the p99 delay of the established connections' reads, with certificates forged on the event loop and with a
+ * {@link CertificateForgingExecutor}.
+ * <p/>
+ * Each new host is prefetched when its CONNECT arrives and forged when the client handshake starts, once the upstream connection is
+ * established, as MitmBypassFilter and the MITM managers do. Forging is simulated with a sleep, so the comparison does not depend on how
+ * many cores the machine has.
+ */
+public class CertificateForgingLoadTest {
+    private static final int NEW_HOSTS = 40;
+    private static final long NEW_HOST_INTERVAL_MS = 5;
+    private static final long UPSTREAM_CONNECT_MS = 30;
+    private static final long FORGE_MS = 15;
+    private static final long READ_INTERVAL_MS = 1;
+
+    @Test
+    public void testBurstOfNewHostsDoesNotStallEstablishedConnections() throws Exception {
+        long inlineP99 = runBurst(null);
+
+        CertificateForgingExecutor forgingExecutor = new CertificateForgingExecutor(4, CertificateForgingExecutor.DEFAULT_MAX_QUEUED_FORGES);
+        long executorP99 = runBurst(forgingExecutor);
+        forgingExecutor.close();
+
+        assertEquals(NEW_HOSTS, forgingExecutor.getStartedForgeCount());
+        assertEquals(0, forgingExecutor.getRejectedForgeCount());
+
+        // every forge blocks the event loop for FORGE_MS, and reads queue up behind them
+        assertTrue("inline p99 " + inlineP99 + "ms", inlineP99 >= FORGE_MS);
+        // forges that were prefetched while the upstream connection was made do not block the event loop at all
+        assertTrue("executor p99 " + executorP99 + "ms vs inline p99 " + inlineP99 + "ms", executorP99 * 4 < inlineP99);
+    }
+
+    /**
+     * @param forgingExecutor the executor to forge on, or null to forge on the event loop
+     * @return the p99 delay of the established connections' reads during the burst, in milliseconds
+     */
+    private static long runBurst(final CertificateForgingExecutor forgingExecutor) throws InterruptedException {
+        final ScheduledExecutorService eventLoop = Executors.newSingleThreadScheduledExecutor();
+        final ScheduledExecutorService network = Executors.newSingleThreadScheduledExecutor();
+        final List<Long> readDelays = Collections.synchronizedList(new ArrayList<Long>());
+        final CountDownLatch handshakes = new CountDownLatch(NEW_HOSTS);
+        final AtomicInteger forgesOnEventLoop = new AtomicInteger();
+        // forged certificates are cached, and the handshake only forges what is not cached yet
+        final ConcurrentMap<String, String> certificates = new ConcurrentHashMap<>();
+
+        // established connections: data arrives every millisecond and is read on the event loop
+        network.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                final long arrived = System.nanoTime();
+                eventLoop.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        readDelays.add(System.nanoTime() - arrived);
+                    }
+                });
+            }
+        }, 0, READ_INTERVAL_MS, TimeUnit.MILLISECONDS);
+
+        for (int i = 0; i < NEW_HOSTS; i++) {
+            final String host = "host" + i + ".example.com";
+            final Callable<String> forge = new Callable<String>() {
+                @Override
+                public String call() throws InterruptedException {
+                    if (Thread.currentThread().getName().startsWith("pool-")) {
+                        forgesOnEventLoop.incrementAndGet();
+                    }
+                    Thread.sleep(FORGE_MS);
+                    certificates.put(host, host);
+                    return host;
+                }
+            };
+
+            network.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    eventLoop.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            // CONNECT: start forging, then connect upstream without blocking the event loop
+                            if (forgingExecutor != null) {
+                                forgingExecutor.prefetch(host, forge);
+                            }
+                            eventLoop.schedule(new Runnable() {
+                                @Override
+                                public void run() {
+                                    handshake(forgingExecutor, certificates, host, forge);
+                                    handshakes.countDown();
+                                }
+                            }, UPSTREAM_CONNECT_MS, TimeUnit.MILLISECONDS);
+                        }
+                    });
+                }
+            }, i * NEW_HOST_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        }
+
+        assertTrue(handshakes.await(30, TimeUnit.SECONDS));
+        network.shutdownNow();
+        eventLoop.shutdown();
+        assertTrue(eventLoop.awaitTermination(5, TimeUnit.SECONDS));
+
+        if (forgingExecutor != null) {
+            assertEquals(0, forgesOnEventLoop.get());
+        }
+
+        List<Long> delays = new ArrayList<>(readDelays);
+        Collections.sort(delays);
+        return TimeUnit.NANOSECONDS.toMillis(delays.get((int) (delays.size() * 0.99)));
+    }
+
+    private static void handshake(CertificateForgingExecutor forgingExecutor, ConcurrentMap<String, String> certificates, String host,
+                                  Callable<String> forge) {
+        try {
+            String certificate = certificates.get(host);
+            if (certificate == null) {
+                certificate = forgingExecutor == null ? forge.call() : forgingExecutor.forge(host, forge);
+            }
+            assertEquals(host, certificate);
+        } catch (Exception e) {
+            throw new AssertionError(e);
+        }
+    }
+}
@@ -0,0 +1,211 @@
+package net.lightbody.bmp.mitm;
+
+import com.google.common.hash.Hashing;
+import net.lightbody.bmp.mitm.keys.RSAKeyGenerator;
+import net.lightbody.bmp.mitm.tools.BouncyCastleSecurityProviderTool;
+import net.lightbody.bmp.mitm.util.MitmConstants;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks how {@link DiskCertificateCache} names, loads and evicts stored certificates.
+ */
+public class DiskCertificateCacheTest {
+    private static final char[] PASSWORD = "password".toCharArray();
+
+    private static final String HOST = "www.example.com";
+
+    private static CertificateAndKey ca;
+    private static CertificateAndKey otherCa;
+    private static CertificateAndKey sameNameCa;
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private File directory;
+    private DiskCertificateCache cache;
+
+    @BeforeClass
+    public static void createCertificateAuthorities() {
+        ca = newCa("Disk Cache Test CA");
+        otherCa = newCa("Other Test CA");
+        // same subject as the first CA, but a different key, as when the CA is regenerated
+        sameNameCa = newCa("Disk Cache Test CA");
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        directory = temporaryFolder.newFolder("certs");
+        cache = new DiskCertificateCache(directory, PASSWORD);
+    }
+
+    @After
+    public void tearDown() {
+        cache.close();
+    }
+
+    @Test
+    public void testEntriesAreShardedByKeyHash() throws InterruptedException {
+        String key = DiskCertificateCache.createKey(HOST, Collections.singletonList(HOST));
+        store(cache, key, newLeaf(ca, HOST, TimeUnit.DAYS.toMillis(30)));
+
+        String hash = Hashing.sha1().hashString(key, StandardCharsets.UTF_8).toString();
+        File shard = new File(directory, hash.substring(0, 2));
+        assertArrayEquals(new String[]{shard.getName()}, directory.list());
+        assertArrayEquals(new String[]{hash + ".p12"}, shard.list());
+    }
+
+    @Test
+    public void testKeyIgnoresNameOrderAndCase() {
+        assertEquals(DiskCertificateCache.createKey("Example.com", Arrays.asList("www.example.com", "example.com")),
+                DiskCertificateCache.createKey("example.com", Arrays.asList("EXAMPLE.com", "www.example.com")));
+        assertFalse(DiskCertificateCache.createKey("example.com", null).equals(
+                DiskCertificateCache.createKey("example.com", Collections.singletonList("www.example.com"))));
+    }
+
+    @Test
+    public void testEntriesAreLoadedLazilyAfterRestart() throws IOException, InterruptedException {
+        String key = DiskCertificateCache.createKey(HOST, null);
+        CertificateAndKey leaf = newLeaf(ca, HOST, TimeUnit.DAYS.toMillis(30));
+        store(cache, key, leaf);
+        cache.close();
+
+        // an unreadable entry for another host is only read, and deleted, when that host is requested
+        String corruptKey = DiskCertificateCache.createKey("corrupt.example.com", null);
+        File corruptEntry = entryFile(corruptKey);
+        assertTrue(corruptEntry.getParentFile().isDirectory() || corruptEntry.getParentFile().mkdirs());
+        FileOutputStream out = new FileOutputStream(corruptEntry);
+        out.write("not a keystore".getBytes(StandardCharsets.UTF_8));
+        out.close();
+
+        cache = new DiskCertificateCache(directory, PASSWORD);
+
+        CertificateAndKey loaded = cache.get(key, ca.getCertificate());
+        assertNotNull(loaded);
+        assertEquals(leaf.getCertificate(), loaded.getCertificate());
+        assertEquals(leaf.getPrivateKey(), loaded.getPrivateKey());
+        assertTrue(corruptEntry.isFile());
+
+        assertNull(cache.get(corruptKey, ca.getCertificate()));
+        assertFalse(corruptEntry.exists());
+    }
+
+    @Test
+    public void testMissingEntry() {
+        assertNull(cache.get(DiskCertificateCache.createKey(HOST, null), ca.getCertificate()));
+    }
+
+    @Test
+    public void testCertificateWithinRenewalMarginIsEvicted() throws InterruptedException {
+        String expiringKey = DiskCertificateCache.createKey("expiring.example.com", null);
+        String validKey = DiskCertificateCache.createKey("valid.example.com", null);
+        store(cache, expiringKey, newLeaf(ca, "expiring.example.com", DiskCertificateCache.DEFAULT_RENEWAL_MARGIN_MS / 2));
+        store(cache, validKey, newLeaf(ca, "valid.example.com", DiskCertificateCache.DEFAULT_RENEWAL_MARGIN_MS * 2));
+
+        assertNull(cache.get(expiringKey, ca.getCertificate()));
+        assertFalse(entryFile(expiringKey).exists());
+
+        assertNotNull(cache.get(validKey, ca.getCertificate()));
+        assertTrue(entryFile(validKey).exists());
+    }
+
+    @Test
+    public void testCertificateSignedByDifferentCaIsRejected() throws InterruptedException {
+        String key = DiskCertificateCache.createKey(HOST, null);
+
+        store(cache, key, newLeaf(ca, HOST, TimeUnit.DAYS.toMillis(30)));
+        assertNull(cache.get(key, otherCa.getCertificate()));
+        assertFalse(entryFile(key).exists());
+
+        store(cache, key, newLeaf(ca, HOST, TimeUnit.DAYS.toMillis(30)));
+        assertNull(cache.get(key, sameNameCa.getCertificate()));
+        assertFalse(entryFile(key).exists());
+    }
+
+    @Test
+    public void testClear() throws InterruptedException {
+        String key = DiskCertificateCache.createKey(HOST, null);
+        store(cache, key, newLeaf(ca, HOST, TimeUnit.DAYS.toMillis(30)));
+
+        cache.clear();
+        store(cache, DiskCertificateCache.createKey("other.example.com", null), newLeaf(ca, "other.example.com", TimeUnit.DAYS.toMillis(30)));
+
+        assertNull(cache.get(key, ca.getCertificate()));
+    }
+
+    @Test
+    public void testNotAfterIsBoundedByCa() {
+        // the CA expires in less than the default validity of a year
+        assertEquals(ca.getCertificate().getNotAfter(), cache.getNotAfter(ca.getCertificate()));
+
+        DiskCertificateCache shortLived = new DiskCertificateCache(directory, PASSWORD, DiskCertificateCache.DEFAULT_RENEWAL_MARGIN_MS,
+                TimeUnit.DAYS.toMillis(30));
+        long expected = System.currentTimeMillis() + TimeUnit.DAYS.toMillis(30);
+        assertTrue(Math.abs(shortLived.getNotAfter(ca.getCertificate()).getTime() - expected) < TimeUnit.MINUTES.toMillis(1));
+        shortLived.close();
+
+        // stored certificates stay usable for far longer than the renewal margin
+        assertTrue(cache.getNotAfter(ca.getCertificate()).getTime() - System.currentTimeMillis()
+                > DiskCertificateCache.DEFAULT_RENEWAL_MARGIN_MS * 24 * 30);
+    }
+
+    private void store(DiskCertificateCache diskCache, String key, CertificateAndKey certificateAndKey) throws InterruptedException {
+        long writes = diskCache.getWriteCount();
+        diskCache.put(key, certificateAndKey, ca.getCertificate());
+
+        long deadline = System.currentTimeMillis() + 10000;
+        while (diskCache.getWriteCount() == writes) {
+            assertTrue("Entry was not written", System.currentTimeMillis() < deadline);
+            Thread.sleep(5);
+        }
+    }
+
+    private File entryFile(String key) {
+        String hash = Hashing.sha1().hashString(key, StandardCharsets.UTF_8).toString();
+        return new File(new File(directory, hash.substring(0, 2)), hash + ".p12");
+    }
+
+    private static CertificateAndKey newCa(String commonName) {
+        return RootCertificateGenerator.builder()
+                .certificateInfo(new CertificateInfo()
+                        .commonName(commonName)
+                        .organization("Test")
+                        .notBefore(new Date(System.currentTimeMillis() - TimeUnit.DAYS.toMillis(1)))
+                        .notAfter(new Date(System.currentTimeMillis() + TimeUnit.DAYS.toMillis(300))))
+                .keyGenerator(new RSAKeyGenerator(1024))
+                .build()
+                .load();
+    }
+
+    private static CertificateAndKey newLeaf(CertificateAndKey issuer, String host, long validityMs) {
+        CertificateInfo certificateInfo = new CertificateInfo()
+                .commonName(host)
+                .organization("Test")
+                .notBefore(new Date(System.currentTimeMillis() - TimeUnit.DAYS.toMillis(1)))
+                .notAfter(new Date(System.currentTimeMillis() + validityMs))
+                .subjectAlternativeNames(Collections.singletonList(host));
+
+        return new BouncyCastleSecurityProviderTool().createServerCertificate(certificateInfo, issuer.getCertificate(),
+                issuer.getPrivateKey(), new RSAKeyGenerator(1024).generate(), MitmConstants.DEFAULT_MESSAGE_DIGEST);
+    }
+}
@@ -0,0 +1,138 @@
+package net.lightbody.bmp.mitm.keys;
+
+import org.junit.Test;
+
+import java.security.KeyPair;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Checks how many key pairs each {@link KeyPairProvider} generates on the thread handling a handshake with a new host, and the pool's
+ * bookkeeping.
+ */
+public class KeyPairProviderTest {
+    /**
+     * Number of new hosts whose first handshake is simulated. Matches the default pool size, so a warm pool serves every one.
+     */
+    private static final int HOSTS = PooledKeyPairProvider.DEFAULT_POOL_SIZE;
+
+    @Test
+    public void testWarmProvidersDoNotGenerateOnHandshakeThread() throws InterruptedException {
+        RecordingKeyGenerator freshGenerator = new RecordingKeyGenerator();
+        RecordingKeyGenerator rotatingGenerator = new RecordingKeyGenerator();
+        RecordingKeyGenerator pooledGenerator = new RecordingKeyGenerator();
+
+        FreshKeyPairProvider fresh = new FreshKeyPairProvider(freshGenerator);
+        RotatingKeyPairProvider rotating = new RotatingKeyPairProvider(rotatingGenerator);
+        PooledKeyPairProvider pooled = new PooledKeyPairProvider(pooledGenerator);
+        try {
+            waitForPool(pooled, PooledKeyPairProvider.DEFAULT_POOL_SIZE);
+            // the first key pair may be generated on this thread, if the initial rotation has not finished
+            rotating.getKeyPair();
+            int rotatingWarmUpGenerations = rotatingGenerator.callingThreadGenerations.get();
+
+            getKeyPairs(fresh);
+            getKeyPairs(rotating);
+            getKeyPairs(pooled);
+
+            assertEquals("every new host waits for a key pair", HOSTS, freshGenerator.callingThreadGenerations.get());
+            assertEquals("a warm rotating provider reuses its key pair", rotatingWarmUpGenerations,
+                    rotatingGenerator.callingThreadGenerations.get());
+            assertEquals("a warm pool generates in the background", 0, pooledGenerator.callingThreadGenerations.get());
+
+            assertEquals(HOSTS, pooled.getPooledKeyPairCount());
+            assertEquals(0, pooled.getOnDemandKeyPairCount());
+        } finally {
+            rotating.close();
+            pooled.close();
+        }
+    }
+
+    @Test
+    public void testPooledKeyPairsAreNotReused() throws InterruptedException {
+        PooledKeyPairProvider pooled = new PooledKeyPairProvider(new ECKeyGenerator(), 2);
+        try {
+            Set<KeyPair> keyPairs = Collections.newSetFromMap(new IdentityHashMap<KeyPair, Boolean>());
+            for (int i = 0; i < 6; i++) {
+                waitForPool(pooled, 1);
+                keyPairs.add(pooled.getKeyPair());
+            }
+
+            assertEquals(6, keyPairs.size());
+            assertEquals(6, pooled.getPooledKeyPairCount() + pooled.getOnDemandKeyPairCount());
+        } finally {
+            pooled.close();
+        }
+    }
+
+    @Test
+    public void testClosedPoolGeneratesOnCallingThread() throws InterruptedException {
+        RecordingKeyGenerator keyGenerator = new RecordingKeyGenerator();
+        PooledKeyPairProvider pooled = new PooledKeyPairProvider(keyGenerator, 2);
+        waitForPool(pooled, 2);
+
+        pooled.close();
+        assertEquals(0, pooled.getAvailableKeyPairs());
+
+        pooled.getKeyPair();
+        assertEquals(1, pooled.getOnDemandKeyPairCount());
+        assertSame(Thread.currentThread(), keyGenerator.lastThread);
+
+        // the pool is not refilled after it has been closed
+        Thread.sleep(100);
+        assertEquals(0, pooled.getAvailableKeyPairs());
+    }
+
+    @Test
+    public void testRotatingProviderReusesItsKeyPair() {
+        RotatingKeyPairProvider rotating = new RotatingKeyPairProvider(new ECKeyGenerator());
+        try {
+            assertSame(rotating.getKeyPair(), rotating.getKeyPair());
+        } finally {
+            rotating.close();
+        }
+    }
+
+    private static void getKeyPairs(KeyPairProvider provider) {
+        for (int i = 0; i < HOSTS; i++) {
+            provider.getKeyPair();
+        }
+    }
+
+    private static void waitForPool(PooledKeyPairProvider pooled, int keyPairs) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+        while (pooled.getAvailableKeyPairs() < keyPairs) {
+            if (System.nanoTime() > deadline) {
+                throw new AssertionError("Pool has " + pooled.getAvailableKeyPairs() + " key pairs; expected " + keyPairs);
+            }
+            Thread.sleep(5);
+        }
+    }
+
+    /**
+     * Records the thread of the last generation, and counts generations on the thread that created the generator.
+     */
+    private static class RecordingKeyGenerator implements KeyGenerator {
+        private final KeyGenerator delegate = new ECKeyGenerator();
+        private final Thread callingThread = Thread.currentThread();
+
+        private final AtomicInteger callingThreadGenerations = new AtomicInteger();
+        private volatile Thread lastThread;
+
+        @Override
+        public KeyPair generate() {
+            lastThread = Thread.currentThread();
+            if (lastThread == callingThread) {
+                callingThreadGenerations.incrementAndGet();
+            }
+
+            return delegate.generate();
+        }
+    }
+}
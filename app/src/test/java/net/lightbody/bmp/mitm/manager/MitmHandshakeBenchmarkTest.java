@@ -0,0 +1,299 @@
+package net.lightbody.bmp.mitm.manager;
+
+import io.netty.handler.codec.http.DefaultHttpRequest;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpVersion;
+import net.lightbody.bmp.mitm.CertificateAndKey;
+import net.lightbody.bmp.mitm.CertificateInfo;
+import net.lightbody.bmp.mitm.DiskCertificateCache;
+import net.lightbody.bmp.mitm.RootCertificateGenerator;
+import net.lightbody.bmp.mitm.keys.ECKeyGenerator;
+import net.lightbody.bmp.mitm.keys.KeyGenerator;
+import net.lightbody.bmp.mitm.keys.PooledKeyPairProvider;
+import net.lightbody.bmp.mitm.keys.RSAKeyGenerator;
+import net.lightbody.bmp.mitm.stats.CertificateGenerationStatistics;
+import net.lightbody.bmp.mitm.tools.BouncyCastleSecurityProviderTool;
+import net.lightbody.bmp.mitm.util.MitmConstants;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.littleshoot.proxy.MitmManager;
+import org.littleshoot.proxy.mitm.Authority;
+import org.littleshoot.proxy.mitm.AuthorityCertificateSource;
+import org.littleshoot.proxy.mitm.CertificateSniffingMitmManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.security.KeyStore;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Compares the client handshake throughput of the MITM engines the proxy can select: certificate sniffing with RSA keys, and
+ * impersonation with RSA or ECDSA P-256 keys. Each engine is configured as BrowserMobProxyServer configures it, and completes real
+ * in-memory TLS handshakes with a client that validates nothing but the presented certificate.
+ * <p/>
+ * Two rates are measured per engine: handshakes for new hosts, which include forging the certificate, and handshakes for hosts whose
+ * certificate is already cached. The rates are logged rather than asserted, since they depend on the machine; the test asserts that
+ * every handshake presents a certificate of the expected key type for the requested host, and that each host's certificate is forged
+ * exactly once.
+ */
+public class MitmHandshakeBenchmarkTest {
+    private static final Logger log = LoggerFactory.getLogger(MitmHandshakeBenchmarkTest.class);
+
+    private static final int HOSTS = 12;
+    private static final int CACHED_ROUNDS = 5;
+
+    private static final char[] PASSWORD = "password".toCharArray();
+
+    @ClassRule
+    public static TemporaryFolder tempFolder = new TemporaryFolder();
+
+    private static Authority authority;
+    private static List<String> hosts;
+    private static List<SSLSession> upstreamSessions;
+    private static SSLContext clientContext;
+
+    private static final List<MitmManager> managers = new ArrayList<>();
+
+    @BeforeClass
+    public static void setUpClass() throws Exception {
+        authority = new Authority(tempFolder.newFolder("ca"), "bmp-benchmark", PASSWORD, "BMP Benchmark CA", "Test", "Test CA",
+                "Test", "Test MITM");
+
+        // the CA that upstream servers' certificates chain to, which is only needed to give the sniffing engine something to sniff
+        CertificateAndKey upstreamCa = RootCertificateGenerator.builder()
+                .certificateInfo(new CertificateInfo()
+                        .commonName("Upstream CA")
+                        .organization("Test")
+                        .notBefore(new Date(System.currentTimeMillis() - TimeUnit.DAYS.toMillis(1)))
+                        .notAfter(new Date(System.currentTimeMillis() + TimeUnit.DAYS.toMillis(30))))
+                .keyGenerator(new RSAKeyGenerator(1024))
+                .build()
+                .load();
+
+        clientContext = SSLContext.getInstance("TLS");
+        clientContext.init(null, new TrustManager[] {new TrustAllTrustManager()}, null);
+
+        hosts = new ArrayList<>(HOSTS);
+        upstreamSessions = new ArrayList<>(HOSTS);
+        for (int i = 0; i < HOSTS; i++) {
+            String host = "www.site" + i + ".example";
+            hosts.add(host);
+            upstreamSessions.add(connectToUpstream(host, upstreamCa));
+        }
+    }
+
+    @AfterClass
+    public static void tearDownClass() {
+        for (MitmManager manager : managers) {
+            if (manager instanceof CertificateSniffingMitmManager) {
+                ((CertificateSniffingMitmManager) manager).close();
+            } else if (manager instanceof ImpersonatingMitmManager) {
+                ((ImpersonatingMitmManager) manager).close();
+            }
+        }
+    }
+
+    @Test
+    public void testRsaSniffing() throws Exception {
+        CertificateSniffingMitmManager manager = new CertificateSniffingMitmManager(authority, null);
+        managers.add(manager);
+
+        benchmark("RSA sniffing", manager, "RSA", manager.getStatistics());
+    }
+
+    @Test
+    public void testRsaImpersonating() throws Exception {
+        benchmark("RSA impersonating", createImpersonatingManager(new RSAKeyGenerator(), "rsa"), "RSA", null);
+    }
+
+    @Test
+    public void testEccImpersonating() throws Exception {
+        benchmark("ECC impersonating", createImpersonatingManager(new ECKeyGenerator(), "ecc"), "EC", null);
+    }
+
+    private static ImpersonatingMitmManager createImpersonatingManager(KeyGenerator keyGenerator, String name) throws Exception {
+        ImpersonatingMitmManager manager = ImpersonatingMitmManager.builder()
+                .rootCertificateSource(new AuthorityCertificateSource(authority))
+                .serverKeyGenerator(keyGenerator)
+                .serverKeyPairProvider(new PooledKeyPairProvider(keyGenerator))
+                .trustAllServers(true)
+                .diskCertificateCache(new DiskCertificateCache(tempFolder.newFolder(name + "-certs"), PASSWORD))
+                .build();
+        managers.add(manager);
+
+        return manager;
+    }
+
+    private void benchmark(String engine, MitmManager manager, String keyAlgorithm, CertificateGenerationStatistics statistics)
+            throws Exception {
+        if (statistics == null) {
+            statistics = ((ImpersonatingMitmManager) manager).getStatistics();
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i < HOSTS; i++) {
+            handshakeWithClient(manager, i, keyAlgorithm);
+        }
+        long newHostNanos = System.nanoTime() - start;
+
+        assertEquals("each host's certificate should be forged once", HOSTS, statistics.getCertificatesGenerated());
+
+        start = System.nanoTime();
+        for (int round = 0; round < CACHED_ROUNDS; round++) {
+            for (int i = 0; i < HOSTS; i++) {
+                handshakeWithClient(manager, i, keyAlgorithm);
+            }
+        }
+        long cachedNanos = System.nanoTime() - start;
+
+        assertEquals("cached handshakes should not forge certificates", HOSTS, statistics.getCertificatesGenerated());
+
+        log.info("{}: {} new-host handshakes/s, {} cached-host handshakes/s, average certificate generation {} ms", engine,
+                perSecond(HOSTS, newHostNanos), perSecond(HOSTS * CACHED_ROUNDS, cachedNanos), statistics.getAvgCertificateGenerationTimeMs());
+    }
+
+    private static void handshakeWithClient(MitmManager manager, int hostIndex, String keyAlgorithm) throws SSLException {
+        String host = hosts.get(hostIndex);
+        HttpRequest connect = new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.CONNECT, host + ":443");
+        HttpHeaders.setHost(connect, host + ":443");
+
+        SSLEngine server = manager.clientSslEngineFor(connect, upstreamSessions.get(hostIndex));
+        server.setUseClientMode(false);
+
+        SSLEngine client = clientContext.createSSLEngine(host, 443);
+        client.setUseClientMode(true);
+
+        handshake(client, server);
+
+        X509Certificate presented = (X509Certificate) client.getSession().getPeerCertificates()[0];
+        assertEquals(keyAlgorithm, presented.getPublicKey().getAlgorithm());
+        assertTrue(presented.getSubjectX500Principal().getName(), presented.getSubjectX500Principal().getName().contains("CN=" + host));
+    }
+
+    /**
+     * Completes a handshake with an upstream server presenting a certificate for the host, and returns the session, as LittleProxy does
+     * before it asks the MitmManager for the client's engine.
+     */
+    private static SSLSession connectToUpstream(String host, CertificateAndKey upstreamCa) throws Exception {
+        CertificateInfo certificateInfo = new CertificateInfo()
+                .commonName(host)
+                .organization("Upstream")
+                .notBefore(new Date(System.currentTimeMillis() - TimeUnit.DAYS.toMillis(1)))
+                .notAfter(new Date(System.currentTimeMillis() + TimeUnit.DAYS.toMillis(30)))
+                .subjectAlternativeNames(Collections.singletonList(host));
+        CertificateAndKey leaf = new BouncyCastleSecurityProviderTool().createServerCertificate(certificateInfo,
+                upstreamCa.getCertificate(), upstreamCa.getPrivateKey(), new RSAKeyGenerator(1024).generate(),
+                MitmConstants.DEFAULT_MESSAGE_DIGEST);
+
+        KeyStore keyStore = KeyStore.getInstance(KeyStore.getDefaultType());
+        keyStore.load(null, null);
+        keyStore.setKeyEntry("upstream", leaf.getPrivateKey(), PASSWORD, new Certificate[] {leaf.getCertificate(), upstreamCa.getCertificate()});
+
+        KeyManagerFactory keyManagerFactory = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        keyManagerFactory.init(keyStore, PASSWORD);
+
+        SSLContext upstreamContext = SSLContext.getInstance("TLS");
+        upstreamContext.init(keyManagerFactory.getKeyManagers(), null, null);
+
+        SSLEngine upstream = upstreamContext.createSSLEngine();
+        upstream.setUseClientMode(false);
+
+        SSLEngine proxy = clientContext.createSSLEngine(host, 443);
+        proxy.setUseClientMode(true);
+
+        handshake(proxy, upstream);
+
+        return proxy.getSession();
+    }
+
+    /**
+     * Runs a TLS handshake between two engines, passing records between them in memory.
+     */
+    private static void handshake(SSLEngine client, SSLEngine server) throws SSLException {
+        ByteBuffer empty = ByteBuffer.allocate(0);
+        ByteBuffer clientToServer = ByteBuffer.allocate(client.getSession().getPacketBufferSize());
+        ByteBuffer serverToClient = ByteBuffer.allocate(server.getSession().getPacketBufferSize());
+        ByteBuffer clientApplicationData = ByteBuffer.allocate(client.getSession().getApplicationBufferSize());
+        ByteBuffer serverApplicationData = ByteBuffer.allocate(server.getSession().getApplicationBufferSize());
+
+        client.beginHandshake();
+        server.beginHandshake();
+
+        for (int i = 0; i < 1000; i++) {
+            if (isHandshakeComplete(client) && isHandshakeComplete(server)) {
+                return;
+            }
+
+            client.wrap(empty, clientToServer);
+            server.wrap(empty, serverToClient);
+            runDelegatedTasks(client);
+            runDelegatedTasks(server);
+
+            clientToServer.flip();
+            serverToClient.flip();
+            client.unwrap(serverToClient, clientApplicationData);
+            server.unwrap(clientToServer, serverApplicationData);
+            clientToServer.compact();
+            serverToClient.compact();
+            runDelegatedTasks(client);
+            runDelegatedTasks(server);
+        }
+
+        fail("handshake did not complete");
+    }
+
+    private static boolean isHandshakeComplete(SSLEngine engine) {
+        return engine.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING;
+    }
+
+    private static void runDelegatedTasks(SSLEngine engine) {
+        Runnable task;
+        while ((task = engine.getDelegatedTask()) != null) {
+            task.run();
+        }
+    }
+
+    private static long perSecond(int count, long nanos) {
+        return Math.round(count / (nanos / 1e9));
+    }
+
+    private static class TrustAllTrustManager implements X509TrustManager {
+        @Override
+        public void checkClientTrusted(X509Certificate[] chain, String authType) {
+        }
+
+        @Override
+        public void checkServerTrusted(X509Certificate[] chain, String authType) {
+        }
+
+        @Override
+        public X509Certificate[] getAcceptedIssuers() {
+            return new X509Certificate[0];
+        }
+    }
+}
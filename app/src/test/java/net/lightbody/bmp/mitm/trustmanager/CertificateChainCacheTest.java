@@ -0,0 +1,259 @@
+package net.lightbody.bmp.mitm.trustmanager;
+
+import net.lightbody.bmp.mitm.CertificateAndKey;
+import net.lightbody.bmp.mitm.CertificateInfo;
+import net.lightbody.bmp.mitm.RootCertificateGenerator;
+import net.lightbody.bmp.mitm.keys.RSAKeyGenerator;
+import net.lightbody.bmp.mitm.tools.BouncyCastleSecurityProviderTool;
+import net.lightbody.bmp.mitm.util.MitmConstants;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import javax.net.ssl.X509TrustManager;
+import java.security.KeyPair;
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks which validations {@link CertificateChainCache} answers from the cache, when it discards chains, and how it reads the names
+ * of the server's certificate.
+ */
+public class CertificateChainCacheTest {
+    private static final String HOST = "www.example.com";
+
+    private static CertificateAndKey ca;
+    private static KeyPair serverKeyPair;
+    private static X509Certificate[] chain;
+
+    private CertificateChainCache cache;
+    private CountingTrustManager trustManager;
+
+    @BeforeClass
+    public static void createChain() {
+        ca = RootCertificateGenerator.builder()
+                .certificateInfo(new CertificateInfo()
+                        .commonName("Chain Cache Test CA")
+                        .organization("Test")
+                        .notBefore(new Date(System.currentTimeMillis() - TimeUnit.DAYS.toMillis(1)))
+                        .notAfter(new Date(System.currentTimeMillis() + TimeUnit.DAYS.toMillis(300))))
+                .keyGenerator(new RSAKeyGenerator(1024))
+                .build()
+                .load();
+
+        serverKeyPair = new RSAKeyGenerator(1024).generate();
+
+        chain = newChain(HOST, Arrays.asList(HOST, "example.com", "10.0.0.1"), TimeUnit.DAYS.toMillis(30));
+    }
+
+    @Before
+    public void setUp() {
+        cache = new CertificateChainCache();
+        trustManager = new CountingTrustManager();
+    }
+
+    @Test
+    public void testTrustedChainIsValidatedOnce() throws CertificateException {
+        cache.checkServerTrusted(chain, "RSA", trustManager);
+        cache.checkServerTrusted(chain, "RSA", trustManager);
+        cache.checkServerTrusted(chain, "RSA", trustManager);
+
+        assertEquals(1, trustManager.validations);
+        assertEquals(1, cache.getValidationMissCount());
+        assertEquals(2, cache.getValidationHitCount());
+        assertEquals(2.0 / 3, cache.getValidationHitRate(), 0.0001);
+    }
+
+    @Test
+    public void testAuthTypesAreCachedSeparately() throws CertificateException {
+        cache.checkServerTrusted(chain, "RSA", trustManager);
+        cache.checkServerTrusted(chain, "ECDHE_RSA", trustManager);
+        cache.checkServerTrusted(chain, "ECDHE_RSA", trustManager);
+
+        assertEquals(2, trustManager.validations);
+        assertEquals(1, cache.getValidationHitCount());
+    }
+
+    @Test
+    public void testFailuresAreNotCached() throws CertificateException {
+        trustManager.trusted = false;
+        for (int i = 0; i < 2; i++) {
+            try {
+                cache.checkServerTrusted(chain, "RSA", trustManager);
+                fail("chain should not be trusted");
+            } catch (CertificateException e) {
+                // expected
+            }
+        }
+
+        assertEquals("every failure should be validated again", 2, trustManager.validations);
+        assertEquals(0, cache.getValidationHitCount());
+
+        // the CA is added to the trust store, or a transient failure clears
+        trustManager.trusted = true;
+        cache.checkServerTrusted(chain, "RSA", trustManager);
+        cache.checkServerTrusted(chain, "RSA", trustManager);
+
+        assertEquals(3, trustManager.validations);
+        assertEquals(1, cache.getValidationHitCount());
+        assertEquals(3, cache.getValidationMissCount());
+    }
+
+    @Test
+    public void testChainIsDiscardedWhenACertificateExpires() throws Exception {
+        // X.509 validity has a resolution of one second, so the chain expires within two seconds
+        X509Certificate[] shortLivedChain = newChain("short.example.com", Collections.singletonList("short.example.com"), 2000);
+        long expiresAtMs = shortLivedChain[0].getNotAfter().getTime();
+
+        cache.checkServerTrusted(shortLivedChain, "RSA", trustManager);
+        cache.checkServerTrusted(shortLivedChain, "RSA", trustManager);
+        assertEquals(1, trustManager.validations);
+        assertEquals(1, cache.size());
+
+        while (System.currentTimeMillis() <= expiresAtMs) {
+            Thread.sleep(50);
+        }
+
+        // the trust manager rejects the expired chain; the cache must not answer for it
+        trustManager.trusted = false;
+        try {
+            cache.checkServerTrusted(shortLivedChain, "RSA", trustManager);
+            fail("expired chain should be validated again");
+        } catch (CertificateException e) {
+            // expected
+        }
+
+        assertEquals(2, trustManager.validations);
+        assertEquals("expired chain should be evicted, and not cached again", 0, cache.size());
+    }
+
+    @Test
+    public void testNamesAreParsedOnce() throws Exception {
+        assertEquals(HOST, cache.getCommonName(chain));
+        assertEquals(HOST, cache.getCommonName(chain));
+
+        Collection<List<?>> subjectAlternativeNames = cache.getSubjectAlternativeNames(chain);
+        assertEquals(new ArrayList<>(chain[0].getSubjectAlternativeNames()), new ArrayList<>(subjectAlternativeNames));
+
+        assertEquals(1, cache.getNameMissCount());
+        assertEquals(2, cache.getNameHitCount());
+        assertEquals(2.0 / 3, cache.getNameHitRate(), 0.0001);
+    }
+
+    @Test
+    public void testSubjectAlternativeNames() throws Exception {
+        List<String> dnsNames = new ArrayList<>();
+        List<String> ipAddresses = new ArrayList<>();
+        for (List<?> subjectAlternativeName : cache.getSubjectAlternativeNames(chain)) {
+            int type = (Integer) subjectAlternativeName.get(0);
+            if (type == 2) {
+                dnsNames.add((String) subjectAlternativeName.get(1));
+            } else if (type == 7) {
+                ipAddresses.add((String) subjectAlternativeName.get(1));
+            }
+        }
+
+        assertEquals(Arrays.asList(HOST, "example.com"), dnsNames);
+        assertEquals(Collections.singletonList("10.0.0.1"), ipAddresses);
+    }
+
+    @Test
+    public void testCertificateWithoutSubjectAlternativeNames() throws Exception {
+        X509Certificate[] noSanChain = newChain("legacy.example.com", Collections.<String>emptyList(), TimeUnit.DAYS.toMillis(30));
+
+        assertEquals("legacy.example.com", cache.getCommonName(noSanChain));
+        assertTrue(cache.getSubjectAlternativeNames(noSanChain).isEmpty());
+    }
+
+    @Test
+    public void testCommonNameIsReadFromTheServerCertificate() {
+        // the CA's common name should not be mistaken for the server's, even though it is in the chain
+        assertEquals(HOST, cache.getCommonName(chain));
+        assertEquals("Chain Cache Test CA", cache.getCommonName(new X509Certificate[] {ca.getCertificate()}));
+    }
+
+    @Test
+    public void testChainsAreIdentifiedByEveryCertificate() throws CertificateException {
+        X509Certificate[] leafOnly = new X509Certificate[] {chain[0]};
+
+        cache.checkServerTrusted(chain, "RSA", trustManager);
+        cache.checkServerTrusted(leafOnly, "RSA", trustManager);
+
+        assertEquals("a different chain for the same certificate should be validated separately", 2, trustManager.validations);
+        assertEquals(2, cache.size());
+    }
+
+    @Test
+    public void testEmptyChainIsNotCached() {
+        trustManager.trusted = false;
+        try {
+            cache.checkServerTrusted(new X509Certificate[0], "RSA", trustManager);
+            fail("empty chain should be passed to the trust manager");
+        } catch (CertificateException e) {
+            // expected
+        }
+
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testClear() throws CertificateException {
+        cache.checkServerTrusted(chain, "RSA", trustManager);
+        cache.clear();
+        cache.checkServerTrusted(chain, "RSA", trustManager);
+
+        assertEquals(2, trustManager.validations);
+    }
+
+    private static X509Certificate[] newChain(String commonName, List<String> subjectAlternativeNames, long validityMs) {
+        CertificateInfo certificateInfo = new CertificateInfo()
+                .commonName(commonName)
+                .organization("Test")
+                .notBefore(new Date(System.currentTimeMillis() - TimeUnit.DAYS.toMillis(1)))
+                .notAfter(new Date(System.currentTimeMillis() + validityMs))
+                .subjectAlternativeNames(subjectAlternativeNames);
+
+        CertificateAndKey leaf = new BouncyCastleSecurityProviderTool().createServerCertificate(certificateInfo, ca.getCertificate(),
+                ca.getPrivateKey(), serverKeyPair, MitmConstants.DEFAULT_MESSAGE_DIGEST);
+
+        return new X509Certificate[] {leaf.getCertificate(), ca.getCertificate()};
+    }
+
+    /**
+     * Stands in for the trust manager that builds the chain's path, counting how often the cache falls through to it.
+     */
+    private static class CountingTrustManager implements X509TrustManager {
+        private boolean trusted = true;
+        private int validations;
+
+        @Override
+        public void checkServerTrusted(X509Certificate[] chain, String authType) throws CertificateException {
+            validations++;
+
+            if (!trusted) {
+                throw new CertificateException("not trusted");
+            }
+        }
+
+        @Override
+        public void checkClientTrusted(X509Certificate[] chain, String authType) throws CertificateException {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public X509Certificate[] getAcceptedIssuers() {
+            return new X509Certificate[0];
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package net.lightbody.bmp.mitm.util;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Checks how {@link WildcardDomainUtil} derives the wildcard base domain from a hostname, including public suffixes with more than one
+ * label, and hostnames that no wildcard certificate can cover.
+ */
+public class WildcardDomainUtilTest {
+    @Test
+    public void testSubdomainUsesRegistrableDomain() {
+        assertEquals("example.com", WildcardDomainUtil.getWildcardBaseDomain("cdn.example.com"));
+        assertEquals("example.com", WildcardDomainUtil.getWildcardBaseDomain("www.example.com"));
+    }
+
+    @Test
+    public void testRegistrableDomainIsItsOwnBase() {
+        assertEquals("example.com", WildcardDomainUtil.getWildcardBaseDomain("example.com"));
+        assertEquals("example.co.uk", WildcardDomainUtil.getWildcardBaseDomain("example.co.uk"));
+    }
+
+    @Test
+    public void testMultiLabelPublicSuffix() {
+        assertEquals("the wildcard should not be *.co.uk", "example.co.uk", WildcardDomainUtil.getWildcardBaseDomain("www.example.co.uk"));
+        assertEquals("example.com.au", WildcardDomainUtil.getWildcardBaseDomain("shop.example.com.au"));
+    }
+
+    @Test
+    public void testDeepHostUsesParentDomain() {
+        // a wildcard only matches one label, so *.example.com would not cover a.cdn.example.com
+        assertEquals("cdn.example.com", WildcardDomainUtil.getWildcardBaseDomain("a.cdn.example.com"));
+        assertEquals("static.example.co.uk", WildcardDomainUtil.getWildcardBaseDomain("img.static.example.co.uk"));
+    }
+
+    @Test
+    public void testHostnameIsLowercased() {
+        assertEquals("example.co.uk", WildcardDomainUtil.getWildcardBaseDomain("WWW.Example.CO.UK"));
+    }
+
+    @Test
+    public void testPublicSuffixesAreNotCovered() {
+        assertNull(WildcardDomainUtil.getWildcardBaseDomain("com"));
+        assertNull(WildcardDomainUtil.getWildcardBaseDomain("co.uk"));
+    }
+
+    @Test
+    public void testIpLiteralsAreNotCovered() {
+        assertNull(WildcardDomainUtil.getWildcardBaseDomain("192.168.1.10"));
+        assertNull(WildcardDomainUtil.getWildcardBaseDomain("::1"));
+        assertNull(WildcardDomainUtil.getWildcardBaseDomain("2001:db8::1"));
+        assertNull("bracketed IPv6 literals are not domain names", WildcardDomainUtil.getWildcardBaseDomain("[2001:db8::1]"));
+    }
+
+    @Test
+    public void testSingleLabelHostsAreNotCovered() {
+        assertNull(WildcardDomainUtil.getWildcardBaseDomain("localhost"));
+        assertNull(WildcardDomainUtil.getWildcardBaseDomain("intranet"));
+    }
+
+    @Test
+    public void testHostsOutsidePublicSuffixesAreNotCovered() {
+        assertNull(WildcardDomainUtil.getWildcardBaseDomain("build.internal-network"));
+    }
+
+    @Test
+    public void testInvalidHostnamesAreNotCovered() {
+        assertNull(WildcardDomainUtil.getWildcardBaseDomain(null));
+        assertNull(WildcardDomainUtil.getWildcardBaseDomain(""));
+        assertNull(WildcardDomainUtil.getWildcardBaseDomain("bad_host!.example.com"));
+    }
+
+    @Test
+    public void testWildcardCertificateNames() {
+        assertEquals(Arrays.asList("*.example.co.uk", "example.co.uk"), WildcardDomainUtil.getWildcardCertificateNames("example.co.uk"));
+    }
+}
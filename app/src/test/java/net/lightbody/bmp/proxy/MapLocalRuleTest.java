@@ -0,0 +1,101 @@
+package net.lightbody.bmp.proxy;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks how {@link MapLocalRule} resolves URLs to local files, and that resolved paths cannot escape the target directory.
+ */
+public class MapLocalRuleTest {
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    private File site;
+
+    @Before
+    public void setUp() throws IOException {
+        site = tempFolder.newFolder("site");
+        assertTrue(new File(site, "js").mkdir());
+        assertTrue(new File(site, "js/app.js").createNewFile());
+
+        // a sibling whose name starts with the target directory's name
+        File sibling = tempFolder.newFolder("site2");
+        assertTrue(new File(sibling, "secret.txt").createNewFile());
+        assertTrue(tempFolder.newFile("secret.txt").exists());
+    }
+
+    @Test
+    public void testFileTargetAnswersEveryMatch() throws IOException {
+        File target = tempFolder.newFile("fixed.json");
+        MapLocalRule rule = new MapLocalRule("https://api\\.example\\.com/.*", target);
+
+        assertEquals(target, rule.resolve("https://api.example.com/v1/users?page=2"));
+        assertNull(rule.resolve("https://www.example.com/v1/users"));
+    }
+
+    @Test
+    public void testDirectoryTargetUsesUrlPath() throws IOException {
+        MapLocalRule rule = new MapLocalRule("https://static\\.example\\.com/.*", site);
+
+        assertEquals(new File(site, "js/app.js").getCanonicalFile(),
+                rule.resolve("https://static.example.com/js/app.js?v=3").getCanonicalFile());
+        assertEquals("the root resolves to the index file", new File(site, MapLocalRule.INDEX_FILE_NAME).getCanonicalFile(),
+                rule.resolve("https://static.example.com/").getCanonicalFile());
+        assertEquals(new File(site, "js/" + MapLocalRule.INDEX_FILE_NAME).getCanonicalFile(),
+                rule.resolve("https://static.example.com/js/").getCanonicalFile());
+    }
+
+    @Test
+    public void testDirectoryTargetUsesFirstGroup() throws IOException {
+        MapLocalRule rule = new MapLocalRule("https://cdn\\.example\\.com/assets/v[0-9]+/(.*)", site);
+
+        assertEquals(new File(site, "js/app.js").getCanonicalFile(),
+                rule.resolve("https://cdn.example.com/assets/v42/js/app.js").getCanonicalFile());
+    }
+
+    @Test
+    public void testMissingFileIsStillResolved() throws IOException {
+        MapLocalRule rule = new MapLocalRule("https://static\\.example\\.com/.*", site);
+
+        assertEquals(new File(site, "missing.css").getCanonicalFile(),
+                rule.resolve("https://static.example.com/missing.css").getCanonicalFile());
+    }
+
+    @Test
+    public void testTraversalIsRejected() {
+        MapLocalRule pathRule = new MapLocalRule("https://static\\.example\\.com/.*", site);
+        assertNull(pathRule.resolve("https://static.example.com/../secret.txt"));
+        assertNull(pathRule.resolve("https://static.example.com/js/../../secret.txt"));
+        assertNull("encoded dots are decoded before resolving", pathRule.resolve("https://static.example.com/%2e%2e/secret.txt"));
+        assertNull("a sibling with a common prefix is outside the target",
+                pathRule.resolve("https://static.example.com/../site2/secret.txt"));
+
+        MapLocalRule groupRule = new MapLocalRule("https://cdn\\.example\\.com/assets/(.*)", site);
+        assertNull(groupRule.resolve("https://cdn.example.com/assets/../secret.txt"));
+        assertNull(groupRule.resolve("https://cdn.example.com/assets/js/../../site2/secret.txt"));
+    }
+
+    @Test
+    public void testDotSegmentsWithinTargetAreAllowed() throws IOException {
+        MapLocalRule rule = new MapLocalRule("https://static\\.example\\.com/.*", site);
+
+        assertEquals(new File(site, "js/app.js").getCanonicalFile(),
+                rule.resolve("https://static.example.com/js/../js/./app.js").getCanonicalFile());
+    }
+
+    @Test
+    public void testUnparseableGroupIsRejected() {
+        MapLocalRule rule = new MapLocalRule("https://cdn\\.example\\.com/(.*)", site);
+
+        assertNull(rule.resolve("https://cdn.example.com/bad path%"));
+    }
+}
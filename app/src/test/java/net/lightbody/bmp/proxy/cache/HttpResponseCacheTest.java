@@ -0,0 +1,126 @@
+package net.lightbody.bmp.proxy.cache;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.DefaultHttpRequest;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpVersion;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Checks that responses moved to the disk tier are loaded back in the background, rather than on the thread that looks them up.
+ */
+public class HttpResponseCacheTest {
+    private static final int BODY_SIZE = 1024;
+    private static final long MEMORY_SIZE = 64 * 1024;
+
+    private File directory;
+    private HttpResponseCache cache;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("http-cache-test").toFile();
+        cache = new HttpResponseCache(MEMORY_SIZE, directory, HttpResponseCache.DEFAULT_DISK_SIZE_BYTES, HttpResponseCache.DEFAULT_MAX_ENTRY_SIZE_BYTES);
+    }
+
+    @After
+    public void tearDown() {
+        cache.clear();
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void testMemoryHitIsReturned() {
+        CachedResponse response = createResponse("http://example.com/a");
+        cache.put(response);
+
+        assertNotNull(cache.get("http://example.com/a"));
+    }
+
+    @Test
+    public void testDiskHitIsPromotedInBackground() throws InterruptedException {
+        CachedResponse response = createResponse("http://example.com/a");
+        cache.put(response);
+        moveToDisk();
+
+        // the lookup does not read the disk tier itself
+        assertNull(cache.get("http://example.com/a"));
+
+        CachedResponse promoted = null;
+        long deadline = System.currentTimeMillis() + 5000;
+        while (promoted == null && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+            promoted = cache.get("http://example.com/a");
+        }
+
+        assertNotNull("response on disk was not moved back into memory", promoted);
+        assertArrayEquals(response.getBody(), promoted.getBody());
+    }
+
+    @Test
+    public void testNewerResponseIsNotReplacedByDiskCopy() throws InterruptedException {
+        cache.put(createResponse("http://example.com/a"));
+        moveToDisk();
+
+        // starts reading the old copy from disk, then stores a newer response before the read completes
+        assertNull(cache.get("http://example.com/a"));
+        CachedResponse newer = createResponse("http://example.com/a");
+        cache.put(newer);
+
+        Thread.sleep(100);
+
+        assertSame(newer, cache.get("http://example.com/a"));
+    }
+
+    /**
+     * Fills the memory tier, so the responses stored before are moved to disk, and waits for the disk writes.
+     */
+    private void moveToDisk() throws InterruptedException {
+        int fillers = (int) (4 * MEMORY_SIZE / BODY_SIZE);
+        for (int i = 0; i < fillers; i++) {
+            cache.put(createResponse("http://example.com/filler/" + i));
+        }
+
+        // every response is either still in memory, or has been written to disk
+        long deadline = System.currentTimeMillis() + 5000;
+        while (cache.getMemoryEntryCount() + cache.getDiskEntryCount() < fillers + 1 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(fillers + 1, cache.getMemoryEntryCount() + cache.getDiskEntryCount());
+    }
+
+    private static CachedResponse createResponse(String key) {
+        byte[] body = new byte[BODY_SIZE];
+        for (int i = 0; i < body.length; i++) {
+            body[i] = (byte) (key.hashCode() + i);
+        }
+
+        HttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK);
+        response.headers().set(HttpHeaders.Names.CACHE_CONTROL, "max-age=3600");
+        HttpHeaders.setContentLength(response, body.length);
+
+        long now = System.currentTimeMillis();
+        return CachedResponse.create(key, new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, key), response, body, now, now);
+    }
+}
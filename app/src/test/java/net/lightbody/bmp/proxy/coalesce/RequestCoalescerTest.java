@@ -0,0 +1,394 @@
+package net.lightbody.bmp.proxy.coalesce;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.DefaultHttpContent;
+import io.netty.handler.codec.http.DefaultHttpRequest;
+import io.netty.handler.codec.http.DefaultHttpResponse;
+import io.netty.handler.codec.http.DefaultLastHttpContent;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpContent;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpResponseEncoder;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpVersion;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that followers of an {@link InFlightResponse} receive the leader's response on their own connections, that a failed leader
+ * results in a 502 or a disconnect, and that every buffer shared with followers is released.
+ */
+public class RequestCoalescerTest {
+    private static final String URL = "http://www.example.com/resource";
+
+    private RequestCoalescer coalescer;
+    private String key;
+
+    private final List<EmbeddedChannel> channels = new ArrayList<>();
+    private final List<HttpContent> leaderContent = new ArrayList<>();
+
+    @Before
+    public void setUp() {
+        coalescer = new RequestCoalescer(16);
+        key = RequestCoalescer.createKey(createRequest(HttpVersion.HTTP_1_1), URL);
+    }
+
+    @After
+    public void tearDown() {
+        for (EmbeddedChannel channel : channels) {
+            channel.finish();
+            Object msg;
+            while ((msg = channel.readOutbound()) != null) {
+                ((ByteBuf) msg).release();
+            }
+        }
+    }
+
+    @Test
+    public void testFollowersReceiveLeaderResponse() {
+        InFlightResponse response = coalescer.lead(key);
+        assertNotNull(response);
+        assertNull("a second leader should not be allowed while the response is in flight", coalescer.lead(key));
+
+        Follower first = follow(response, HttpVersion.HTTP_1_1);
+        Follower second = follow(response, HttpVersion.HTTP_1_1);
+        assertEquals(2, response.getFollowerCount());
+
+        publishResponse(response, true);
+        publishContent(response, "0123456789", false);
+        publishContent(response, "abc", true);
+
+        for (Follower follower : new Follower[] {first, second}) {
+            String output = follower.readOutput();
+            assertTrue(output, output.startsWith("HTTP/1.1 200 OK\r\n"));
+            assertTrue(output, output.contains("X-Test: leader"));
+            assertTrue(output, output.endsWith("\r\n\r\n0123456789abc"));
+
+            assertTrue(follower.channel.isOpen());
+            assertNull("handler should remove itself once the response is written",
+                    follower.channel.pipeline().get(CoalescedResponseHandler.class));
+
+            assertEquals(HttpResponseStatus.OK, follower.listener.status);
+            assertEquals("0123456789abc", follower.listener.body);
+            assertEquals(13, follower.placeholder.getBodySize());
+        }
+
+        assertEquals(0, coalescer.getInFlightCount());
+        assertNotNull("a request after completion should lead again", coalescer.lead(key));
+
+        assertLeaderContentReleased();
+    }
+
+    @Test
+    public void testFollowerResponseIsFramedForItsConnection() {
+        InFlightResponse response = coalescer.lead(key);
+
+        Follower chunked = follow(response, HttpVersion.HTTP_1_1);
+        Follower http10 = follow(response, HttpVersion.HTTP_1_0);
+
+        // no Content-Length, so the leader's framing cannot be reused as-is
+        publishResponse(response, false);
+        publishContent(response, "body", true);
+
+        String chunkedOutput = chunked.readOutput();
+        assertTrue(chunkedOutput, chunkedOutput.contains("Transfer-Encoding: chunked"));
+        assertTrue(chunkedOutput, chunkedOutput.endsWith("4\r\nbody\r\n0\r\n\r\n"));
+        assertTrue(chunked.channel.isOpen());
+
+        String http10Output = http10.readOutput();
+        assertTrue(http10Output, http10Output.startsWith("HTTP/1.0 200 OK\r\n"));
+        assertFalse(http10Output, http10Output.contains("chunked"));
+        assertTrue(http10Output, http10Output.endsWith("\r\n\r\nbody"));
+        assertFalse("the end of an HTTP/1.0 body without a length is signaled by closing", http10.channel.isOpen());
+
+        assertLeaderContentReleased();
+    }
+
+    @Test
+    public void testLeaderFailureBeforeFirstWriteSendsBadGateway() {
+        InFlightResponse response = coalescer.lead(key);
+        Follower follower = follow(response, HttpVersion.HTTP_1_1);
+
+        response.fail();
+
+        String output = follower.readOutput();
+        assertTrue(output, output.startsWith("HTTP/1.1 502 Bad Gateway\r\n"));
+        assertTrue(output, output.contains("Content-Length: 0"));
+        assertTrue("keep-alive client should keep its connection after a 502", follower.channel.isOpen());
+        assertTrue(follower.listener.failed);
+        assertNull(follower.listener.status);
+
+        assertEquals(0, coalescer.getInFlightCount());
+        assertNull("no followers can join a failed response", response.follow(newChannel().pipeline().context("encoder"),
+                createRequest(HttpVersion.HTTP_1_1)));
+    }
+
+    @Test
+    public void testLeaderFailureAfterFirstWriteDisconnects() {
+        InFlightResponse response = coalescer.lead(key);
+        Follower follower = follow(response, HttpVersion.HTTP_1_1);
+
+        publishResponse(response, true);
+        publishContent(response, "01234", false);
+
+        response.fail();
+
+        String output = follower.readOutput();
+        assertTrue(output, output.startsWith("HTTP/1.1 200 OK\r\n"));
+        assertTrue(output, output.endsWith("\r\n\r\n01234"));
+        assertFalse("a partly written response can only be failed by closing the connection", follower.channel.isOpen());
+        assertTrue(follower.listener.failed);
+
+        // the leader's late completion is ignored
+        publishContent(response, "56789", true);
+        assertEquals("", follower.readOutput());
+
+        assertLeaderContentReleased();
+    }
+
+    @Test
+    public void testLateJoinerReceivesBufferedContent() {
+        InFlightResponse response = coalescer.lead(key);
+        Follower early = follow(response, HttpVersion.HTTP_1_1);
+
+        publishResponse(response, true);
+        publishContent(response, "01234", false);
+
+        Follower late = follow(response, HttpVersion.HTTP_1_1);
+        assertNotNull(late);
+
+        publishContent(response, "56789abc", true);
+
+        assertEquals(early.readOutput(), late.readOutput());
+        assertEquals("0123456789abc", late.listener.body);
+
+        assertLeaderContentReleased();
+    }
+
+    @Test
+    public void testLateJoinerOverflowClosesResponseToNewFollowers() {
+        InFlightResponse response = coalescer.lead(key);
+        Follower early = follow(response, HttpVersion.HTTP_1_1);
+
+        publishResponse(response, true);
+        publishContent(response, "0123456789", false);
+        // exceeds the 16 byte limit, so the buffered content is discarded
+        publishContent(response, "abcdefghij", false);
+
+        assertEquals("an overflowed response should no longer be offered to new requests", 0, coalescer.getInFlightCount());
+        assertNull(response.follow(newChannel().pipeline().context("encoder"), createRequest(HttpVersion.HTTP_1_1)));
+
+        publishContent(response, "klm", true);
+
+        String output = early.readOutput();
+        assertTrue(output, output.endsWith("\r\n\r\n0123456789abcdefghijklm"));
+        assertEquals("the listener's body is empty when it was too large to buffer", "", early.listener.body);
+        assertEquals(23, early.placeholder.getBodySize());
+
+        assertLeaderContentReleased();
+    }
+
+    @Test
+    public void testWritesAfterPlaceholderAreHeldUntilResponseIsWritten() {
+        InFlightResponse response = coalescer.lead(key);
+        Follower follower = follow(response, HttpVersion.HTTP_1_1);
+
+        // LittleProxy closes the connection after a short-circuit response that is not keep-alive
+        follower.channel.close();
+        assertTrue("close should be held until the coalesced response has been written", follower.channel.isOpen());
+        assertEquals("", follower.readOutput());
+
+        publishResponse(response, true);
+        publishContent(response, "body", true);
+
+        String output = follower.readOutput();
+        assertTrue(output, output.endsWith("\r\n\r\nbody"));
+        assertFalse(follower.channel.isOpen());
+
+        assertLeaderContentReleased();
+    }
+
+    @Test
+    public void testDisconnectedFollowerReleasesDeliveredContent() {
+        InFlightResponse response = coalescer.lead(key);
+        Follower disconnected = follow(response, HttpVersion.HTTP_1_1);
+        Follower connected = follow(response, HttpVersion.HTTP_1_1);
+
+        publishResponse(response, true);
+
+        // the client closes its end of the connection, bypassing the handler's held close
+        disconnected.channel.unsafe().close(disconnected.channel.voidPromise());
+        disconnected.channel.runPendingTasks();
+
+        publishContent(response, "0123456789", false);
+        publishContent(response, "abc", true);
+
+        assertFalse(disconnected.channel.isOpen());
+        assertTrue(connected.readOutput().endsWith("\r\n\r\n0123456789abc"));
+
+        assertLeaderContentReleased();
+    }
+
+    @Test
+    public void testKeyIgnoresConnectionHeadersAndHeaderOrder() {
+        HttpRequest first = createRequest(HttpVersion.HTTP_1_1);
+        first.headers().add("Accept", "text/html");
+        first.headers().add("Accept-Language", "en");
+
+        HttpRequest second = createRequest(HttpVersion.HTTP_1_1);
+        second.headers().add("Accept-Language", "en");
+        second.headers().add("Accept", "text/html");
+        second.headers().add(HttpHeaders.Names.CONNECTION, "close");
+
+        HttpRequest different = createRequest(HttpVersion.HTTP_1_1);
+        different.headers().add("Accept", "application/json");
+        different.headers().add("Accept-Language", "en");
+
+        assertEquals(RequestCoalescer.createKey(first, URL), RequestCoalescer.createKey(second, URL));
+        assertFalse(RequestCoalescer.createKey(first, URL).equals(RequestCoalescer.createKey(different, URL)));
+    }
+
+    private Follower follow(InFlightResponse response, HttpVersion version) {
+        EmbeddedChannel channel = newChannel();
+        CoalescedHttpResponse placeholder = response.follow(channel.pipeline().context("encoder"), createRequest(version));
+        if (placeholder == null) {
+            return null;
+        }
+
+        RecordingListener listener = new RecordingListener();
+        placeholder.addListener(listener);
+
+        // LittleProxy writes the short-circuit response to the client, which the handler discards
+        channel.writeAndFlush(placeholder);
+        channel.runPendingTasks();
+
+        return new Follower(channel, placeholder, listener);
+    }
+
+    private EmbeddedChannel newChannel() {
+        EmbeddedChannel channel = new EmbeddedChannel();
+        channel.pipeline().addLast(CoalescedResponseHandler.ENCODER_HANDLER_NAME, new HttpResponseEncoder());
+        channels.add(channel);
+
+        return channel;
+    }
+
+    private void publishResponse(InFlightResponse response, boolean contentLength) {
+        HttpResponse httpResponse = new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK);
+        httpResponse.headers().set("X-Test", "leader");
+        httpResponse.headers().set(HttpHeaders.Names.CONNECTION, HttpHeaders.Values.KEEP_ALIVE);
+        if (contentLength) {
+            httpResponse.headers().set(HttpHeaders.Names.CONTENT_LENGTH, 13);
+        } else {
+            HttpHeaders.setTransferEncodingChunked(httpResponse);
+        }
+
+        response.publish(httpResponse);
+        runPendingTasks();
+    }
+
+    private void publishContent(InFlightResponse response, String content, boolean last) {
+        ByteBuf buf = Unpooled.copiedBuffer(content, StandardCharsets.UTF_8);
+        HttpContent httpContent = last ? new DefaultLastHttpContent(buf) : new DefaultHttpContent(buf);
+        leaderContent.add(httpContent);
+
+        response.publish(httpContent);
+        runPendingTasks();
+    }
+
+    private void runPendingTasks() {
+        for (EmbeddedChannel channel : channels) {
+            channel.runPendingTasks();
+        }
+    }
+
+    /**
+     * Releases the leader's own reference to every published buffer, as LittleProxy does once the content has been written to the
+     * leader, and checks that no other references remain.
+     */
+    private void assertLeaderContentReleased() {
+        runPendingTasks();
+
+        for (EmbeddedChannel channel : channels) {
+            Object msg;
+            while ((msg = channel.readOutbound()) != null) {
+                ((ByteBuf) msg).release();
+            }
+        }
+
+        for (HttpContent content : leaderContent) {
+            content.release();
+            assertEquals("buffer shared with followers was not released", 0, content.refCnt());
+        }
+        leaderContent.clear();
+    }
+
+    private static HttpRequest createRequest(HttpVersion version) {
+        HttpRequest request = new DefaultHttpRequest(version, HttpMethod.GET, URL);
+        request.headers().set(HttpHeaders.Names.HOST, "www.example.com");
+
+        return request;
+    }
+
+    private static class Follower {
+        private final EmbeddedChannel channel;
+        private final CoalescedHttpResponse placeholder;
+        private final RecordingListener listener;
+
+        private Follower(EmbeddedChannel channel, CoalescedHttpResponse placeholder, RecordingListener listener) {
+            this.channel = channel;
+            this.placeholder = placeholder;
+            this.listener = listener;
+        }
+
+        /**
+         * Reads and releases everything written to the client since the last read.
+         */
+        private String readOutput() {
+            channel.runPendingTasks();
+
+            StringBuilder output = new StringBuilder();
+            Object msg;
+            while ((msg = channel.readOutbound()) != null) {
+                ByteBuf buf = (ByteBuf) msg;
+                output.append(buf.toString(StandardCharsets.UTF_8));
+                buf.release();
+            }
+
+            return output.toString();
+        }
+    }
+
+    private static class RecordingListener implements CoalescedHttpResponse.Listener {
+        private HttpResponseStatus status;
+        private String body;
+        private boolean failed;
+
+        @Override
+        public void responseReceived(FullHttpResponse response) {
+            status = response.getStatus();
+            body = response.content().toString(StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public void responseFailed() {
+            failed = true;
+        }
+    }
+}
@@ -0,0 +1,242 @@
+package net.lightbody.bmp.proxy.local;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+import io.netty.channel.FileRegion;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpResponseEncoder;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.ssl.SslHandler;
+import io.netty.util.CharsetUtil;
+import io.netty.util.ReferenceCountUtil;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that {@link LocalFileResponseHandler} writes a file region on plain connections, and memory-mapped chunks when an
+ * {@link SslHandler} is present.
+ */
+public class LocalFileResponseHandlerTest {
+    /**
+     * Spans three mapped chunks, so the chunked path writes two full chunks and a partial one.
+     */
+    private static final int FILE_LENGTH = 2 * LocalFileResponseHandler.MAPPED_CHUNK_SIZE + 1000;
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    private File file;
+    private byte[] contents;
+
+    @Before
+    public void setUp() throws IOException {
+        contents = new byte[FILE_LENGTH];
+        for (int i = 0; i < contents.length; i++) {
+            contents[i] = (byte) (i * 31);
+        }
+
+        file = tempFolder.newFile("large.bin");
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(contents);
+        }
+    }
+
+    @Test
+    public void testPlainConnectionWritesFileRegion() throws IOException {
+        EmbeddedChannel channel = new EmbeddedChannel();
+        channel.pipeline().addLast(LocalFileResponseHandler.ENCODER_HANDLER_NAME, new HttpResponseEncoder());
+
+        // a range in the middle of the file
+        int position = 100;
+        int count = LocalFileResponseHandler.MAPPED_CHUNK_SIZE;
+        writeResponse(channel, position, count);
+
+        assertNull("handler should remove itself once the body is written", channel.pipeline().get(LocalFileResponseHandler.class));
+
+        String headers = ((ByteBuf) readOutbound(channel)).toString(CharsetUtil.US_ASCII);
+        assertTrue(headers, headers.startsWith("HTTP/1.1 200 OK\r\n"));
+
+        Object body = readOutbound(channel);
+        assertTrue("body should be written as a file region, not copied into buffers: " + body, body instanceof FileRegion);
+
+        FileRegion region = (FileRegion) body;
+        assertEquals(position, region.position());
+        assertEquals(count, region.count());
+
+        ByteArrayOutputStream transferred = new ByteArrayOutputStream();
+        WritableByteChannel target = Channels.newChannel(transferred);
+        while (region.transfered() < region.count()) {
+            region.transferTo(target, region.transfered());
+        }
+        assertArrayEquals(Arrays.copyOfRange(contents, position, position + count), transferred.toByteArray());
+        assertTrue(region.release());
+
+        releaseAll(channel);
+        assertFalse(channel.finish());
+    }
+
+    @Test
+    public void testTlsConnectionWritesMappedChunks() throws Exception {
+        EmbeddedChannel channel = new EmbeddedChannel();
+        channel.pipeline().addLast("ssl", new PassThroughSslHandler());
+        channel.pipeline().addLast(LocalFileResponseHandler.ENCODER_HANDLER_NAME, new HttpResponseEncoder());
+
+        int position = 10;
+        int count = FILE_LENGTH - 20;
+        writeResponse(channel, position, count);
+
+        assertNull(channel.pipeline().get(LocalFileResponseHandler.class));
+
+        String headers = ((ByteBuf) readOutbound(channel)).toString(CharsetUtil.US_ASCII);
+        assertTrue(headers, headers.startsWith("HTTP/1.1 200 OK\r\n"));
+
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        int chunks = 0;
+        Object msg;
+        while ((msg = channel.readOutbound()) != null) {
+            assertTrue("an SslHandler cannot encrypt a file region: " + msg, msg instanceof ByteBuf);
+
+            ByteBuf chunk = (ByteBuf) msg;
+            if (chunk.isReadable()) {
+                assertTrue(chunk.readableBytes() <= LocalFileResponseHandler.MAPPED_CHUNK_SIZE);
+                chunks++;
+            }
+            chunk.readBytes(body, chunk.readableBytes());
+            chunk.release();
+        }
+
+        assertEquals(3, chunks);
+        assertArrayEquals(Arrays.copyOfRange(contents, position, position + count), body.toByteArray());
+
+        assertFalse(channel.finish());
+    }
+
+    @Test
+    public void testCloseIsHeldUntilChunksAreWritten() throws Exception {
+        EmbeddedChannel channel = new EmbeddedChannel();
+        PassThroughSslHandler sslHandler = new PassThroughSslHandler();
+        sslHandler.holdWrites = true;
+        channel.pipeline().addLast("ssl", sslHandler);
+        channel.pipeline().addLast(LocalFileResponseHandler.ENCODER_HANDLER_NAME, new HttpResponseEncoder());
+
+        writeResponse(channel, 0, FILE_LENGTH);
+
+        // LittleProxy closes the connection after a response that is not keep-alive
+        channel.close();
+        assertTrue("close should wait for the rest of the body", channel.isOpen());
+
+        sslHandler.completeHeldWrites();
+
+        assertFalse(channel.isOpen());
+        releaseAll(channel);
+    }
+
+    private void writeResponse(EmbeddedChannel channel, int position, int count) {
+        LocalFileHttpResponse response = new LocalFileHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK, file, position, count);
+        HttpHeaders.setContentLength(response, count);
+
+        channel.pipeline().addAfter(LocalFileResponseHandler.ENCODER_HANDLER_NAME, null, new LocalFileResponseHandler(response));
+
+        channel.writeAndFlush(response);
+    }
+
+    private static Object readOutbound(EmbeddedChannel channel) {
+        Object msg = channel.readOutbound();
+        while (msg instanceof ByteBuf && !((ByteBuf) msg).isReadable()) {
+            ((ByteBuf) msg).release();
+            msg = channel.readOutbound();
+        }
+
+        return msg;
+    }
+
+    private static void releaseAll(EmbeddedChannel channel) {
+        Object msg;
+        while ((msg = channel.readOutbound()) != null) {
+            ReferenceCountUtil.release(msg);
+        }
+    }
+
+    /**
+     * An SslHandler that passes messages through unencrypted, so the test can see what the handler writes. When holdWrites is set,
+     * write promises are completed only when the test calls {@link #completeHeldWrites()}, as if the socket were slow.
+     */
+    private static class PassThroughSslHandler extends SslHandler {
+        private boolean holdWrites;
+        private final ArrayDeque<Object[]> heldWrites = new ArrayDeque<>();
+        private ChannelHandlerContext ctx;
+
+        private PassThroughSslHandler() throws NoSuchAlgorithmException {
+            super(createServerEngine());
+        }
+
+        private static SSLEngine createServerEngine() throws NoSuchAlgorithmException {
+            SSLEngine engine = SSLContext.getDefault().createSSLEngine();
+            engine.setUseClientMode(false);
+            return engine;
+        }
+
+        @Override
+        public void handlerAdded(ChannelHandlerContext ctx) throws Exception {
+            super.handlerAdded(ctx);
+
+            this.ctx = ctx;
+        }
+
+        @Override
+        public void channelActive(ChannelHandlerContext ctx) throws Exception {
+            ctx.fireChannelActive();
+        }
+
+        @Override
+        public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+            if (holdWrites) {
+                heldWrites.add(new Object[] {msg, promise});
+            } else {
+                ctx.write(msg, promise);
+            }
+        }
+
+        @Override
+        public void flush(ChannelHandlerContext ctx) throws Exception {
+            ctx.flush();
+        }
+
+        @Override
+        public void close(ChannelHandlerContext ctx, ChannelPromise promise) throws Exception {
+            ctx.close(promise);
+        }
+
+        private void completeHeldWrites() {
+            holdWrites = false;
+
+            Object[] write;
+            while ((write = heldWrites.poll()) != null) {
+                ctx.writeAndFlush(write[0], (ChannelPromise) write[1]);
+            }
+        }
+    }
+}
@@ -0,0 +1,275 @@
+package net.lightbody.bmp.proxy.replay;
+
+import com.google.common.io.BaseEncoding;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.http.DefaultFullHttpRequest;
+import io.netty.handler.codec.http.DefaultHttpRequest;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpVersion;
+import net.lightbody.bmp.core.har.Har;
+import net.lightbody.bmp.core.har.HarEntry;
+import net.lightbody.bmp.core.har.HarLog;
+import net.lightbody.bmp.core.har.HarPostData;
+import net.lightbody.bmp.core.har.HarPostDataParam;
+import net.lightbody.bmp.core.har.HarRequest;
+import net.lightbody.bmp.core.har.HarResponse;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Date;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Checks how {@link HarReplayIndex} normalizes and matches requests, and how it stores recorded bodies.
+ */
+public class HarReplayIndexTest {
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    @Test
+    public void testNormalizeUrl() {
+        assertEquals("http://www.example.com/", HarReplayIndex.normalizeUrl("HTTP://WWW.Example.COM"));
+        assertEquals("http://www.example.com/a", HarReplayIndex.normalizeUrl("http://www.example.com:80/a"));
+        assertEquals("https://www.example.com/a", HarReplayIndex.normalizeUrl("https://www.example.com:443/a"));
+        assertEquals("https://www.example.com:8443/a", HarReplayIndex.normalizeUrl("https://www.example.com:8443/a"));
+        assertEquals("http://www.example.com:443/a", HarReplayIndex.normalizeUrl("http://www.example.com:443/a"));
+        assertEquals("http://www.example.com/a", HarReplayIndex.normalizeUrl("http://www.example.com/a#section"));
+        assertEquals("http://www.example.com/a?a=1&b=2&c=3", HarReplayIndex.normalizeUrl("http://www.example.com/a?c=3&a=1&b=2"));
+
+        // the path is case-sensitive and encoded characters are kept as they are
+        assertEquals("http://www.example.com/A%20B", HarReplayIndex.normalizeUrl("http://www.example.com/A%20B"));
+
+        // unparseable URLs are matched exactly
+        assertEquals("http://www.example.com/a b", HarReplayIndex.normalizeUrl("http://www.example.com/a b"));
+        assertEquals("/relative", HarReplayIndex.normalizeUrl("/relative"));
+    }
+
+    @Test
+    public void testEquivalentUrlsMatch() throws IOException {
+        HarReplayIndex index = HarReplayIndex.fromFile(writeHar(
+                entry("GET", "http://www.example.com/search?q=a&page=2", null, 200, "text/plain", "results", null)));
+
+        assertNotNull(index.match(request(HttpMethod.GET, "http://WWW.EXAMPLE.COM:80/search?page=2&q=a"), "http://WWW.EXAMPLE.COM:80/search?page=2&q=a"));
+        assertNull(index.match(request(HttpMethod.GET, "http://www.example.com/search?q=a&page=3"), "http://www.example.com/search?q=a&page=3"));
+        assertNull("method is part of the key",
+                index.match(request(HttpMethod.HEAD, "http://www.example.com/search?q=a&page=2"), "http://www.example.com/search?q=a&page=2"));
+    }
+
+    @Test
+    public void testBodyHashMatching() throws IOException {
+        String url = "http://www.example.com/api";
+        HarReplayIndex index = HarReplayIndex.fromFile(writeHar(
+                entry("POST", url, "{\"id\":1}", 200, "application/json", "one", null),
+                entry("POST", url, "{\"id\":2}", 200, "application/json", "two", null)));
+
+        assertEquals(2, index.getRequestCount());
+        assertEquals("one", bodyOf(index.match(postRequest(url, "application/json", "{\"id\":1}"), url)));
+        assertEquals("two", bodyOf(index.match(postRequest(url, "application/json", "{\"id\":2}"), url)));
+        assertNull(index.match(postRequest(url, "application/json", "{\"id\":3}"), url));
+
+        // a request whose body was not aggregated cannot match a recorded body
+        assertNull(index.match(request(HttpMethod.POST, url), url));
+    }
+
+    @Test
+    public void testFormBodyMatchesRecordedParamsInAnyOrder() {
+        String url = "http://www.example.com/login";
+
+        HarEntry entry = harEntry("POST", url, 200, "welcome");
+        HarPostData postData = new HarPostData();
+        postData.setMimeType(HttpHeaders.Values.APPLICATION_X_WWW_FORM_URLENCODED);
+        postData.setParams(Arrays.asList(new HarPostDataParam("user", "a b"), new HarPostDataParam("password", "secret")));
+        entry.getRequest().setPostData(postData);
+
+        HarReplayIndex index = HarReplayIndex.fromHar(harOf(entry));
+
+        FullHttpRequest request = postRequest(url, HttpHeaders.Values.APPLICATION_X_WWW_FORM_URLENCODED, "password=secret&user=a+b");
+        assertEquals("welcome", bodyOf(index.match(request, url)));
+
+        FullHttpRequest wrongPassword = postRequest(url, HttpHeaders.Values.APPLICATION_X_WWW_FORM_URLENCODED, "password=wrong&user=a+b");
+        assertNull(index.match(wrongPassword, url));
+    }
+
+    @Test
+    public void testRepeatedRequestsAreReplayedInOrder() throws IOException {
+        String url = "http://www.example.com/counter";
+        HarReplayIndex index = HarReplayIndex.fromFile(writeHar(
+                entry("GET", url, null, 200, "text/plain", "1", null),
+                entry("GET", url, null, 200, "text/plain", "2", null)));
+
+        assertEquals(1, index.getRequestCount());
+        assertEquals(2, index.getResponseCount());
+
+        assertEquals("1", bodyOf(index.match(request(HttpMethod.GET, url), url)));
+        assertEquals("2", bodyOf(index.match(request(HttpMethod.GET, url), url)));
+        assertEquals("the last response is repeated", "2", bodyOf(index.match(request(HttpMethod.GET, url), url)));
+
+        index.rewind();
+        assertEquals("1", bodyOf(index.match(request(HttpMethod.GET, url), url)));
+    }
+
+    @Test
+    public void testMappedBodyStore() throws IOException {
+        byte[] binary = new byte[4096];
+        for (int i = 0; i < binary.length; i++) {
+            binary[i] = (byte) i;
+        }
+
+        File bodyStore = new File(tempFolder.getRoot(), "bodies.bin");
+        HarReplayIndex index = HarReplayIndex.fromFile(writeHar(
+                entry("GET", "http://www.example.com/text", null, 200, "text/plain; charset=UTF-8", "café", null),
+                entry("GET", "http://www.example.com/binary", null, 200, "application/octet-stream",
+                        BaseEncoding.base64().encode(binary), "base64"),
+                entry("GET", "http://www.example.com/empty", null, 204, "text/plain", null, null)), bodyStore);
+
+        assertEquals("bodies should be written to the store", 5 + binary.length, bodyStore.length());
+
+        RecordedResponse text = index.match(request(HttpMethod.GET, "http://www.example.com/text"), "http://www.example.com/text");
+        assertEquals("café", bodyOf(text));
+
+        RecordedResponse binaryResponse = index.match(request(HttpMethod.GET, "http://www.example.com/binary"), "http://www.example.com/binary");
+        for (int i = 0; i < 2; i++) {
+            // every response reads its own duplicate of the mapped body
+            FullHttpResponse response = binaryResponse.toHttpResponse(HttpVersion.HTTP_1_1);
+            byte[] body = new byte[response.content().readableBytes()];
+            response.content().readBytes(body);
+            assertEquals(binary.length, body.length);
+            assertEquals(BaseEncoding.base16().encode(binary), BaseEncoding.base16().encode(body));
+            assertEquals(String.valueOf(binary.length), HttpHeaders.getHeader(response, HttpHeaders.Names.CONTENT_LENGTH));
+            response.release();
+        }
+
+        RecordedResponse empty = index.match(request(HttpMethod.GET, "http://www.example.com/empty"), "http://www.example.com/empty");
+        assertEquals(204, empty.getStatus().code());
+        assertEquals(0, empty.getBodySize());
+    }
+
+    @Test
+    public void testTransferHeadersAreRegenerated() throws IOException {
+        HarReplayIndex index = HarReplayIndex.fromFile(writeHar(
+                "{\"request\":{\"method\":\"GET\",\"url\":\"http://www.example.com/gz\"},"
+                        + "\"response\":{\"status\":200,\"statusText\":\"OK\",\"headers\":["
+                        + "{\"name\":\"Content-Encoding\",\"value\":\"gzip\"},"
+                        + "{\"name\":\"Content-Length\",\"value\":\"999\"},"
+                        + "{\"name\":\"Keep-Alive\",\"value\":\"timeout=5\"},"
+                        + "{\"name\":\"X-Recorded\",\"value\":\"yes\"}],"
+                        + "\"content\":{\"mimeType\":\"text/plain\",\"text\":\"decoded\"}},"
+                        + "\"timings\":{\"wait\":40,\"receive\":-1}}"));
+
+        RecordedResponse recorded = index.match(request(HttpMethod.GET, "http://www.example.com/gz"), "http://www.example.com/gz");
+        assertEquals("negative timings are not counted", 40, recorded.getRecordedTimeMs());
+
+        FullHttpResponse response = recorded.toHttpResponse(HttpVersion.HTTP_1_1);
+        assertNull(HttpHeaders.getHeader(response, HttpHeaders.Names.CONTENT_ENCODING));
+        assertNull(HttpHeaders.getHeader(response, "Keep-Alive"));
+        assertEquals("7", HttpHeaders.getHeader(response, HttpHeaders.Names.CONTENT_LENGTH));
+        assertEquals("yes", HttpHeaders.getHeader(response, "X-Recorded"));
+        response.release();
+    }
+
+    @Test
+    public void testIncompleteEntriesAreSkipped() throws IOException {
+        HarReplayIndex index = HarReplayIndex.fromFile(writeHar(
+                entry("GET", "http://www.example.com/aborted", null, 0, "text/plain", null, null),
+                "{\"request\":{\"method\":\"GET\",\"url\":\"http://www.example.com/no-response\"}}",
+                entry("GET", "http://www.example.com/ok", null, 200, "text/plain", "ok", null)));
+
+        assertEquals(1, index.getResponseCount());
+        assertNull(index.match(request(HttpMethod.GET, "http://www.example.com/aborted"), "http://www.example.com/aborted"));
+    }
+
+    private File writeHar(String... entries) throws IOException {
+        StringBuilder har = new StringBuilder("{\"log\":{\"version\":\"1.2\",\"entries\":[");
+        for (int i = 0; i < entries.length; i++) {
+            if (i > 0) {
+                har.append(',');
+            }
+            har.append(entries[i]);
+        }
+        har.append("]}}");
+
+        File file = tempFolder.newFile();
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8)) {
+            writer.write(har.toString());
+        }
+
+        return file;
+    }
+
+    static String entry(String method, String url, String requestBody, int status, String mimeType, String text, String encoding) {
+        StringBuilder entry = new StringBuilder("{\"request\":{\"method\":\"").append(method).append("\",\"url\":\"").append(url).append('"');
+        if (requestBody != null) {
+            entry.append(",\"postData\":{\"mimeType\":\"application/json\",\"text\":\"").append(requestBody.replace("\"", "\\\"")).append("\"}");
+        }
+        entry.append("},\"response\":{\"status\":").append(status).append(",\"statusText\":\"\",\"headers\":[],\"content\":{\"mimeType\":\"")
+                .append(mimeType).append('"');
+        if (text != null) {
+            entry.append(",\"text\":\"").append(text).append('"');
+        }
+        if (encoding != null) {
+            entry.append(",\"encoding\":\"").append(encoding).append('"');
+        }
+        entry.append("}},\"timings\":{\"wait\":20,\"receive\":5}}");
+
+        return entry.toString();
+    }
+
+    private static HarEntry harEntry(String method, String url, int status, String text) {
+        HarEntry entry = new HarEntry();
+        entry.setStartedDateTime(new Date());
+        entry.setRequest(new HarRequest(method, url, "HTTP/1.1"));
+
+        HarResponse response = new HarResponse(status, "", "HTTP/1.1");
+        response.getContent().setMimeType("text/plain");
+        response.getContent().setText(text);
+        entry.setResponse(response);
+
+        return entry;
+    }
+
+    private static Har harOf(HarEntry... entries) {
+        HarLog log = new HarLog();
+        for (HarEntry entry : entries) {
+            log.addEntry(entry);
+        }
+
+        return new Har(log);
+    }
+
+    private static DefaultHttpRequest request(HttpMethod method, String url) {
+        return new DefaultHttpRequest(HttpVersion.HTTP_1_1, method, url);
+    }
+
+    private static FullHttpRequest postRequest(String url, String contentType, String body) {
+        FullHttpRequest request = new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.POST, url,
+                Unpooled.copiedBuffer(body, StandardCharsets.UTF_8));
+        request.headers().set(HttpHeaders.Names.CONTENT_TYPE, contentType);
+
+        return request;
+    }
+
+    private static String bodyOf(RecordedResponse recorded) {
+        assertNotNull("request should have matched a recorded response", recorded);
+
+        FullHttpResponse response = recorded.toHttpResponse(HttpVersion.HTTP_1_1);
+        try {
+            return response.content().toString(StandardCharsets.UTF_8);
+        } finally {
+            response.release();
+        }
+    }
+}
@@ -0,0 +1,164 @@
+package net.lightbody.bmp.proxy.throttle;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.util.ReferenceCountUtil;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Downloads from a local origin server through a {@link TrafficShapingHandler} and checks the throughput the client sees.
+ */
+public class TrafficShapingHandlerTest {
+    private static final int RESPONSE_BYTES = 128 * 1024;
+    private static final long READ_LIMIT = 64 * 1024;
+
+    private ServerSocket origin;
+    private Thread originThread;
+    private EventLoopGroup eventLoopGroup;
+
+    @Before
+    public void startOrigin() throws IOException {
+        origin = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        originThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                byte[] chunk = new byte[8192];
+                while (!origin.isClosed()) {
+                    try (Socket socket = origin.accept();
+                         OutputStream out = socket.getOutputStream()) {
+                        for (int written = 0; written < RESPONSE_BYTES; written += chunk.length) {
+                            out.write(chunk);
+                        }
+                    } catch (IOException e) {
+                        // the origin was closed, or the client went away
+                    }
+                }
+            }
+        });
+        originThread.start();
+
+        eventLoopGroup = new NioEventLoopGroup(1);
+    }
+
+    @After
+    public void stopOrigin() throws Exception {
+        origin.close();
+        originThread.join(TimeUnit.SECONDS.toMillis(5));
+        eventLoopGroup.shutdownGracefully(0, 1, TimeUnit.SECONDS).await();
+    }
+
+    @Test
+    public void testUnlimitedDownloadIsNotDelayed() throws Exception {
+        TrafficShaper trafficShaper = new TrafficShaper();
+
+        long elapsedNanos = download(trafficShaper);
+
+        assertTrue("unthrottled download took " + TimeUnit.NANOSECONDS.toMillis(elapsedNanos) + "ms",
+                elapsedNanos < TimeUnit.SECONDS.toNanos(1));
+    }
+
+    @Test
+    public void testGlobalReadLimitSlowsDownload() throws Exception {
+        TrafficShaper trafficShaper = new TrafficShaper();
+        trafficShaper.setGlobalReadLimit(READ_LIMIT);
+
+        assertThroughputLimited(download(trafficShaper));
+    }
+
+    @Test
+    public void testHostReadLimitSlowsDownload() throws Exception {
+        TrafficShaper trafficShaper = new TrafficShaper();
+        trafficShaper.setHostLimit("localhost", READ_LIMIT, 0);
+
+        assertThroughputLimited(download(trafficShaper));
+    }
+
+    @Test
+    public void testHostReadLimitDoesNotApplyToOtherHosts() throws Exception {
+        TrafficShaper trafficShaper = new TrafficShaper();
+        trafficShaper.setHostLimit("example.com", READ_LIMIT, 0);
+
+        long elapsedNanos = download(trafficShaper);
+
+        assertTrue("download from an unlimited host took " + TimeUnit.NANOSECONDS.toMillis(elapsedNanos) + "ms",
+                elapsedNanos < TimeUnit.SECONDS.toNanos(1));
+    }
+
+    /**
+     * The bucket allows an initial burst of a tenth of a second's worth of bytes, so the download can finish at most that much early.
+     */
+    private static void assertThroughputLimited(long elapsedNanos) {
+        long minimumNanos = (RESPONSE_BYTES - READ_LIMIT / 10) * TimeUnit.SECONDS.toNanos(1) / READ_LIMIT;
+        double bytesPerSecond = (double) RESPONSE_BYTES * TimeUnit.SECONDS.toNanos(1) / elapsedNanos;
+
+        assertTrue("expected at most " + READ_LIMIT + " bytes/s but was " + (long) bytesPerSecond,
+                elapsedNanos >= minimumNanos * 9 / 10);
+        assertTrue("throttled download took " + TimeUnit.NANOSECONDS.toMillis(elapsedNanos) + "ms",
+                elapsedNanos < minimumNanos * 2);
+    }
+
+    /**
+     * Downloads the origin's response through a shaped connection.
+     *
+     * @return the time until the whole response was read, in nanoseconds
+     */
+    private long download(final TrafficShaper trafficShaper) throws InterruptedException {
+        final AtomicLong received = new AtomicLong();
+        final CountDownLatch closed = new CountDownLatch(1);
+
+        Bootstrap bootstrap = new Bootstrap()
+                .group(eventLoopGroup)
+                .channel(NioSocketChannel.class)
+                .handler(new ChannelInitializer<Channel>() {
+                    @Override
+                    protected void initChannel(Channel ch) throws Exception {
+                        ch.pipeline().addLast(TrafficShapingHandler.HANDLER_NAME, new TrafficShapingHandler(trafficShaper, "localhost"));
+                        ch.pipeline().addLast(new ChannelInboundHandlerAdapter() {
+                            @Override
+                            public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+                                received.addAndGet(((ByteBuf) msg).readableBytes());
+                                ReferenceCountUtil.release(msg);
+                            }
+
+                            @Override
+                            public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+                                closed.countDown();
+                            }
+                        });
+                    }
+                });
+
+        long start = System.nanoTime();
+        bootstrap.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), origin.getLocalPort())).syncUninterruptibly();
+
+        assertTrue("download did not complete", closed.await(30, TimeUnit.SECONDS));
+        long elapsedNanos = System.nanoTime() - start;
+
+        assertEquals(RESPONSE_BYTES, received.get());
+
+        return elapsedNanos;
+    }
+}
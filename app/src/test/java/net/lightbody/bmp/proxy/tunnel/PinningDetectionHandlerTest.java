@@ -0,0 +1,141 @@
+package net.lightbody.bmp.proxy.tunnel;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.channels.ClosedChannelException;
+
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLHandshakeException;
+
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.DefaultHttpRequest;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.ssl.SslHandshakeCompletionEvent;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Replays client connections through a {@link PinningDetectionHandler} and checks which hosts the {@link MitmBypassList} learns.
+ */
+public class PinningDetectionHandlerTest {
+    private static final String HOST = "pinned.example.com";
+
+    private MitmBypassList bypassList;
+
+    @Before
+    public void setUp() {
+        bypassList = new MitmBypassList();
+    }
+
+    @Test
+    public void testFailedHandshakesAreLearned() {
+        for (int i = 0; i < MitmBypassList.DEFAULT_PINNING_FAILURE_THRESHOLD; i++) {
+            assertFalse(bypassList.shouldBypass(HOST));
+
+            EmbeddedChannel channel = newChannel();
+            channel.pipeline().fireUserEventTriggered(new SslHandshakeCompletionEvent(new SSLHandshakeException("Received fatal alert: certificate_unknown")));
+            channel.finish();
+        }
+
+        assertTrue(bypassList.shouldBypass(HOST));
+    }
+
+    @Test
+    public void testCloseDuringHandshakeIsNotARejection() {
+        for (int i = 0; i < 10; i++) {
+            EmbeddedChannel channel = newChannel();
+            channel.pipeline().fireUserEventTriggered(new SslHandshakeCompletionEvent(new ClosedChannelException()));
+            channel.finish();
+        }
+
+        assertFalse(bypassList.shouldBypass(HOST));
+    }
+
+    @Test
+    public void testCertificateAlertAfterHandshakeIsARejection() {
+        for (int i = 0; i < MitmBypassList.DEFAULT_PINNING_FAILURE_THRESHOLD; i++) {
+            EmbeddedChannel channel = newChannel();
+            channel.pipeline().fireUserEventTriggered(SslHandshakeCompletionEvent.SUCCESS);
+            channel.pipeline().fireExceptionCaught(new SSLException("Received fatal alert: bad_certificate"));
+            channel.finish();
+        }
+
+        assertTrue(bypassList.shouldBypass(HOST));
+    }
+
+    @Test
+    public void testSingleCloseWithoutRequestIsNotPinning() {
+        for (int i = 0; i < MitmBypassList.DEFAULT_PINNING_FAILURE_THRESHOLD; i++) {
+            closeAfterHandshake();
+        }
+
+        assertFalse(bypassList.shouldBypass(HOST));
+        assertEquals(0, bypassList.getLearnedHosts().size());
+    }
+
+    @Test
+    public void testRepeatedClosesWithoutRequestAreLearned() {
+        for (int i = 0; i < MitmBypassList.DEFAULT_CLOSE_WITHOUT_REQUEST_THRESHOLD; i++) {
+            assertFalse(bypassList.shouldBypass(HOST));
+
+            closeAfterHandshake();
+        }
+
+        assertTrue(bypassList.shouldBypass(HOST));
+    }
+
+    @Test
+    public void testRequestResetsClosesWithoutRequest() {
+        for (int i = 0; i < MitmBypassList.DEFAULT_CLOSE_WITHOUT_REQUEST_THRESHOLD - 1; i++) {
+            closeAfterHandshake();
+        }
+
+        EmbeddedChannel channel = newChannel();
+        channel.pipeline().fireUserEventTriggered(SslHandshakeCompletionEvent.SUCCESS);
+        channel.writeInbound(new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, "/"));
+        channel.finish();
+
+        closeAfterHandshake();
+
+        assertFalse(bypassList.shouldBypass(HOST));
+    }
+
+    @Test
+    public void testLearnedHostsExpire() throws InterruptedException {
+        bypassList.setLearnedHostExpiryMs(50);
+
+        for (int i = 0; i < MitmBypassList.DEFAULT_PINNING_FAILURE_THRESHOLD; i++) {
+            EmbeddedChannel channel = newChannel();
+            channel.pipeline().fireUserEventTriggered(new SslHandshakeCompletionEvent(new SSLHandshakeException("handshake failed")));
+            channel.finish();
+        }
+
+        assertTrue(bypassList.shouldBypass(HOST));
+
+        Thread.sleep(100);
+
+        assertFalse(bypassList.shouldBypass(HOST));
+        assertEquals(0, bypassList.getLearnedHosts().size());
+    }
+
+    private void closeAfterHandshake() {
+        EmbeddedChannel channel = newChannel();
+        channel.pipeline().fireUserEventTriggered(SslHandshakeCompletionEvent.SUCCESS);
+        channel.close();
+    }
+
+    private EmbeddedChannel newChannel() {
+        // swallows the events that reach the end of the pipeline, so the embedded channel does not rethrow them
+        return new EmbeddedChannel(new PinningDetectionHandler(HOST, bypassList), new ChannelInboundHandlerAdapter() {
+            @Override
+            public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+            }
+        });
+    }
+}
@@ -0,0 +1,185 @@
+package net.lightbody.bmp.util;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the {@link QuantileSketch}'s quantiles against the exact quantiles of the values added, and that merged sketches match a
+ * sketch of all the values.
+ */
+public class QuantileSketchTest {
+    private static final double[] QUANTILES = {0, 0.01, 0.25, 0.5, 0.75, 0.9, 0.95, 0.99, 1};
+
+    @Test
+    public void testEmptySketch() {
+        QuantileSketch sketch = new QuantileSketch();
+
+        assertEquals(0, sketch.getCount());
+        assertEquals(-1, sketch.getQuantile(0.5));
+        assertEquals(-1, sketch.getMin());
+        assertEquals(-1, sketch.getMax());
+        assertEquals(-1, sketch.getMean(), 0);
+    }
+
+    @Test
+    public void testNegativeValuesAreIgnored() {
+        QuantileSketch sketch = new QuantileSketch();
+        sketch.add(-1);
+        sketch.add(40);
+
+        assertEquals(1, sketch.getCount());
+        assertEquals(40, sketch.getQuantile(0));
+        assertEquals(40, sketch.getMean(), 0);
+    }
+
+    @Test
+    public void testSingleValueIsExact() {
+        QuantileSketch sketch = new QuantileSketch();
+        sketch.add(1234);
+
+        for (double quantile : QUANTILES) {
+            assertEquals(1234, sketch.getQuantile(quantile));
+        }
+    }
+
+    @Test
+    public void testUniformValues() {
+        Random random = new Random(1);
+        long[] values = new long[10000];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = random.nextInt(1000);
+        }
+
+        assertAccurate(values, QuantileSketch.DEFAULT_RELATIVE_ACCURACY);
+    }
+
+    @Test
+    public void testLongTailedTimings() {
+        // log-normal, like request timings: mostly tens of milliseconds with a tail of several seconds
+        Random random = new Random(2);
+        long[] values = new long[20000];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = Math.round(Math.exp(4 + 1.5 * random.nextGaussian()));
+        }
+
+        assertAccurate(values, QuantileSketch.DEFAULT_RELATIVE_ACCURACY);
+        assertAccurate(values, 0.01);
+        assertAccurate(values, 0.1);
+    }
+
+    @Test
+    public void testZeroValues() {
+        long[] values = new long[100];
+        for (int i = 50; i < values.length; i++) {
+            values[i] = 1000 + i;
+        }
+
+        QuantileSketch sketch = assertAccurate(values, QuantileSketch.DEFAULT_RELATIVE_ACCURACY);
+        assertEquals(0, sketch.getQuantile(0.25));
+        assertEquals(0, sketch.getMin());
+        assertEquals(1099, sketch.getMax());
+    }
+
+    @Test
+    public void testMergeMatchesSketchOfAllValues() {
+        Random random = new Random(3);
+        QuantileSketch all = new QuantileSketch();
+        QuantileSketch small = new QuantileSketch();
+        QuantileSketch large = new QuantileSketch();
+
+        // the two halves cover different ranges, so merging grows the buckets on both sides
+        for (int i = 0; i < 5000; i++) {
+            long smallValue = random.nextInt(50);
+            long largeValue = 10000 + random.nextInt(100000);
+            small.add(smallValue);
+            large.add(largeValue);
+            all.add(smallValue);
+            all.add(largeValue);
+        }
+
+        QuantileSketch merged = new QuantileSketch();
+        merged.merge(large);
+        merged.merge(small);
+
+        assertSameSketch(all, merged);
+
+        large.merge(small);
+        assertSameSketch(all, large);
+    }
+
+    @Test
+    public void testMergeEmptySketch() {
+        QuantileSketch sketch = new QuantileSketch();
+        sketch.add(10);
+        sketch.add(20);
+
+        sketch.merge(new QuantileSketch());
+
+        assertEquals(2, sketch.getCount());
+        assertEquals(10, sketch.getMin());
+        assertEquals(20, sketch.getMax());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testMergeDifferentAccuracy() {
+        new QuantileSketch(0.02).merge(new QuantileSketch(0.05));
+    }
+
+    @Test
+    public void testClear() {
+        QuantileSketch sketch = new QuantileSketch();
+        sketch.add(10);
+        sketch.clear();
+
+        assertEquals(0, sketch.getCount());
+        assertEquals(-1, sketch.getQuantile(0.5));
+
+        sketch.add(5);
+        assertEquals(5, sketch.getQuantile(0.5));
+    }
+
+    /**
+     * Adds the values to a new sketch and checks every quantile is within the relative accuracy of the exact quantile, which is the
+     * value at the same rank the sketch uses. Values are whole numbers, so small values may also be off by the rounding.
+     */
+    private static QuantileSketch assertAccurate(long[] values, double relativeAccuracy) {
+        QuantileSketch sketch = new QuantileSketch(relativeAccuracy);
+        long sum = 0;
+        for (long value : values) {
+            sketch.add(value);
+            sum += value;
+        }
+
+        long[] sorted = values.clone();
+        Arrays.sort(sorted);
+
+        for (double quantile : QUANTILES) {
+            long exact = sorted[(int) (quantile * (sorted.length - 1))];
+            long estimate = sketch.getQuantile(quantile);
+            double tolerance = exact * relativeAccuracy + 0.5;
+            assertTrue("p" + quantile * 100 + ": " + estimate + " vs exact " + exact, Math.abs(estimate - exact) <= tolerance);
+        }
+
+        assertEquals(values.length, sketch.getCount());
+        assertEquals(sorted[0], sketch.getMin());
+        assertEquals(sorted[sorted.length - 1], sketch.getMax());
+        assertEquals((double) sum / values.length, sketch.getMean(), 1e-6);
+
+        return sketch;
+    }
+
+    private static void assertSameSketch(QuantileSketch expected, QuantileSketch actual) {
+        assertEquals(expected.getCount(), actual.getCount());
+        assertEquals(expected.getMin(), actual.getMin());
+        assertEquals(expected.getMax(), actual.getMax());
+        assertEquals(expected.getMean(), actual.getMean(), 1e-6);
+        for (double quantile : QUANTILES) {
+            assertEquals("p" + quantile * 100, expected.getQuantile(quantile), actual.getQuantile(quantile));
+        }
+    }
+}